@@ -0,0 +1,52 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>Title: BenchmarkRunner</p>
+ * <p>Description: The benchmark jar's main class. Accepts the standard JMH command line
+ * and always adds the GC profiler so every run reports allocation rates.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.BenchmarkRunner</code></p>
+ */
+
+public class BenchmarkRunner {
+
+	/**
+	 * Runs the benchmarks selected by the passed JMH command line
+	 * @param args The JMH command line
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(final String[] args) throws Exception {
+		final CommandLineOptions cmd = new CommandLineOptions(args);
+		if(cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build()).run();
+	}
+
+	private BenchmarkRunner() {}
+}
@@ -0,0 +1,111 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.BypassRules;
+import com.heliosapm.tomcat.valve.security.SecureCookies;
+
+/**
+ * <p>Title: BypassBenchmark</p>
+ * <p>Description: Measures {@link BypassRules} matching against the request's MessageBytes, and a full
+ * {@link SecureCookies} invoke, for a dynamic page, a static asset matched by extension and a health check
+ * matched by path prefix. The terminal valve sets no cookies, as static and health traffic does not.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.BypassBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BypassBenchmark {
+	/** The request URI */
+	@Param({"/shop/cart/checkout", "/shop/static/js/app.bundle.js", "/health"})
+	public String uri;
+	/** The cookie engine */
+	@Param({"wrapper", "header"})
+	public String engine;
+	/** Indicates if the bypass rules are configured */
+	@Param({"true", "false"})
+	public boolean rules;
+
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** The valve under test */
+	private SecureCookies valve;
+	/** The compiled bypass rules */
+	private BypassRules bypass;
+
+	/**
+	 * Builds the fixture and the valve
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true).request("GET", uri);
+		valve = new SecureCookies();
+		valve.setEngine(engine);
+		if(rules) {
+			valve.setBypassPaths("/health, /status, /shop/static/");
+			valve.setBypassExtensions("css, js, png, gif, ico, woff2");
+			valve.setBypassMethods("OPTIONS");
+		}
+		valve.setNext(fixture.terminal);
+		bypass = valve.config().getBypass();
+	}
+
+	/**
+	 * Matches the request against the bypass rules
+	 * @return true if bypassed
+	 */
+	@Benchmark
+	public boolean matches() {
+		return bypass.matches(fixture.request.getCoyoteRequest());
+	}
+
+	/**
+	 * One request through the valve
+	 * @return the response status
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int invoke() throws Exception {
+		valve.invoke(fixture.request, fixture.response);
+		final int status = fixture.response.getStatus();
+		fixture.complete();
+		return status;
+	}
+
+}
@@ -0,0 +1,160 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+
+import org.apache.catalina.CometEvent;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.ActionCode;
+
+/**
+ * <p>Title: CatalinaFixture</p>
+ * <p>Description: A real, unstarted catalina {@link Request}/{@link Response} pair bound to coyote
+ * request and response objects, the way the CoyoteAdapter sets them up, plus a terminal valve
+ * that adds a configurable number of cookies through the application facing response facade.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.CatalinaFixture</code></p>
+ */
+
+public class CatalinaFixture {
+	/** The request line charset */
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	/** The connector the request and response belong to */
+	public final Connector connector;
+	/** The catalina request */
+	public final Request request;
+	/** The catalina response */
+	public final Response response;
+	/** The terminal valve */
+	public final CookieSettingValve terminal = new CookieSettingValve();
+
+	/**
+	 * Creates a new CatalinaFixture
+	 * @param secure true to mark the request as secure
+	 * @throws Exception thrown if the connector cannot be created
+	 */
+	public CatalinaFixture(final boolean secure) throws Exception {
+		connector = new Connector("HTTP/1.1");
+		request = connector.createRequest();
+		request.setCoyoteRequest(new org.apache.coyote.Request());
+		response = connector.createResponse();
+		final org.apache.coyote.Response coyoteResponse = new org.apache.coyote.Response();
+		response.setCoyoteResponse(coyoteResponse);
+		request.setResponse(response);
+		response.setRequest(request);
+		request.setSecure(secure);
+		request("GET", "/shop/index.html");
+	}
+
+	/**
+	 * Sets the request method and URI as bytes, the way the connector does
+	 * @param method The request method
+	 * @param uri The request URI
+	 * @return this fixture
+	 */
+	public CatalinaFixture request(final String method, final String uri) {
+		final org.apache.coyote.Request coyoteRequest = request.getCoyoteRequest();
+		final byte[] m = method.getBytes(ISO_8859_1);
+		final byte[] u = uri.getBytes(ISO_8859_1);
+		coyoteRequest.method().setBytes(m, 0, m.length);
+		coyoteRequest.requestURI().setBytes(u, 0, u.length);
+		coyoteRequest.decodedURI().setBytes(u, 0, u.length);
+		return this;
+	}
+
+	/**
+	 * Simulates the connector committing the response, then recycles the response for the next iteration
+	 */
+	public void complete() {
+		final org.apache.coyote.Response coyoteResponse = response.getCoyoteResponse();
+		coyoteResponse.action(ActionCode.ACTION_COMMIT, null);
+		coyoteResponse.recycle();
+		response.recycle();
+		request.setResponse(response);
+	}
+
+	/**
+	 * Creates cookies named after common application cookies
+	 * @param count The number of cookies to create
+	 * @return the cookies
+	 */
+	public static Cookie[] cookies(final int count) {
+		final String[] names = {"JSESSIONID", "auth_token", "locale", "consent", "ab_bucket"};
+		final Cookie[] cookies = new Cookie[count];
+		for(int i = 0; i < count; i++) {
+			cookies[i] = new Cookie(names[i % names.length] + (i < names.length ? "" : String.valueOf(i)), "8F1A6C2B5E9D4F7A" + i);
+			cookies[i].setPath("/shop");
+		}
+		return cookies;
+	}
+
+	/**
+	 * <p>Title: CookieSettingValve</p>
+	 * <p>Description: A terminal valve standing in for the webapp, adding cookies through the response facade</p>
+	 */
+	public static class CookieSettingValve extends ValveBase {
+		/** The cookies to add */
+		public Cookie[] cookies = new Cookie[0];
+		/** Raw Set-Cookie header values to add */
+		public String[] rawCookies = new String[0];
+		/** Indicates if cookies are added as http only, through the catalina response rather than the facade */
+		public boolean httpOnly = false;
+		/** The cookies to add on each comet event */
+		public Cookie[] eventCookies = new Cookie[0];
+		/** The number of comet events received */
+		public long events = 0L;
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.apache.catalina.valves.ValveBase#invoke(org.apache.catalina.connector.Request, org.apache.catalina.connector.Response)
+		 */
+		@Override
+		public void invoke(final Request request, final Response response) throws IOException, ServletException {
+			if(cookies.length==0 && rawCookies.length==0) return;
+			for(int i = 0; i < cookies.length; i++) {
+				if(httpOnly) response.addCookieInternal(cookies[i], true);
+				else response.getResponse().addCookie(cookies[i]);
+			}
+			for(int i = 0; i < rawCookies.length; i++) {
+				response.getResponse().addHeader("Set-Cookie", rawCookies[i]);
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see org.apache.catalina.valves.ValveBase#event(org.apache.catalina.connector.Request, org.apache.catalina.connector.Response, org.apache.catalina.CometEvent)
+		 */
+		@Override
+		public void event(final Request request, final Response response, final CometEvent event) throws IOException, ServletException {
+			events++;
+			for(int i = 0; i < eventCookies.length; i++) {
+				response.getResponse().addCookie(eventCookies[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.catalina.CometEvent;
+import org.apache.catalina.connector.CometEventImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.SecureCookies;
+
+/**
+ * <p>Title: CometEventBenchmark</p>
+ * <p>Description: Measures one comet READ event through {@link SecureCookies#event(org.apache.catalina.connector.Request, org.apache.catalina.connector.Response, CometEvent)}
+ * on a long lived connection, with the connection's wrapper taken from the request note, against the same event on a
+ * connection the valve did not wrap. Run with <b><code>-prof gc</code></b> (the default through {@link BenchmarkRunner})
+ * to confirm dispatch allocates nothing. With a cookie per event, the repeated cookie is collapsed into one header.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.CometEventBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CometEventBenchmark {
+	/** Indicates if the connection was wrapped by the valve */
+	@Param({"true", "false"})
+	public boolean wrapped;
+	/** The number of cookies set on each event */
+	@Param({"0", "1"})
+	public int cookies;
+
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** The valve under test */
+	private SecureCookies valve;
+	/** The event */
+	private CometEventImpl event;
+
+	/**
+	 * Builds the fixture and the valve and begins the comet request
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true);
+		fixture.terminal.eventCookies = CatalinaFixture.cookies(cookies);
+		valve = new SecureCookies();
+		valve.setEnabled(wrapped);
+		valve.setNext(fixture.terminal);
+		fixture.request.setComet(true);
+		valve.invoke(fixture.request, fixture.response);
+		event = new CometEventImpl(fixture.request, fixture.response);
+		event.setEventType(CometEvent.EventType.READ);
+	}
+
+	/**
+	 * One event through the valve
+	 * @return the number of events received downstream
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public long event() throws Exception {
+		valve.event(fixture.request, fixture.response, event);
+		return fixture.terminal.events;
+	}
+
+}
@@ -0,0 +1,101 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.CookiePolicySet;
+import com.heliosapm.tomcat.valve.security.SetCookieCommitHook;
+import com.heliosapm.tomcat.valve.security.SetCookieScanner;
+
+/**
+ * <p>Title: CommitHookBenchmark</p>
+ * <p>Description: Measures the header engine's commit time rewrite of a response carrying
+ * a number of Set-Cookie headers among other headers.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.CommitHookBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommitHookBenchmark {
+	/** The number of Set-Cookie headers */
+	@Param({"0", "1", "10"})
+	public int cookies;
+	/** The per cookie policies */
+	@Param({"", "JSESSIONID -> secure,httponly; auth_* -> httponly; * -> samesite=Lax"})
+	public String policies;
+
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** The installed hook */
+	private SetCookieCommitHook hook;
+	/** The compiled policies */
+	private CookiePolicySet policySet;
+	/** The SameSite attribute */
+	private byte[] sameSiteAttr;
+
+	/**
+	 * Builds the fixture and installs the hook
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true);
+		hook = SetCookieCommitHook.install(fixture.response.getCoyoteResponse());
+		policySet = CookiePolicySet.compile(policies, CookiePolicySet.DEFAULT_CACHE_SIZE);
+		sameSiteAttr = SetCookieScanner.sameSiteAttribute("Lax");
+	}
+
+	/**
+	 * Populates the headers and rewrites them
+	 * @return the number of rewritten headers
+	 */
+	@Benchmark
+	public int rewrite() {
+		final MimeHeaders headers = fixture.response.getCoyoteResponse().getMimeHeaders();
+		headers.addValue("Content-Type").setString("text/html;charset=UTF-8");
+		headers.addValue("Cache-Control").setString("no-cache");
+		for(int i = 0; i < cookies; i++) {
+			headers.addValue("Set-Cookie").setString(i==0 ? "JSESSIONID=8F1A6C2B5E9D4F7A; Path=/shop" : "auth_token=8F1A6C2B5E9D4F7A; Path=/shop");
+		}
+		hook.begin(policySet, null, SetCookieScanner.SECURE | SetCookieScanner.HTTP_ONLY | SetCookieScanner.SAME_SITE, sameSiteAttr);
+		final int rewritten = hook.rewrite();
+		headers.clear();
+		return rewritten;
+	}
+
+}
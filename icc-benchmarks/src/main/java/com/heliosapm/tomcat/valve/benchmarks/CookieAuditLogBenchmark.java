@@ -0,0 +1,114 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.heliosapm.tomcat.valve.security.CookieAuditLog;
+import com.heliosapm.tomcat.valve.security.SameSite;
+import com.heliosapm.tomcat.valve.security.SetCookieScanner;
+
+/**
+ * <p>Title: CookieAuditLogBenchmark</p>
+ * <p>Description: Measures publishing audit records into the {@link CookieAuditLog} ring from several request threads
+ * while the writer drains to segments in a temporary directory. The dropped count is printed at the end of each trial;
+ * a publish that finds the ring full costs a failed claim, not a block.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.CookieAuditLogBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class CookieAuditLogBenchmark {
+	/** A raw Set-Cookie value */
+	private static final byte[] HEADER = "auth_token=8F1A6C2B5E9D4F7A; Path=/shop; HttpOnly; Secure; SameSite=Lax".getBytes(SetCookieScanner.ISO_8859_1);
+	/** The segment directory */
+	private File directory;
+	/** The audit log */
+	private CookieAuditLog auditLog;
+
+	/**
+	 * Opens the audit log in a temporary directory
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		directory = File.createTempFile("cookie-audit", "");
+		if(!directory.delete() || !directory.mkdirs()) throw new IllegalStateException("Failed to create [" + directory + "]");
+		auditLog = CookieAuditLog.open(directory, CookieAuditLog.DEFAULT_BUFFER_SIZE, 16 * 1024 * 1024, 2);
+	}
+
+	/**
+	 * Closes the audit log and deletes its segments
+	 */
+	@TearDown
+	public void tearDown() {
+		auditLog.close();
+		System.out.println("\nWritten: " + auditLog.getWritten() + ", Dropped: " + auditLog.getDropped());
+		for(File f: CookieAuditLog.listSegments(directory)) f.delete();
+		directory.delete();
+	}
+
+	/**
+	 * Publishes a cookie API record
+	 * @return true if the record was published
+	 */
+	@Benchmark
+	public boolean cookie() {
+		return auditLog.cookie(CookieAuditLog.OP_COOKIE, "JSESSIONID", "/shop", "/shop", SetCookieScanner.SECURE | SetCookieScanner.HTTP_ONLY, null);
+	}
+
+	/**
+	 * Publishes a raw header record, parsing the name and path from the value
+	 * @return true if the record was published
+	 */
+	@Benchmark
+	public boolean header() {
+		return auditLog.header(CookieAuditLog.OP_COMMIT, HEADER, 0, HEADER.length, "/shop", SetCookieScanner.SAME_SITE, SameSite.LAX);
+	}
+
+	/**
+	 * The synchronous alternative: the cookie rendered to a String, as a logger would
+	 * @param bh The black hole
+	 */
+	@Benchmark
+	public void render(final Blackhole bh) {
+		bh.consume("cookie op=add name=JSESSIONID context=/shop path=/shop added=secure,httponly ts=" + System.currentTimeMillis());
+	}
+}
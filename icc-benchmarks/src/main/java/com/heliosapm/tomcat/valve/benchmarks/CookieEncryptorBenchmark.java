@@ -0,0 +1,131 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.CookieEncryptor;
+
+/**
+ * <p>Title: CookieEncryptorBenchmark</p>
+ * <p>Description: Measures {@link CookieEncryptor} encrypt and decrypt for cookie values from 16 bytes to 4 KB, against a
+ * baseline that obtains a {@link Cipher} and draws a nonce from a shared {@link SecureRandom} for every value.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.CookieEncryptorBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieEncryptorBenchmark {
+	/** The plaintext value size in bytes */
+	@Param({"16", "64", "256", "1024", "4096"})
+	public int size;
+
+	/** The cookie name */
+	private static final String NAME = "cart_state";
+	/** The shared nonce source of the baseline */
+	private static final SecureRandom RANDOM = new SecureRandom();
+	/** The AES secret */
+	private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+
+	/** The encryptor, with a rotated out key behind the current one */
+	private CookieEncryptor encryptor;
+	/** The plaintext value */
+	private String value;
+	/** The encrypted value bytes */
+	private byte[] encrypted;
+	/** The cookie name as parsed */
+	private final MessageBytes name = MessageBytes.newInstance();
+	/** The cookie value as parsed */
+	private final MessageBytes parsed = MessageBytes.newInstance();
+	/** The baseline key */
+	private final SecretKeySpec key = new SecretKeySpec(SECRET, "AES");
+
+	/**
+	 * Builds the encryptor and an encrypted value
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		encryptor = CookieEncryptor.compile(NAME, "2:MDEyMzQ1Njc4OWFiY2RlZjAxMjM0NTY3ODlhYmNkZWY, 1:ZmVkY2JhOTg3NjU0MzIxMA", null);
+		final char[] chars = new char[size];
+		Arrays.fill(chars, 'v');
+		value = new String(chars);
+		encrypted = encryptor.encrypt(NAME, value).getBytes("ISO-8859-1");
+		final byte[] n = NAME.getBytes("ISO-8859-1");
+		name.setBytes(n, 0, n.length);
+	}
+
+	/**
+	 * Encrypts with the thread's cipher and nonce counter
+	 * @return the encrypted value
+	 */
+	@Benchmark
+	public String encrypt() {
+		return encryptor.encrypt(NAME, value);
+	}
+
+	/**
+	 * Decrypts a parsed value
+	 * @return true if it decrypted
+	 */
+	@Benchmark
+	public boolean decrypt() {
+		parsed.setBytes(encrypted, 0, encrypted.length);
+		return encryptor.decrypt(name, parsed);
+	}
+
+	/**
+	 * Encrypts with a new {@link Cipher} and a nonce from the shared {@link SecureRandom}, without encoding
+	 * @return the ciphertext
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public byte[] cipherPerCall() throws Exception {
+		final byte[] nonce = new byte[CookieEncryptor.NONCE_LENGTH];
+		RANDOM.nextBytes(nonce);
+		final Cipher cipher = Cipher.getInstance(CookieEncryptor.TRANSFORMATION);
+		cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(CookieEncryptor.TAG_LENGTH * 8, nonce));
+		cipher.updateAAD(NAME.getBytes("ISO-8859-1"));
+		return cipher.doFinal(value.getBytes("ISO-8859-1"));
+	}
+}
@@ -0,0 +1,136 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.catalina.connector.Request;
+import org.apache.tomcat.util.http.Cookies;
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.CookieHeaderScanner;
+
+/**
+ * <p>Title: CookieHeaderBenchmark</p>
+ * <p>Description: Compares validating the raw Cookie header with {@link CookieHeaderScanner} against Tomcat parsing it
+ * into server cookies and then into {@link Cookie} objects, which is what a check written against
+ * <b><code>request.getCookies()</code></b> would cost.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.CookieHeaderBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieHeaderBenchmark {
+	/** The number of cookies in the header */
+	@Param({"3", "20"})
+	public int cookies;
+
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** A catalina request sharing the fixture's coyote request */
+	private final ParsingRequest request = new ParsingRequest();
+	/** The request headers */
+	private MimeHeaders headers;
+	/** The coyote cookie parser */
+	private final Cookies parser = new Cookies();
+
+	/**
+	 * Builds a request carrying the Cookie header
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true);
+		final StringBuilder b = new StringBuilder();
+		final Cookie[] cs = CatalinaFixture.cookies(cookies);
+		for(int i = 0; i < cs.length; i++) {
+			if(i > 0) b.append("; ");
+			b.append(cs[i].getName()).append('=').append(cs[i].getValue());
+		}
+		final byte[] header = b.toString().getBytes("ISO-8859-1");
+		headers = fixture.request.getCoyoteRequest().getMimeHeaders();
+		headers.addValue(CookieHeaderScanner.COOKIE).setBytes(header, 0, header.length);
+		request.setCoyoteRequest(fixture.request.getCoyoteRequest());
+	}
+
+	/**
+	 * Validates the raw header
+	 * @return the result
+	 */
+	@Benchmark
+	public int scan() {
+		return CookieHeaderScanner.check(headers, 4096, 50, 8192);
+	}
+
+	/**
+	 * Parses the header into server cookies
+	 * @return the number of cookies
+	 */
+	@Benchmark
+	public int tomcatParse() {
+		parser.recycle();
+		parser.setHeaders(headers);
+		return parser.getCookieCount();
+	}
+
+	/**
+	 * Parses the header into {@link Cookie} objects
+	 * @return the cookies
+	 */
+	@Benchmark
+	public Cookie[] servletCookies() {
+		final Cookies serverCookies = fixture.request.getCoyoteRequest().getCookies();
+		serverCookies.recycle();
+		serverCookies.setHeaders(headers);
+		return request.parse();
+	}
+
+	/**
+	 * <p>Title: ParsingRequest</p>
+	 * <p>Description: A catalina request that parses its cookies on demand</p>
+	 */
+	static class ParsingRequest extends Request {
+		/**
+		 * Parses the coyote request's cookies into {@link Cookie} objects
+		 * @return the cookies
+		 */
+		Cookie[] parse() {
+			parseCookies();
+			return cookies;
+		}
+	}
+}
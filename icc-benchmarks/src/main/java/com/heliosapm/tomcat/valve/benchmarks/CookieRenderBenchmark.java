@@ -0,0 +1,111 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.SameSite;
+import com.heliosapm.tomcat.valve.security.SetCookieSuffixCache;
+
+/**
+ * <p>Title: CookieRenderBenchmark</p>
+ * <p>Description: Compares rendering a Set-Cookie header value with catalina's
+ * <b><code>Response.generateCookieString</code></b> against {@link SetCookieSuffixCache#render(Cookie, boolean, byte[], char[])},
+ * for a bare cookie and one carrying a domain, path and Secure. The SameSite variant renders the attribute in place,
+ * which catalina cannot express at all.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.CookieRenderBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieRenderBenchmark {
+	/** The cookie shape */
+	@Param({"bare", "full"})
+	public String shape;
+
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** The rendered suffix cache */
+	private final SetCookieSuffixCache suffixes = new SetCookieSuffixCache(SetCookieSuffixCache.DEFAULT_SIZE);
+	/** The render scratch buffer */
+	private final char[] scratch = new char[256];
+	/** The cookie rendered */
+	private Cookie cookie;
+
+	/**
+	 * Builds the fixture and the cookie
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true);
+		cookie = new Cookie("locale", "en_US");
+		if("full".equals(shape)) {
+			cookie.setDomain("shop.example.com");
+			cookie.setPath("/shop");
+			cookie.setSecure(true);
+		}
+	}
+
+	/**
+	 * Rendering through catalina
+	 * @return the header value
+	 */
+	@Benchmark
+	public String catalina() {
+		return fixture.response.generateCookieString(cookie, true).toString();
+	}
+
+	/**
+	 * Rendering from the suffix cache
+	 * @return the header value
+	 */
+	@Benchmark
+	public String cached() {
+		return suffixes.render(cookie, true, null, scratch);
+	}
+
+	/**
+	 * Rendering from the suffix cache with SameSite
+	 * @return the header value
+	 */
+	@Benchmark
+	public String cachedSameSite() {
+		return suffixes.render(cookie, true, SameSite.LAX.attribute(), scratch);
+	}
+}
@@ -0,0 +1,96 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.CidrTrie;
+import com.heliosapm.tomcat.valve.security.ForwardedProto;
+
+/**
+ * <p>Title: ForwardedProtoBenchmark</p>
+ * <p>Description: Measures the trusted proxy lookup in {@link CidrTrie} and the full {@link ForwardedProto} scheme
+ * resolution of a request from an IPv4 and an IPv6 load balancer, with the request note cleared so the headers are
+ * parsed every time.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.ForwardedProtoBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardedProtoBenchmark {
+	/** The load balancer address */
+	@Param({"10.20.30.40", "fd00:10:20::30"})
+	public String remote;
+	/** The forwarded scheme header */
+	@Param({"X-Forwarded-Proto", "Forwarded"})
+	public String header;
+
+	/** The trusted proxies */
+	private final CidrTrie trusted = CidrTrie.compile("127.0.0.1, 10.0.0.0/8, 172.16.0.0/12, 192.168.0.0/16, ::1, fd00::/8");
+	/** The request and response */
+	private CatalinaFixture fixture;
+
+	/**
+	 * Builds the fixture
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(false);
+		fixture.request.getCoyoteRequest().remoteAddr().setString(remote);
+		final byte[] value = (ForwardedProto.FORWARDED.equals(header) ? "for=198.51.100.17;proto=https;by=10.20.30.40" : "https").getBytes("ISO-8859-1");
+		fixture.request.getCoyoteRequest().getMimeHeaders().addValue(header).setBytes(value, 0, value.length);
+	}
+
+	/**
+	 * The trusted proxy lookup
+	 * @return true if trusted
+	 */
+	@Benchmark
+	public boolean trusted() {
+		return trusted.contains(remote);
+	}
+
+	/**
+	 * The scheme resolution
+	 * @return true if secure
+	 */
+	@Benchmark
+	public boolean isSecure() {
+		fixture.request.removeNote(ForwardedProto.NOTE);
+		return ForwardedProto.isSecure(fixture.request, trusted);
+	}
+}
@@ -0,0 +1,115 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.HttpDateCache;
+
+/**
+ * <p>Title: HttpDateBenchmark</p>
+ * <p>Description: Formats a cookie's Expires date from 64 threads at once, with {@link HttpDateCache}, with a thread local
+ * SimpleDateFormat as catalina does, and with a single SimpleDateFormat shared under a lock.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.HttpDateBenchmark</code></p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class HttpDateBenchmark {
+	/** The cookie max age */
+	private static final int MAX_AGE = 31536000;
+	/** Catalina's cookie date pattern */
+	private static final String PATTERN = "EEE, dd-MMM-yyyy HH:mm:ss z";
+	/** The per thread formats */
+	private static final ThreadLocal<DateFormat> FORMATS = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return format();
+		}
+	};
+	/** The shared format */
+	private final DateFormat shared = format();
+
+	private static DateFormat format() {
+		final DateFormat f = new SimpleDateFormat(PATTERN, Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return f;
+	}
+
+	/**
+	 * The cached formatter
+	 * @return the formatted date
+	 */
+	@Benchmark
+	public char[] cached() {
+		return HttpDateCache.COOKIE.expires(MAX_AGE);
+	}
+
+	/**
+	 * The cached current second
+	 * @return the formatted date
+	 */
+	@Benchmark
+	public char[] cachedNow() {
+		return HttpDateCache.RFC_1123.now();
+	}
+
+	/**
+	 * A thread local SimpleDateFormat
+	 * @return the formatted date
+	 */
+	@Benchmark
+	public String threadLocal() {
+		return FORMATS.get().format(new Date(System.currentTimeMillis() + MAX_AGE * 1000L));
+	}
+
+	/**
+	 * A shared SimpleDateFormat under a lock
+	 * @return the formatted date
+	 */
+	@Benchmark
+	public String synchronizedShared() {
+		final Date d = new Date(System.currentTimeMillis() + MAX_AGE * 1000L);
+		synchronized(shared) {
+			return shared.format(d);
+		}
+	}
+}
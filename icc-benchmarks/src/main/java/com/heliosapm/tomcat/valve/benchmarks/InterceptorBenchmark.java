@@ -0,0 +1,131 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.ResponseInterceptorSupport;
+import com.heliosapm.tomcat.valve.security.SecureCookies;
+import com.heliosapm.tomcat.valve.security.WrappedResponse;
+
+/**
+ * <p>Title: InterceptorBenchmark</p>
+ * <p>Description: Measures what a chain of response interceptors adds to a request through the wrapper engine:
+ * the dispatch loop, the per call timing and the per request recording. The interceptors, registered for
+ * {@link java.util.ServiceLoader} in this module's <b><code>META-INF/services</code></b>, only touch each cookie's name.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.InterceptorBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterceptorBenchmark {
+	/** The interceptor chain */
+	@Param({"", "First", "First, Second, Third, Fourth"})
+	public String interceptors;
+	/** The number of cookies the terminal valve sets */
+	@Param({"1", "10"})
+	public int cookies;
+
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** The valve under test */
+	private SecureCookies valve;
+
+	/**
+	 * Builds the fixture and the valve
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true);
+		fixture.terminal.cookies = CatalinaFixture.cookies(cookies);
+		valve = new SecureCookies();
+		valve.setInterceptors(interceptors);
+		valve.setForceSecure(true);
+		valve.setForceHttpOnly(true);
+		valve.setNext(fixture.terminal);
+	}
+
+	/**
+	 * One request through the valve
+	 * @return the response status
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int invoke() throws Exception {
+		valve.invoke(fixture.request, fixture.response);
+		final int status = fixture.response.getStatus();
+		fixture.complete();
+		return status;
+	}
+
+	/**
+	 * <p>Title: First</p>
+	 * <p>Description: A benchmark interceptor that reads each cookie's name</p>
+	 */
+	public static class First extends ResponseInterceptorSupport {
+		@Override
+		public boolean cookie(final WrappedResponse response, final Cookie cookie) {
+			return cookie.getName().length() > 0;
+		}
+	}
+
+	/**
+	 * <p>Title: Second</p>
+	 * <p>Description: A benchmark interceptor that reads each cookie's name</p>
+	 */
+	public static class Second extends First {
+		/* No Op */
+	}
+
+	/**
+	 * <p>Title: Third</p>
+	 * <p>Description: A benchmark interceptor that reads each cookie's name</p>
+	 */
+	public static class Third extends First {
+		/* No Op */
+	}
+
+	/**
+	 * <p>Title: Fourth</p>
+	 * <p>Description: A benchmark interceptor that reads each cookie's name</p>
+	 */
+	public static class Fourth extends First {
+		/* No Op */
+	}
+}
@@ -0,0 +1,303 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.lang.management.ManagementFactory;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.catalina.connector.Response;
+
+import com.heliosapm.tomcat.valve.security.SecureCookies;
+import com.heliosapm.tomcat.valve.security.ValveConfig;
+import com.heliosapm.tomcat.valve.security.WrappedResponse;
+import com.heliosapm.tomcat.valve.security.WrappedResponsePool;
+
+/**
+ * <p>Title: InvokeAllocationCheck</p>
+ * <p>Description: Allocation budget check for the valve's request paths. Each path is compared against
+ * the same request without the valve, and fails if it allocates more bytes per request than that path's budget:</p><ul>
+ * <li><b><code>disabled</code></b>: {@link SecureCookies#invoke(org.apache.catalina.connector.Request, org.apache.catalina.connector.Response)} with <b><code>enabled=false</code></b></li>
+ * <li><b><code>bypassed</code></b>: an enabled valve whose bypass paths match the request</li>
+ * <li><b><code>wrapper</code></b> and <b><code>header</code></b>: an enabled valve with each engine</li>
+ * <li><b><code>wrapper-flags</code></b> and <b><code>header-flags</code></b>: the same with cookies the application adds without
+ * Secure and HttpOnly, so the valve has to add both</li>
+ * <li><b><code>addCookie</code></b> and <b><code>addHeader</code></b>: the {@link WrappedResponse} cookie methods on a pooled wrapper
+ * set up the way the valve sets it up, against the same calls on the catalina response</li>
+ * </ul>
+ * <p>Except on the <b><code>-flags</code></b> paths, the application adds cookies that are already Secure and HttpOnly,
+ * so the baseline is exactly the cookie work Tomcat does anyway and any difference is the valve's own overhead.
+ * The <b><code>-flags</code></b> paths are compared against Tomcat rendering the same cookies without the flags. Allocation is read from the current thread with
+ * <b><code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes</code></b>, so no profiler is needed.
+ * The default budget of every path is <b><code>alloc.budget</code></b> bytes per request (default 1.0), and
+ * <b><code>alloc.budget.&lt;path&gt;</code></b> overrides it for one path.</p>
+ * <p>The wrapper renders cookies from its suffix cache into one String each, well under what catalina allocates for the
+ * same cookie, so a relative budget alone would let its rendering regress up to catalina's cost unnoticed. Those paths
+ * are also capped at <b><code>alloc.perCookie.&lt;path&gt;</code></b> bytes per cookie (default 160, the rendered
+ * String of the check's cookies with compressed oops).</p>
+ * <p>A JVM that cannot count per thread allocation fails the check, unless <b><code>alloc.allowUnsupported=true</code></b>
+ * is set, so the budgets are never silently unchecked.</p>
+ * <p>Escape analysis lets the JIT remove some of Tomcat's own cookie allocations in one run and not the next,
+ * so the check is run with it off; the valve must then genuinely allocate nothing. It runs in the benchmark module's
+ * <b><code>verify</code></b> phase, which the main build runs in its <b><code>integration-test</code></b> phase with the
+ * <b><code>alloc-check</code></b> profile, or directly:</p>
+ * <pre>
+ *   java -XX:-DoEscapeAnalysis -cp target/benchmarks.jar com.heliosapm.tomcat.valve.benchmarks.InvokeAllocationCheck
+ * </pre>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.InvokeAllocationCheck</code></p>
+ */
+
+public class InvokeAllocationCheck {
+	/** The number of warmup requests per path */
+	private static final int WARMUP = Integer.getInteger("alloc.warmup", 200000);
+	/** The number of measured requests per path */
+	private static final int MEASURED = Integer.getInteger("alloc.measured", 100000);
+	/** The number of measured rounds per path, the lowest of which is reported */
+	private static final int ROUNDS = Integer.getInteger("alloc.rounds", 5);
+	/** The default allowed extra bytes per request */
+	private static final double BUDGET = Double.parseDouble(System.getProperty("alloc.budget", "1.0"));
+	/** The default per cookie cap of the paths rendering cookies from the suffix cache */
+	private static final double PER_COOKIE = 160d;
+	/** The engines to check */
+	private static final String[] ENGINES = {"wrapper", "header"};
+	/** The cookie counts to check */
+	private static final int[] COOKIES = {0, 1, 10};
+	/** The already compliant Set-Cookie header values added by the addHeader path */
+	private static final String[] RAW_COOKIES = {
+		"JSESSIONID=8F1A6C2B5E9D4F7A0; Path=/shop; Secure; HttpOnly",
+		"auth_token=8F1A6C2B5E9D4F7A1; Path=/shop; Secure; HttpOnly"
+	};
+
+	/** The thread allocation counter */
+	private final com.sun.management.ThreadMXBean threads;
+	/** The failed paths */
+	private final StringBuilder failures = new StringBuilder();
+
+	/**
+	 * Runs the check
+	 * @param args None
+	 * @throws Exception thrown on any error, or if a path exceeds its budget
+	 */
+	public static void main(final String[] args) throws Exception {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if(!threads.isThreadAllocatedMemorySupported()) {
+			if(!Boolean.getBoolean("alloc.allowUnsupported")) throw new IllegalStateException("Thread allocated memory is not supported by this JVM, so allocation budgets cannot be checked. Set alloc.allowUnsupported=true to skip the check");
+			System.out.println("Thread allocated memory is not supported by this JVM. Skipping as alloc.allowUnsupported is set.");
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		final InvokeAllocationCheck check = new InvokeAllocationCheck(threads);
+		for(final int cookies: COOKIES) {
+			final double absent = check.bytesPerRequest(invoke(null, cookies, true));
+			final SecureCookies disabled = new SecureCookies();
+			disabled.setEnabled(false);
+			check.check("disabled", cookies, absent, invoke(disabled, cookies, true));
+			final SecureCookies bypassed = new SecureCookies();
+			bypassed.setBypassPaths("/shop/");
+			check.check("bypassed", cookies, absent, invoke(bypassed, cookies, true));
+			for(String engine: ENGINES) {
+				final SecureCookies valve = forcing();
+				valve.setEngine(engine);
+				check.check(engine, cookies, absent, invoke(valve, cookies, true));
+			}
+		}
+		for(final int cookies: COOKIES) {
+			if(cookies==0) continue;
+			final double absent = check.bytesPerRequest(invoke(null, cookies, false));
+			for(String engine: ENGINES) {
+				final SecureCookies valve = forcing();
+				valve.setEngine(engine);
+				check.check(engine + "-flags", cookies, absent, invoke(valve, cookies, false));
+			}
+		}
+		for(final int cookies: COOKIES) {
+			if(cookies==0) continue;
+			check.check("addCookie", cookies, check.bytesPerRequest(addCookie(false, cookies)), addCookie(true, cookies));
+		}
+		check.check("addHeader", RAW_COOKIES.length, check.bytesPerRequest(addHeader(false)), addHeader(true));
+		if(check.failures.length() > 0) throw new IllegalStateException("Allocation budget exceeded:" + check.failures);
+	}
+
+	private InvokeAllocationCheck(final com.sun.management.ThreadMXBean threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Measures a path and compares it against its baseline and budget
+	 * @param name The path name
+	 * @param cookies The cookies per request
+	 * @param baseline The baseline bytes per request
+	 * @param path The path
+	 * @throws Exception thrown on any error
+	 */
+	private void check(final String name, final int cookies, final double baseline, final Path path) throws Exception {
+		final double budget = Double.parseDouble(System.getProperty("alloc.budget." + name, String.valueOf(BUDGET)));
+		final boolean rendering = name.startsWith("wrapper") || "addCookie".equals(name);
+		final double perCookie = Double.parseDouble(System.getProperty("alloc.perCookie." + name, String.valueOf(rendering ? PER_COOKIE : -1d)));
+		double allowed = baseline + budget;
+		if(perCookie >= 0d) allowed = Math.min(allowed, cookies * perCookie + budget);
+		final double measured = bytesPerRequest(path);
+		final boolean ok = measured <= allowed;
+		System.out.println(String.format("%-13s cookies=%-3d baseline=%10.1f B/req  measured=%10.1f B/req  extra=%8.1f B/req  allowed=%10.1f B/req  %s",
+			name, cookies, baseline, measured, measured - baseline, allowed, ok ? "OK" : "FAIL"));
+		if(!ok) failures.append("\n\t").append(name).append(" with ").append(cookies).append(" cookies allocated ")
+			.append(String.format("%.1f", measured)).append(" bytes per request, over its allowed ").append(String.format("%.1f", allowed));
+	}
+
+	/**
+	 * Returns the lowest bytes allocated per request by the passed path over the measured rounds
+	 * @param path The path
+	 * @return the bytes per request
+	 * @throws Exception thrown on any error
+	 */
+	private double bytesPerRequest(final Path path) throws Exception {
+		for(int i = 0; i < WARMUP; i++) path.execute();
+		// the lowest round filters out allocation from compilation and deoptimization in the JIT'ed Tomcat code
+		final long id = Thread.currentThread().getId();
+		long min = Long.MAX_VALUE;
+		for(int r = 0; r < ROUNDS; r++) {
+			final long start = threads.getThreadAllocatedBytes(id);
+			for(int i = 0; i < MEASURED; i++) path.execute();
+			min = Math.min(min, threads.getThreadAllocatedBytes(id) - start);
+		}
+		return (double)min / MEASURED;
+	}
+
+	/**
+	 * Creates a valve forcing Secure and HttpOnly, so the paths measure the flag checks the valve makes on every cookie
+	 * @return the valve
+	 */
+	private static SecureCookies forcing() {
+		final SecureCookies valve = new SecureCookies();
+		valve.setForceSecure(true);
+		valve.setForceHttpOnly(true);
+		return valve;
+	}
+
+	/**
+	 * Creates a fixture whose application adds the passed number of cookies
+	 * @param cookies The cookie count
+	 * @param compliant true to add them already Secure and HttpOnly, false to leave both flags to the valve
+	 * @return the fixture
+	 * @throws Exception thrown on any error
+	 */
+	private static CatalinaFixture fixture(final int cookies, final boolean compliant) throws Exception {
+		final CatalinaFixture fixture = new CatalinaFixture(true);
+		fixture.terminal.cookies = CatalinaFixture.cookies(cookies);
+		for(Cookie c: fixture.terminal.cookies) c.setSecure(compliant);
+		fixture.terminal.httpOnly = compliant;
+		return fixture;
+	}
+
+	/**
+	 * Returns the path of a full request through the passed valve
+	 * @param valve The valve, or null for the application alone
+	 * @param cookies The cookies the application adds
+	 * @param compliant true if the application adds them already Secure and HttpOnly
+	 * @return the path
+	 * @throws Exception thrown on any error
+	 */
+	private static Path invoke(final SecureCookies valve, final int cookies, final boolean compliant) throws Exception {
+		final CatalinaFixture fixture = fixture(cookies, compliant);
+		if(valve!=null) valve.setNext(fixture.terminal);
+		return new Path() {
+			@Override
+			public void execute() throws Exception {
+				if(valve==null) fixture.terminal.invoke(fixture.request, fixture.response);
+				else valve.invoke(fixture.request, fixture.response);
+				fixture.complete();
+			}
+		};
+	}
+
+	/**
+	 * Returns the path adding the fixture's cookies through a pooled wrapper, or directly to the catalina response
+	 * @param wrapped true to add through the wrapper
+	 * @param cookies The cookie count
+	 * @return the path
+	 * @throws Exception thrown on any error
+	 */
+	private static Path addCookie(final boolean wrapped, final int cookies) throws Exception {
+		final CatalinaFixture fixture = fixture(cookies, true);
+		final Cookie[] cs = fixture.terminal.cookies;
+		final WrappedResponsePool pool = new WrappedResponsePool();
+		final ValveConfig cfg = forcing().config();
+		return new Path() {
+			@Override
+			public void execute() throws Exception {
+				if(wrapped) {
+					final Response r = wrap(pool, fixture.response, cfg);
+					for(int i = 0; i < cs.length; i++) r.addCookie(cs[i]);
+					pool.release(r);
+				} else {
+					for(int i = 0; i < cs.length; i++) fixture.response.addCookieInternal(cs[i], true);
+				}
+				fixture.complete();
+			}
+		};
+	}
+
+	/**
+	 * Returns the path adding already compliant raw Set-Cookie headers through a pooled wrapper, or directly to the catalina response
+	 * @param wrapped true to add through the wrapper
+	 * @return the path
+	 * @throws Exception thrown on any error
+	 */
+	private static Path addHeader(final boolean wrapped) throws Exception {
+		final CatalinaFixture fixture = fixture(0, true);
+		final WrappedResponsePool pool = new WrappedResponsePool();
+		final ValveConfig cfg = forcing().config();
+		return new Path() {
+			@Override
+			public void execute() throws Exception {
+				final Response r = wrapped ? wrap(pool, fixture.response, cfg) : fixture.response;
+				for(int i = 0; i < RAW_COOKIES.length; i++) r.addHeader("Set-Cookie", RAW_COOKIES[i]);
+				if(wrapped) pool.release(r);
+				fixture.complete();
+			}
+		};
+	}
+
+	/**
+	 * Acquires a pooled wrapper and sets it up the way the valve does for a secure request
+	 * @param pool The pool
+	 * @param response The response to wrap
+	 * @param cfg The valve configuration
+	 * @return the wrapper
+	 */
+	private static Response wrap(final WrappedResponsePool pool, final Response response, final ValveConfig cfg) {
+		final Response r = pool.acquire(response);
+		((WrappedResponse)r).configure(cfg, cfg.getContextPolicy(null), true, true, null);
+		return r;
+	}
+
+	/**
+	 * <p>Title: Path</p>
+	 * <p>Description: One request through a measured path</p>
+	 */
+	private interface Path {
+		/**
+		 * Executes one request and recycles the fixture
+		 * @throws Exception thrown on any error
+		 */
+		void execute() throws Exception;
+	}
+}
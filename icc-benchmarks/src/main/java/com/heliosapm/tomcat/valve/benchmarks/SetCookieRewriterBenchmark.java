@@ -0,0 +1,113 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.SetCookieRewriter;
+import com.heliosapm.tomcat.valve.security.SetCookieScanner;
+
+/**
+ * <p>Title: SetCookieRewriterBenchmark</p>
+ * <p>Description: Measures the raw Set-Cookie header interception done by
+ * {@link com.heliosapm.tomcat.valve.security.WrappedResponse#addHeader(String, String)}:
+ * the name check every header pays, and the rewrite of compliant and non-compliant cookie values.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.SetCookieRewriterBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SetCookieRewriterBenchmark {
+	/** A value missing all required attributes */
+	private final String insecure = "JSESSIONID=8F1A6C2B5E9D4F7A3C0B1E2D6F5A4C3B; Path=/shop";
+	/** A value already carrying all required attributes */
+	private final String secure = "JSESSIONID=8F1A6C2B5E9D4F7A3C0B1E2D6F5A4C3B; Path=/shop; Secure; HttpOnly; SameSite=Lax";
+	/** The required attribute bits */
+	private final int required = SetCookieScanner.SECURE | SetCookieScanner.HTTP_ONLY | SetCookieScanner.SAME_SITE;
+	/** The SameSite attribute */
+	private byte[] sameSiteAttr;
+	/** The rewriter under test */
+	private SetCookieRewriter rewriter;
+
+	/**
+	 * Creates the rewriter
+	 */
+	@Setup
+	public void setup() {
+		sameSiteAttr = SetCookieScanner.sameSiteAttribute("Lax");
+		rewriter = new SetCookieRewriter();
+	}
+
+	/**
+	 * <p>Title: HeaderName</p>
+	 * <p>Description: The header names checked by {@link SetCookieRewriterBenchmark#isSetCookie(HeaderName)}</p>
+	 */
+	@State(Scope.Thread)
+	public static class HeaderName {
+		/** The header name */
+		@Param({"Content-Type", "Cache-Control", "Set-Cookie"})
+		public String name;
+	}
+
+	/**
+	 * The cost every header pays in the wrapper
+	 * @param header The header name state
+	 * @return the check result
+	 */
+	@Benchmark
+	public boolean isSetCookie(final HeaderName header) {
+		return SetCookieRewriter.isSetCookie(header.name);
+	}
+
+	/**
+	 * Rewriting a value that lacks every required attribute
+	 * @return the rewritten value
+	 */
+	@Benchmark
+	public String rewriteInsecure() {
+		return rewriter.rewrite(insecure, required, sameSiteAttr);
+	}
+
+	/**
+	 * Scanning a value that already carries every required attribute
+	 * @return the unchanged value
+	 */
+	@Benchmark
+	public String rewriteSecure() {
+		return rewriter.rewrite(secure, required, sameSiteAttr);
+	}
+
+}
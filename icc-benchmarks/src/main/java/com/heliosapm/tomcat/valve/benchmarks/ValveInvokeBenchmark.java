@@ -0,0 +1,106 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.SecureCookies;
+
+/**
+ * <p>Title: ValveInvokeBenchmark</p>
+ * <p>Description: Measures a full pass of {@link SecureCookies#invoke(org.apache.catalina.connector.Request, org.apache.catalina.connector.Response)}
+ * in front of a terminal valve that sets a number of cookies, including the simulated commit, for each engine
+ * with the valve enabled and disabled. Run with <b><code>-prof gc</code></b> (the default through {@link BenchmarkRunner})
+ * for the allocation rate.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.ValveInvokeBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValveInvokeBenchmark {
+	/** The valve enabled state */
+	@Param({"true", "false"})
+	public boolean enabled;
+	/** The cookie engine */
+	@Param({"wrapper", "header"})
+	public String engine;
+	/** The wrapper recycling state */
+	@Param({"true", "false"})
+	public boolean recycle;
+	/** The number of cookies the terminal valve sets */
+	@Param({"0", "1", "10"})
+	public int cookies;
+	/** The per cookie policies */
+	@Param({"", "JSESSIONID -> secure,httponly; auth_* -> httponly; * -> samesite=Lax"})
+	public String policies;
+
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** The valve under test */
+	private SecureCookies valve;
+
+	/**
+	 * Builds the fixture and the valve
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true);
+		fixture.terminal.cookies = CatalinaFixture.cookies(cookies);
+		valve = new SecureCookies();
+		valve.setEnabled(enabled);
+		valve.setEngine(engine);
+		valve.setRecycleWrappers(recycle);
+		valve.setPolicies(policies);
+		valve.setForceSecure(true);
+		valve.setForceHttpOnly(true);
+		valve.setNext(fixture.terminal);
+	}
+
+	/**
+	 * One request through the valve
+	 * @return the response status
+	 * @throws Exception thrown on any error
+	 */
+	@Benchmark
+	public int invoke() throws Exception {
+		valve.invoke(fixture.request, fixture.response);
+		final int status = fixture.response.getStatus();
+		fixture.complete();
+		return status;
+	}
+
+}
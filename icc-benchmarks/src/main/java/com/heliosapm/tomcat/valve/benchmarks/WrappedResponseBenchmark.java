@@ -0,0 +1,191 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.Cookie;
+
+import org.apache.catalina.connector.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.heliosapm.tomcat.valve.security.CookiePolicySet;
+import com.heliosapm.tomcat.valve.security.SetCookieScanner;
+import com.heliosapm.tomcat.valve.security.SetCookieSuffixCache;
+import com.heliosapm.tomcat.valve.security.WrappedResponse;
+import com.heliosapm.tomcat.valve.security.WrappedResponsePool;
+
+/**
+ * <p>Title: WrappedResponseBenchmark</p>
+ * <p>Description: Measures the individual {@link WrappedResponse} operations: wrapping, pooled wrapping,
+ * cookie rendering and each cookie rewrite path.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.benchmarks.WrappedResponseBenchmark</code></p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrappedResponseBenchmark {
+	/** The policy spec used by the policy paths */
+	private static final String POLICIES = "JSESSIONID -> secure,httponly; auth_* -> httponly; * -> samesite=Lax";
+	/** The request and response */
+	private CatalinaFixture fixture;
+	/** The wrapper pool */
+	private final WrappedResponsePool pool = new WrappedResponsePool();
+	/** A wrapper exposing render */
+	private RenderingResponse rendering;
+	/** The cookie added */
+	private Cookie cookie;
+	/** The compiled policies */
+	private CookiePolicySet policies;
+	/** The rendered suffix cache */
+	private final SetCookieSuffixCache suffixes = new SetCookieSuffixCache(SetCookieSuffixCache.DEFAULT_SIZE);
+	/** The valve wide required attributes */
+	private final int required = SetCookieScanner.SECURE | SetCookieScanner.HTTP_ONLY;
+
+	/**
+	 * Builds the fixture
+	 * @throws Exception thrown on any error
+	 */
+	@Setup
+	public void setup() throws Exception {
+		fixture = new CatalinaFixture(true);
+		rendering = new RenderingResponse(fixture.response);
+		cookie = CatalinaFixture.cookies(1)[0];
+		policies = CookiePolicySet.compile(POLICIES, CookiePolicySet.DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Allocating a new wrapper
+	 * @return the wrapper
+	 */
+	@Benchmark
+	public Response wrap() {
+		return WrappedResponse.wrap(fixture.response);
+	}
+
+	/**
+	 * Acquiring and releasing a pooled wrapper
+	 * @return the wrapper
+	 */
+	@Benchmark
+	public Response pooledWrap() {
+		final Response r = pool.acquire(fixture.response);
+		pool.release(r);
+		return r;
+	}
+
+	/**
+	 * Rendering a cookie for the log
+	 * @return the rendered cookie
+	 */
+	@Benchmark
+	public String render() {
+		return rendering.render(cookie);
+	}
+
+	/**
+	 * Adding a cookie through the wrapper with the valve wide settings only
+	 * @return the number of headers
+	 */
+	@Benchmark
+	public int addCookie() {
+		return addCookie(CookiePolicySet.EMPTY, null);
+	}
+
+	/**
+	 * Adding a cookie through the wrapper with the valve wide settings, rendered from the suffix cache
+	 * @return the number of headers
+	 */
+	@Benchmark
+	public int addCookieCached() {
+		return addCookie(CookiePolicySet.EMPTY, suffixes);
+	}
+
+	/**
+	 * Adding a cookie through the wrapper with per cookie policies
+	 * @return the number of headers
+	 */
+	@Benchmark
+	public int addCookiePolicies() {
+		return addCookie(policies, null);
+	}
+
+	/**
+	 * Adding a raw Set-Cookie header through the wrapper
+	 * @return the number of headers
+	 */
+	@Benchmark
+	public int addRawSetCookie() {
+		final Response r = pool.acquire(fixture.response);
+		((WrappedResponse)r).setPolicy(policies, required, null);
+		r.addHeader("Set-Cookie", "auth_token=8F1A6C2B5E9D4F7A; Path=/shop");
+		pool.release(r);
+		final int size = fixture.response.getCoyoteResponse().getMimeHeaders().size();
+		fixture.complete();
+		return size;
+	}
+
+	private int addCookie(final CookiePolicySet ps, final SetCookieSuffixCache sc) {
+		final Response r = pool.acquire(fixture.response);
+		((WrappedResponse)r).setPolicy(ps, required, null).setSuffixCache(sc);
+		cookie.setSecure(false);
+		r.addCookie(cookie);
+		pool.release(r);
+		final int size = fixture.response.getCoyoteResponse().getMimeHeaders().size();
+		fixture.complete();
+		return size;
+	}
+
+	/**
+	 * <p>Title: RenderingResponse</p>
+	 * <p>Description: Exposes {@link WrappedResponse#render(Cookie)}</p>
+	 */
+	public static class RenderingResponse extends WrappedResponse {
+		/**
+		 * Creates a new RenderingResponse
+		 * @param delegate The response to delegate to
+		 */
+		public RenderingResponse(final Response delegate) {
+			super(delegate);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see com.heliosapm.tomcat.valve.security.WrappedResponse#render(javax.servlet.http.Cookie)
+		 */
+		@Override
+		public String render(final Cookie cookie) {
+			return super.render(cookie);
+		}
+	}
+}
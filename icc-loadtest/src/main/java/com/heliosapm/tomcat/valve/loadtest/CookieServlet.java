@@ -0,0 +1,74 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.loadtest;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * <p>Title: CookieServlet</p>
+ * <p>Description: A servlet that answers every GET with a small fixed body after adding the number of cookies
+ * set in its <b><code>cookies</code></b> init parameter through the application facing response.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.loadtest.CookieServlet</code></p>
+ */
+
+public class CookieServlet extends HttpServlet {
+	/** The serial version UID */
+	private static final long serialVersionUID = 7215420813907653270L;
+	/** The response body */
+	private static final byte[] BODY = "OK\n".getBytes();
+	/** The init parameter naming the number of cookies to add */
+	public static final String COOKIES = "cookies";
+
+	/** The number of cookies to add */
+	private int cookies = 0;
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.servlet.GenericServlet#init()
+	 */
+	@Override
+	public void init() throws ServletException {
+		final String n = getInitParameter(COOKIES);
+		cookies = n==null ? 0 : Integer.parseInt(n.trim());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	@Override
+	protected void doGet(final HttpServletRequest req, final HttpServletResponse resp) throws ServletException, IOException {
+		for(int i = 0; i < cookies; i++) {
+			final Cookie c = new Cookie("c" + i, "v" + i);
+			c.setPath("/");
+			resp.addCookie(c);
+		}
+		resp.setContentType("text/plain");
+		resp.setContentLength(BODY.length);
+		resp.getOutputStream().write(BODY);
+	}
+}
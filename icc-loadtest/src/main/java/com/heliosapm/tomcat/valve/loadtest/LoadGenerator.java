@@ -0,0 +1,315 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.heliosapm.tomcat.valve.security.LatencyHistogram;
+import com.heliosapm.tomcat.valve.security.ThreadCells;
+
+/**
+ * <p>Title: LoadGenerator</p>
+ * <p>Description: A closed loop HTTP/1.1 load generator. Each client thread holds one keep-alive connection and
+ * sends the next GET as soon as it has read the previous response, so the offered load follows the server's
+ * latency. Requests during the warmup are sent but not recorded; during the measurement each client records
+ * its latencies into its own {@link LatencyHistogram}, which are summed once the run is over.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.loadtest.LoadGenerator</code></p>
+ */
+
+public class LoadGenerator {
+	/** The slot of the response count */
+	private static final int RESPONSES = LatencyHistogram.WIDTH;
+	/** The slot of the error count */
+	private static final int ERRORS = RESPONSES + 1;
+	/** The slot of the Set-Cookie header count */
+	private static final int SET_COOKIES = ERRORS + 1;
+	/** The number of slots per client */
+	private static final int WIDTH = SET_COOKIES + 1;
+	/** The lower cased Content-Length header prefix */
+	private static final byte[] CONTENT_LENGTH = "content-length:".getBytes();
+	/** The lower cased Set-Cookie header prefix */
+	private static final byte[] SET_COOKIE = "set-cookie:".getBytes();
+
+	/** The server address */
+	private final InetSocketAddress address;
+	/** The number of client threads */
+	private final int threads;
+
+	/** Set while the clients should record */
+	private volatile boolean recording = false;
+	/** Set while the clients should run */
+	private volatile boolean running = false;
+
+	/**
+	 * Creates a new LoadGenerator
+	 * @param address The server address
+	 * @param threads The number of client threads
+	 */
+	public LoadGenerator(final InetSocketAddress address, final int threads) {
+		if(threads < 1) throw new IllegalArgumentException("Invalid thread count [" + threads + "]");
+		this.address = address;
+		this.threads = threads;
+	}
+
+	/**
+	 * Drives the passed path for the warmup and then measures it
+	 * @param path The request path
+	 * @param warmupMillis The warmup in ms
+	 * @param durationMillis The measurement in ms
+	 * @return the measured result
+	 * @throws InterruptedException thrown if the calling thread is interrupted
+	 */
+	public Result run(final String path, final long warmupMillis, final long durationMillis) throws InterruptedException {
+		final byte[] request = ("GET " + path + " HTTP/1.1\r\nHost: " + address.getHostString() + ":" + address.getPort()
+			+ "\r\nUser-Agent: icc-loadtest\r\n\r\n").getBytes();
+		final Client[] clients = new Client[threads];
+		final CountDownLatch done = new CountDownLatch(threads);
+		recording = false;
+		running = true;
+		for(int i = 0; i < threads; i++) {
+			clients[i] = new Client(request, done);
+			final Thread t = new Thread(clients[i], "LoadClient#" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		Thread.sleep(warmupMillis);
+		final long start = System.nanoTime();
+		recording = true;
+		Thread.sleep(durationMillis);
+		recording = false;
+		final long elapsed = System.nanoTime() - start;
+		running = false;
+		done.await();
+		final long[] sums = new long[WIDTH];
+		for(Client c: clients) {
+			for(int i = 0; i < WIDTH; i++) sums[i] += c.cell.get(i);
+		}
+		return new Result(path, sums, elapsed);
+	}
+
+	/**
+	 * <p>Title: Client</p>
+	 * <p>Description: One client thread and its connection</p>
+	 */
+	private class Client implements Runnable {
+		/** The request bytes */
+		private final byte[] request;
+		/** Counted down when the client exits */
+		private final CountDownLatch done;
+		/** The client's slots, only written by the client */
+		final AtomicLongArray cell = new AtomicLongArray(WIDTH);
+		/** The response line buffer */
+		private final byte[] line = new byte[8192];
+		/** The Set-Cookie headers in the last response */
+		private int setCookies = 0;
+		private Socket socket = null;
+		private InputStream in = null;
+		private OutputStream out = null;
+
+		Client(final byte[] request, final CountDownLatch done) {
+			this.request = request;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(running) {
+					final long start = System.nanoTime();
+					boolean ok;
+					try {
+						if(socket==null) connect();
+						out.write(request);
+						out.flush();
+						ok = readResponse();
+					} catch (IOException ex) {
+						close();
+						ok = false;
+					}
+					final long elapsed = System.nanoTime() - start;
+					if(recording) {
+						if(ok) {
+							LatencyHistogram.record(cell, 0, elapsed);
+							ThreadCells.add(cell, RESPONSES, 1L);
+							ThreadCells.add(cell, SET_COOKIES, setCookies);
+						} else {
+							ThreadCells.add(cell, ERRORS, 1L);
+						}
+					}
+				}
+			} finally {
+				close();
+				done.countDown();
+			}
+		}
+
+		private void connect() throws IOException {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(address, 5000);
+			socket.setSoTimeout(30000);
+			in = new BufferedInputStream(socket.getInputStream(), 16384);
+			out = socket.getOutputStream();
+		}
+
+		private void close() {
+			if(socket!=null) try { socket.close(); } catch (Exception x) {/* No Op */}
+			socket = null;
+		}
+
+		/**
+		 * Reads one response, skipping its body
+		 * @return true if the status was 200
+		 * @throws IOException thrown on any IO error or if the server closed the connection
+		 */
+		private boolean readResponse() throws IOException {
+			int len = readLine();
+			// "HTTP/1.1 200"
+			final boolean ok = len >= 12 && line[9]=='2' && line[10]=='0' && line[11]=='0';
+			long contentLength = 0;
+			setCookies = 0;
+			while((len = readLine()) > 0) {
+				if(startsWith(len, CONTENT_LENGTH)) {
+					contentLength = Long.parseLong(new String(line, CONTENT_LENGTH.length, len - CONTENT_LENGTH.length).trim());
+				} else if(startsWith(len, SET_COOKIE)) {
+					setCookies++;
+				}
+			}
+			while(contentLength > 0) {
+				final long skipped = in.skip(contentLength);
+				if(skipped <= 0) {
+					if(in.read()==-1) throw new EOFException();
+					contentLength--;
+				} else {
+					contentLength -= skipped;
+				}
+			}
+			return ok;
+		}
+
+		/**
+		 * Reads one CRLF terminated line into the line buffer, truncating it at the buffer's length
+		 * @return the line length, excluding the CRLF
+		 * @throws IOException thrown on any IO error or if the server closed the connection
+		 */
+		private int readLine() throws IOException {
+			int len = 0;
+			int b;
+			while((b = in.read())!='\n') {
+				if(b==-1) throw new EOFException();
+				if(len < line.length) line[len++] = (byte)b;
+			}
+			return len > 0 && line[len - 1]=='\r' ? len - 1 : len;
+		}
+
+		private boolean startsWith(final int len, final byte[] lowerPrefix) {
+			if(len < lowerPrefix.length) return false;
+			for(int i = 0; i < lowerPrefix.length; i++) {
+				if(Character.toLowerCase(line[i])!=lowerPrefix[i]) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Title: Result</p>
+	 * <p>Description: The measurement of one path</p>
+	 */
+	public static class Result {
+		/** The request path */
+		private final String path;
+		/** The summed client slots */
+		private final long[] sums;
+		/** The measurement duration in ns */
+		private final long elapsed;
+
+		Result(final String path, final long[] sums, final long elapsed) {
+			this.path = path;
+			this.sums = sums;
+			this.elapsed = elapsed;
+		}
+
+		/**
+		 * Returns the request path
+		 * @return the request path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Returns the number of successful responses
+		 * @return the response count
+		 */
+		public long getResponses() {
+			return sums[RESPONSES];
+		}
+
+		/**
+		 * Returns the number of failed requests
+		 * @return the error count
+		 */
+		public long getErrors() {
+			return sums[ERRORS];
+		}
+
+		/**
+		 * Returns the successful responses per second
+		 * @return the throughput
+		 */
+		public double getThroughput() {
+			return elapsed==0L ? 0d : sums[RESPONSES] * 1000000000d / elapsed;
+		}
+
+		/**
+		 * Returns the mean number of Set-Cookie headers per response
+		 * @return the mean Set-Cookie count
+		 */
+		public double getSetCookies() {
+			return sums[RESPONSES]==0L ? 0d : (double)sums[SET_COOKIES] / sums[RESPONSES];
+		}
+
+		/**
+		 * Returns the latency at the passed percentile in ns
+		 * @param percentile The percentile, from 0 to 100
+		 * @return the latency
+		 */
+		public long percentile(final double percentile) {
+			return LatencyHistogram.percentile(sums, 0, percentile);
+		}
+
+		/**
+		 * Returns the highest latency in ns
+		 * @return the highest latency
+		 */
+		public long max() {
+			return LatencyHistogram.max(sums, 0);
+		}
+	}
+}
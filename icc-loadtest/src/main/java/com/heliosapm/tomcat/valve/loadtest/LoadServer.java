@@ -0,0 +1,166 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Engine;
+import org.apache.catalina.Host;
+import org.apache.catalina.Valve;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Embedded;
+
+/**
+ * <p>Title: LoadServer</p>
+ * <p>Description: An embedded Tomcat 6 listening on loopback with one {@link CookieServlet} per cookie count,
+ * mapped to <b><code>/cookies/&lt;count&gt;</code></b> in the root context. The valve under test goes in the
+ * Engine pipeline, where it sees every request the connector hands to the container, and can be swapped
+ * between runs without restarting the server.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.loadtest.LoadServer</code></p>
+ */
+
+public class LoadServer {
+	/** The loopback address the server listens on */
+	public static final String ADDRESS = "127.0.0.1";
+
+	/** The embedded server */
+	private final Embedded embedded;
+	/** The engine the valve under test goes in */
+	private final Engine engine;
+	/** The server's catalina home */
+	private final File home;
+	/** The port the server listens on */
+	private final int port;
+	/** The valve currently in the engine pipeline, or null */
+	private Valve valve = null;
+
+	/**
+	 * Creates a new LoadServer
+	 * @param cookieCounts The cookie counts to map a servlet for
+	 * @param maxThreads The maximum number of connector threads
+	 * @throws IOException thrown if the server's directories or port cannot be allocated
+	 */
+	public LoadServer(final int[] cookieCounts, final int maxThreads) throws IOException {
+		home = File.createTempFile("icc-loadtest", "");
+		if(!home.delete() || !new File(home, "webapps/ROOT").mkdirs()) throw new IOException("Failed to create the catalina home [" + home + "]");
+		port = freePort();
+		embedded = new Embedded();
+		embedded.setCatalinaHome(home.getAbsolutePath());
+		embedded.setUseNaming(false);
+		engine = embedded.createEngine();
+		engine.setName("loadtest");
+		engine.setDefaultHost("localhost");
+		final Host host = embedded.createHost("localhost", new File(home, "webapps").getAbsolutePath());
+		final Context context = embedded.createContext("", new File(home, "webapps/ROOT").getAbsolutePath());
+		for(int count: cookieCounts) {
+			final Wrapper wrapper = context.createWrapper();
+			wrapper.setName("cookies" + count);
+			wrapper.setServletClass(CookieServlet.class.getName());
+			wrapper.addInitParameter(CookieServlet.COOKIES, Integer.toString(count));
+			wrapper.setLoadOnStartup(1);
+			context.addChild(wrapper);
+			context.addServletMapping(path(count), wrapper.getName());
+		}
+		host.addChild(context);
+		engine.addChild(host);
+		embedded.addEngine(engine);
+		final Connector connector = embedded.createConnector(ADDRESS, port, false);
+		// every client holds one connection for the whole run
+		connector.setProperty("maxKeepAliveRequests", "-1");
+		connector.setProperty("maxThreads", Integer.toString(maxThreads));
+		embedded.addConnector(connector);
+	}
+
+	/**
+	 * Returns the request path of the servlet adding the passed number of cookies
+	 * @param count The cookie count
+	 * @return the request path
+	 */
+	public static String path(final int count) {
+		return "/cookies/" + count;
+	}
+
+	/**
+	 * Returns an unused loopback port
+	 * @return the port
+	 * @throws IOException thrown if no port can be bound
+	 */
+	private static int freePort() throws IOException {
+		final ServerSocket ss = new ServerSocket(0, 1, InetAddress.getByName(ADDRESS));
+		try {
+			return ss.getLocalPort();
+		} finally {
+			ss.close();
+		}
+	}
+
+	/**
+	 * Starts the server
+	 * @throws Exception thrown on any error
+	 */
+	public void start() throws Exception {
+		embedded.start();
+	}
+
+	/**
+	 * Stops the server and deletes its catalina home
+	 * @throws Exception thrown on any error
+	 */
+	public void stop() throws Exception {
+		try {
+			embedded.stop();
+		} finally {
+			delete(home);
+		}
+	}
+
+	private static void delete(final File f) {
+		final File[] children = f.listFiles();
+		if(children!=null) {
+			for(File child: children) delete(child);
+		}
+		f.delete();
+	}
+
+	/**
+	 * Replaces the valve in the engine pipeline. The engine starts an added valve and stops a removed one.
+	 * @param next The valve to install, or null for none
+	 */
+	public void setValve(final Valve next) {
+		if(valve!=null) engine.getPipeline().removeValve(valve);
+		valve = next;
+		if(next!=null) engine.getPipeline().addValve(next);
+	}
+
+	/**
+	 * Returns the address the server listens on
+	 * @return the address
+	 */
+	public InetSocketAddress getAddress() {
+		return new InetSocketAddress(ADDRESS, port);
+	}
+}
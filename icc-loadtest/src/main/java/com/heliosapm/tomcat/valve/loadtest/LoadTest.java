@@ -0,0 +1,139 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.catalina.Valve;
+
+import com.heliosapm.tomcat.valve.security.CookieEngine;
+import com.heliosapm.tomcat.valve.security.SecureCookies;
+
+/**
+ * <p>Title: LoadTest</p>
+ * <p>Description: The load test jar's main class. Starts a {@link LoadServer}, then for each configuration of the
+ * valve (absent from the pipeline, present but disabled, and enabled with each {@link CookieEngine}) drives each
+ * cookie count's servlet with a {@link LoadGenerator} and prints one report line per run. Options:</p><ul>
+ * <li><b><code>-threads n</code></b>: the client threads and connections (default 8)</li>
+ * <li><b><code>-warmup s</code></b>: the seconds of unrecorded load before each measurement (default 5)</li>
+ * <li><b><code>-duration s</code></b>: the seconds each measurement lasts (default 10)</li>
+ * <li><b><code>-cookies n,n,..</code></b>: the cookie counts to drive (default 0,1,10)</li>
+ * <li><b><code>-configs c,c,..</code></b>: the configurations to run (default absent,disabled and every engine)</li>
+ * </ul>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.loadtest.LoadTest</code></p>
+ */
+
+public class LoadTest {
+	/** The configuration without the valve in the pipeline */
+	public static final String ABSENT = "absent";
+	/** The configuration with the valve in the pipeline and disabled */
+	public static final String DISABLED = "disabled";
+	/** Catalina's root logger, held so the level set on it sticks */
+	private static final Logger CATALINA_LOGGER = Logger.getLogger("org.apache");
+
+	/**
+	 * Runs the load test
+	 * @param args The options
+	 * @throws Exception thrown on any error
+	 */
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("-threads", "8");
+		options.put("-warmup", "5");
+		options.put("-duration", "10");
+		options.put("-cookies", "0,1,10");
+		final StringBuilder configs = new StringBuilder(ABSENT).append(',').append(DISABLED);
+		for(CookieEngine e: CookieEngine.values()) configs.append(',').append(e.name().toLowerCase());
+		options.put("-configs", configs.toString());
+		for(int i = 0; i < args.length; i++) {
+			if(!options.containsKey(args[i]) || i + 1 == args.length) {
+				System.err.println("Usage: java -jar loadtest.jar " + options.keySet().toString().replace(", ", " <n> ").replace("]", " <n>]"));
+				System.exit(1);
+			}
+			options.put(args[i], args[++i]);
+		}
+		final int threads = Integer.parseInt(options.get("-threads"));
+		final long warmup = Long.parseLong(options.get("-warmup")) * 1000L;
+		final long duration = Long.parseLong(options.get("-duration")) * 1000L;
+		final String[] counts = options.get("-cookies").split(",");
+		final int[] cookies = new int[counts.length];
+		for(int i = 0; i < counts.length; i++) cookies[i] = Integer.parseInt(counts[i].trim());
+		final List<String> names = new ArrayList<String>();
+		for(String c: options.get("-configs").split(",")) {
+			final String name = c.trim().toLowerCase();
+			valve(name);	// fails fast on an unknown name
+			names.add(name);
+		}
+
+		CATALINA_LOGGER.setLevel(Level.WARNING);
+		final LoadServer server = new LoadServer(cookies, threads * 2);
+		server.start();
+		try {
+			final LoadGenerator generator = new LoadGenerator(server.getAddress(), threads);
+			System.out.println("Threads: " + threads + ", warmup: " + warmup / 1000 + "s, duration: " + duration / 1000 + "s, latencies in us");
+			System.out.println(String.format("%-10s %-12s %12s %9s %9s %9s %9s %8s %7s %9s",
+				"Config", "Path", "Req/s", "p50", "p99", "p999", "Max", "Cookies", "Errors", "vs absent"));
+			// compiles the connector and container paths before the first configuration is measured
+			for(int count: cookies) generator.run(LoadServer.path(count), warmup, 0L);
+			final Map<String, Double> baseline = new LinkedHashMap<String, Double>();
+			for(String name: names) {
+				server.setValve(valve(name));
+				for(int count: cookies) {
+					final LoadGenerator.Result r = generator.run(LoadServer.path(count), warmup, duration);
+					if(ABSENT.equals(name)) baseline.put(r.getPath(), r.getThroughput());
+					final Double base = baseline.get(r.getPath());
+					System.out.println(String.format("%-10s %-12s %12.0f %9.1f %9.1f %9.1f %9.1f %8.1f %7d %9s",
+						name, r.getPath(), r.getThroughput(), r.percentile(50) / 1000d, r.percentile(99) / 1000d, r.percentile(99.9) / 1000d,
+						r.max() / 1000d, r.getSetCookies(), r.getErrors(),
+						base==null || ABSENT.equals(name) ? "-" : String.format("%+.1f%%", (r.getThroughput() / base - 1d) * 100d)));
+				}
+			}
+			server.setValve(null);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * Creates the valve for the passed configuration
+	 * @param name The configuration name
+	 * @return the valve, or null if the configuration has none
+	 */
+	static Valve valve(final String name) {
+		if(ABSENT.equals(name)) return null;
+		final SecureCookies valve = new SecureCookies();
+		if(DISABLED.equals(name)) {
+			valve.setEnabled(false);
+		} else {
+			valve.setEngine(name);
+			valve.setForceSecure(true);
+			valve.setForceHttpOnly(true);
+		}
+		return valve;
+	}
+
+	private LoadTest() {}
+}
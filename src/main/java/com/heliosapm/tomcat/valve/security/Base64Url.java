@@ -0,0 +1,190 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.Arrays;
+
+/**
+ * <p>Title: Base64Url</p>
+ * <p>Description: Unpadded base64url (RFC 4648 section 5) encoding and decoding into caller supplied buffers, so cookie
+ * signatures and ciphertexts can be handled without allocating. Decoding configured keys from text is more lenient and
+ * accepts both alphabets, padding and whitespace.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.Base64Url</code></p>
+ */
+
+public final class Base64Url {
+	/** The base64url alphabet */
+	private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".getBytes(SetCookieScanner.ISO_8859_1);
+	/** The sextet for each character of either alphabet, -1 for characters in neither */
+	private static final int[] DECODE = new int[128];
+
+	static {
+		Arrays.fill(DECODE, -1);
+		for(int i = 0; i < ALPHABET.length; i++) DECODE[ALPHABET[i]] = i;
+		DECODE['+'] = 62;
+		DECODE['/'] = 63;
+	}
+
+	private Base64Url() {}
+
+	/**
+	 * Returns the unpadded encoded length of the passed number of bytes
+	 * @param len The number of bytes
+	 * @return the number of characters
+	 */
+	public static int encodedLength(final int len) {
+		return (len * 4 + 2) / 3;
+	}
+
+	/**
+	 * Encodes bytes into a byte buffer
+	 * @param src The bytes to encode
+	 * @param off The offset of the first byte
+	 * @param len The number of bytes
+	 * @param dst The buffer to encode into, which must have {@link #encodedLength(int)} bytes available
+	 * @param pos The offset in the buffer to encode at
+	 * @return the offset after the last encoded character
+	 */
+	public static int encode(final byte[] src, final int off, final int len, final byte[] dst, final int pos) {
+		int p = pos;
+		final int end = off + len;
+		int i = off;
+		for(; i + 2 < end; i += 3) {
+			final int b = ((src[i] & 0xFF) << 16) | ((src[i+1] & 0xFF) << 8) | (src[i+2] & 0xFF);
+			dst[p++] = ALPHABET[b >>> 18];
+			dst[p++] = ALPHABET[(b >>> 12) & 0x3F];
+			dst[p++] = ALPHABET[(b >>> 6) & 0x3F];
+			dst[p++] = ALPHABET[b & 0x3F];
+		}
+		if(i < end) {
+			final int b = ((src[i] & 0xFF) << 16) | (i + 1 < end ? (src[i+1] & 0xFF) << 8 : 0);
+			dst[p++] = ALPHABET[b >>> 18];
+			dst[p++] = ALPHABET[(b >>> 12) & 0x3F];
+			if(i + 1 < end) dst[p++] = ALPHABET[(b >>> 6) & 0x3F];
+		}
+		return p;
+	}
+
+	/**
+	 * Encodes bytes into a char buffer
+	 * @param src The bytes to encode
+	 * @param off The offset of the first byte
+	 * @param len The number of bytes
+	 * @param dst The buffer to encode into, which must have {@link #encodedLength(int)} chars available
+	 * @param pos The offset in the buffer to encode at
+	 * @return the offset after the last encoded character
+	 */
+	public static int encode(final byte[] src, final int off, final int len, final char[] dst, final int pos) {
+		int p = pos;
+		final int end = off + len;
+		int i = off;
+		for(; i + 2 < end; i += 3) {
+			final int b = ((src[i] & 0xFF) << 16) | ((src[i+1] & 0xFF) << 8) | (src[i+2] & 0xFF);
+			dst[p++] = (char)ALPHABET[b >>> 18];
+			dst[p++] = (char)ALPHABET[(b >>> 12) & 0x3F];
+			dst[p++] = (char)ALPHABET[(b >>> 6) & 0x3F];
+			dst[p++] = (char)ALPHABET[b & 0x3F];
+		}
+		if(i < end) {
+			final int b = ((src[i] & 0xFF) << 16) | (i + 1 < end ? (src[i+1] & 0xFF) << 8 : 0);
+			dst[p++] = (char)ALPHABET[b >>> 18];
+			dst[p++] = (char)ALPHABET[(b >>> 12) & 0x3F];
+			if(i + 1 < end) dst[p++] = (char)ALPHABET[(b >>> 6) & 0x3F];
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the maximum decoded length of the passed number of characters
+	 * @param len The number of characters
+	 * @return the number of bytes
+	 */
+	public static int decodedLength(final int len) {
+		return len * 3 / 4;
+	}
+
+	/**
+	 * Decodes unpadded base64url characters into a byte buffer
+	 * @param src The characters to decode
+	 * @param off The offset of the first character
+	 * @param len The number of characters
+	 * @param dst The buffer to decode into, which must have {@link #decodedLength(int)} bytes available
+	 * @param pos The offset in the buffer to decode at
+	 * @return the offset after the last decoded byte, or -1 if the characters are not unpadded base64url
+	 */
+	public static int decode(final byte[] src, final int off, final int len, final byte[] dst, final int pos) {
+		if(len % 4==1) return -1;
+		int p = pos, bits = 0, n = 0;
+		for(int i = off, end = off + len; i < end; i++) {
+			final int c = src[i];
+			final int s = (c < 0 || c=='+' || c=='/') ? -1 : DECODE[c];
+			if(s < 0) return -1;
+			bits = (bits << 6) | s;
+			if(++n==4) {
+				dst[p++] = (byte)(bits >>> 16);
+				dst[p++] = (byte)(bits >>> 8);
+				dst[p++] = (byte)bits;
+				bits = 0;
+				n = 0;
+			}
+		}
+		if(n==3) {
+			dst[p++] = (byte)(bits >>> 10);
+			dst[p++] = (byte)(bits >>> 2);
+		} else if(n==2) {
+			dst[p++] = (byte)(bits >>> 4);
+		}
+		return p;
+	}
+
+	/**
+	 * Decodes base64 or base64url text, ignoring padding and whitespace
+	 * @param text The text to decode
+	 * @return the decoded bytes
+	 * @throws IllegalArgumentException thrown if the text contains any other character or has an impossible length
+	 */
+	public static byte[] decode(final String text) {
+		final int[] sextets = new int[text.length()];
+		int n = 0;
+		for(int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if(c=='=' || Character.isWhitespace(c)) continue;
+			final int s = c < 128 ? DECODE[c] : -1;
+			if(s < 0) throw new IllegalArgumentException("Invalid base64 character [" + c + "]");
+			sextets[n++] = s;
+		}
+		if(n % 4==1) throw new IllegalArgumentException("Invalid base64 length [" + n + "]");
+		final byte[] out = new byte[n * 3 / 4];
+		int p = 0, i = 0;
+		for(; i + 3 < n; i += 4) {
+			final int b = (sextets[i] << 18) | (sextets[i+1] << 12) | (sextets[i+2] << 6) | sextets[i+3];
+			out[p++] = (byte)(b >>> 16);
+			out[p++] = (byte)(b >>> 8);
+			out[p++] = (byte)b;
+		}
+		if(i < n) {
+			final int b = (sextets[i] << 18) | (sextets[i+1] << 12) | (i + 2 < n ? sextets[i+2] << 6 : 0);
+			out[p++] = (byte)(b >>> 16);
+			if(i + 2 < n) out[p++] = (byte)(b >>> 8);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,387 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+
+/**
+ * <p>Title: BypassRules</p>
+ * <p>Description: Compiled rules selecting requests that skip cookie handling entirely, such as static assets and health checks.
+ * A request is bypassed if its method is one of the bypass methods, or its decoded URI starts with one of the path prefixes,
+ * ends with one of the extensions or matches one of the URI patterns. Path prefixes are held in a byte trie, extensions in a
+ * table indexed by length and patterns as <b><code>*</code></b>/<b><code>?</code></b> globs, all evaluated directly against the
+ * request's {@link MessageBytes} without decoding to a String. Each rule set is a comma separated list, e.g.:</p>
+ * <pre>
+ *   bypassPaths=/static/, /health
+ *   bypassExtensions=css, js, png, ico
+ *   bypassPatterns=/*&#47;assets/**
+ *   bypassMethods=OPTIONS, HEAD
+ * </pre>
+ * <p>Path prefixes match whole segments: a prefix ending in <b><code>/</code></b> matches everything below it, and any other
+ * prefix matches only the URI itself or what follows it after a <b><code>/</code></b>, so <b><code>/health</code></b> matches
+ * <b><code>/health</code></b> and <b><code>/health/live</code></b> but not <b><code>/healthcare/login</code></b>. In patterns
+ * <b><code>*</code></b> and <b><code>?</code></b> stay within one segment and <b><code>**</code></b> spans segments.
+ * Path prefixes and patterns are case sensitive, extensions are not. Instances are immutable.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.BypassRules</code></p>
+ */
+
+public final class BypassRules {
+	/** No bypass rules */
+	public static final BypassRules EMPTY = new BypassRules("", "", "", "");
+
+	/** The normalized path prefix spec */
+	private final String paths;
+	/** The normalized extension spec */
+	private final String extensions;
+	/** The normalized URI pattern spec */
+	private final String patterns;
+	/** The normalized method spec */
+	private final String methods;
+	/** The root of the path prefix trie, or null for no prefixes */
+	private final Node prefixes;
+	/** The lower case extensions, without the dot, indexed by length */
+	private final byte[][][] extensionsByLength;
+	/** The URI patterns */
+	private final byte[][] globs;
+	/** The bypassed methods */
+	private final String[] methodNames;
+	/** Indicates if there are no rules */
+	private final boolean empty;
+
+	/**
+	 * Compiles bypass rules
+	 * @param paths The comma separated URI path prefixes
+	 * @param extensions The comma separated file extensions, with or without the leading dot
+	 * @param patterns The comma separated URI glob patterns
+	 * @param methods The comma separated request methods
+	 * @return the compiled rules
+	 * @throws IllegalArgumentException thrown if a rule is invalid
+	 */
+	public static BypassRules compile(final String paths, final String extensions, final String patterns, final String methods) {
+		final BypassRules rules = new BypassRules(paths, extensions, patterns, methods);
+		return rules.empty ? EMPTY : rules;
+	}
+
+	private BypassRules(final String paths, final String extensions, final String patterns, final String methods) {
+		final List<String> p = split(paths);
+		final List<String> x = split(extensions);
+		final List<String> g = split(patterns);
+		final List<String> m = split(methods);
+		Node root = null;
+		for(String prefix: p) {
+			if(prefix.charAt(0)!='/') throw new IllegalArgumentException("Bypass path must start with / [" + prefix + "]");
+			if(root==null) root = new Node();
+			root.add(bytes(prefix), 0);
+		}
+		prefixes = root;
+		int maxLength = 0;
+		final List<byte[]> ext = new ArrayList<byte[]>();
+		for(int i = 0; i < x.size(); i++) {
+			String e = x.get(i).toLowerCase();
+			if(e.startsWith("*.")) e = e.substring(2);
+			else if(e.startsWith(".")) e = e.substring(1);
+			if(e.isEmpty() || e.indexOf('.')!=-1 || e.indexOf('/')!=-1 || e.indexOf('*')!=-1) throw new IllegalArgumentException("Invalid bypass extension [" + x.get(i) + "]");
+			x.set(i, e);
+			ext.add(bytes(e));
+			maxLength = Math.max(maxLength, e.length());
+		}
+		extensionsByLength = new byte[maxLength + 1][][];
+		for(int len = 1; len <= maxLength; len++) {
+			final List<byte[]> same = new ArrayList<byte[]>();
+			for(byte[] e: ext) if(e.length==len) same.add(e);
+			extensionsByLength[len] = same.isEmpty() ? null : same.toArray(new byte[same.size()][]);
+		}
+		globs = new byte[g.size()][];
+		for(int i = 0; i < globs.length; i++) {
+			final String glob = g.get(i);
+			if(glob.charAt(0)!='/' && glob.charAt(0)!='*') throw new IllegalArgumentException("Bypass pattern must start with / or * [" + glob + "]");
+			globs[i] = bytes(glob);
+		}
+		for(int i = 0; i < m.size(); i++) {
+			final String method = m.get(i).toUpperCase();
+			for(int c = 0; c < method.length(); c++) {
+				final char ch = method.charAt(c);
+				if((ch < 'A' || ch > 'Z') && ch!='-' && ch!='_') throw new IllegalArgumentException("Invalid bypass method [" + m.get(i) + "]");
+			}
+			m.set(i, method);
+		}
+		methodNames = m.toArray(new String[m.size()]);
+		this.paths = join(p);
+		this.extensions = join(x);
+		this.patterns = join(g);
+		this.methods = join(m);
+		empty = prefixes==null && ext.isEmpty() && globs.length==0 && methodNames.length==0;
+	}
+
+	/**
+	 * Indicates if the passed request is bypassed. The decoded URI is matched when the connector has set it, otherwise the raw URI.
+	 * @param request The coyote request
+	 * @return true if the request matched a rule
+	 */
+	public boolean matches(final org.apache.coyote.Request request) {
+		if(empty) return false;
+		final MessageBytes uri = request.decodedURI().isNull() ? request.requestURI() : request.decodedURI();
+		return matches(request.method(), uri);
+	}
+
+	/**
+	 * Indicates if the passed method and URI match a rule
+	 * @param method The request method
+	 * @param uri The request URI
+	 * @return true if either matched a rule
+	 */
+	public boolean matches(final MessageBytes method, final MessageBytes uri) {
+		if(empty) return false;
+		for(String m: methodNames) {
+			if(method.equals(m)) return true;
+		}
+		switch(uri.getType()) {
+			case MessageBytes.T_BYTES:
+				final ByteChunk bc = uri.getByteChunk();
+				return matches(bc.getBuffer(), null, bc.getStart(), bc.getEnd());
+			case MessageBytes.T_CHARS:
+				final CharChunk cc = uri.getCharChunk();
+				return matches(null, cc.getBuffer(), cc.getStart(), cc.getEnd());
+			case MessageBytes.T_STR:
+				// connectors always supply bytes, a String URI only comes from a programmatically built request
+				final char[] c = uri.getString().toCharArray();
+				return matches(null, c, 0, c.length);
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Indicates if the passed URI, held as bytes or chars, matches a path, extension or pattern rule
+	 * @param b The URI bytes, or null if the URI is held as chars
+	 * @param c The URI chars, used if the bytes are null
+	 * @param start The offset of the first character of the URI
+	 * @param end The offset one past the last character of the URI
+	 * @return true if the URI matched a rule
+	 */
+	private boolean matches(final byte[] b, final char[] c, final int start, final int end) {
+		if(prefixes!=null) {
+			Node node = prefixes;
+			for(int i = start; i < end; i++) {
+				node = node.child(at(b, c, i));
+				if(node==null) break;
+				// a prefix not ending in / must end a segment, or /health would bypass /healthcare
+				if(node.terminal && (at(b, c, i)=='/' || i + 1==end || at(b, c, i + 1)=='/')) return true;
+			}
+		}
+		if(extensionsByLength.length > 1) {
+			for(int i = end - 1; i >= start && end - 1 - i < extensionsByLength.length; i--) {
+				final int ch = at(b, c, i);
+				if(ch=='/') break;
+				if(ch=='.') {
+					final byte[][] candidates = extensionsByLength[end - 1 - i];
+					if(candidates!=null) {
+						for(byte[] ext: candidates) {
+							if(equalsIgnoreCase(ext, b, c, i + 1)) return true;
+						}
+					}
+					break;
+				}
+			}
+		}
+		for(byte[] glob: globs) {
+			if(glob(glob, b, c, start, end)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the character at the passed offset of a URI held as bytes or chars
+	 * @param b The URI bytes, or null
+	 * @param c The URI chars
+	 * @param i The offset
+	 * @return the character
+	 */
+	private static int at(final byte[] b, final char[] c, final int i) {
+		return b!=null ? b[i] & 0xff : c[i];
+	}
+
+	private static int lower(final int ch) {
+		return (ch >= 'A' && ch <= 'Z') ? ch + 32 : ch;
+	}
+
+	private static boolean equalsIgnoreCase(final byte[] ext, final byte[] b, final char[] c, final int offset) {
+		for(int i = 0; i < ext.length; i++) {
+			if(lower(at(b, c, offset + i))!=ext[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Matches a glob pattern against the whole URI. <b><code>*</code></b> matches any run of characters within a segment,
+	 * <b><code>**</code></b> any run of characters including <b><code>/</code></b>, and <b><code>?</code></b> one character
+	 * other than <b><code>/</code></b>. A mismatch first lets the last <b><code>*</code></b> take one more character, and
+	 * once that would cross a <b><code>/</code></b> lets the last <b><code>**</code></b> take one more instead.
+	 */
+	private static boolean glob(final byte[] glob, final byte[] b, final char[] c, final int start, final int end) {
+		int g = 0, i = start, starG = -1, starI = -1, anyG = -1, anyI = -1;
+		while(i < end) {
+			final int ch = at(b, c, i);
+			if(g < glob.length && glob[g]=='*') {
+				if(g + 1 < glob.length && glob[g + 1]=='*') {
+					g += 2;
+					anyG = g;
+					anyI = i;
+					starG = -1;
+				} else {
+					starG = ++g;
+					starI = i;
+				}
+			} else if(g < glob.length && (glob[g]=='?' ? ch!='/' : (glob[g] & 0xff)==ch)) {
+				g++;
+				i++;
+			} else if(starG!=-1 && at(b, c, starI)!='/') {
+				g = starG;
+				i = ++starI;
+			} else if(anyG!=-1) {
+				g = anyG;
+				i = ++anyI;
+				starG = -1;
+			} else {
+				return false;
+			}
+		}
+		while(g < glob.length && glob[g]=='*') g++;
+		return g==glob.length;
+	}
+
+	private static byte[] bytes(final String s) {
+		for(int i = 0; i < s.length(); i++) {
+			if(s.charAt(i) > 0xff) throw new IllegalArgumentException("Bypass rules must be ISO-8859-1 [" + s + "]");
+		}
+		return s.getBytes(SetCookieScanner.ISO_8859_1);
+	}
+
+	private static List<String> split(final String spec) {
+		final List<String> list = new ArrayList<String>();
+		if(spec==null) return list;
+		for(String s: spec.split(",")) {
+			final String t = s.trim();
+			if(!t.isEmpty()) list.add(t);
+		}
+		return list;
+	}
+
+	private static String join(final List<String> list) {
+		final StringBuilder b = new StringBuilder();
+		for(String s: list) {
+			if(b.length() > 0) b.append(',');
+			b.append(s);
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Indicates if there are no rules
+	 * @return true if no request is bypassed
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * Returns the normalized path prefix spec
+	 * @return the path prefixes
+	 */
+	public String getPaths() {
+		return paths;
+	}
+
+	/**
+	 * Returns the normalized extension spec
+	 * @return the extensions
+	 */
+	public String getExtensions() {
+		return extensions;
+	}
+
+	/**
+	 * Returns the normalized URI pattern spec
+	 * @return the patterns
+	 */
+	public String getPatterns() {
+		return patterns;
+	}
+
+	/**
+	 * Returns the normalized method spec
+	 * @return the methods
+	 */
+	public String getMethods() {
+		return methods;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "BypassRules [paths:" + paths + ", extensions:" + extensions + ", patterns:" + patterns + ", methods:" + methods + "]";
+	}
+
+	/**
+	 * <p>Title: Node</p>
+	 * <p>Description: A node in the path prefix byte trie. Children are held in a small key array scanned linearly.</p>
+	 */
+	private static final class Node {
+		byte[] keys = new byte[0];
+		Node[] children = new Node[0];
+		boolean terminal = false;
+
+		void add(final byte[] prefix, final int depth) {
+			if(depth==prefix.length) {
+				terminal = true;
+				return;
+			}
+			Node next = child(prefix[depth] & 0xff);
+			if(next==null) {
+				final int n = keys.length;
+				final byte[] k = new byte[n + 1];
+				final Node[] c = new Node[n + 1];
+				System.arraycopy(keys, 0, k, 0, n);
+				System.arraycopy(children, 0, c, 0, n);
+				k[n] = prefix[depth];
+				c[n] = next = new Node();
+				keys = k;
+				children = c;
+			}
+			next.add(prefix, depth + 1);
+		}
+
+		Node child(final int ch) {
+			for(int i = 0; i < keys.length; i++) {
+				if((keys[i] & 0xff)==ch) return children[i];
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * <p>Title: CidrTrie</p>
+ * <p>Description: A set of IPv4 and IPv6 CIDR blocks held in a binary radix trie of primitive arrays. Addresses are
+ * parsed straight from their text form into an <b><code>int</code></b> or a pair of <b><code>long</code></b>s and walked
+ * bit by bit, so a lookup never allocates or touches {@link InetAddress}. IPv4 mapped IPv6 addresses match as IPv4.
+ * Blocks are specified as a comma separated list, e.g.:</p>
+ * <pre>
+ *   10.0.0.0/8, 192.168.0.0/16, 127.0.0.1, ::1, fd00::/8
+ * </pre>
+ * <p>Instances are immutable.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CidrTrie</code></p>
+ */
+
+public final class CidrTrie {
+	/** An empty trie */
+	public static final CidrTrie EMPTY = new CidrTrie("");
+	/** The IPv4 root node */
+	private static final int ROOT4 = 0;
+	/** The IPv6 root node */
+	private static final int ROOT6 = 1;
+
+	/** The normalized spec */
+	private final String spec;
+	/** The child node on a zero bit, or 0 for none */
+	private int[] zero = new int[16];
+	/** The child node on a one bit, or 0 for none */
+	private int[] one = new int[16];
+	/** Indicates if a block ends at the node */
+	private boolean[] terminal = new boolean[16];
+	/** The number of nodes */
+	private int size = 2;
+	/** Indicates if the trie holds no blocks */
+	private final boolean empty;
+
+	/**
+	 * Compiles the passed CIDR blocks
+	 * @param spec The comma separated blocks, or null/empty for none
+	 * @return the compiled trie
+	 * @throws IllegalArgumentException thrown if a block is invalid
+	 */
+	public static CidrTrie compile(final String spec) {
+		final CidrTrie t = new CidrTrie(spec);
+		return t.empty ? EMPTY : t;
+	}
+
+	private CidrTrie(final String spec) {
+		final StringBuilder b = new StringBuilder();
+		if(spec!=null) {
+			for(String s: spec.split(",")) {
+				final String block = s.trim();
+				if(block.isEmpty()) continue;
+				add(block);
+				if(b.length() > 0) b.append(',');
+				b.append(block);
+			}
+		}
+		this.spec = b.toString();
+		empty = b.length()==0;
+		zero = Arrays.copyOf(zero, size);
+		one = Arrays.copyOf(one, size);
+		terminal = Arrays.copyOf(terminal, size);
+	}
+
+	/**
+	 * Adds a block. Literal addresses are parsed with {@link InetAddress}, which does no lookup for literals;
+	 * anything that is not a literal is rejected first.
+	 * @param block The block
+	 */
+	private void add(final String block) {
+		final int slash = block.indexOf('/');
+		final String addr = slash==-1 ? block : block.substring(0, slash);
+		if(addr.isEmpty() || (addr.indexOf(':')==-1 && !addr.matches("[0-9.]+"))) throw new IllegalArgumentException("Invalid CIDR block [" + block + "]");
+		final byte[] bytes;
+		try {
+			final InetAddress ia = InetAddress.getByName(addr);
+			bytes = ia instanceof Inet6Address || ia instanceof Inet4Address ? ia.getAddress() : null;
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid CIDR block [" + block + "]");
+		}
+		final int bits = bytes.length * 8;
+		int prefix = bits;
+		if(slash!=-1) {
+			try {
+				prefix = Integer.parseInt(block.substring(slash + 1).trim());
+			} catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException("Invalid CIDR prefix [" + block + "]");
+			}
+			if(prefix < 0 || prefix > bits) throw new IllegalArgumentException("Invalid CIDR prefix [" + block + "]");
+		}
+		int node = bytes.length==4 ? ROOT4 : ROOT6;
+		for(int i = 0; i < prefix; i++) {
+			final boolean bit = (bytes[i >> 3] & (0x80 >>> (i & 7)))!=0;
+			int next = bit ? one[node] : zero[node];
+			if(next==0) {
+				next = node();
+				if(bit) one[node] = next;
+				else zero[node] = next;
+			}
+			node = next;
+		}
+		terminal[node] = true;
+	}
+
+	private int node() {
+		if(size==zero.length) {
+			zero = Arrays.copyOf(zero, size * 2);
+			one = Arrays.copyOf(one, size * 2);
+			terminal = Arrays.copyOf(terminal, size * 2);
+		}
+		return size++;
+	}
+
+	/**
+	 * Indicates if the trie holds no blocks
+	 * @return true if nothing matches
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * Indicates if the passed IPv4 address is in one of the blocks
+	 * @param address The address
+	 * @return true if the address matched
+	 */
+	public boolean contains(final int address) {
+		int node = ROOT4;
+		for(int i = 31; ; i--) {
+			if(terminal[node]) return true;
+			if(i < 0) return false;
+			node = ((address >>> i) & 1)==0 ? zero[node] : one[node];
+			if(node==0) return false;
+		}
+	}
+
+	/**
+	 * Indicates if the passed IPv6 address is in one of the blocks
+	 * @param high The high 64 bits of the address
+	 * @param low The low 64 bits of the address
+	 * @return true if the address matched
+	 */
+	public boolean contains(final long high, final long low) {
+		if(high==0L && (low >>> 32)==0xFFFFL) return contains((int)low);
+		int node = ROOT6;
+		for(int i = 127; ; i--) {
+			if(terminal[node]) return true;
+			if(i < 0) return false;
+			final long bit = i >= 64 ? (high >>> (i - 64)) & 1L : (low >>> i) & 1L;
+			node = bit==0L ? zero[node] : one[node];
+			if(node==0) return false;
+		}
+	}
+
+	/**
+	 * Indicates if the passed textual IPv4 or IPv6 address is in one of the blocks
+	 * @param address The address
+	 * @return true if the address is valid and matched
+	 */
+	public boolean contains(final String address) {
+		if(empty || address==null) return false;
+		final int len = address.length();
+		if(address.indexOf(':')==-1) {
+			final long v4 = ipv4(address, 0, len);
+			return v4!=-1L && contains((int)v4);
+		}
+		// 128 bits accumulated as head groups before any :: and tail groups after it
+		long headHi = 0L, headLo = 0L, tailHi = 0L, tailLo = 0L;
+		int headGroups = 0, tailGroups = 0;
+		boolean compressed = false;
+		int i = 0, end = len;
+		final int zone = address.indexOf('%');
+		if(zone!=-1) end = zone;
+		if(address.startsWith("[") && address.charAt(end - 1)==']') { i = 1; end--; }
+		if(end - i >= 2 && address.charAt(i)==':' && address.charAt(i + 1)==':') {
+			compressed = true;
+			i += 2;
+		}
+		while(i < end) {
+			int j = i;
+			int group = 0;
+			while(j < end && j - i < 5) {
+				final int d = Character.digit(address.charAt(j), 16);
+				if(d < 0) break;
+				group = (group << 4) | d;
+				j++;
+			}
+			if(j < end && address.charAt(j)=='.') {
+				// an embedded IPv4 address, the last two groups
+				final long v4 = ipv4(address, i, end);
+				if(v4==-1L) return false;
+				for(int g = 0; g < 2; g++) {
+					final int part = (int)(v4 >>> (16 - g * 16)) & 0xFFFF;
+					if(compressed) { tailHi = (tailHi << 16) | (tailLo >>> 48); tailLo = (tailLo << 16) | part; tailGroups++; }
+					else { headHi = (headHi << 16) | (headLo >>> 48); headLo = (headLo << 16) | part; headGroups++; }
+				}
+				i = end;
+				break;
+			}
+			if(j==i || j - i > 4) return false;
+			if(compressed) { tailHi = (tailHi << 16) | (tailLo >>> 48); tailLo = (tailLo << 16) | group; tailGroups++; }
+			else { headHi = (headHi << 16) | (headLo >>> 48); headLo = (headLo << 16) | group; headGroups++; }
+			if(j==end) { i = j; break; }
+			if(address.charAt(j)!=':') return false;
+			if(j + 1 < end && address.charAt(j + 1)==':') {
+				if(compressed) return false;
+				compressed = true;
+				i = j + 2;
+			} else {
+				i = j + 1;
+				if(i==end) return false;
+			}
+		}
+		final int groups = headGroups + tailGroups;
+		if(groups > 8 || (!compressed && groups!=8) || (compressed && groups==8)) return false;
+		for(int g = headGroups; g < 8; g++) {
+			headHi = (headHi << 16) | (headLo >>> 48);
+			headLo = headLo << 16;
+		}
+		return contains(headHi | tailHi, headLo | tailLo);
+	}
+
+	/**
+	 * Parses a dotted IPv4 address
+	 * @param s The text
+	 * @param start The offset of the first character
+	 * @param end The offset one past the last character
+	 * @return the address as an unsigned int, or -1 if invalid
+	 */
+	private static long ipv4(final String s, final int start, final int end) {
+		long v = 0L;
+		int octets = 0, octet = -1;
+		for(int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if(c >= '0' && c <= '9') {
+				octet = octet==-1 ? c - '0' : octet * 10 + (c - '0');
+				if(octet > 255) return -1L;
+			} else if(c=='.' && octet!=-1 && octets < 3) {
+				v = (v << 8) | octet;
+				octets++;
+				octet = -1;
+			} else {
+				return -1L;
+			}
+		}
+		if(octet==-1 || octets!=3) return -1L;
+		return (v << 8) | octet;
+	}
+
+	/**
+	 * Returns the normalized spec
+	 * @return the comma separated blocks
+	 */
+	public String getSpec() {
+		return spec;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CidrTrie [" + spec + ", nodes:" + size + "]";
+	}
+}
@@ -0,0 +1,133 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.io.File;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: ConfigFileWatcher</p>
+ * <p>Description: Watches a local configuration file and runs a callback on a daemon thread when the file's
+ * last modified time or length changes. The file is polled since the valve targets Java 6, which has no WatchService;
+ * polling a single file's attributes is cheap and also works on file systems that do not deliver change events.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ConfigFileWatcher</code></p>
+ */
+
+public class ConfigFileWatcher implements Runnable {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The watched file */
+	protected final File file;
+	/** The poll interval in ms */
+	protected final long interval;
+	/** The callback run when the file changes */
+	protected final Runnable onChange;
+	/** The polling thread */
+	protected final Thread thread;
+	/** Indicates if the watcher is running */
+	protected volatile boolean running = false;
+	/** The last seen modified time */
+	private long lastModified;
+	/** The last seen length */
+	private long length;
+
+	/**
+	 * Creates a new ConfigFileWatcher. The file's current state is taken as already loaded.
+	 * @param file The file to watch
+	 * @param interval The poll interval in ms
+	 * @param onChange The callback to run when the file changes
+	 */
+	public ConfigFileWatcher(final File file, final long interval, final Runnable onChange) {
+		if(file==null) throw new IllegalArgumentException("The passed file was null");
+		if(interval < 1) throw new IllegalArgumentException("Invalid interval [" + interval + "]");
+		if(onChange==null) throw new IllegalArgumentException("The passed callback was null");
+		this.file = file;
+		this.interval = interval;
+		this.onChange = onChange;
+		lastModified = file.lastModified();
+		length = file.length();
+		thread = new Thread(this, "SecureCookiesConfigWatcher[" + file.getName() + "]");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts polling
+	 * @return this watcher
+	 */
+	public ConfigFileWatcher start() {
+		running = true;
+		thread.start();
+		log.info("Watching config file [{}] every {} ms", file, interval);
+		return this;
+	}
+
+	/**
+	 * Stops polling
+	 */
+	public void stop() {
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException iex) {
+				if(!running) break;
+			}
+			final long m = file.lastModified();
+			final long l = file.length();
+			// a missing file reports zero for both and is left alone until it reappears
+			if((m==lastModified && l==length) || m==0L) continue;
+			lastModified = m;
+			length = l;
+			try {
+				onChange.run();
+			} catch (Exception ex) {
+				log.error("Config file change handler failed for [{}]", file, ex);
+			}
+		}
+	}
+
+	/**
+	 * Returns the watched file
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the poll interval
+	 * @return the interval in ms
+	 */
+	public long getInterval() {
+		return interval;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: ConnectorSaturation</p>
+ * <p>Description: Samples the saturation of the connector thread pools of a Tomcat domain through their MBeans,
+ * the <b><code>ThreadPool</code></b> of each connector endpoint (<b><code>currentThreadsBusy</code></b> of
+ * <b><code>maxThreads</code></b>) and each shared <b><code>Executor</code></b> (<b><code>activeCount</code></b> of
+ * <b><code>maxThreads</code></b>). The endpoints are not reachable from a valve since the protocol handlers keep them
+ * protected, so JMX is the only portable route. The busiest pool is reported.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ConnectorSaturation</code></p>
+ */
+
+public class ConnectorSaturation {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The MBeanServer the pools are registered in */
+	protected final MBeanServer server;
+	/** The connector endpoint thread pool pattern */
+	protected final ObjectName threadPools;
+	/** The shared executor pattern */
+	protected final ObjectName executors;
+	/** Indicates if a failed read has been logged */
+	private boolean warned = false;
+
+	/**
+	 * Creates a new ConnectorSaturation
+	 * @param server The MBeanServer the pools are registered in
+	 * @param domain The JMX domain of the pools, or <b><code>*</code></b> for any domain
+	 */
+	public ConnectorSaturation(final MBeanServer server, final String domain) {
+		if(server==null) throw new IllegalArgumentException("The passed MBeanServer was null");
+		if(domain==null || domain.trim().isEmpty()) throw new IllegalArgumentException("The passed domain was null or empty");
+		this.server = server;
+		try {
+			threadPools = new ObjectName(domain.trim() + ":type=ThreadPool,*");
+			executors = new ObjectName(domain.trim() + ":type=Executor,*");
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid domain [" + domain + "]", ex);
+		}
+	}
+
+	/**
+	 * Returns the saturation of the busiest pool
+	 * @return the busy threads as a percentage of the pool's maximum, or -1 if no pool could be read
+	 */
+	public int sample() {
+		int busiest = -1;
+		for(ObjectName on: server.queryNames(threadPools, null)) {
+			busiest = Math.max(busiest, ratio(on, "currentThreadsBusy"));
+		}
+		for(ObjectName on: server.queryNames(executors, null)) {
+			busiest = Math.max(busiest, ratio(on, "activeCount"));
+		}
+		return busiest;
+	}
+
+	/**
+	 * Reads the busy percentage of one pool
+	 * @param on The pool's ObjectName
+	 * @param busyAttribute The name of the busy thread count attribute
+	 * @return the percentage, or -1 if the pool could not be read or is unbounded
+	 */
+	private int ratio(final ObjectName on, final String busyAttribute) {
+		try {
+			final long busy = ((Number)server.getAttribute(on, busyAttribute)).longValue();
+			final long max = ((Number)server.getAttribute(on, "maxThreads")).longValue();
+			// an endpoint running on a shared executor reports no threads of its own
+			if(max <= 0L || busy < 0L) return -1;
+			return (int)Math.min(100L, busy * 100L / max);
+		} catch (Exception ex) {
+			if(!warned) {
+				warned = true;
+				log.warn("Failed to read thread pool [{}], further failures are not logged", on, ex);
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ConnectorSaturation [" + threadPools.getDomain() + "]";
+	}
+}
@@ -0,0 +1,127 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: ContextPolicy</p>
+ * <p>Description: The valve wide cookie settings in effect for one context: <b><code>forceSecure</code></b>,
+ * <b><code>forceHttpOnly</code></b> and <b><code>sameSite</code></b>, either as configured on the valve or with a
+ * context's overrides from a {@link ContextPolicyTable} applied.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ContextPolicy</code></p>
+ */
+
+public final class ContextPolicy {
+	/** Indicates if Secure is forced on cookies set in secure requests */
+	private final boolean forceSecure;
+	/** Indicates if HttpOnly is forced */
+	private final boolean forceHttpOnly;
+	/** The SameSite forced on cookies that do not specify one, or null */
+	private final SameSite sameSite;
+	/** The attribute bits required of every cookie regardless of the request */
+	private final int required;
+
+	/**
+	 * Creates a new ContextPolicy
+	 * @param forceSecure true to force Secure on cookies set in secure requests
+	 * @param forceHttpOnly true to force HttpOnly
+	 * @param sameSite The SameSite to force on cookies that do not specify one, or null
+	 */
+	public ContextPolicy(final boolean forceSecure, final boolean forceHttpOnly, final SameSite sameSite) {
+		this.forceSecure = forceSecure;
+		this.forceHttpOnly = forceHttpOnly;
+		this.sameSite = sameSite;
+		int r = 0;
+		if(forceHttpOnly) r |= SetCookieScanner.HTTP_ONLY;
+		if(sameSite!=null) r |= SetCookieScanner.SAME_SITE;
+		required = r;
+	}
+
+	/**
+	 * Computes the {@link SetCookieScanner} attribute bits every cookie set in a request's response must carry
+	 * @param secure true if the request is secure
+	 * @return the required attribute bits
+	 */
+	public int requiredAttributes(final boolean secure) {
+		return (forceSecure && secure) ? required | SetCookieScanner.SECURE : required;
+	}
+
+	/**
+	 * Indicates if Secure is forced on cookies set in secure requests
+	 * @return true if Secure is forced
+	 */
+	public boolean isForceSecure() {
+		return forceSecure;
+	}
+
+	/**
+	 * Indicates if HttpOnly is forced
+	 * @return true if HttpOnly is forced
+	 */
+	public boolean isForceHttpOnly() {
+		return forceHttpOnly;
+	}
+
+	/**
+	 * Returns the SameSite forced on cookies that do not specify one
+	 * @return the SameSite or null
+	 */
+	public SameSite getSameSite() {
+		return sameSite;
+	}
+
+	/**
+	 * Returns the encoded SameSite attribute forced on cookies that do not specify one
+	 * @return the attribute bytes or null
+	 */
+	public byte[] getSameSiteAttribute() {
+		return sameSite==null ? null : sameSite.attribute();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return (required << 1) | (forceSecure ? 1 : 0) | ((sameSite==null ? 0 : sameSite.ordinal() + 1) << 8);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if(this==obj) return true;
+		if(!(obj instanceof ContextPolicy)) return false;
+		final ContextPolicy other = (ContextPolicy)obj;
+		return forceSecure==other.forceSecure && forceHttpOnly==other.forceHttpOnly && sameSite==other.sameSite;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "forceSecure=" + forceSecure + ", forceHttpOnly=" + forceHttpOnly + ", sameSite=" + (sameSite==null ? "" : sameSite.value);
+	}
+}
@@ -0,0 +1,376 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+
+/**
+ * <p>Title: ContextPolicyTable</p>
+ * <p>Description: Per context overrides of the valve wide cookie settings, for a valve on the Engine or Host that
+ * should treat some webapps differently. Overrides are specified as a single string with entries separated by
+ * <b><code>;</code></b>, each selecting contexts with the {@link CookieRule} qualifiers and naming the settings
+ * it overrides, e.g.:</p>
+ * <pre>
+ *   path=/admin -&gt; sameSite=Strict; path=/shop domain=example.com -&gt; sameSite=Lax, forceHttpOnly=false
+ * </pre>
+ * <p>The settings are <b><code>forceSecure</code></b>, <b><code>forceHttpOnly</code></b> and <b><code>sameSite</code></b>
+ * (an empty value forces none). Entries apply in order, so a later entry overrides an earlier one for the settings it names.</p>
+ * <p>Each context's {@link ContextPolicy} is resolved once, on the first request the valve sees for it, and kept in a
+ * copy on write, open addressed table keyed by the {@link Context} identity, so a request costs one identity hash probe
+ * and no string comparison. The table registers itself as a listener on the context and drops the entry when the
+ * context stops, so a reloaded or redeployed context is resolved again and a stopped one is not retained.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ContextPolicyTable</code></p>
+ */
+
+public class ContextPolicyTable implements LifecycleListener {
+	/** The initial table size */
+	private static final int INITIAL_SIZE = 16;
+
+	/** The spec this table was compiled from */
+	private final String spec;
+	/** The compiled overrides */
+	private final ContextOverride[] overrides;
+	/** The valve wide settings the overrides apply to */
+	private final ContextPolicy defaults;
+	/** The resolved policies, replaced as a whole on every change */
+	private volatile Entry[] table = new Entry[INITIAL_SIZE];
+	/** The number of resolved contexts, guarded by this */
+	private int size = 0;
+	/** Set when the table has been replaced, after which nothing more is cached, guarded by this */
+	private boolean closed = false;
+	/** The number of contexts resolved */
+	private final AtomicLong resolutions = new AtomicLong(0L);
+	/** The number of entries dropped because their context stopped */
+	private final AtomicLong invalidations = new AtomicLong(0L);
+
+	/**
+	 * Compiles the passed override spec
+	 * @param spec The override spec
+	 * @param defaults The valve wide settings the overrides apply to
+	 * @param previous The table compiled for the previous configuration, reused if the spec and settings are unchanged, or null
+	 * @return the compiled table, or null if the spec is empty
+	 */
+	public static ContextPolicyTable compile(final String spec, final ContextPolicy defaults, final ContextPolicyTable previous) {
+		if(spec==null || spec.trim().isEmpty()) return null;
+		final String s = spec.trim();
+		if(previous!=null && previous.spec.equals(s) && previous.defaults.equals(defaults)) return previous;
+		final List<ContextOverride> overrides = new ArrayList<ContextOverride>();
+		for(String o: s.split(";")) {
+			if(o.trim().isEmpty()) continue;
+			overrides.add(ContextOverride.parse(o));
+		}
+		if(overrides.isEmpty()) return null;
+		return new ContextPolicyTable(s, overrides.toArray(new ContextOverride[overrides.size()]), defaults);
+	}
+
+	/**
+	 * Creates a new ContextPolicyTable
+	 * @param spec The spec the overrides were parsed from
+	 * @param overrides The overrides
+	 * @param defaults The valve wide settings the overrides apply to
+	 */
+	protected ContextPolicyTable(final String spec, final ContextOverride[] overrides, final ContextPolicy defaults) {
+		this.spec = spec;
+		this.overrides = overrides;
+		this.defaults = defaults;
+	}
+
+	/**
+	 * Returns the policy in effect for the passed context, resolving it on first sight
+	 * @param context The context, or null
+	 * @return the policy
+	 */
+	public ContextPolicy resolve(final Context context) {
+		if(context==null) return defaults;
+		final Entry[] t = table;
+		final int mask = t.length - 1;
+		for(int i = System.identityHashCode(context) & mask; ; i = (i + 1) & mask) {
+			final Entry e = t[i];
+			if(e==null) break;
+			if(e.context==context) return e.policy;
+		}
+		return miss(context);
+	}
+
+	/**
+	 * Resolves and caches the policy of a context not found in the table
+	 * @param context The context
+	 * @return the policy
+	 */
+	private synchronized ContextPolicy miss(final Context context) {
+		final Entry[] t = table;
+		final int mask = t.length - 1;
+		for(int i = System.identityHashCode(context) & mask; ; i = (i + 1) & mask) {
+			final Entry e = t[i];
+			if(e==null) break;
+			if(e.context==context) return e.policy;
+		}
+		final ContextPolicy policy = compute(context);
+		resolutions.incrementAndGet();
+		if(closed) return policy;
+		final Entry[] next = copy(t, (size + 1) * 2 > t.length ? t.length * 2 : t.length, null);
+		insert(next, new Entry(context, policy));
+		table = next;
+		size++;
+		if(context instanceof Lifecycle) ((Lifecycle)context).addLifecycleListener(this);
+		return policy;
+	}
+
+	/**
+	 * Applies the matching overrides to the valve wide settings
+	 * @param context The context
+	 * @return the policy
+	 */
+	protected ContextPolicy compute(final Context context) {
+		final String contextPath = context.getPath()==null ? "" : context.getPath();
+		final Container parent = context.getParent();
+		final String host = (parent!=null && parent.getName()!=null) ? parent.getName().toLowerCase() : null;
+		boolean forceSecure = defaults.isForceSecure();
+		boolean forceHttpOnly = defaults.isForceHttpOnly();
+		SameSite sameSite = defaults.getSameSite();
+		boolean matched = false;
+		for(ContextOverride o: overrides) {
+			if(!CookieRule.matches(o.path, o.domain, contextPath, host)) continue;
+			matched = true;
+			if(o.forceSecure!=null) forceSecure = o.forceSecure;
+			if(o.forceHttpOnly!=null) forceHttpOnly = o.forceHttpOnly;
+			if(o.setsSameSite) sameSite = o.sameSite;
+		}
+		if(!matched) return defaults;
+		final ContextPolicy policy = new ContextPolicy(forceSecure, forceHttpOnly, sameSite);
+		return policy.equals(defaults) ? defaults : policy;
+	}
+
+	/**
+	 * Drops a stopped context's entry so it is resolved again when it restarts
+	 * @param event The lifecycle event
+	 * @see org.apache.catalina.LifecycleListener#lifecycleEvent(org.apache.catalina.LifecycleEvent)
+	 */
+	@Override
+	public void lifecycleEvent(final LifecycleEvent event) {
+		final String type = event.getType();
+		if(!Lifecycle.STOP_EVENT.equals(type) && !Lifecycle.DESTROY_EVENT.equals(type)) return;
+		final Lifecycle lifecycle = event.getLifecycle();
+		lifecycle.removeLifecycleListener(this);
+		if(lifecycle instanceof Context && invalidate((Context)lifecycle)) invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Removes the passed context's entry
+	 * @param context The context
+	 * @return true if the context had an entry
+	 */
+	private synchronized boolean invalidate(final Context context) {
+		final Entry[] t = table;
+		for(Entry e: t) {
+			if(e!=null && e.context==context) {
+				table = copy(t, t.length, context);
+				size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Drops every entry and stops listening to their contexts. The table keeps resolving, and caching unless it is closed.
+	 */
+	public synchronized void clear() {
+		for(Entry e: table) {
+			if(e!=null && e.context instanceof Lifecycle) ((Lifecycle)e.context).removeLifecycleListener(this);
+		}
+		table = new Entry[INITIAL_SIZE];
+		size = 0;
+	}
+
+	/**
+	 * Clears this table and stops it caching, once a new configuration has replaced it.
+	 * Requests still holding the old configuration resolve without caching.
+	 */
+	public synchronized void close() {
+		closed = true;
+		clear();
+	}
+
+	private static Entry[] copy(final Entry[] from, final int length, final Context without) {
+		final Entry[] to = new Entry[length];
+		for(Entry e: from) {
+			if(e!=null && e.context!=without) insert(to, e);
+		}
+		return to;
+	}
+
+	private static void insert(final Entry[] t, final Entry e) {
+		final int mask = t.length - 1;
+		int i = System.identityHashCode(e.context) & mask;
+		while(t[i]!=null) i = (i + 1) & mask;
+		t[i] = e;
+	}
+
+	/**
+	 * Returns the spec this table was compiled from
+	 * @return the spec
+	 */
+	public String getSpec() {
+		return spec;
+	}
+
+	/**
+	 * Returns the number of contexts currently resolved
+	 * @return the context count
+	 */
+	public synchronized int getContextCount() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of contexts resolved, including those resolved again after a reload
+	 * @return the resolution count
+	 */
+	public long getResolutions() {
+		return resolutions.get();
+	}
+
+	/**
+	 * Returns the number of entries dropped because their context stopped
+	 * @return the invalidation count
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Describes the policy in effect for each resolved context
+	 * @return one line per context, <b><code>host/path: policy</code></b>
+	 */
+	public String[] report() {
+		final List<String> lines = new ArrayList<String>();
+		for(Entry e: table) {
+			if(e==null) continue;
+			final Container parent = e.context.getParent();
+			final String path = e.context.getPath()==null || e.context.getPath().isEmpty() ? "/" : e.context.getPath();
+			lines.add((parent==null ? "" : parent.getName()) + path + ": " + e.policy);
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return spec;
+	}
+
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: An immutable table entry</p>
+	 */
+	private static final class Entry {
+		final Context context;
+		final ContextPolicy policy;
+
+		Entry(final Context context, final ContextPolicy policy) {
+			this.context = context;
+			this.policy = policy;
+		}
+	}
+
+	/**
+	 * <p>Title: ContextOverride</p>
+	 * <p>Description: One parsed override entry</p>
+	 */
+	protected static final class ContextOverride {
+		/** The context path to match, or null for any */
+		final String path;
+		/** The host name suffix to match, or null for any */
+		final String domain;
+		/** The forceSecure override or null */
+		final Boolean forceSecure;
+		/** The forceHttpOnly override or null */
+		final Boolean forceHttpOnly;
+		/** Indicates if the entry overrides sameSite */
+		final boolean setsSameSite;
+		/** The sameSite override, null for none */
+		final SameSite sameSite;
+
+		private ContextOverride(final String path, final String domain, final Boolean forceSecure, final Boolean forceHttpOnly, final boolean setsSameSite, final SameSite sameSite) {
+			this.path = path;
+			this.domain = domain;
+			this.forceSecure = forceSecure;
+			this.forceHttpOnly = forceHttpOnly;
+			this.setsSameSite = setsSameSite;
+			this.sameSite = sameSite;
+		}
+
+		/**
+		 * Parses an override entry
+		 * @param text The entry text
+		 * @return the parsed entry
+		 */
+		static ContextOverride parse(final String text) {
+			final String entry = text.trim();
+			final int arrow = entry.indexOf("->");
+			if(arrow==-1) throw new IllegalArgumentException("Context policy has no '->' [" + entry + "]");
+			String path = null, domain = null;
+			for(String q: entry.substring(0, arrow).trim().split("\\s+")) {
+				if(q.isEmpty()) continue;
+				if(q.startsWith("path=")) path = CookieRule.normalizePath(q.substring(5));
+				else if(q.startsWith("domain=")) domain = CookieRule.normalizeDomain(q.substring(7));
+				else throw new IllegalArgumentException("Unrecognized qualifier [" + q + "] in [" + entry + "]");
+			}
+			if(path==null && domain==null) throw new IllegalArgumentException("Context policy has no path or domain qualifier [" + entry + "]");
+			Boolean forceSecure = null, forceHttpOnly = null;
+			boolean setsSameSite = false;
+			SameSite sameSite = null;
+			for(String s: entry.substring(arrow + 2).split(",")) {
+				final String setting = s.trim();
+				final int eq = setting.indexOf('=');
+				if(eq==-1) throw new IllegalArgumentException("Unrecognized setting [" + setting + "] in [" + entry + "]");
+				final String key = setting.substring(0, eq).trim();
+				final String value = setting.substring(eq + 1).trim();
+				if(key.equalsIgnoreCase(ValveConfig.FORCE_SECURE)) forceSecure = bool(value, entry);
+				else if(key.equalsIgnoreCase(ValveConfig.FORCE_HTTP_ONLY)) forceHttpOnly = bool(value, entry);
+				else if(key.equalsIgnoreCase(ValveConfig.SAME_SITE)) {
+					setsSameSite = true;
+					sameSite = SameSite.decode(value);
+				}
+				else throw new IllegalArgumentException("Unrecognized setting [" + setting + "] in [" + entry + "]");
+			}
+			return new ContextOverride(path, domain, forceSecure, forceHttpOnly, setsSameSite, sameSite);
+		}
+
+		private static Boolean bool(final String value, final String entry) {
+			if("true".equalsIgnoreCase(value)) return Boolean.TRUE;
+			if("false".equalsIgnoreCase(value)) return Boolean.FALSE;
+			throw new IllegalArgumentException("Invalid boolean [" + value + "] in [" + entry + "]");
+		}
+	}
+}
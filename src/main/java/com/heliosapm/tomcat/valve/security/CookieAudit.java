@@ -0,0 +1,104 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import javax.servlet.http.Cookie;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: CookieAudit</p>
+ * <p>Description: Emits one structured event per cookie the valve secures, to the
+ * <b><code>com.heliosapm.tomcat.valve.security.audit</code></b> logger at DEBUG. Every method checks
+ * the level first, so with auditing off a call costs a level check and nothing is rendered or allocated.
+ * Events are written as space separated <b><code>key=value</code></b> pairs, e.g.:</p>
+ * <pre>
+ *   cookie op=add name=JSESSIONID secure=true httponly=true path=/shop domain=- maxAge=-1
+ * </pre>
+ * <p>Cookie values are never written.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieAudit</code></p>
+ */
+
+public final class CookieAudit {
+	/** The audit logger name */
+	public static final String LOGGER_NAME = "com.heliosapm.tomcat.valve.security.audit";
+	/** The audit logger */
+	private static final Logger audit = LoggerFactory.getLogger(LOGGER_NAME);
+
+	/** The op for cookies added through the cookie API */
+	public static final String OP_ADD = "add";
+	/** The op for session cookies */
+	public static final String OP_SESSION = "session";
+	/** The op for raw Set-Cookie headers */
+	public static final String OP_HEADER = "header";
+
+	/**
+	 * Indicates if cookie audit events are written
+	 * @return true if the audit logger is enabled for DEBUG
+	 */
+	public static boolean isEnabled() {
+		return audit.isDebugEnabled();
+	}
+
+	/**
+	 * Records a cookie added through the cookie API, after the valve applied its attributes
+	 * @param op The operation ({@link #OP_ADD} or {@link #OP_SESSION})
+	 * @param cookie The cookie
+	 * @param httpOnly true if the cookie was added as http only
+	 */
+	public static void cookie(final String op, final Cookie cookie, final boolean httpOnly) {
+		if(!audit.isDebugEnabled() || cookie==null) return;
+		audit.debug("cookie op={} name={} secure={} httponly={} path={} domain={} maxAge={}", new Object[]{
+			op, cookie.getName(), cookie.getSecure(), httpOnly, orDash(cookie.getPath()), orDash(cookie.getDomain()), cookie.getMaxAge()
+		});
+	}
+
+	/**
+	 * Records a raw Set-Cookie header value
+	 * @param original The value as set by the application
+	 * @param secured The value as written by the valve
+	 */
+	public static void header(final String original, final String secured) {
+		if(!audit.isDebugEnabled() || original==null) return;
+		final int eq = original.indexOf('=');
+		audit.debug("cookie op={} name={} rewritten={}", new Object[]{OP_HEADER, eq==-1 ? original.trim() : original.substring(0, eq).trim(), original!=secured});
+	}
+
+	/**
+	 * Records a Set-Cookie header value rewritten in place by the header engine
+	 * @param b The buffer holding the rewritten value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 */
+	public static void header(final byte[] b, final int start, final int end) {
+		if(!audit.isDebugEnabled()) return;
+		final int nameStart = SetCookieScanner.nameStart(b, start, end);
+		final String name = new String(b, nameStart, SetCookieScanner.nameEnd(b, nameStart, end) - nameStart, SetCookieScanner.ISO_8859_1);
+		audit.debug("cookie op={} name={} rewritten={}", new Object[]{OP_HEADER, name, true});
+	}
+
+	private static String orDash(final String s) {
+		return s==null ? "-" : s;
+	}
+
+	private CookieAudit() {}
+}
@@ -0,0 +1,484 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: CookieAuditLog</p>
+ * <p>Description: A binary audit trail of the cookies the valve modifies. Request threads claim a slot in a bounded
+ * ring buffer with a single CAS, write a fixed size {@link #RECORD_SIZE} byte record into it and publish it with
+ * an ordered store. They never block: when the ring is full the record is dropped and counted. A single daemon
+ * writer thread drains published records, in order, into memory mapped segment files named
+ * <b><code>cookie-audit-NNNNNN.seg</code></b>, rolling to a new segment when the current one is full and deleting
+ * the oldest beyond the configured retention. Segments are decoded with {@link CookieAuditReader}.</p>
+ * <p>Segment layout: a {@link #RECORD_SIZE} byte header holding {@link #MAGIC}, {@link #VERSION}, the record size,
+ * the creation time and the segment number, followed by records. Segments are preallocated, so the first record
+ * with a zero timestamp marks the end of the written records. Record layout (strings are ISO-8859-1, truncated to their field):</p>
+ * <pre>
+ *   0  timestamp (long, ms)       8  op                9  added attribute bits   10  SameSite ordinal + 1 or 0
+ *   11 name length               12  context length   13  path length           14  truncated field bits
+ *   16 name (32)                 48  context path (32)                          80  cookie path (48)
+ * </pre>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieAuditLog</code></p>
+ */
+
+public class CookieAuditLog implements Runnable {
+	/** The size of a record and of the segment header */
+	public static final int RECORD_SIZE = 128;
+	/** The segment header magic */
+	public static final int MAGIC = 0x434B4155;
+	/** The segment format version */
+	public static final short VERSION = 1;
+	/** The segment file name prefix */
+	public static final String SEGMENT_PREFIX = "cookie-audit-";
+	/** The segment file name suffix */
+	public static final String SEGMENT_SUFFIX = ".seg";
+
+	/** The op for cookies added through the cookie API */
+	public static final int OP_COOKIE = 1;
+	/** The op for session cookies */
+	public static final int OP_SESSION = 2;
+	/** The op for raw Set-Cookie headers set through the wrapper */
+	public static final int OP_HEADER = 3;
+	/** The op for Set-Cookie headers rewritten at commit by the header engine */
+	public static final int OP_COMMIT = 4;
+
+	/** The timestamp offset */
+	public static final int TIMESTAMP = 0;
+	/** The op offset */
+	public static final int OP = 8;
+	/** The added attribute bits offset */
+	public static final int ADDED = 9;
+	/** The SameSite offset */
+	public static final int SAME_SITE = 10;
+	/** The name length offset */
+	public static final int NAME_LEN = 11;
+	/** The context path length offset */
+	public static final int CONTEXT_LEN = 12;
+	/** The cookie path length offset */
+	public static final int PATH_LEN = 13;
+	/** The truncated field bits offset */
+	public static final int TRUNCATED = 14;
+	/** The name offset */
+	public static final int NAME = 16;
+	/** The name field size */
+	public static final int NAME_MAX = 32;
+	/** The context path offset */
+	public static final int CONTEXT = 48;
+	/** The context path field size */
+	public static final int CONTEXT_MAX = 32;
+	/** The cookie path offset */
+	public static final int PATH = 80;
+	/** The cookie path field size */
+	public static final int PATH_MAX = 48;
+
+	/** The default ring capacity in records */
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	/** The default segment size in bytes */
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	/** The default number of segments kept */
+	public static final int DEFAULT_SEGMENTS = 8;
+
+	/** How long the writer parks when the ring is empty */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+	/** How long the writer waits before retrying a segment that could not be opened */
+	private static final long ROLL_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+	/** Static class logger */
+	private static final Logger log = LoggerFactory.getLogger(CookieAuditLog.class);
+
+	/** The record ring */
+	private final byte[] ring;
+	/** The published sequence + 1 of each ring slot */
+	private final AtomicLongArray published;
+	/** The ring capacity in records */
+	private final int capacity;
+	/** The ring index mask */
+	private final int mask;
+	/** The next sequence to claim */
+	private final AtomicLong tail = new AtomicLong(0L);
+	/** The next sequence to drain, written only by the writer */
+	private volatile long head = 0L;
+	/** The number of dropped records */
+	private final AtomicLong dropped = new AtomicLong(0L);
+	/** The number of written records */
+	private final AtomicLong written = new AtomicLong(0L);
+
+	/** The segment directory */
+	private final File directory;
+	/** The number of records per segment */
+	private final int segmentRecords;
+	/** The number of segments kept */
+	private final int maxSegments;
+	/** The segments on disk, oldest first */
+	private final Deque<File> segments = new ArrayDeque<File>();
+	/** The number of the next segment */
+	private int nextSegment;
+	/** The current segment file */
+	private volatile File segmentFile = null;
+	/** The current segment mapping, or null if no segment could be opened */
+	private MappedByteBuffer segment = null;
+	/** The earliest nano time at which a failed roll is retried */
+	private long rollRetryAt = 0L;
+	/** Indicates if the last roll failed */
+	private boolean rollFailed = false;
+
+	/** The writer thread */
+	private final Thread writer;
+	/** Indicates if the writer should keep running */
+	private volatile boolean running = true;
+
+	/**
+	 * Opens an audit log writing to the passed directory and starts its writer thread
+	 * @param directory The segment directory, created if it does not exist
+	 * @param bufferSize The ring capacity in records, rounded up to a power of 2
+	 * @param segmentSize The segment size in bytes
+	 * @param maxSegments The number of segments kept
+	 * @return the started audit log
+	 * @throws IOException thrown if the directory or first segment cannot be created
+	 */
+	public static CookieAuditLog open(final File directory, final int bufferSize, final int segmentSize, final int maxSegments) throws IOException {
+		final CookieAuditLog auditLog = new CookieAuditLog(directory, bufferSize, segmentSize, maxSegments);
+		auditLog.writer.start();
+		return auditLog;
+	}
+
+	/**
+	 * Creates a new CookieAuditLog
+	 * @param directory The segment directory, created if it does not exist
+	 * @param bufferSize The ring capacity in records, rounded up to a power of 2
+	 * @param segmentSize The segment size in bytes
+	 * @param maxSegments The number of segments kept
+	 * @throws IOException thrown if the directory or first segment cannot be created
+	 */
+	protected CookieAuditLog(final File directory, final int bufferSize, final int segmentSize, final int maxSegments) throws IOException {
+		if(bufferSize < 1) throw new IllegalArgumentException("Invalid buffer size [" + bufferSize + "]");
+		if(segmentSize < RECORD_SIZE * 2) throw new IllegalArgumentException("Invalid segment size [" + segmentSize + "]");
+		if(maxSegments < 1) throw new IllegalArgumentException("Invalid segment count [" + maxSegments + "]");
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Failed to create audit log directory [" + directory + "]");
+		int size = 1;
+		while(size < bufferSize) size <<= 1;
+		capacity = size;
+		mask = size - 1;
+		ring = new byte[size * RECORD_SIZE];
+		published = new AtomicLongArray(size);
+		this.directory = directory;
+		this.segmentRecords = (segmentSize / RECORD_SIZE) - 1;
+		this.maxSegments = maxSegments;
+		final File[] existing = listSegments(directory);
+		segments.addAll(Arrays.asList(existing));
+		nextSegment = existing.length==0 ? 1 : segmentNumber(existing[existing.length-1]) + 1;
+		roll();
+		writer = new Thread(this, "CookieAuditLogWriter");
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Returns the segment files in the passed directory, oldest first
+	 * @param directory The directory
+	 * @return the segment files
+	 */
+	public static File[] listSegments(final File directory) {
+		final File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && segmentNumber(name) > 0;
+			}
+		});
+		if(files==null) return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static int segmentNumber(final File file) {
+		return segmentNumber(file.getName());
+	}
+
+	private static int segmentNumber(final String name) {
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Records a cookie added through the cookie API
+	 * @param op The op
+	 * @param name The cookie name
+	 * @param contextPath The context path, or null
+	 * @param path The cookie path, or null
+	 * @param added The {@link SetCookieScanner} attribute bits the valve added
+	 * @param sameSite The SameSite the valve added, or null
+	 * @return true if the record was published, false if it was dropped
+	 */
+	public boolean cookie(final int op, final String name, final String contextPath, final String path, final int added, final SameSite sameSite) {
+		final long seq = claim();
+		if(seq < 0) return false;
+		final int off = (int)(seq & mask) * RECORD_SIZE;
+		header(off, op, added, sameSite);
+		int truncated = put(name, off, NAME, NAME_LEN, NAME_MAX, 1);
+		truncated |= put(contextPath, off, CONTEXT, CONTEXT_LEN, CONTEXT_MAX, 2);
+		truncated |= put(path, off, PATH, PATH_LEN, PATH_MAX, 4);
+		ring[off + TRUNCATED] = (byte)truncated;
+		published.lazySet((int)(seq & mask), seq + 1);
+		return true;
+	}
+
+	/**
+	 * Records a Set-Cookie header value held as ISO-8859-1 bytes. The cookie name and path are read from the value.
+	 * @param op The op
+	 * @param b The buffer holding the value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 * @param contextPath The context path, or null
+	 * @param added The {@link SetCookieScanner} attribute bits the valve added
+	 * @param sameSite The SameSite the valve added, or null
+	 * @return true if the record was published, false if it was dropped
+	 */
+	public boolean header(final int op, final byte[] b, final int start, final int end, final String contextPath, final int added, final SameSite sameSite) {
+		final long seq = claim();
+		if(seq < 0) return false;
+		final int off = (int)(seq & mask) * RECORD_SIZE;
+		header(off, op, added, sameSite);
+		final int nameStart = SetCookieScanner.nameStart(b, start, end);
+		int truncated = put(b, nameStart, SetCookieScanner.nameEnd(b, nameStart, end), off, NAME, NAME_LEN, NAME_MAX, 1);
+		truncated |= put(contextPath, off, CONTEXT, CONTEXT_LEN, CONTEXT_MAX, 2);
+		final long pathValue = SetCookieScanner.pathValue(b, start, end);
+		if(pathValue==-1L) ring[off + PATH_LEN] = 0;
+		else truncated |= put(b, (int)(pathValue >>> 32), (int)pathValue, off, PATH, PATH_LEN, PATH_MAX, 4);
+		ring[off + TRUNCATED] = (byte)truncated;
+		published.lazySet((int)(seq & mask), seq + 1);
+		return true;
+	}
+
+	/**
+	 * Claims the next ring slot
+	 * @return the claimed sequence or -1 if the ring is full
+	 */
+	private long claim() {
+		for(;;) {
+			final long t = tail.get();
+			if(t - head >= capacity) {
+				dropped.incrementAndGet();
+				return -1L;
+			}
+			if(tail.compareAndSet(t, t + 1)) return t;
+		}
+	}
+
+	private void header(final int off, final int op, final int added, final SameSite sameSite) {
+		final long ts = System.currentTimeMillis();
+		for(int i = 0; i < 8; i++) ring[off + TIMESTAMP + i] = (byte)(ts >>> (56 - (i * 8)));
+		ring[off + OP] = (byte)op;
+		ring[off + ADDED] = (byte)added;
+		ring[off + SAME_SITE] = (byte)(sameSite==null ? 0 : sameSite.ordinal() + 1);
+	}
+
+	private int put(final String s, final int off, final int field, final int lenField, final int max, final int flag) {
+		if(s==null) {
+			ring[off + lenField] = 0;
+			return 0;
+		}
+		final int len = Math.min(s.length(), max);
+		final int pos = off + field;
+		for(int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			ring[pos + i] = c > 255 ? (byte)'?' : (byte)c;
+		}
+		ring[off + lenField] = (byte)len;
+		return s.length() > max ? flag : 0;
+	}
+
+	private int put(final byte[] b, final int start, final int end, final int off, final int field, final int lenField, final int max, final int flag) {
+		final int len = Math.min(end - start, max);
+		System.arraycopy(b, start, ring, off + field, len);
+		ring[off + lenField] = (byte)len;
+		return end - start > max ? flag : 0;
+	}
+
+	/**
+	 * The writer loop
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(running) {
+			if(drain()==0) LockSupport.parkNanos(this, IDLE_NANOS);
+		}
+		drain();
+	}
+
+	/**
+	 * Writes all published records to the current segment. While no segment is open, the roll is retried
+	 * at most once every {@link #ROLL_RETRY_NANOS} and records are dropped in between.
+	 * @return the number of records drained
+	 */
+	private int drain() {
+		long h = head;
+		int n = 0;
+		for(;;) {
+			final int idx = (int)(h & mask);
+			if(published.get(idx)!=h + 1) break;
+			if(segment==null ? System.nanoTime() - rollRetryAt >= 0 : !segment.hasRemaining()) {
+				try {
+					roll();
+					if(rollFailed) {
+						rollFailed = false;
+						log.info("Cookie audit log in [{}] resumed with segment [{}]", directory, segmentFile);
+					}
+				} catch (Exception ex) {
+					rollRetryAt = System.nanoTime() + ROLL_RETRY_NANOS;
+					if(!rollFailed) {
+						rollFailed = true;
+						log.error("Failed to roll the cookie audit log in [{}]. Records will be dropped until a retry succeeds.", directory, ex);
+					} else {
+						log.debug("Retry of the cookie audit log roll in [{}] failed", directory, ex);
+					}
+				}
+			}
+			if(segment!=null) {
+				segment.put(ring, idx * RECORD_SIZE, RECORD_SIZE);
+				n++;
+			} else {
+				dropped.incrementAndGet();
+			}
+			head = ++h;
+		}
+		if(n > 0) written.addAndGet(n);
+		return n;
+	}
+
+	/**
+	 * Starts the next segment, deleting the oldest beyond the retention.
+	 * The full segment is not forced: the OS writes it back in its own time, so a crash of the JVM loses nothing
+	 * and the writer never stalls on the disk. Only {@link #close()} forces.
+	 * @throws IOException thrown if the new segment cannot be created
+	 */
+	private void roll() throws IOException {
+		segment = null;
+		final File file = new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, nextSegment, SEGMENT_SUFFIX));
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long)(segmentRecords + 1) * RECORD_SIZE);
+			mb.putInt(MAGIC).putShort(VERSION).putShort((short)RECORD_SIZE).putLong(System.currentTimeMillis()).putInt(nextSegment);
+			mb.position(RECORD_SIZE);
+			segment = mb;
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+		segmentFile = file;
+		segments.addLast(file);
+		nextSegment++;
+		while(segments.size() > maxSegments) {
+			final File oldest = segments.removeFirst();
+			if(!oldest.delete()) log.warn("Failed to delete cookie audit segment [{}]", oldest);
+		}
+	}
+
+	/**
+	 * Stops the writer, draining the records published so far, and forces the current segment
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException iex) {
+			Thread.currentThread().interrupt();
+		}
+		if(segment!=null) segment.force();
+	}
+
+	/**
+	 * Returns the number of records dropped because the ring was full or no segment was open
+	 * @return the dropped record count
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of records written to segments
+	 * @return the written record count
+	 */
+	public long getWritten() {
+		return written.get();
+	}
+
+	/**
+	 * Returns the number of records published but not yet written
+	 * @return the pending record count
+	 */
+	public long getPending() {
+		return Math.max(0L, tail.get() - head);
+	}
+
+	/**
+	 * Returns the ring capacity
+	 * @return the ring capacity in records
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the segment directory
+	 * @return the segment directory
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the current segment file
+	 * @return the current segment file
+	 */
+	public File getSegmentFile() {
+		return segmentFile;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CookieAuditLog [" + directory + ", capacity:" + capacity + ", segmentRecords:" + segmentRecords + ", segments:" + maxSegments + "]";
+	}
+}
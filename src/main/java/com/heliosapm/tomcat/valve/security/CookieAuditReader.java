@@ -0,0 +1,160 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * <p>Title: CookieAuditReader</p>
+ * <p>Description: Decodes {@link CookieAuditLog} segments to text, one line per record. Arguments are segment files
+ * or directories, whose segments are read oldest first:</p>
+ * <pre>
+ *   java -cp icc.jar com.heliosapm.tomcat.valve.security.CookieAuditReader /var/log/tomcat/cookie-audit
+ * </pre>
+ * <p>Each line reads, e.g.:</p>
+ * <pre>
+ *   2026-10-16T09:30:01.123+0000 op=cookie name=JSESSIONID context=/shop path=/shop added=secure,httponly samesite=Lax
+ * </pre>
+ * <p>Truncated fields end with <b><code>~</code></b>.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieAuditReader</code></p>
+ */
+
+public class CookieAuditReader {
+	/** The op names indexed by op */
+	private static final String[] OPS = {"?", "cookie", "session", "header", "commit"};
+
+	/** The timestamp format */
+	private final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+	/** The output */
+	private final PrintStream out;
+
+	/**
+	 * Decodes the segments named on the command line to stdout
+	 * @param args Segment files and directories
+	 * @throws IOException thrown if a segment cannot be read
+	 */
+	public static void main(final String[] args) throws IOException {
+		if(args.length==0) {
+			System.err.println("Usage: java " + CookieAuditReader.class.getName() + " <segment file or directory> ...");
+			System.exit(1);
+		}
+		final CookieAuditReader reader = new CookieAuditReader(System.out);
+		long records = 0;
+		for(String arg: args) {
+			final File f = new File(arg);
+			if(f.isDirectory()) {
+				for(File seg: CookieAuditLog.listSegments(f)) records += reader.read(seg);
+			} else {
+				records += reader.read(f);
+			}
+		}
+		System.err.println("Records: " + records);
+	}
+
+	/**
+	 * Creates a new CookieAuditReader
+	 * @param out The stream to write decoded records to
+	 */
+	public CookieAuditReader(final PrintStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Decodes one segment
+	 * @param file The segment file
+	 * @return the number of records decoded
+	 * @throws IOException thrown if the segment cannot be read or is not a segment
+	 */
+	public long read(final File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(mb.remaining() < CookieAuditLog.RECORD_SIZE || mb.getInt(0)!=CookieAuditLog.MAGIC) throw new IOException("Not a cookie audit segment [" + file + "]");
+			final short version = mb.getShort(4);
+			if(version!=CookieAuditLog.VERSION) throw new IOException("Unsupported segment version [" + version + "] in [" + file + "]");
+			final int recordSize = mb.getShort(6);
+			final byte[] record = new byte[recordSize];
+			final StringBuilder b = new StringBuilder(256);
+			long records = 0;
+			for(int pos = recordSize; pos + recordSize <= mb.limit(); pos += recordSize) {
+				mb.position(pos);
+				mb.get(record);
+				final long ts = mb.getLong(pos + CookieAuditLog.TIMESTAMP);
+				if(ts==0L) break;
+				b.setLength(0);
+				out.println(decode(record, ts, b));
+				records++;
+			}
+			return records;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Decodes one record
+	 * @param r The record
+	 * @param ts The record timestamp
+	 * @param b The buffer to decode into
+	 * @return the buffer
+	 */
+	protected StringBuilder decode(final byte[] r, final long ts, final StringBuilder b) {
+		final int op = r[CookieAuditLog.OP] & 0xff;
+		final int added = r[CookieAuditLog.ADDED] & 0xff;
+		final int sameSite = r[CookieAuditLog.SAME_SITE] & 0xff;
+		final int truncated = r[CookieAuditLog.TRUNCATED] & 0xff;
+		b.append(format.format(new Date(ts)));
+		b.append(" op=").append(op < OPS.length ? OPS[op] : String.valueOf(op));
+		b.append(" name=");
+		field(r, CookieAuditLog.NAME, r[CookieAuditLog.NAME_LEN], (truncated & 1)!=0, b);
+		b.append(" context=");
+		field(r, CookieAuditLog.CONTEXT, r[CookieAuditLog.CONTEXT_LEN], (truncated & 2)!=0, b);
+		b.append(" path=");
+		field(r, CookieAuditLog.PATH, r[CookieAuditLog.PATH_LEN], (truncated & 4)!=0, b);
+		b.append(" added=");
+		final int mark = b.length();
+		if((added & SetCookieScanner.SECURE)!=0) b.append("secure,");
+		if((added & SetCookieScanner.HTTP_ONLY)!=0) b.append("httponly,");
+		if((added & SetCookieScanner.SAME_SITE)!=0) b.append("samesite,");
+		if(b.length()==mark) b.append('-');
+		else b.setLength(b.length() - 1);
+		if(sameSite > 0 && sameSite <= SameSite.values().length) b.append(" samesite=").append(SameSite.values()[sameSite - 1].value);
+		return b;
+	}
+
+	private static void field(final byte[] r, final int off, final byte len, final boolean truncated, final StringBuilder b) {
+		final int n = len & 0xff;
+		if(n==0) {
+			b.append('-');
+			return;
+		}
+		for(int i = 0; i < n; i++) b.append((char)(r[off + i] & 0xff));
+		if(truncated) b.append('~');
+	}
+}
@@ -0,0 +1,50 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: CookieBudgetAction</p>
+ * <p>Description: Enumerates what a {@link WrappedResponse} does with a cookie that would take the response over its cookie budget</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieBudgetAction</code></p>
+ */
+
+public enum CookieBudgetAction {
+	/** Drops the cookie; later cookies that still fit are added */
+	DROP,
+	/** Drops the cookie and every cookie after it, so the response keeps the cookies set first */
+	TRUNCATE,
+	/** Adds the cookie anyway and logs a warning once per response */
+	LOG;
+
+	/**
+	 * Decodes the passed name to a CookieBudgetAction
+	 * @param name The action name (case insensitive)
+	 * @return the decoded CookieBudgetAction
+	 */
+	public static CookieBudgetAction decode(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty");
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid CookieBudgetAction name [" + name + "]");
+		}
+	}
+}
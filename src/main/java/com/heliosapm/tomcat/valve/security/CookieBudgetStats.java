@@ -0,0 +1,120 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Title: CookieBudgetStats</p>
+ * <p>Description: Per context distributions of the Set-Cookie bytes each response carried, with the number of responses
+ * that went over the cookie budget and the number of cookies dropped. Each context's histogram is a {@link LatencyHistogram}
+ * over bytes rather than nanoseconds, striped per thread in a {@link ThreadCells}, so recording takes no lock once a
+ * context has been seen.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieBudgetStats</code></p>
+ */
+
+public final class CookieBudgetStats {
+	/** The slot counting responses over budget */
+	private static final int EXCEEDED = LatencyHistogram.WIDTH;
+	/** The slot counting dropped cookies */
+	private static final int DROPPED = EXCEEDED + 1;
+	/** The slots per context */
+	private static final int WIDTH = DROPPED + 1;
+
+	/** The distributions keyed by context path */
+	private final ConcurrentMap<String, ThreadCells> contexts = new ConcurrentHashMap<String, ThreadCells>();
+
+	/**
+	 * Records a response that set cookies
+	 * @param context The context path, or null
+	 * @param bytes The Set-Cookie bytes the response carried
+	 * @param exceeded true if the response went over budget
+	 * @param dropped The number of cookies dropped
+	 */
+	public void record(final String context, final int bytes, final boolean exceeded, final int dropped) {
+		final String key = context==null ? "" : context;
+		ThreadCells cells = contexts.get(key);
+		if(cells==null) {
+			final ThreadCells created = new ThreadCells(WIDTH);
+			cells = contexts.putIfAbsent(key, created);
+			if(cells==null) cells = created;
+		}
+		final AtomicLongArray cell = cells.cell();
+		LatencyHistogram.record(cell, 0, bytes);
+		if(exceeded) ThreadCells.add(cell, EXCEEDED, 1L);
+		if(dropped > 0) ThreadCells.add(cell, DROPPED, dropped);
+	}
+
+	/**
+	 * Returns the number of contexts seen
+	 * @return the number of contexts
+	 */
+	public int getContextCount() {
+		return contexts.size();
+	}
+
+	/**
+	 * Renders one line per context, the worst p99 first
+	 * @return the report
+	 */
+	public String report() {
+		final List<Object[]> rows = new ArrayList<Object[]>();
+		for(Map.Entry<String, ThreadCells> e: contexts.entrySet()) {
+			final long[] s = e.getValue().sums();
+			rows.add(new Object[]{e.getKey(), s, LatencyHistogram.percentile(s, 0, 99d)});
+		}
+		Collections.sort(rows, new Comparator<Object[]>() {
+			@Override
+			public int compare(final Object[] a, final Object[] b) {
+				final long x = (Long)a[2], y = (Long)b[2];
+				return x < y ? 1 : x > y ? -1 : 0;
+			}
+		});
+		final StringBuilder b = new StringBuilder();
+		for(Object[] row: rows) {
+			final long[] s = (long[])row[1];
+			b.append(((String)row[0]).isEmpty() ? "/" : (String)row[0])
+				.append(" responses=").append(LatencyHistogram.count(s, 0))
+				.append(" p50=").append(LatencyHistogram.percentile(s, 0, 50d))
+				.append(" p99=").append(row[2])
+				.append(" max=").append(LatencyHistogram.max(s, 0))
+				.append(" mean=").append(LatencyHistogram.mean(s, 0))
+				.append(" overBudget=").append(s[EXCEEDED])
+				.append(" dropped=").append(s[DROPPED])
+				.append('\n');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Forgets every context
+	 */
+	public void reset() {
+		contexts.clear();
+	}
+}
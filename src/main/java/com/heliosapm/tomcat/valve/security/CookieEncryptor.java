@@ -0,0 +1,423 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.Cookies;
+import org.apache.tomcat.util.http.ServerCookie;
+
+/**
+ * <p>Title: CookieEncryptor</p>
+ * <p>Description: Encrypts the values of selected cookies with AES-GCM and decrypts them when they come back.
+ * An encrypted value is the unpadded base64url encoding of <b><code>version | nonce | ciphertext | tag</code></b>, where the
+ * one byte version identifies the key. The cookie name and the version are authenticated as associated data, so a value
+ * cannot be moved to another cookie. New values are encrypted with the first (current) key; values encrypted with any
+ * configured key decrypt, so a key can be rotated by prepending its successor and dropping it later.</p>
+ * <p>Each thread keeps its own {@link Cipher}. Nonces are a random per thread prefix, drawn once, followed by a per thread
+ * counter, so generating one takes no lock and no call to the shared random source. Requires a JRE with AES/GCM (Java 8).
+ * The valve targets Java 6, so the Java 7 cipher APIs are looked up when the class loads, and compiling an encryptor on a JRE
+ * without them fails with an {@link IllegalArgumentException} naming the JRE, rather than a {@link LinkageError} on the
+ * first request. Instances are immutable and thread safe.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieEncryptor</code></p>
+ */
+
+public final class CookieEncryptor {
+	/** The cipher transformation */
+	public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+	/** The nonce length in bytes */
+	public static final int NONCE_LENGTH = 12;
+	/** The authentication tag length in bytes */
+	public static final int TAG_LENGTH = 16;
+	/** The bytes added to every value: the key version, the nonce and the tag */
+	public static final int OVERHEAD = 1 + NONCE_LENGTH + TAG_LENGTH;
+	/** Why the JRE cannot run the encryptor, or null if it can */
+	private static final String UNAVAILABLE = unavailable();
+	/** The source of the per thread nonce prefixes */
+	private static final SecureRandom RANDOM = new SecureRandom();
+	/** The per thread ciphers, nonce state and scratch buffers */
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/** The normalized names of the encrypted cookies */
+	private final String spec;
+	/** The names of the encrypted cookies */
+	private final String[] names;
+	/** The keys, the current key first */
+	private final Key[] keys;
+
+	/**
+	 * Compiles an encryptor
+	 * @param names The comma separated names of the cookies to encrypt
+	 * @param keys The comma separated <b><code>version:secret</code></b> keys, the current key first, with versions from 0 to 255
+	 * and base64 or base64url AES secrets of 16, 24 or 32 bytes
+	 * @param previous The encryptor this one replaces, whose keys are reused if unchanged, or null
+	 * @return the encryptor, or null if no cookies are encrypted
+	 * @throws IllegalArgumentException thrown if a key is invalid or AES-GCM is not available
+	 */
+	public static CookieEncryptor compile(final String names, final String keys, final CookieEncryptor previous) {
+		final Set<String> ns = new LinkedHashSet<String>();
+		if(names!=null) {
+			for(String n: names.split(",")) {
+				if(!n.trim().isEmpty()) ns.add(n.trim());
+			}
+		}
+		if(UNAVAILABLE!=null) {
+			if(ns.isEmpty()) return null;
+			throw new IllegalArgumentException("Cannot encrypt cookies " + ns + ": " + UNAVAILABLE);
+		}
+		final List<Key> ks = new ArrayList<Key>();
+		if(keys!=null) {
+			for(String k: keys.split(",")) {
+				if(k.trim().isEmpty()) continue;
+				final Key key = key(k.trim(), previous);
+				for(Key other: ks) {
+					if(other.version==key.version) throw new IllegalArgumentException("Duplicate encryption key version [" + (key.version & 0xFF) + "]");
+				}
+				ks.add(key);
+			}
+		}
+		if(ns.isEmpty()) return null;
+		if(ks.isEmpty()) throw new IllegalArgumentException("Encrypted cookies " + ns + " require at least one encryption key");
+		return new CookieEncryptor(ns.toArray(new String[ns.size()]), ks.toArray(new Key[ks.size()]));
+	}
+
+	/**
+	 * Parses a key, reusing the previous encryptor's key if it is the same
+	 * @param spec The <b><code>version:secret</code></b> key
+	 * @param previous The previous encryptor or null
+	 * @return the key
+	 */
+	private static Key key(final String spec, final CookieEncryptor previous) {
+		final int colon = spec.indexOf(':');
+		if(colon < 1) throw new IllegalArgumentException("Invalid encryption key, expected version:secret [" + CookieSigner.mask(spec) + "]");
+		final int version;
+		try {
+			version = Integer.parseInt(spec.substring(0, colon).trim());
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid encryption key version [" + spec.substring(0, colon).trim() + "]");
+		}
+		if(version < 0 || version > 255) throw new IllegalArgumentException("Encryption key version out of range [" + version + "]");
+		final byte[] secret;
+		try {
+			secret = Base64Url.decode(spec.substring(colon + 1).trim());
+		} catch (IllegalArgumentException iae) {
+			throw new IllegalArgumentException("Invalid secret for encryption key [" + version + "]: " + iae.getMessage());
+		}
+		if(secret.length!=16 && secret.length!=24 && secret.length!=32) {
+			throw new IllegalArgumentException("Encryption key [" + version + "] must be 16, 24 or 32 bytes, not " + secret.length);
+		}
+		if(previous!=null) {
+			for(Key k: previous.keys) {
+				if(k.version==(byte)version && MessageDigest.isEqual(k.secret.getEncoded(), secret)) return k;
+			}
+		}
+		final Key key = new Key((byte)version, new SecretKeySpec(secret, "AES"));
+		// fails fast if AES-GCM or the key size is not available. The nonce comes from the thread's sequence,
+		// since the provider refuses to init the same cipher twice with the same key and nonce
+		final Scratch s = SCRATCH.get();
+		final byte[] nonce = new byte[NONCE_LENGTH];
+		s.nonce(nonce, 0);
+		try {
+			s.cipher().init(Cipher.ENCRYPT_MODE, key.secret, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalArgumentException("Cannot use encryption key [" + version + "]: " + gse.getMessage(), gse);
+		}
+		return key;
+	}
+
+	/**
+	 * Looks up the Java 7 cipher APIs the encryptor calls: {@link GCMParameterSpec} and {@link Cipher#updateAAD(byte[], int, int)}
+	 * @return why they cannot be used, or null if they are present
+	 */
+	private static String unavailable() {
+		try {
+			Class.forName("javax.crypto.spec.GCMParameterSpec");
+			Cipher.class.getMethod("updateAAD", byte[].class, int.class, int.class);
+			return null;
+		} catch (Exception ex) {
+			return "AES-GCM cookie encryption requires Java 7 or later, this JRE is " + System.getProperty("java.version") + " (" + ex + ")";
+		} catch (LinkageError le) {
+			return "AES-GCM cookie encryption requires Java 7 or later, this JRE is " + System.getProperty("java.version") + " (" + le + ")";
+		}
+	}
+
+	private CookieEncryptor(final String[] names, final Key[] keys) {
+		this.names = names;
+		this.keys = keys;
+		final StringBuilder b = new StringBuilder();
+		for(String n: names) {
+			if(b.length() > 0) b.append(", ");
+			b.append(n);
+		}
+		spec = b.toString();
+	}
+
+	/**
+	 * Indicates if the named cookie is encrypted
+	 * @param name The cookie name
+	 * @return true if encrypted
+	 */
+	public boolean isEncrypted(final String name) {
+		for(int i = 0; i < names.length; i++) {
+			if(names[i].equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if the named cookie is encrypted, without decoding the name
+	 * @param name The cookie name
+	 * @return true if encrypted
+	 */
+	public boolean isEncrypted(final MessageBytes name) {
+		for(int i = 0; i < names.length; i++) {
+			if(name.equals(names[i])) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Encrypts a cookie value with the current key
+	 * @param name The cookie name
+	 * @param value The cookie value
+	 * @return the encrypted value
+	 */
+	public String encrypt(final String name, final String value) {
+		final Key key = keys[0];
+		final Scratch s = SCRATCH.get();
+		final String v = value==null ? "" : value;
+		final int vlen = v.length();
+		final byte[] in = s.input(Math.max(vlen, name.length()));
+		final byte[] out = s.output(OVERHEAD + vlen);
+		out[0] = key.version;
+		s.nonce(out, 1);
+		final Cipher cipher = s.cipher();
+		final int len;
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key.secret, new GCMParameterSpec(TAG_LENGTH * 8, out, 1, NONCE_LENGTH));
+			cipher.updateAAD(in, 0, latin1(name, in));
+			cipher.updateAAD(out, 0, 1);
+			len = 1 + NONCE_LENGTH + cipher.doFinal(in, 0, latin1(v, in), out, 1 + NONCE_LENGTH);
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalStateException("Failed to encrypt cookie [" + name + "]", gse);
+		}
+		final char[] chars = s.chars(Base64Url.encodedLength(len));
+		return new String(chars, 0, Base64Url.encode(out, 0, len, chars, 0));
+	}
+
+	/**
+	 * Decrypts an encrypted cookie value with the key its version names. If it decrypts, the value is replaced with the
+	 * plaintext, so the application sees the value it set. The original bytes, which belong to the request's Cookie header,
+	 * are left untouched.
+	 * @param name The cookie name
+	 * @param value The encrypted cookie value, which is only changed if it decrypts
+	 * @return true if the value decrypted and authenticated
+	 */
+	public boolean decrypt(final MessageBytes name, final MessageBytes value) {
+		if(name.isNull() || value.isNull()) return false;
+		if(name.getType()!=MessageBytes.T_BYTES) name.toBytes();
+		if(value.getType()!=MessageBytes.T_BYTES) value.toBytes();
+		final ByteChunk v = value.getByteChunk();
+		if(v.getLength() < Base64Url.encodedLength(OVERHEAD)) return false;
+		final Scratch s = SCRATCH.get();
+		final byte[] buf = s.output(Base64Url.decodedLength(v.getLength()));
+		final int len = Base64Url.decode(v.getBytes(), v.getStart(), v.getLength(), buf, 0);
+		if(len < OVERHEAD) return false;
+		final Key key = key(buf[0]);
+		if(key==null) return false;
+		final ByteChunk n = name.getByteChunk();
+		final byte[] plain = new byte[len - OVERHEAD];
+		final Cipher cipher = s.cipher();
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, key.secret, new GCMParameterSpec(TAG_LENGTH * 8, buf, 1, NONCE_LENGTH));
+			cipher.updateAAD(n.getBytes(), n.getStart(), n.getLength());
+			cipher.updateAAD(buf, 0, 1);
+			cipher.doFinal(buf, 1 + NONCE_LENGTH, len - 1 - NONCE_LENGTH, plain, 0);
+		} catch (GeneralSecurityException gse) {
+			return false;
+		}
+		value.setBytes(plain, 0, plain.length);
+		return true;
+	}
+
+	/**
+	 * Decrypts the encrypted cookies of a request in place.
+	 * Must run before anything parses the request's cookies.
+	 * @param cookies The request's parsed cookies
+	 * @param failed The names and raw values of cookies that already failed, in pairs, or null
+	 * @return the failed list with the cookies that failed to decrypt added, or null if none have failed
+	 */
+	public List<String> decrypt(final Cookies cookies, final List<String> failed) {
+		List<String> f = failed;
+		final int count = cookies.getCookieCount();
+		for(int i = 0; i < count; i++) {
+			final ServerCookie sc = cookies.getCookie(i);
+			if(!isEncrypted(sc.getName()) || decrypt(sc.getName(), sc.getValue())) continue;
+			if(f==null) f = new ArrayList<String>();
+			f.add(sc.getName().toString());
+			f.add(sc.getValue().toString());
+		}
+		return f;
+	}
+
+	private Key key(final byte version) {
+		for(int k = 0; k < keys.length; k++) {
+			if(keys[k].version==version) return keys[k];
+		}
+		return null;
+	}
+
+	private static int latin1(final String s, final byte[] buf) {
+		final int len = s.length();
+		for(int i = 0; i < len; i++) buf[i] = (byte)s.charAt(i);
+		return len;
+	}
+
+	/**
+	 * Returns the normalized names of the encrypted cookies
+	 * @return the comma separated names
+	 */
+	public String getSpec() {
+		return spec;
+	}
+
+	/**
+	 * Returns the version of the key new values are encrypted with
+	 * @return the current key version
+	 */
+	public int getCurrentKeyVersion() {
+		return keys[0].version & 0xFF;
+	}
+
+	/**
+	 * Returns the versions of the keys values are decrypted with
+	 * @return the key versions, the current key first
+	 */
+	public int[] getKeyVersions() {
+		final int[] versions = new int[keys.length];
+		for(int i = 0; i < keys.length; i++) versions[i] = keys[i].version & 0xFF;
+		return versions;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CookieEncryptor [" + spec + ", keys " + Arrays.toString(getKeyVersions()) + "]";
+	}
+
+	/**
+	 * <p>Title: Key</p>
+	 * <p>Description: A versioned AES key</p>
+	 */
+	private static final class Key {
+		/** The key version */
+		final byte version;
+		/** The secret */
+		final SecretKeySpec secret;
+
+		Key(final byte version, final SecretKeySpec secret) {
+			this.version = version;
+			this.secret = secret;
+		}
+	}
+
+	/**
+	 * <p>Title: Scratch</p>
+	 * <p>Description: A thread's cipher, nonce state and buffers</p>
+	 */
+	private static final class Scratch {
+		/** The cipher, created on first use */
+		private Cipher cipher = null;
+		/** The random nonce prefix */
+		private long prefix = RANDOM.nextLong();
+		/** The nonce counter */
+		private int counter = 0;
+		/** The plaintext and associated data */
+		private byte[] input = new byte[256];
+		/** The binary value */
+		private byte[] output = new byte[512];
+		/** The encoded value */
+		private char[] chars = new char[512];
+
+		Cipher cipher() {
+			if(cipher==null) {
+				try {
+					cipher = Cipher.getInstance(TRANSFORMATION);
+				} catch (GeneralSecurityException gse) {
+					throw new IllegalArgumentException(TRANSFORMATION + " is not available in this JRE", gse);
+				}
+			}
+			return cipher;
+		}
+
+		/**
+		 * Writes the next nonce, drawing a new prefix when the counter wraps
+		 * @param buf The buffer to write to
+		 * @param pos The offset to write at
+		 */
+		void nonce(final byte[] buf, final int pos) {
+			final long p = prefix;
+			final int c = counter++;
+			if(counter==0) prefix = RANDOM.nextLong();
+			for(int i = 0; i < 8; i++) buf[pos + i] = (byte)(p >>> (56 - i * 8));
+			buf[pos + 8] = (byte)(c >>> 24);
+			buf[pos + 9] = (byte)(c >>> 16);
+			buf[pos + 10] = (byte)(c >>> 8);
+			buf[pos + 11] = (byte)c;
+		}
+
+		byte[] input(final int len) {
+			if(input.length < len) input = new byte[Math.max(input.length * 2, len)];
+			return input;
+		}
+
+		byte[] output(final int len) {
+			if(output.length < len) output = new byte[Math.max(output.length * 2, len)];
+			return output;
+		}
+
+		char[] chars(final int len) {
+			if(chars.length < len) chars = new char[Math.max(chars.length * 2, len)];
+			return chars;
+		}
+	}
+}
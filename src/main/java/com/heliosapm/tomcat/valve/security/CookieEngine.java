@@ -0,0 +1,48 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: CookieEngine</p>
+ * <p>Description: Enumerates the mechanisms {@link SecureCookies} can use to secure outbound cookies</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieEngine</code></p>
+ */
+
+public enum CookieEngine {
+	/** Wraps the catalina response in a {@link WrappedResponse} and intercepts the cookie methods */
+	WRAPPER,
+	/** Rewrites the coyote response's Set-Cookie headers at commit using a {@link SetCookieCommitHook} */
+	HEADER;
+
+	/**
+	 * Decodes the passed name to a CookieEngine
+	 * @param name The engine name (case insensitive)
+	 * @return the decoded CookieEngine
+	 */
+	public static CookieEngine decode(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty");
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid CookieEngine name [" + name + "]");
+		}
+	}
+}
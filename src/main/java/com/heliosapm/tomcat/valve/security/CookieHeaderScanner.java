@@ -0,0 +1,152 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * <p>Title: CookieHeaderScanner</p>
+ * <p>Description: Allocation free validator for the raw <b><code>Cookie</code></b> request headers, run before Tomcat parses
+ * them. Enforces limits on the size of each cookie (name and value), the number of cookies and the total header size,
+ * and rejects control characters and unterminated quoted values. Cookies are separated by <b><code>;</code></b> only,
+ * since browsers send commas inside version 0 values; <b><code>$</code></b> attributes of version 1 headers are not
+ * counted as cookies.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieHeaderScanner</code></p>
+ */
+
+public final class CookieHeaderScanner {
+	/** The headers are valid */
+	public static final int OK = 0;
+	/** A header contains a control character or an unterminated quoted value */
+	public static final int MALFORMED = 1;
+	/** A cookie is larger than the size limit */
+	public static final int COOKIE_TOO_LARGE = 2;
+	/** There are more cookies than the count limit */
+	public static final int TOO_MANY_COOKIES = 3;
+	/** The headers are larger than the header size limit */
+	public static final int HEADER_TOO_LARGE = 4;
+	/** The names of the results, indexed by result */
+	private static final String[] REASONS = {"ok", "malformed", "cookieTooLarge", "tooManyCookies", "headerTooLarge"};
+
+	/** The header name */
+	public static final String COOKIE = "Cookie";
+
+	private CookieHeaderScanner() {}
+
+	/**
+	 * Returns the name of a result
+	 * @param result The result
+	 * @return the name
+	 */
+	public static String reason(final int result) {
+		return REASONS[result];
+	}
+
+	/**
+	 * Returns the number of distinct results
+	 * @return the number of results
+	 */
+	public static int reasons() {
+		return REASONS.length;
+	}
+
+	/**
+	 * Validates all the Cookie headers of a request
+	 * @param headers The request headers
+	 * @param maxSize The maximum bytes in one cookie's name and value, 0 for no limit
+	 * @param maxCount The maximum number of cookies, 0 for no limit
+	 * @param maxHeaderSize The maximum bytes in all the Cookie headers, 0 for no limit
+	 * @return {@link #OK} or the first violation found
+	 */
+	public static int check(final MimeHeaders headers, final int maxSize, final int maxCount, final int maxHeaderSize) {
+		int count = 0, total = 0;
+		final int n = headers.size();
+		for(int i = 0; i < n; i++) {
+			if(!headers.getName(i).equalsIgnoreCase(COOKIE)) continue;
+			final MessageBytes value = headers.getValue(i);
+			if(value.isNull()) continue;
+			if(value.getType()!=MessageBytes.T_BYTES) value.toBytes();
+			final ByteChunk bc = value.getByteChunk();
+			total += bc.getLength();
+			if(maxHeaderSize > 0 && total > maxHeaderSize) return HEADER_TOO_LARGE;
+			count = scan(bc.getBytes(), bc.getStart(), bc.getEnd(), count, maxSize, maxCount);
+			if(count < 0) return -count;
+		}
+		return OK;
+	}
+
+	/**
+	 * Validates one Cookie header value
+	 * @param b The buffer holding the value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 * @param counted The number of cookies in the preceding headers
+	 * @param maxSize The maximum bytes in one cookie's name and value, 0 for no limit
+	 * @param maxCount The maximum number of cookies, 0 for no limit
+	 * @return the number of cookies counted so far, or the negated violation
+	 */
+	public static int scan(final byte[] b, final int start, final int end, final int counted, final int maxSize, final int maxCount) {
+		int count = counted;
+		int i = start;
+		while(i < end) {
+			final byte c = b[i];
+			if(c==';' || c==' ' || c=='\t') {
+				i++;
+				continue;
+			}
+			final int cookieStart = i;
+			while(i < end && b[i]!='=' && b[i]!=';') {
+				if(ctl(b[i])) return -MALFORMED;
+				i++;
+			}
+			if(i < end && b[i]=='=') {
+				i++;
+				while(i < end && (b[i]==' ' || b[i]=='\t')) i++;
+				if(i < end && b[i]=='"') {
+					i++;
+					while(i < end && b[i]!='"') {
+						if(b[i]=='\\' && i + 1 < end) i++;
+						if(ctl(b[i])) return -MALFORMED;
+						i++;
+					}
+					if(i==end) return -MALFORMED;
+					i++;
+				}
+				while(i < end && b[i]!=';') {
+					if(ctl(b[i])) return -MALFORMED;
+					i++;
+				}
+			}
+			if(c=='$') continue;
+			int cookieEnd = i;
+			while(cookieEnd > cookieStart && (b[cookieEnd - 1]==' ' || b[cookieEnd - 1]=='\t')) cookieEnd--;
+			if(maxSize > 0 && cookieEnd - cookieStart > maxSize) return -COOKIE_TOO_LARGE;
+			if(++count > maxCount && maxCount > 0) return -TOO_MANY_COOKIES;
+		}
+		return count;
+	}
+
+	private static boolean ctl(final byte c) {
+		return (c >= 0 && c < 0x20 && c!='\t') || c==0x7F;
+	}
+}
@@ -0,0 +1,106 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: CookiePolicy</p>
+ * <p>Description: The resolved attribute decision for a cookie. There are only a handful of distinct
+ * decisions, so instances are interned and obtained through {@link #of(int, SameSite)}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookiePolicy</code></p>
+ */
+
+public final class CookiePolicy {
+	/** The interned policies indexed by attribute bits and SameSite ordinal + 1 */
+	private static final CookiePolicy[] POLICIES;
+	/** The policy that forces nothing */
+	public static final CookiePolicy NONE;
+
+	static {
+		final int ss = SameSite.values().length + 1;
+		POLICIES = new CookiePolicy[4 * ss];
+		for(int a = 0; a < 4; a++) {
+			POLICIES[a * ss] = new CookiePolicy(a, null);
+			for(SameSite s: SameSite.values()) {
+				POLICIES[a * ss + s.ordinal() + 1] = new CookiePolicy(a | SetCookieScanner.SAME_SITE, s);
+			}
+		}
+		NONE = POLICIES[0];
+	}
+
+	/** The {@link SetCookieScanner} attribute bits this policy forces */
+	private final int attributes;
+	/** The forced SameSite or null */
+	private final SameSite sameSite;
+
+	/**
+	 * Returns the interned policy for the passed attributes
+	 * @param attributes The {@link SetCookieScanner#SECURE} and {@link SetCookieScanner#HTTP_ONLY} bits to force
+	 * @param sameSite The SameSite to force, or null
+	 * @return the policy
+	 */
+	public static CookiePolicy of(final int attributes, final SameSite sameSite) {
+		final int a = attributes & (SetCookieScanner.SECURE | SetCookieScanner.HTTP_ONLY);
+		return POLICIES[a * (SameSite.values().length + 1) + (sameSite==null ? 0 : sameSite.ordinal() + 1)];
+	}
+
+	private CookiePolicy(final int attributes, final SameSite sameSite) {
+		this.attributes = attributes;
+		this.sameSite = sameSite;
+	}
+
+	/**
+	 * Returns the {@link SetCookieScanner} attribute bits this policy forces
+	 * @return the attribute bits
+	 */
+	public int getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Returns the forced SameSite
+	 * @return the forced SameSite or null
+	 */
+	public SameSite getSameSite() {
+		return sameSite;
+	}
+
+	/**
+	 * Returns the SameSite attribute bytes to append, falling back to the passed default
+	 * @param defaultAttr The default SameSite attribute bytes
+	 * @return the SameSite attribute bytes or null
+	 */
+	public byte[] sameSiteAttribute(final byte[] defaultAttr) {
+		return sameSite==null ? defaultAttr : sameSite.attribute();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder("CookiePolicy [");
+		if((attributes & SetCookieScanner.SECURE)!=0) b.append(" secure");
+		if((attributes & SetCookieScanner.HTTP_ONLY)!=0) b.append(" httponly");
+		if(sameSite!=null) b.append(" samesite=").append(sameSite.value);
+		return b.append(" ]").toString();
+	}
+}
@@ -0,0 +1,362 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+
+/**
+ * <p>Title: CookiePolicySet</p>
+ * <p>Description: A compiled set of {@link CookieRule}s. Exact cookie names are held in a hash map,
+ * name prefixes in a character trie and <b><code>*</code></b> rules in a flat list. Resolved decisions
+ * are kept in a bounded, direct mapped cache keyed by the {@link Context} identity and the cookie name,
+ * which can be probed with the name as a String or as ISO-8859-1 bytes without allocating. Entries hold their context
+ * weakly, so an undeployed webapp and its classloader are not kept reachable by a slot that is never overwritten.</p>
+ * <p>Rules are specified as a single string with rules separated by <b><code>;</code></b>, e.g.:</p>
+ * <pre>
+ *   JSESSIONID -&gt; secure,httponly; auth_* -&gt; httponly; * path=/admin -&gt; samesite=Strict
+ * </pre>
+ * <p>All matching rules apply; when more than one forces SameSite, the strictest wins.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookiePolicySet</code></p>
+ */
+
+public class CookiePolicySet {
+	/** The default decision cache size */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+	/** An empty rule array */
+	private static final CookieRule[] NO_RULES = {};
+	/** An empty policy set */
+	public static final CookiePolicySet EMPTY = new CookiePolicySet("", NO_RULES, 1);
+
+	/** The spec this set was compiled from */
+	protected final String spec;
+	/** The compiled rules */
+	protected final CookieRule[] rules;
+	/** The exact name rules */
+	protected final Map<String, CookieRule[]> exact = new HashMap<String, CookieRule[]>();
+	/** The root of the name prefix trie */
+	protected final TrieNode prefixes = new TrieNode();
+	/** The rules that match all names */
+	protected final CookieRule[] wildcards;
+	/** The decision cache */
+	private final CacheEntry[] cache;
+	/** The decision cache index mask */
+	private final int mask;
+	/** The decision cache hit count */
+	private final AtomicLong hits = new AtomicLong(0L);
+	/** The decision cache miss count */
+	private final AtomicLong misses = new AtomicLong(0L);
+
+	/**
+	 * Compiles the passed policy spec
+	 * @param spec The policy spec
+	 * @param cacheSize The decision cache size, rounded up to a power of 2
+	 * @return the compiled policy set
+	 */
+	public static CookiePolicySet compile(final String spec, final int cacheSize) {
+		if(spec==null || spec.trim().isEmpty()) return EMPTY;
+		final List<CookieRule> rules = new ArrayList<CookieRule>();
+		for(String r: spec.split(";")) {
+			if(r.trim().isEmpty()) continue;
+			rules.add(CookieRule.parse(r));
+		}
+		if(rules.isEmpty()) return EMPTY;
+		return new CookiePolicySet(spec.trim(), rules.toArray(new CookieRule[rules.size()]), cacheSize);
+	}
+
+	/**
+	 * Creates a new CookiePolicySet
+	 * @param spec The spec the rules were parsed from
+	 * @param rules The rules
+	 * @param cacheSize The decision cache size, rounded up to a power of 2
+	 */
+	protected CookiePolicySet(final String spec, final CookieRule[] rules, final int cacheSize) {
+		if(cacheSize < 1) throw new IllegalArgumentException("Invalid cache size [" + cacheSize + "]");
+		this.spec = spec;
+		this.rules = rules;
+		final List<CookieRule> all = new ArrayList<CookieRule>();
+		for(CookieRule rule: rules) {
+			if(!rule.isPrefix()) exact.put(rule.getName(), append(exact.get(rule.getName()), rule));
+			else if(rule.getName().isEmpty()) all.add(rule);
+			else prefixes.add(rule.getName(), 0, rule);
+		}
+		wildcards = all.toArray(new CookieRule[all.size()]);
+		int size = 1;
+		while(size < cacheSize) size <<= 1;
+		cache = new CacheEntry[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Indicates if this set has no rules
+	 * @return true if this set has no rules
+	 */
+	public boolean isEmpty() {
+		return rules.length==0;
+	}
+
+	/**
+	 * Resolves the policy for the passed cookie name
+	 * @param context The context the cookie is set in, or null
+	 * @param name The cookie name
+	 * @return the resolved policy
+	 */
+	public CookiePolicy resolve(final Context context, final String name) {
+		if(rules.length==0 || name==null) return CookiePolicy.NONE;
+		final int h = name.hashCode();
+		final CacheEntry e = cache[index(context, h)];
+		if(e!=null && e.isFor(context) && e.hash==h && e.name.equals(name)) {
+			hits.incrementAndGet();
+			return e.policy;
+		}
+		return miss(context, name, h);
+	}
+
+	/**
+	 * Resolves the policy for the passed cookie name held as ISO-8859-1 bytes
+	 * @param context The context the cookie is set in, or null
+	 * @param b The buffer holding the name
+	 * @param start The offset of the first byte of the name
+	 * @param end The offset one past the last byte of the name
+	 * @return the resolved policy
+	 */
+	public CookiePolicy resolve(final Context context, final byte[] b, final int start, final int end) {
+		if(rules.length==0) return CookiePolicy.NONE;
+		int h = 0;
+		for(int i = start; i < end; i++) h = 31 * h + (b[i] & 0xff);
+		final CacheEntry e = cache[index(context, h)];
+		if(e!=null && e.isFor(context) && e.hash==h && e.matches(b, start, end)) {
+			hits.incrementAndGet();
+			return e.policy;
+		}
+		return miss(context, new String(b, start, end - start, SetCookieScanner.ISO_8859_1), h);
+	}
+
+	/**
+	 * Resolves and caches the policy for a name not found in the cache
+	 * @param context The context the cookie is set in, or null
+	 * @param name The cookie name
+	 * @param h The name's hash code
+	 * @return the resolved policy
+	 */
+	private CookiePolicy miss(final Context context, final String name, final int h) {
+		misses.incrementAndGet();
+		final String contextPath;
+		String host = null;
+		if(context!=null) {
+			contextPath = context.getPath()==null ? "" : context.getPath();
+			final Container parent = context.getParent();
+			if(parent!=null && parent.getName()!=null) host = parent.getName().toLowerCase();
+		} else {
+			contextPath = "";
+		}
+		int attributes = 0;
+		SameSite sameSite = null;
+		final CookieRule[] exactRules = exact.get(name);
+		if(exactRules!=null) {
+			for(CookieRule rule: exactRules) {
+				if(!rule.matches(contextPath, host)) continue;
+				attributes |= rule.attributes;
+				if(rule.sameSite!=null) sameSite = rule.sameSite.stricter(sameSite);
+			}
+		}
+		TrieNode node = prefixes;
+		for(int i = 0; node!=null; i++) {
+			for(CookieRule rule: node.rules) {
+				if(!rule.matches(contextPath, host)) continue;
+				attributes |= rule.attributes;
+				if(rule.sameSite!=null) sameSite = rule.sameSite.stricter(sameSite);
+			}
+			node = i < name.length() ? node.child(name.charAt(i)) : null;
+		}
+		for(CookieRule rule: wildcards) {
+			if(!rule.matches(contextPath, host)) continue;
+			attributes |= rule.attributes;
+			if(rule.sameSite!=null) sameSite = rule.sameSite.stricter(sameSite);
+		}
+		final CookiePolicy policy = CookiePolicy.of(attributes, sameSite);
+		cache[index(context, h)] = new CacheEntry(context, name, h, policy);
+		return policy;
+	}
+
+	/**
+	 * Computes the cache index for the passed context and name hash
+	 * @param context The context
+	 * @param h The name hash
+	 * @return the cache index
+	 */
+	private int index(final Context context, final int h) {
+		int x = h ^ (context==null ? 0 : System.identityHashCode(context));
+		x ^= (x >>> 16);
+		return x & mask;
+	}
+
+	private static CookieRule[] append(final CookieRule[] arr, final CookieRule rule) {
+		if(arr==null) return new CookieRule[]{rule};
+		final CookieRule[] n = Arrays.copyOf(arr, arr.length + 1);
+		n[arr.length] = rule;
+		return n;
+	}
+
+	/**
+	 * Returns the spec this set was compiled from
+	 * @return the spec
+	 */
+	public String getSpec() {
+		return spec;
+	}
+
+	/**
+	 * Returns the number of rules in this set
+	 * @return the number of rules
+	 */
+	public int getRuleCount() {
+		return rules.length;
+	}
+
+	/**
+	 * Returns the decision cache size
+	 * @return the decision cache size
+	 */
+	public int getCacheSize() {
+		return cache.length;
+	}
+
+	/**
+	 * Returns the decision cache hit count
+	 * @return the hit count
+	 */
+	public long getCacheHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the decision cache miss count
+	 * @return the miss count
+	 */
+	public long getCacheMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Clears the decision cache and its counters
+	 */
+	public void clearCache() {
+		Arrays.fill(cache, null);
+		hits.set(0L);
+		misses.set(0L);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CookiePolicySet [rules:" + rules.length + ", cache:" + cache.length + "]";
+	}
+
+	/**
+	 * <p>Title: CacheEntry</p>
+	 * <p>Description: An immutable decision cache entry. All fields are final so entries
+	 * are safely published through the plain cache array.</p>
+	 */
+	private static final class CacheEntry {
+		/** The marker held by the entries resolved without a context */
+		private static final WeakReference<Context> NO_CONTEXT = new WeakReference<Context>(null);
+		/** The context, held weakly, or {@link #NO_CONTEXT} for none */
+		final WeakReference<Context> context;
+		final String name;
+		final int hash;
+		final CookiePolicy policy;
+
+		CacheEntry(final Context context, final String name, final int hash, final CookiePolicy policy) {
+			this.context = context==null ? NO_CONTEXT : new WeakReference<Context>(context);
+			this.name = name;
+			this.hash = hash;
+			this.policy = policy;
+		}
+
+		/**
+		 * Indicates if this entry was resolved for the passed context. An entry whose context was collected
+		 * matches no context, so it is never taken for a lookup without one.
+		 * @param ctx The context or null
+		 * @return true if this entry is for the passed context
+		 */
+		boolean isFor(final Context ctx) {
+			return ctx==null ? context==NO_CONTEXT : context.get()==ctx;
+		}
+
+		boolean matches(final byte[] b, final int start, final int end) {
+			if(name.length()!=end - start) return false;
+			for(int i = 0; i < name.length(); i++) {
+				if(name.charAt(i)!=(char)(b[start+i] & 0xff)) return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Title: TrieNode</p>
+	 * <p>Description: A node in the name prefix trie. Children are held in a sorted key array.</p>
+	 */
+	protected static final class TrieNode {
+		char[] keys = new char[0];
+		TrieNode[] children = new TrieNode[0];
+		CookieRule[] rules = NO_RULES;
+
+		void add(final String prefix, final int depth, final CookieRule rule) {
+			if(depth==prefix.length()) {
+				rules = append(rules==NO_RULES ? null : rules, rule);
+				return;
+			}
+			final char c = prefix.charAt(depth);
+			int idx = Arrays.binarySearch(keys, c);
+			if(idx < 0) {
+				idx = -idx - 1;
+				final char[] k = new char[keys.length + 1];
+				final TrieNode[] n = new TrieNode[children.length + 1];
+				System.arraycopy(keys, 0, k, 0, idx);
+				System.arraycopy(children, 0, n, 0, idx);
+				k[idx] = c;
+				n[idx] = new TrieNode();
+				System.arraycopy(keys, idx, k, idx + 1, keys.length - idx);
+				System.arraycopy(children, idx, n, idx + 1, children.length - idx);
+				keys = k;
+				children = n;
+			}
+			children[idx].add(prefix, depth + 1, rule);
+		}
+
+		TrieNode child(final char c) {
+			final int idx = Arrays.binarySearch(keys, c);
+			return idx < 0 ? null : children[idx];
+		}
+	}
+}
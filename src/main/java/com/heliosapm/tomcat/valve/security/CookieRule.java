@@ -0,0 +1,187 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: CookieRule</p>
+ * <p>Description: A single declarative cookie policy rule. The syntax is:</p>
+ * <pre>
+ *   &lt;name-pattern&gt; [path=&lt;context-path&gt;] [domain=&lt;host-suffix&gt;] -&gt; &lt;attribute&gt;[,&lt;attribute&gt;...]
+ * </pre>
+ * <p>where the name pattern is an exact cookie name, a prefix ending in <b><code>*</code></b>, or <b><code>*</code></b> for all cookies,
+ * the path matches the context path and its sub paths, the domain matches the host name and its sub domains,
+ * and an attribute is one of <b><code>secure</code></b>, <b><code>httponly</code></b> or <b><code>samesite=Strict|Lax|None</code></b>.
+ * Unlike the valve wide <b><code>forceSecure</code></b>, a rule's <b><code>secure</code></b> is applied on plain requests too.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieRule</code></p>
+ */
+
+public class CookieRule {
+	/** The cookie name, or name prefix if {@link #prefix} is true */
+	protected final String name;
+	/** Indicates if {@link #name} is a prefix */
+	protected final boolean prefix;
+	/** The context path to match, or null for any */
+	protected final String path;
+	/** The host name suffix to match, or null for any */
+	protected final String domain;
+	/** The {@link SetCookieScanner} attribute bits to force */
+	protected final int attributes;
+	/** The SameSite to force or null */
+	protected final SameSite sameSite;
+	/** The original rule text */
+	protected final String text;
+
+	/**
+	 * Parses a rule
+	 * @param text The rule text
+	 * @return the parsed rule
+	 */
+	public static CookieRule parse(final String text) {
+		if(text==null || text.trim().isEmpty()) throw new IllegalArgumentException("The passed rule was null or empty");
+		final String rule = text.trim();
+		final int arrow = rule.indexOf("->");
+		if(arrow==-1) throw new IllegalArgumentException("Rule has no '->' [" + rule + "]");
+		final String[] selector = rule.substring(0, arrow).trim().split("\\s+");
+		if(selector[0].isEmpty()) throw new IllegalArgumentException("Rule has no cookie name [" + rule + "]");
+		String name = selector[0];
+		boolean prefix = false;
+		if(name.endsWith("*")) {
+			name = name.substring(0, name.length()-1);
+			prefix = true;
+		}
+		if(name.indexOf('*')!=-1) throw new IllegalArgumentException("Only a trailing '*' is supported in [" + rule + "]");
+		String path = null, domain = null;
+		for(int i = 1; i < selector.length; i++) {
+			final String q = selector[i];
+			if(q.startsWith("path=")) path = normalizePath(q.substring(5));
+			else if(q.startsWith("domain=")) domain = normalizeDomain(q.substring(7));
+			else throw new IllegalArgumentException("Unrecognized qualifier [" + q + "] in [" + rule + "]");
+		}
+		int attributes = 0;
+		SameSite sameSite = null;
+		for(String a: rule.substring(arrow + 2).split(",")) {
+			final String attr = a.trim();
+			if(attr.equalsIgnoreCase("secure")) attributes |= SetCookieScanner.SECURE;
+			else if(attr.equalsIgnoreCase("httponly")) attributes |= SetCookieScanner.HTTP_ONLY;
+			else if(attr.regionMatches(true, 0, "samesite=", 0, 9)) sameSite = SameSite.decode(attr.substring(9));
+			else throw new IllegalArgumentException("Unrecognized attribute [" + attr + "] in [" + rule + "]");
+		}
+		if(attributes==0 && sameSite==null) throw new IllegalArgumentException("Rule forces no attributes [" + rule + "]");
+		return new CookieRule(name, prefix, path, domain, attributes, sameSite, rule);
+	}
+
+	/**
+	 * Normalizes a path qualifier to a context path: no trailing slash, and "" for the root
+	 * @param path The path qualifier
+	 * @return the normalized path
+	 */
+	static String normalizePath(final String path) {
+		if(path.isEmpty() || "/".equals(path)) return "";
+		final String p = path.endsWith("/") ? path.substring(0, path.length()-1) : path;
+		return p.startsWith("/") ? p : "/" + p;
+	}
+
+	/**
+	 * Normalizes a domain qualifier to a lower case host suffix without a leading dot
+	 * @param domain The domain qualifier
+	 * @return the normalized domain
+	 */
+	static String normalizeDomain(final String domain) {
+		final String d = domain.startsWith(".") ? domain.substring(1) : domain;
+		if(d.isEmpty()) throw new IllegalArgumentException("Empty domain qualifier");
+		return d.toLowerCase();
+	}
+
+	/**
+	 * Creates a new CookieRule
+	 * @param name The cookie name, or name prefix
+	 * @param prefix true if the name is a prefix
+	 * @param path The context path to match, or null for any
+	 * @param domain The host name suffix to match, or null for any
+	 * @param attributes The {@link SetCookieScanner} attribute bits to force
+	 * @param sameSite The SameSite to force or null
+	 * @param text The original rule text
+	 */
+	protected CookieRule(final String name, final boolean prefix, final String path, final String domain, final int attributes, final SameSite sameSite, final String text) {
+		this.name = name;
+		this.prefix = prefix;
+		this.path = path;
+		this.domain = domain;
+		this.attributes = attributes;
+		this.sameSite = sameSite;
+		this.text = text;
+	}
+
+	/**
+	 * Indicates if this rule's path and domain qualifiers match the passed context
+	 * @param contextPath The context path ("" for the root context)
+	 * @param host The lower case host name or null if unknown
+	 * @return true if the qualifiers match
+	 */
+	public boolean matches(final String contextPath, final String host) {
+		return matches(path, domain, contextPath, host);
+	}
+
+	/**
+	 * Indicates if the passed path and domain qualifiers match the passed context
+	 * @param path The normalized context path qualifier, or null for any
+	 * @param domain The normalized host suffix qualifier, or null for any
+	 * @param contextPath The context path ("" for the root context)
+	 * @param host The lower case host name or null if unknown
+	 * @return true if the qualifiers match
+	 */
+	static boolean matches(final String path, final String domain, final String contextPath, final String host) {
+		if(path!=null) {
+			if(!contextPath.startsWith(path)) return false;
+			if(contextPath.length()!=path.length() && contextPath.charAt(path.length())!='/') return false;
+		}
+		if(domain!=null) {
+			if(host==null || !host.endsWith(domain)) return false;
+			if(host.length()!=domain.length() && host.charAt(host.length() - domain.length() - 1)!='.') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the cookie name, or name prefix
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Indicates if the name is a prefix
+	 * @return true if the name is a prefix
+	 */
+	public boolean isPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -0,0 +1,452 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.Cookies;
+import org.apache.tomcat.util.http.ServerCookie;
+
+/**
+ * <p>Title: CookieSigner</p>
+ * <p>Description: Signs the values of selected cookies with an HMAC and verifies them when they come back.
+ * A signed value is <b><code>value.kid.signature</code></b>, where <code>kid</code> identifies the key and the signature is the
+ * unpadded base64url HMAC of <b><code>name=value.kid</code></b>. New values are signed with the first (current) key; values
+ * signed with any configured key verify, so a key can be rotated by prepending its successor and dropping it later.</p>
+ * <p>Creating and initializing a {@link Mac} is expensive, so each key keeps one per thread. Inbound values are verified
+ * directly on the parsed cookie bytes and the signature is stripped in place, so a valid cookie costs no allocation.
+ * Instances are immutable and thread safe.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieSigner</code></p>
+ */
+
+public final class CookieSigner {
+	/** The default HMAC algorithm */
+	public static final String DEFAULT_ALGORITHM = "HmacSHA256";
+	/** The minimum key length in bytes */
+	public static final int MIN_KEY_LENGTH = 16;
+	/** The maximum key id length */
+	public static final int MAX_KEY_ID_LENGTH = 16;
+	/** The per thread scratch buffers */
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/** The normalized names of the signed cookies */
+	private final String spec;
+	/** The names of the signed cookies */
+	private final String[] names;
+	/** The keys, the current key first */
+	private final Key[] keys;
+	/** The HMAC algorithm */
+	private final String algorithm;
+
+	/**
+	 * Compiles a signer
+	 * @param names The comma separated names of the cookies to sign
+	 * @param keys The comma separated <b><code>kid:secret</code></b> keys, the current key first, with base64 or base64url secrets
+	 * @param algorithm The HMAC algorithm
+	 * @param previous The signer this one replaces, whose keys (and their per thread {@link Mac}s) are reused if unchanged, or null
+	 * @return the signer, or null if no cookies are signed
+	 * @throws IllegalArgumentException thrown if a key is invalid or the algorithm is not available
+	 */
+	public static CookieSigner compile(final String names, final String keys, final String algorithm, final CookieSigner previous) {
+		final String alg = (algorithm==null || algorithm.trim().isEmpty()) ? DEFAULT_ALGORITHM : algorithm.trim();
+		final Set<String> ns = new LinkedHashSet<String>();
+		if(names!=null) {
+			for(String n: names.split(",")) {
+				if(!n.trim().isEmpty()) ns.add(n.trim());
+			}
+		}
+		final List<Key> ks = new ArrayList<Key>();
+		if(keys!=null) {
+			for(String k: keys.split(",")) {
+				if(k.trim().isEmpty()) continue;
+				final Key key = key(k.trim(), alg, previous);
+				for(Key other: ks) {
+					if(other.id.equals(key.id)) throw new IllegalArgumentException("Duplicate signing key id [" + key.id + "]");
+				}
+				ks.add(key);
+			}
+		}
+		if(ns.isEmpty()) return null;
+		if(ks.isEmpty()) throw new IllegalArgumentException("Signed cookies " + ns + " require at least one signing key");
+		return new CookieSigner(ns.toArray(new String[ns.size()]), ks.toArray(new Key[ks.size()]), alg);
+	}
+
+	/**
+	 * Parses a key, reusing the previous signer's key if it is the same
+	 * @param spec The <b><code>kid:secret</code></b> key
+	 * @param algorithm The HMAC algorithm
+	 * @param previous The previous signer or null
+	 * @return the key
+	 */
+	private static Key key(final String spec, final String algorithm, final CookieSigner previous) {
+		final int colon = spec.indexOf(':');
+		if(colon < 1) throw new IllegalArgumentException("Invalid signing key, expected kid:secret [" + mask(spec) + "]");
+		final String id = spec.substring(0, colon).trim();
+		if(id.length() > MAX_KEY_ID_LENGTH) throw new IllegalArgumentException("Signing key id too long [" + id + "]");
+		for(int i = 0; i < id.length(); i++) {
+			final char c = id.charAt(i);
+			if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c=='-' || c=='_')) {
+				throw new IllegalArgumentException("Invalid signing key id [" + id + "]");
+			}
+		}
+		final byte[] secret;
+		try {
+			secret = Base64Url.decode(spec.substring(colon + 1).trim());
+		} catch (IllegalArgumentException iae) {
+			throw new IllegalArgumentException("Invalid secret for signing key [" + id + "]: " + iae.getMessage());
+		}
+		if(secret.length < MIN_KEY_LENGTH) throw new IllegalArgumentException("Signing key [" + id + "] is shorter than " + MIN_KEY_LENGTH + " bytes");
+		if(previous!=null) {
+			for(Key k: previous.keys) {
+				if(k.id.equals(id) && k.algorithm().equals(algorithm) && MessageDigest.isEqual(k.secret.getEncoded(), secret)) return k;
+			}
+		}
+		return new Key(id, new SecretKeySpec(secret, algorithm));
+	}
+
+	/**
+	 * Masks the secrets in a key specification so it can be displayed
+	 * @param keys The comma separated <b><code>kid:secret</code></b> keys
+	 * @return the keys with each secret replaced by <b><code>****</code></b>
+	 */
+	public static String mask(final String keys) {
+		if(keys==null) return "";
+		final StringBuilder b = new StringBuilder();
+		for(String k: keys.split(",")) {
+			if(k.trim().isEmpty()) continue;
+			if(b.length() > 0) b.append(", ");
+			final int colon = k.indexOf(':');
+			b.append(colon < 0 ? "" : k.substring(0, colon).trim()).append(":****");
+		}
+		return b.toString();
+	}
+
+	private CookieSigner(final String[] names, final Key[] keys, final String algorithm) {
+		this.names = names;
+		this.keys = keys;
+		this.algorithm = algorithm;
+		final StringBuilder b = new StringBuilder();
+		for(String n: names) {
+			if(b.length() > 0) b.append(", ");
+			b.append(n);
+		}
+		spec = b.toString();
+	}
+
+	/**
+	 * Indicates if the named cookie is signed
+	 * @param name The cookie name
+	 * @return true if signed
+	 */
+	public boolean isSigned(final String name) {
+		for(int i = 0; i < names.length; i++) {
+			if(names[i].equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if the named cookie is signed, without decoding the name
+	 * @param name The cookie name
+	 * @return true if signed
+	 */
+	public boolean isSigned(final MessageBytes name) {
+		for(int i = 0; i < names.length; i++) {
+			if(name.equals(names[i])) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Signs a cookie value with the current key
+	 * @param name The cookie name
+	 * @param value The cookie value
+	 * @return the signed value
+	 */
+	public String sign(final String name, final String value) {
+		final Key key = keys[0];
+		final Scratch s = SCRATCH.get();
+		final String v = value==null ? "" : value;
+		final int nlen = name.length(), vlen = v.length(), klen = key.idBytes.length;
+		final int inLen = nlen + 1 + vlen + 1 + klen;
+		final byte[] in = s.input(inLen);
+		int p = latin1(name, in, 0);
+		in[p++] = '=';
+		p = latin1(v, in, p);
+		in[p++] = '.';
+		System.arraycopy(key.idBytes, 0, in, p, klen);
+		final Mac mac = key.mac();
+		mac.update(in, 0, inLen);
+		final byte[] m = s.mac(key.macLength);
+		finish(mac, m);
+		final char[] out = s.chars(vlen + 1 + klen + 1 + key.signatureLength);
+		v.getChars(0, vlen, out, 0);
+		int o = vlen;
+		out[o++] = '.';
+		key.id.getChars(0, klen, out, o);
+		o += klen;
+		out[o++] = '.';
+		o = Base64Url.encode(m, 0, key.macLength, out, o);
+		return new String(out, 0, o);
+	}
+
+	/**
+	 * Verifies a signed cookie value against any configured key. If the signature is valid it is stripped from the
+	 * value in place, so the application sees the value it set.
+	 * @param name The cookie name
+	 * @param value The signed cookie value, which is only changed if the signature is valid
+	 * @return true if the signature is valid
+	 */
+	public boolean verify(final MessageBytes name, final MessageBytes value) {
+		if(name.isNull() || value.isNull()) return false;
+		if(name.getType()!=MessageBytes.T_BYTES) name.toBytes();
+		if(value.getType()!=MessageBytes.T_BYTES) value.toBytes();
+		final ByteChunk v = value.getByteChunk();
+		final byte[] buf = v.getBytes();
+		final int start = v.getStart(), end = v.getEnd();
+		final int sigDot = lastDot(buf, start, end);
+		if(sigDot < 0) return false;
+		final int kidDot = lastDot(buf, start, sigDot);
+		if(kidDot < 0) return false;
+		final Key key = key(buf, kidDot + 1, sigDot);
+		if(key==null || end - sigDot - 1!=key.signatureLength) return false;
+		final ByteChunk n = name.getByteChunk();
+		final Mac mac = key.mac();
+		mac.update(n.getBytes(), n.getStart(), n.getLength());
+		mac.update((byte)'=');
+		mac.update(buf, start, sigDot - start);
+		final Scratch s = SCRATCH.get();
+		final byte[] m = s.mac(key.macLength);
+		finish(mac, m);
+		final byte[] e = s.encoded(key.signatureLength);
+		Base64Url.encode(m, 0, key.macLength, e, 0);
+		// constant time, so the position of the first wrong character is not observable
+		int diff = 0;
+		for(int i = 0; i < key.signatureLength; i++) diff |= e[i] ^ buf[sigDot + 1 + i];
+		if(diff!=0) return false;
+		value.setBytes(buf, start, kidDot - start);
+		return true;
+	}
+
+	/**
+	 * Verifies the signed cookies of a request, stripping the signatures of valid ones in place.
+	 * Must run before anything parses the request's cookies.
+	 * @param cookies The request's parsed cookies
+	 * @param failed The names and raw values of cookies that already failed, in pairs, or null
+	 * @return the failed list with the cookies that failed verification added, or null if none have failed
+	 */
+	public List<String> verify(final Cookies cookies, final List<String> failed) {
+		List<String> f = failed;
+		final int count = cookies.getCookieCount();
+		for(int i = 0; i < count; i++) {
+			final ServerCookie sc = cookies.getCookie(i);
+			if(!isSigned(sc.getName()) || verify(sc.getName(), sc.getValue())) continue;
+			if(f==null) f = new ArrayList<String>();
+			f.add(sc.getName().toString());
+			f.add(sc.getValue().toString());
+		}
+		return f;
+	}
+
+	private Key key(final byte[] buf, final int start, final int end) {
+		final int len = end - start;
+		for(int k = 0; k < keys.length; k++) {
+			final byte[] id = keys[k].idBytes;
+			if(id.length!=len) continue;
+			int i = 0;
+			while(i < len && id[i]==buf[start + i]) i++;
+			if(i==len) return keys[k];
+		}
+		return null;
+	}
+
+	private static int lastDot(final byte[] buf, final int start, final int end) {
+		for(int i = end - 1; i >= start; i--) {
+			if(buf[i]=='.') return i;
+		}
+		return -1;
+	}
+
+	private static int latin1(final String s, final byte[] buf, final int pos) {
+		final int len = s.length();
+		for(int i = 0; i < len; i++) buf[pos + i] = (byte)s.charAt(i);
+		return pos + len;
+	}
+
+	private static void finish(final Mac mac, final byte[] out) {
+		try {
+			mac.doFinal(out, 0);
+		} catch (ShortBufferException sbe) {
+			throw new IllegalStateException("MAC buffer too small", sbe);
+		}
+	}
+
+	/**
+	 * Returns the normalized names of the signed cookies
+	 * @return the comma separated names
+	 */
+	public String getSpec() {
+		return spec;
+	}
+
+	/**
+	 * Returns the HMAC algorithm
+	 * @return the algorithm
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Returns the id of the key new cookies are signed with
+	 * @return the current key id
+	 */
+	public String getCurrentKeyId() {
+		return keys[0].id;
+	}
+
+	/**
+	 * Returns the ids of the keys signatures are verified against
+	 * @return the key ids, the current key first
+	 */
+	public String[] getKeyIds() {
+		final String[] ids = new String[keys.length];
+		for(int i = 0; i < keys.length; i++) ids[i] = keys[i].id;
+		return ids;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CookieSigner [" + spec + " with " + algorithm + ", keys " + Arrays.toString(getKeyIds()) + "]";
+	}
+
+	/**
+	 * <p>Title: Key</p>
+	 * <p>Description: A signing key and its per thread {@link Mac}s</p>
+	 */
+	private static final class Key {
+		/** The key id */
+		final String id;
+		/** The key id bytes */
+		final byte[] idBytes;
+		/** The secret */
+		final SecretKeySpec secret;
+		/** The MAC length in bytes */
+		final int macLength;
+		/** The encoded signature length */
+		final int signatureLength;
+		/** The per thread initialized MACs */
+		private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				return newMac();
+			}
+		};
+
+		Key(final String id, final SecretKeySpec secret) {
+			this.id = id;
+			this.idBytes = id.getBytes(SetCookieScanner.ISO_8859_1);
+			this.secret = secret;
+			// fails fast on an unknown algorithm or unusable secret
+			final Mac mac = newMac();
+			macLength = mac.getMacLength();
+			signatureLength = Base64Url.encodedLength(macLength);
+		}
+
+		String algorithm() {
+			return secret.getAlgorithm();
+		}
+
+		Mac newMac() {
+			try {
+				final Mac mac = Mac.getInstance(secret.getAlgorithm());
+				mac.init(secret);
+				return mac;
+			} catch (GeneralSecurityException gse) {
+				throw new IllegalArgumentException("Cannot create " + secret.getAlgorithm() + " for signing key [" + id + "]: " + gse.getMessage(), gse);
+			}
+		}
+
+		/**
+		 * Returns the calling thread's MAC, which is reset after every doFinal
+		 * @return the MAC
+		 */
+		Mac mac() {
+			return macs.get();
+		}
+	}
+
+	/**
+	 * <p>Title: Scratch</p>
+	 * <p>Description: The per thread buffers used to sign and verify</p>
+	 */
+	private static final class Scratch {
+		/** The MAC input */
+		private byte[] input = new byte[256];
+		/** The MAC output */
+		private byte[] mac = new byte[64];
+		/** The encoded MAC */
+		private byte[] encoded = new byte[88];
+		/** The signed value */
+		private char[] chars = new char[256];
+
+		byte[] input(final int len) {
+			if(input.length < len) input = new byte[Math.max(input.length * 2, len)];
+			return input;
+		}
+
+		byte[] mac(final int len) {
+			if(mac.length < len) mac = new byte[len];
+			return mac;
+		}
+
+		byte[] encoded(final int len) {
+			if(encoded.length < len) encoded = new byte[len];
+			return encoded;
+		}
+
+		char[] chars(final int len) {
+			if(chars.length < len) chars = new char[Math.max(chars.length * 2, len)];
+			return chars;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: DegradationController</p>
+ * <p>Description: Moves a {@link SecureCookies} valve between its {@link ValveLevel}s on a daemon thread. Every interval
+ * the controller takes the p99 of the valve's own latency over the interval just ended and the saturation of the busiest
+ * connector thread pool. Either one above its degrade threshold for the configured number of consecutive intervals lowers
+ * the level by one step, never below the floor; both below their lower recover thresholds for the (longer) configured
+ * number of intervals raises it by one step, never above the configured level. An interval between the two sets of
+ * thresholds resets both runs, so the level does not flap around a single threshold.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.DegradationController</code></p>
+ */
+
+public class DegradationController implements Runnable {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The controlled valve */
+	protected final SecureCookies valve;
+	/** The configuration the controller was started with */
+	protected final ValveConfig cfg;
+	/** The controller thread */
+	protected final Thread thread;
+	/** Indicates if the controller is running */
+	protected volatile boolean running = false;
+	/** The connector saturation sampler, created on the first interval once the valve is registered */
+	private ConnectorSaturation saturation = null;
+	/** The valve latency histogram at the start of the current interval */
+	private long[] last = null;
+	/** The number of consecutive intervals under pressure */
+	private int pressured = 0;
+	/** The number of consecutive healthy intervals */
+	private int healthy = 0;
+	/** The p99 of the last interval in ns */
+	private volatile long lastP99 = 0L;
+	/** The connector saturation of the last interval in percent, or -1 if unknown */
+	private volatile int lastSaturation = -1;
+
+	/**
+	 * Creates a new DegradationController
+	 * @param valve The controlled valve
+	 * @param cfg The configuration providing the thresholds
+	 */
+	public DegradationController(final SecureCookies valve, final ValveConfig cfg) {
+		if(valve==null) throw new IllegalArgumentException("The passed valve was null");
+		if(cfg==null) throw new IllegalArgumentException("The passed config was null");
+		this.valve = valve;
+		this.cfg = cfg;
+		thread = new Thread(this, "SecureCookiesDegradationController");
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the controller
+	 * @return this controller
+	 */
+	public DegradationController start() {
+		last = valve.metrics().valveLatency();
+		running = true;
+		thread.start();
+		log.info("Degradation controller started: floor {}, every {} ms, degrade above p99 {} us or {}% saturation for {} intervals, recover below p99 {} us and {}% saturation for {} intervals",
+			cfg.getDegradeFloor().name().toLowerCase(), cfg.getDegradeInterval(), cfg.getDegradeLatency(), cfg.getDegradeSaturation(), cfg.getDegradeIntervals(),
+			cfg.getRecoverLatency(), cfg.getRecoverSaturation(), cfg.getRecoverIntervals());
+		return this;
+	}
+
+	/**
+	 * Stops the controller
+	 */
+	public void stop() {
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while(running) {
+			try {
+				Thread.sleep(cfg.getDegradeInterval());
+			} catch (InterruptedException iex) {
+				if(!running) break;
+			}
+			try {
+				tick();
+			} catch (Exception ex) {
+				log.error("Degradation controller interval failed", ex);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the interval just ended and moves the valve's level if a run of intervals calls for it
+	 */
+	protected void tick() {
+		if(saturation==null) saturation = valve.connectorSaturation();
+		final long[] now = valve.metrics().valveLatency();
+		// an idle interval has no p99 and counts as healthy
+		final long p99 = LatencyHistogram.percentile(ThreadCells.minus(now.clone(), last), 0, 99d);
+		last = now;
+		final int sat = saturation.sample();
+		lastP99 = p99;
+		lastSaturation = sat;
+		final ValveLevel current = valve.currentLevel();
+		if(p99 > cfg.getDegradeLatency() * 1000L || sat > cfg.getDegradeSaturation()) {
+			healthy = 0;
+			if(++pressured >= cfg.getDegradeIntervals() && !current.isAtOrBelow(cfg.getDegradeFloor())) {
+				pressured = 0;
+				valve.changeLevel(this, current.lower(), reason(p99, sat, cfg.getDegradeIntervals(), "above", cfg.getDegradeLatency(), cfg.getDegradeSaturation()));
+			}
+		} else if(p99 < cfg.getRecoverLatency() * 1000L && sat < cfg.getRecoverSaturation()) {
+			pressured = 0;
+			if(++healthy >= cfg.getRecoverIntervals() && current!=cfg.getLevel() && current.isAtOrBelow(cfg.getLevel())) {
+				healthy = 0;
+				valve.changeLevel(this, current.higher(), reason(p99, sat, cfg.getRecoverIntervals(), "below", cfg.getRecoverLatency(), cfg.getRecoverSaturation()));
+			}
+		} else {
+			pressured = 0;
+			healthy = 0;
+		}
+	}
+
+	private static String reason(final long p99, final int sat, final int intervals, final String side, final int latency, final int saturation) {
+		return "valve p99 " + (p99 / 1000L) + " us, connector saturation " + (sat < 0 ? "unknown" : sat + "%")
+			+ " after " + intervals + " intervals " + side + " " + latency + " us / " + saturation + "%";
+	}
+
+	/**
+	 * Returns the p99 of the valve's latency over the last interval
+	 * @return the p99 in ns
+	 */
+	public long getLastP99() {
+		return lastP99;
+	}
+
+	/**
+	 * Returns the connector saturation sampled in the last interval
+	 * @return the busiest pool's busy threads in percent, or -1 if unknown
+	 */
+	public int getLastSaturation() {
+		return lastSaturation;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DegradationController [level:" + valve.currentLevel().name().toLowerCase() + ", p99:" + (lastP99 / 1000L)
+			+ "us, saturation:" + lastSaturation + "%, pressured:" + pressured + ", healthy:" + healthy + "]";
+	}
+}
@@ -0,0 +1,139 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import org.apache.catalina.connector.Request;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * <p>Title: ForwardedProto</p>
+ * <p>Description: Decides if a request reached the client facing proxy over HTTPS. A request the connector received
+ * securely is secure. Otherwise, if the request came from a trusted proxy, the scheme is taken from the first
+ * <b><code>X-Forwarded-Proto</code></b> value or, failing that, the <b><code>proto</code></b> parameter of the first
+ * <b><code>Forwarded</code></b> element. The headers are matched as bytes and the result is kept in a request note,
+ * so they are read at most once per request.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ForwardedProto</code></p>
+ */
+
+public final class ForwardedProto {
+	/** The request note holding the resolved scheme as {@link Boolean#TRUE} for https */
+	public static final String NOTE = "com.heliosapm.tomcat.valve.security.secure";
+	/** The X-Forwarded-Proto header name */
+	public static final String X_FORWARDED_PROTO = "X-Forwarded-Proto";
+	/** The Forwarded header name */
+	public static final String FORWARDED = "Forwarded";
+
+	private ForwardedProto() {}
+
+	/**
+	 * Indicates if the passed request is secure, trusting forwarded scheme headers from the passed proxies
+	 * @param request The request
+	 * @param trustedProxies The trusted proxy addresses
+	 * @return true if the request is secure
+	 */
+	public static boolean isSecure(final Request request, final CidrTrie trustedProxies) {
+		if(request.isSecure()) return true;
+		if(trustedProxies.isEmpty()) return false;
+		final Object note = request.getNote(NOTE);
+		if(note!=null) return note==Boolean.TRUE;
+		boolean secure = false;
+		if(trustedProxies.contains(request.getRemoteAddr())) {
+			final MimeHeaders headers = request.getCoyoteRequest().getMimeHeaders();
+			final MessageBytes xfp = headers.getValue(X_FORWARDED_PROTO);
+			if(xfp!=null) {
+				secure = isHttps(xfp, false);
+			} else {
+				final MessageBytes fwd = headers.getValue(FORWARDED);
+				if(fwd!=null) secure = isHttps(fwd, true);
+			}
+		}
+		request.setNote(NOTE, secure ? Boolean.TRUE : Boolean.FALSE);
+		return secure;
+	}
+
+	/**
+	 * Indicates if the first scheme in a header value is https
+	 * @param mb The header value
+	 * @param forwarded true to read the proto parameter of a Forwarded header, false to read an X-Forwarded-Proto list
+	 * @return true if the scheme is https
+	 */
+	static boolean isHttps(final MessageBytes mb, final boolean forwarded) {
+		final byte[] b;
+		final int start, end;
+		if(mb.getType()==MessageBytes.T_BYTES) {
+			final ByteChunk bc = mb.getByteChunk();
+			b = bc.getBuffer();
+			start = bc.getStart();
+			end = bc.getEnd();
+		} else {
+			// connectors always supply bytes
+			final String s = mb.toString();
+			if(s==null) return false;
+			b = s.getBytes(SetCookieScanner.ISO_8859_1);
+			start = 0;
+			end = b.length;
+		}
+		int elementEnd = start;
+		while(elementEnd < end && b[elementEnd]!=',') elementEnd++;
+		return forwarded ? protoParameter(b, start, elementEnd) : equalsHttps(b, start, elementEnd);
+	}
+
+	/**
+	 * Finds the proto parameter in a Forwarded element and checks it is https
+	 * @param b The buffer
+	 * @param start The offset of the element
+	 * @param end The offset one past the element
+	 * @return true if the proto parameter is https
+	 */
+	private static boolean protoParameter(final byte[] b, final int start, final int end) {
+		int i = start;
+		while(i < end) {
+			int pairEnd = i;
+			while(pairEnd < end && b[pairEnd]!=';') pairEnd++;
+			int n = i;
+			while(n < pairEnd && (b[n]==' ' || b[n]=='\t')) n++;
+			if(pairEnd - n > 6 && (b[n] | 0x20)=='p' && (b[n+1] | 0x20)=='r' && (b[n+2] | 0x20)=='o' && (b[n+3] | 0x20)=='t' && (b[n+4] | 0x20)=='o' && b[n+5]=='=') {
+				int vs = n + 6, ve = pairEnd;
+				while(ve > vs && (b[ve-1]==' ' || b[ve-1]=='\t')) ve--;
+				if(ve - vs >= 2 && b[vs]=='"' && b[ve-1]=='"') { vs++; ve--; }
+				return equalsHttps(b, vs, ve);
+			}
+			i = pairEnd + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * Indicates if the trimmed bytes are https, ignoring case
+	 * @param b The buffer
+	 * @param start The offset of the first byte
+	 * @param end The offset one past the last byte
+	 * @return true if the bytes are https
+	 */
+	private static boolean equalsHttps(final byte[] b, int start, int end) {
+		while(start < end && (b[start]==' ' || b[start]=='\t')) start++;
+		while(end > start && (b[end-1]==' ' || b[end-1]=='\t')) end--;
+		return end - start==5 && (b[start] | 0x20)=='h' && (b[start+1] | 0x20)=='t' && (b[start+2] | 0x20)=='t'
+			&& (b[start+3] | 0x20)=='p' && (b[start+4] | 0x20)=='s';
+	}
+}
@@ -0,0 +1,163 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: HttpDateCache</p>
+ * <p>Description: Formats GMT dates for <b><code>Expires</code></b> attributes without locks or a SimpleDateFormat.
+ * The date for the current second is published through a volatile holder and reused by every thread until the
+ * second rolls over; other seconds, such as a cookie's expiry, are kept in a small direct mapped table of immutable
+ * entries. A thread that misses formats the date itself and publishes it, so a rollover costs at most one format
+ * per racing thread and never blocks.</p>
+ * <p>{@link #COOKIE} renders catalina's cookie date format, <b><code>Thu, 01-Jan-1970 00:00:10 GMT</code></b>,
+ * and {@link #RFC_1123} the HTTP date format, <b><code>Thu, 01 Jan 1970 00:00:10 GMT</code></b>.
+ * Returned arrays are shared and must not be modified.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.HttpDateCache</code></p>
+ */
+
+public final class HttpDateCache {
+	/** The length of a formatted date */
+	public static final int LENGTH = 29;
+	/** Catalina's version 0 cookie date format */
+	public static final HttpDateCache COOKIE = new HttpDateCache('-');
+	/** The RFC 1123 HTTP date format */
+	public static final HttpDateCache RFC_1123 = new HttpDateCache(' ');
+	/** The number of cached seconds other than the current one */
+	private static final int SLOTS = 64;
+	private static final String DAYS = "SunMonTueWedThuFriSat";
+	private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+	/** The day, month and year separator */
+	private final char separator;
+	/** The date catalina renders for cookies expiring immediately, ten seconds after the epoch */
+	private final char[] ancient;
+	/** The current second */
+	private volatile Entry current = new Entry(-1L, null);
+	/** The other cached seconds */
+	private final Entry[] entries = new Entry[SLOTS];
+
+	private HttpDateCache(final char separator) {
+		this.separator = separator;
+		ancient = render(10L);
+	}
+
+	/**
+	 * Returns the formatted current date
+	 * @return the formatted date
+	 */
+	public char[] now() {
+		final long second = System.currentTimeMillis() / 1000L;
+		final Entry e = current;
+		if(e.second==second) return e.text;
+		final char[] text = render(second);
+		current = new Entry(second, text);
+		return text;
+	}
+
+	/**
+	 * Returns the formatted expiry date of a cookie with the passed max age, as catalina renders it for version 0 cookies
+	 * @param maxAge The max age in seconds, zero or more
+	 * @return the formatted date
+	 */
+	public char[] expires(final int maxAge) {
+		if(maxAge==0) return ancient;
+		return format(System.currentTimeMillis() / 1000L + maxAge);
+	}
+
+	/**
+	 * Returns the formatted date of the passed second
+	 * @param second The seconds since the epoch
+	 * @return the formatted date
+	 */
+	public char[] format(final long second) {
+		final Entry c = current;
+		if(c.second==second) return c.text;
+		final int idx = (int)((second * 0x9E3779B97F4A7C15L) >>> 58) & (SLOTS - 1);
+		final Entry e = entries[idx];
+		if(e!=null && e.second==second) return e.text;
+		final char[] text = render(second);
+		entries[idx] = new Entry(second, text);
+		return text;
+	}
+
+	/**
+	 * Formats the passed second
+	 * @param second The seconds since the epoch
+	 * @return the formatted date
+	 */
+	char[] render(final long second) {
+		final long days = second / 86400L - (second % 86400L < 0 ? 1 : 0);
+		final int secs = (int)(second - days * 86400L);
+		// civil from days, Howard Hinnant's algorithm
+		final long z = days + 719468L;
+		final long era = (z >= 0 ? z : z - 146096L) / 146097L;
+		final int doe = (int)(z - era * 146097L);
+		final int yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		final int doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		final int mp = (5 * doy + 2) / 153;
+		final int day = doy - (153 * mp + 2) / 5 + 1;
+		final int month = mp < 10 ? mp + 3 : mp - 9;
+		final long year = yoe + era * 400L + (month <= 2 ? 1 : 0);
+		if(year < 0 || year > 9999) throw new IllegalArgumentException("Year out of range [" + year + "]");
+		final int dow = (int)(((days + 4) % 7 + 7) % 7);
+		final char[] t = new char[LENGTH];
+		DAYS.getChars(dow * 3, dow * 3 + 3, t, 0);
+		t[3] = ',';
+		t[4] = ' ';
+		two(day, t, 5);
+		t[7] = separator;
+		MONTHS.getChars((month - 1) * 3, month * 3, t, 8);
+		t[11] = separator;
+		two((int)(year / 100), t, 12);
+		two((int)(year % 100), t, 14);
+		t[16] = ' ';
+		two(secs / 3600, t, 17);
+		t[19] = ':';
+		two(secs / 60 % 60, t, 20);
+		t[22] = ':';
+		two(secs % 60, t, 23);
+		t[25] = ' ';
+		t[26] = 'G';
+		t[27] = 'M';
+		t[28] = 'T';
+		return t;
+	}
+
+	private static void two(final int v, final char[] t, final int offset) {
+		t[offset] = (char)('0' + v / 10);
+		t[offset + 1] = (char)('0' + v % 10);
+	}
+
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: An immutable formatted second. All fields are final so entries
+	 * are safely published through the plain table.</p>
+	 */
+	private static final class Entry {
+		final long second;
+		final char[] text;
+
+		Entry(final long second, final char[] text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+}
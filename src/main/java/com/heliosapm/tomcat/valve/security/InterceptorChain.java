@@ -0,0 +1,171 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Title: InterceptorChain</p>
+ * <p>Description: The ordered {@link ResponseInterceptor}s named in the valve's <b><code>interceptors</code></b> setting,
+ * flattened into an array when the configuration is compiled so each callback is one loop over the array.
+ * The chain also keeps, per interceptor, the number of calls and a histogram of the time it took per request,
+ * in one {@link ThreadCells} cell per thread, with a baseline for resets as {@link ValveMetrics} does.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.InterceptorChain</code></p>
+ */
+
+public final class InterceptorChain {
+	/** The call count slot, relative to an interceptor's offset */
+	private static final int CALLS = 0;
+	/** The offset of the per request time histogram, relative to an interceptor's offset */
+	private static final int NANOS = 1;
+	/** The slots per interceptor */
+	private static final int STRIDE = NANOS + LatencyHistogram.WIDTH;
+
+	/** The interceptors in call order */
+	private final ResponseInterceptor[] interceptors;
+	/** The normalized spec */
+	private final String spec;
+	/** The per thread timings */
+	private final ThreadCells timings;
+	/** The sums at the last reset, or null */
+	private volatile long[] baseline = null;
+
+	/**
+	 * Compiles the passed spec, loading the interceptors with {@link ServiceLoader}
+	 * @param spec The comma separated interceptor names in call order
+	 * @param previous The chain the previous configuration compiled, reused with its timings if the spec is unchanged, or null
+	 * @return the chain, or null if the spec names no interceptors
+	 */
+	public static InterceptorChain compile(final String spec, final InterceptorChain previous) {
+		if(spec==null || spec.trim().isEmpty()) return null;
+		final StringBuilder b = new StringBuilder();
+		final String[] names = spec.split(",");
+		int count = 0;
+		for(String name: names) {
+			final String n = name.trim();
+			if(n.isEmpty()) continue;
+			if(b.length() > 0) b.append(", ");
+			b.append(n);
+			names[count++] = n;
+		}
+		if(count==0) return null;
+		final String normalized = b.toString();
+		if(previous!=null && previous.spec.equals(normalized)) return previous;
+		final Map<String, ResponseInterceptor> available = new LinkedHashMap<String, ResponseInterceptor>();
+		for(ResponseInterceptor ri: ServiceLoader.load(ResponseInterceptor.class, ResponseInterceptor.class.getClassLoader())) {
+			if(!available.containsKey(ri.getName())) available.put(ri.getName(), ri);
+		}
+		final ResponseInterceptor[] chain = new ResponseInterceptor[count];
+		for(int i = 0; i < count; i++) {
+			for(int j = 0; j < i; j++) {
+				if(names[j].equals(names[i])) throw new IllegalArgumentException("Interceptor [" + names[i] + "] is named twice");
+			}
+			chain[i] = available.get(names[i]);
+			if(chain[i]==null) throw new IllegalArgumentException("Unknown interceptor [" + names[i] + "], available: " + available.keySet());
+		}
+		return new InterceptorChain(chain, normalized);
+	}
+
+	private InterceptorChain(final ResponseInterceptor[] interceptors, final String spec) {
+		this.interceptors = interceptors;
+		this.spec = spec;
+		this.timings = new ThreadCells(interceptors.length * STRIDE);
+	}
+
+	/**
+	 * Returns the interceptors in call order. The array is shared and must not be modified.
+	 * @return the interceptors
+	 */
+	ResponseInterceptor[] interceptors() {
+		return interceptors;
+	}
+
+	/**
+	 * Returns the number of interceptors
+	 * @return the number of interceptors
+	 */
+	public int size() {
+		return interceptors.length;
+	}
+
+	/**
+	 * Returns the normalized spec
+	 * @return the comma separated interceptor names
+	 */
+	public String getSpec() {
+		return spec;
+	}
+
+	/**
+	 * Records one request's calls and time per interceptor
+	 * @param calls The number of calls per interceptor
+	 * @param nanos The time spent per interceptor
+	 */
+	public void record(final int[] calls, final long[] nanos) {
+		final AtomicLongArray cell = timings.cell();
+		for(int i = 0; i < interceptors.length; i++) {
+			if(calls[i]==0) continue;
+			final int offset = i * STRIDE;
+			ThreadCells.add(cell, offset + CALLS, calls[i]);
+			LatencyHistogram.record(cell, offset + NANOS, nanos[i]);
+		}
+	}
+
+	/**
+	 * Renders one line per interceptor in call order, with the time per request in nanoseconds
+	 * @return the report
+	 */
+	public String report() {
+		final long[] s = ThreadCells.minus(timings.sums(), baseline);
+		final StringBuilder b = new StringBuilder();
+		for(int i = 0; i < interceptors.length; i++) {
+			final int offset = i * STRIDE;
+			b.append(interceptors[i].getName())
+				.append(" calls=").append(s[offset + CALLS])
+				.append(" requests=").append(LatencyHistogram.count(s, offset + NANOS))
+				.append(" p50=").append(LatencyHistogram.percentile(s, offset + NANOS, 50d))
+				.append(" p99=").append(LatencyHistogram.percentile(s, offset + NANOS, 99d))
+				.append(" max=").append(LatencyHistogram.max(s, offset + NANOS))
+				.append(" mean=").append(LatencyHistogram.mean(s, offset + NANOS))
+				.append('\n');
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Resets the timings
+	 */
+	public void reset() {
+		baseline = timings.sums();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "InterceptorChain [" + spec + "]";
+	}
+}
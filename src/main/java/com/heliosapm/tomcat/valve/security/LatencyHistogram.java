@@ -0,0 +1,139 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Title: LatencyHistogram</p>
+ * <p>Description: A fixed bucket, log-linear histogram of nanosecond latencies laid out in the slots of a {@link ThreadCells} cell.
+ * Each power of 2 is split into 8 linear buckets, so a reported value is at most 12.5% above the recorded one.
+ * Values up to 2^40 ns (about 18 minutes) are bucketed; larger values land in the last bucket.
+ * The histogram takes {@link #WIDTH} slots: one count per bucket followed by the sum of the recorded values.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.LatencyHistogram</code></p>
+ */
+
+public final class LatencyHistogram {
+	/** The number of linear sub bucket bits per power of 2 */
+	private static final int SUB_BITS = 3;
+	/** The number of linear sub buckets per power of 2 */
+	private static final int SUB = 1 << SUB_BITS;
+	/** The largest bucketed shift */
+	private static final int MAX_SHIFT = 40 - SUB_BITS;
+	/** The number of buckets */
+	public static final int BUCKETS = (MAX_SHIFT + 1) * SUB + SUB;
+	/** The offset of the sum slot */
+	public static final int SUM = BUCKETS;
+	/** The number of slots a histogram takes */
+	public static final int WIDTH = BUCKETS + 1;
+
+	/**
+	 * Returns the bucket for the passed value
+	 * @param nanos The value
+	 * @return the bucket index
+	 */
+	public static int bucket(final long nanos) {
+		if(nanos < SUB) return nanos <= 0 ? 0 : (int)nanos;
+		final int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+		if(shift > MAX_SHIFT) return BUCKETS - 1;
+		return (shift << SUB_BITS) + (int)(nanos >>> shift);
+	}
+
+	/**
+	 * Returns the highest value that lands in the passed bucket
+	 * @param bucket The bucket index
+	 * @return the highest value
+	 */
+	public static long highestValue(final int bucket) {
+		if(bucket < SUB * 2) return bucket;
+		final int shift = (bucket >> SUB_BITS) - 1;
+		final long top = (bucket & (SUB - 1)) + SUB;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a value into the calling thread's cell
+	 * @param cell The calling thread's cell
+	 * @param offset The offset of the histogram in the cell
+	 * @param nanos The value
+	 */
+	public static void record(final AtomicLongArray cell, final int offset, final long nanos) {
+		ThreadCells.add(cell, offset + bucket(nanos), 1L);
+		ThreadCells.add(cell, offset + SUM, nanos < 0 ? 0 : nanos);
+	}
+
+	/**
+	 * Returns the number of recorded values
+	 * @param sums The summed slots
+	 * @param offset The offset of the histogram in the slots
+	 * @return the count
+	 */
+	public static long count(final long[] sums, final int offset) {
+		long count = 0;
+		for(int i = 0; i < BUCKETS; i++) count += sums[offset + i];
+		return count;
+	}
+
+	/**
+	 * Returns the mean recorded value
+	 * @param sums The summed slots
+	 * @param offset The offset of the histogram in the slots
+	 * @return the mean or zero if nothing was recorded
+	 */
+	public static long mean(final long[] sums, final int offset) {
+		final long count = count(sums, offset);
+		return count==0 ? 0L : sums[offset + SUM] / count;
+	}
+
+	/**
+	 * Returns the value at the passed percentile, as the highest value of the bucket it lands in
+	 * @param sums The summed slots
+	 * @param offset The offset of the histogram in the slots
+	 * @param percentile The percentile, from 0 to 100
+	 * @return the value or zero if nothing was recorded
+	 */
+	public static long percentile(final long[] sums, final int offset, final double percentile) {
+		final long count = count(sums, offset);
+		if(count==0) return 0L;
+		final long rank = Math.max(1L, (long)Math.ceil(count * Math.min(100d, Math.max(0d, percentile)) / 100d));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += sums[offset + i];
+			if(seen >= rank) return highestValue(i);
+		}
+		return highestValue(BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the highest recorded value, as the highest value of its bucket
+	 * @param sums The summed slots
+	 * @param offset The offset of the histogram in the slots
+	 * @return the value or zero if nothing was recorded
+	 */
+	public static long max(final long[] sums, final int offset) {
+		for(int i = BUCKETS - 1; i >= 0; i--) {
+			if(sums[offset + i]!=0) return highestValue(i);
+		}
+		return 0L;
+	}
+
+	private LatencyHistogram() {}
+}
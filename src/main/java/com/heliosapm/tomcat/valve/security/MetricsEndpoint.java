@@ -0,0 +1,201 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+
+/**
+ * <p>Title: MetricsEndpoint</p>
+ * <p>Description: Serves the valve's counters and histograms in the Prometheus text format on a reserved URI, answering
+ * GET and HEAD requests in the valve without calling the rest of the pipeline. Scrapes are only answered on the configured
+ * connector port, if any, and from the allowed remote addresses, matched with a {@link CidrTrie}; other requests for the URI
+ * go down the pipeline like any other.</p>
+ * <p>The text is rendered into a reused {@link PrometheusText} buffer at most once per interval, by the first scrape after
+ * the interval, and published as an immutable snapshot while concurrent scrapes keep serving the previous one. A scrape
+ * storm therefore costs one rendering and one snapshot array per interval, whatever the scrape rate. Scrapes write the
+ * snapshot without holding any lock, so a scraper stalled on a slow connection delays no one.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.MetricsEndpoint</code></p>
+ */
+
+public class MetricsEndpoint {
+	/** The initial buffer capacity in bytes */
+	private static final int INITIAL_CAPACITY = 16384;
+
+	/** The valve the metrics are rendered from */
+	protected final SecureCookies valve;
+	/** The reserved URI */
+	protected final String path;
+	/** The minimum interval between renderings in ns */
+	protected final long intervalNanos;
+	/** The remote addresses allowed to scrape, empty for any */
+	protected final CidrTrie allow;
+	/** The connector port scrapes are answered on, 0 for any */
+	protected final int port;
+	/** Held by the one scrape that renders */
+	private final AtomicBoolean rendering = new AtomicBoolean(false);
+	/** The buffer rendered into, owned by the holder of {@link #rendering} */
+	private final PrometheusText buffer = new PrometheusText(INITIAL_CAPACITY);
+	/** The last rendering, served to scrapes and never modified */
+	private volatile byte[] snapshot;
+	/** The nano time of the last rendering */
+	private volatile long renderedAt;
+	/** The number of scrapes served */
+	private final AtomicLong scrapes = new AtomicLong(0L);
+	/** The number of renderings */
+	private final AtomicLong renders = new AtomicLong(0L);
+
+	/**
+	 * Creates a new MetricsEndpoint and renders the first snapshot
+	 * @param valve The valve the metrics are rendered from
+	 * @param path The reserved URI
+	 * @param intervalMs The minimum interval between renderings in ms
+	 * @param allow The remote addresses allowed to scrape, empty for any
+	 * @param port The connector port scrapes are answered on, 0 for any
+	 */
+	public MetricsEndpoint(final SecureCookies valve, final String path, final long intervalMs, final CidrTrie allow, final int port) {
+		if(valve==null) throw new IllegalArgumentException("The passed valve was null");
+		if(path==null || !path.startsWith("/")) throw new IllegalArgumentException("Invalid path [" + path + "]");
+		if(intervalMs < 1) throw new IllegalArgumentException("Invalid interval [" + intervalMs + "]");
+		if(allow==null) throw new IllegalArgumentException("The passed allowed addresses were null");
+		if(port < 0 || port > 65535) throw new IllegalArgumentException("Invalid port [" + port + "]");
+		this.valve = valve;
+		this.path = path;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+		this.allow = allow;
+		this.port = port;
+		render(buffer);
+		snapshot = Arrays.copyOf(buffer.array(), buffer.size());
+		renderedAt = System.nanoTime();
+		renders.incrementAndGet();
+	}
+
+	/**
+	 * Indicates if the passed request is a scrape of this endpoint: a GET or HEAD of the reserved URI, on the configured
+	 * connector port, from an allowed remote address. The URI comparison works on the undecoded request URI bytes and
+	 * allocates nothing, so only requests for the URI go on to the port and address checks.
+	 * @param request The request
+	 * @return true for an allowed scrape
+	 */
+	public boolean matches(final Request request) {
+		final org.apache.coyote.Request req = request.getCoyoteRequest();
+		if(!req.requestURI().equals(path) || !(req.method().equals("GET") || req.method().equals("HEAD"))) return false;
+		if(port!=0 && (request.getConnector()==null || request.getConnector().getPort()!=port)) return false;
+		return allow.isEmpty() || allow.contains(request.getRemoteAddr());
+	}
+
+	/**
+	 * Serves the current snapshot, rendering a new one first if the interval has passed and no other scrape is rendering
+	 * @param request The scrape request
+	 * @param response The response
+	 * @throws IOException thrown if the response cannot be written
+	 */
+	public void serve(final Request request, final Response response) throws IOException {
+		scrapes.incrementAndGet();
+		if(System.nanoTime() - renderedAt >= intervalNanos) refresh();
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(PrometheusText.CONTENT_TYPE);
+		final byte[] text = snapshot;
+		response.setContentLength(text.length);
+		if(!request.getCoyoteRequest().method().equals("HEAD")) response.getOutputStream().write(text, 0, text.length);
+	}
+
+	/**
+	 * Renders a new snapshot and publishes it, unless another scrape is already doing so
+	 */
+	private void refresh() {
+		if(!rendering.compareAndSet(false, true)) return;
+		try {
+			if(System.nanoTime() - renderedAt < intervalNanos) return;
+			buffer.reset();
+			render(buffer);
+			snapshot = Arrays.copyOf(buffer.array(), buffer.size());
+			renderedAt = System.nanoTime();
+			renders.incrementAndGet();
+		} finally {
+			rendering.set(false);
+		}
+	}
+
+	/**
+	 * Renders the valve's counters and histograms in the Prometheus text format
+	 * @param out The buffer to render into
+	 */
+	protected void render(final PrometheusText out) {
+		valve.metrics().render(out);
+		out.family("securecookies_cookie_header_rejections_total", "Requests rejected by the inbound Cookie header checks", "counter");
+		for(int i = 1; i < valve.cookieHeaderRejections.length(); i++) {
+			out.sample("securecookies_cookie_header_rejections_total", "reason", CookieHeaderScanner.reason(i), valve.cookieHeaderRejections.get(i));
+		}
+		out.counter("securecookies_signature_failures_total", "Signed cookies that failed verification", valve.getSignatureFailures());
+		out.counter("securecookies_decryption_failures_total", "Encrypted cookies that failed to decrypt", valve.getDecryptionFailures());
+		out.counter("securecookies_cookies_collapsed_total", "Set-Cookie headers collapsed into an earlier one for the same cookie", valve.getCookiesCollapsed());
+		out.counter("securecookies_render_cache_hits_total", "Cookie headers rendered from a cached attribute suffix", valve.getRenderCacheHits());
+		out.counter("securecookies_render_cache_misses_total", "Cookie headers whose attribute suffix was rendered and cached", valve.getRenderCacheMisses());
+		out.counter("securecookies_audit_log_written_total", "Cookie audit records written", valve.getAuditLogWritten());
+		out.counter("securecookies_audit_log_dropped_total", "Cookie audit records dropped", valve.getAuditLogDropped());
+		out.counter("securecookies_config_reloads_total", "Configuration changes applied", valve.getConfigReloads());
+		out.counter("securecookies_config_reload_failures_total", "Configuration changes rejected", valve.getConfigReloadFailures());
+		out.gauge("securecookies_config_version", "The version of the configuration in effect", valve.getConfigVersion());
+		out.counter("securecookies_metrics_scrapes_total", "Scrapes of the metrics endpoint", scrapes.get());
+	}
+
+	/**
+	 * Returns the reserved URI
+	 * @return the URI
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Returns the number of scrapes served
+	 * @return the scrape count
+	 */
+	public long getScrapes() {
+		return scrapes.get();
+	}
+
+	/**
+	 * Returns the number of renderings
+	 * @return the rendering count
+	 */
+	public long getRenders() {
+		return renders.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MetricsEndpoint [path:" + path + ", interval:" + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + "ms, allow:" + (allow.isEmpty() ? "any" : allow.getSpec()) + ", port:" + (port==0 ? "any" : String.valueOf(port)) + ", scrapes:" + scrapes.get() + ", renders:" + renders.get() + "]";
+	}
+}
@@ -0,0 +1,287 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.Arrays;
+
+/**
+ * <p>Title: PrometheusText</p>
+ * <p>Description: A reusable buffer that metrics are rendered into in the Prometheus text exposition format, version 0.0.4.
+ * Names, label values and numbers are written straight into the byte array as ASCII, so rendering allocates nothing once
+ * the buffer has grown to the size of the output. {@link LatencyHistogram}s are exposed as Prometheus histograms in
+ * seconds, with one cumulative bucket per power of 2 nanoseconds from about a microsecond up.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.PrometheusText</code></p>
+ */
+
+public class PrometheusText {
+	/** The content type of the format */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	/** The smallest histogram bucket bound exposed, in ns */
+	private static final long MIN_BOUND = 1023L;
+	/** The {@link LatencyHistogram} buckets that close a power of 2 and are exposed as bucket bounds */
+	private static final int[] BOUNDS;
+	/** The rendered <b><code>le</code></b> label of each exposed bound */
+	private static final byte[][] BOUND_LABELS;
+
+	static {
+		final int[] bounds = new int[LatencyHistogram.BUCKETS];
+		int n = 0;
+		// the last bucket takes everything above the largest bound and is covered by +Inf
+		for(int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+			final long hv = LatencyHistogram.highestValue(i);
+			if(hv >= MIN_BOUND && Long.bitCount(hv + 1L)==1) bounds[n++] = i;
+		}
+		BOUNDS = Arrays.copyOf(bounds, n);
+		BOUND_LABELS = new byte[n][];
+		final PrometheusText t = new PrometheusText(32);
+		for(int i = 0; i < n; i++) {
+			t.reset();
+			t.seconds(LatencyHistogram.highestValue(BOUNDS[i]));
+			BOUND_LABELS[i] = Arrays.copyOf(t.buf, t.size);
+		}
+	}
+
+	/** The buffer */
+	private byte[] buf;
+	/** The number of bytes rendered */
+	private int size = 0;
+
+	/**
+	 * Creates a new PrometheusText
+	 * @param capacity The initial capacity in bytes
+	 */
+	public PrometheusText(final int capacity) {
+		if(capacity < 1) throw new IllegalArgumentException("Invalid capacity [" + capacity + "]");
+		buf = new byte[capacity];
+	}
+
+	/**
+	 * Discards the rendered text, keeping the buffer
+	 * @return this buffer
+	 */
+	public PrometheusText reset() {
+		size = 0;
+		return this;
+	}
+
+	/**
+	 * Returns the buffer holding the rendered text
+	 * @return the buffer, valid up to {@link #size()}
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * Returns the number of bytes rendered
+	 * @return the size
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Writes the HELP and TYPE lines of a metric family
+	 * @param name The metric name
+	 * @param help The help text
+	 * @param type The metric type: <b><code>counter</code></b>, <b><code>gauge</code></b> or <b><code>histogram</code></b>
+	 * @return this buffer
+	 */
+	public PrometheusText family(final String name, final String help, final String type) {
+		ascii("# HELP ").ascii(name).put(' ').ascii(help).put('\n');
+		return ascii("# TYPE ").ascii(name).put(' ').ascii(type).put('\n');
+	}
+
+	/**
+	 * Writes an unlabelled sample
+	 * @param name The metric name
+	 * @param value The value
+	 * @return this buffer
+	 */
+	public PrometheusText sample(final String name, final long value) {
+		return ascii(name).put(' ').number(value).put('\n');
+	}
+
+	/**
+	 * Writes a sample with one label
+	 * @param name The metric name
+	 * @param label The label name
+	 * @param labelValue The label value
+	 * @param value The value
+	 * @return this buffer
+	 */
+	public PrometheusText sample(final String name, final String label, final String labelValue, final long value) {
+		ascii(name).put('{').ascii(label).put('=').put('"');
+		escaped(labelValue);
+		return put('"').put('}').put(' ').number(value).put('\n');
+	}
+
+	/**
+	 * Writes a counter family with a single sample
+	 * @param name The metric name, ending in <b><code>_total</code></b>
+	 * @param help The help text
+	 * @param value The value
+	 * @return this buffer
+	 */
+	public PrometheusText counter(final String name, final String help, final long value) {
+		return family(name, help, "counter").sample(name, value);
+	}
+
+	/**
+	 * Writes a gauge family with a single sample
+	 * @param name The metric name
+	 * @param help The help text
+	 * @param value The value
+	 * @return this buffer
+	 */
+	public PrometheusText gauge(final String name, final String help, final long value) {
+		return family(name, help, "gauge").sample(name, value);
+	}
+
+	/**
+	 * Writes a {@link LatencyHistogram} as a histogram family in seconds
+	 * @param name The metric name, ending in <b><code>_seconds</code></b>
+	 * @param help The help text
+	 * @param sums The summed histogram slots
+	 * @param offset The offset of the histogram in the slots
+	 * @return this buffer
+	 */
+	public PrometheusText histogram(final String name, final String help, final long[] sums, final int offset) {
+		family(name, help, "histogram");
+		long cumulative = 0L;
+		int bucket = 0;
+		for(int i = 0; i < BOUNDS.length; i++) {
+			for(; bucket <= BOUNDS[i]; bucket++) cumulative += sums[offset + bucket];
+			ascii(name).ascii("_bucket{le=\"").bytes(BOUND_LABELS[i]).put('"').put('}').put(' ').number(cumulative).put('\n');
+		}
+		for(; bucket < LatencyHistogram.BUCKETS; bucket++) cumulative += sums[offset + bucket];
+		ascii(name).ascii("_bucket{le=\"+Inf\"} ").number(cumulative).put('\n');
+		ascii(name).ascii("_sum ").seconds(sums[offset + LatencyHistogram.SUM]).put('\n');
+		return ascii(name).ascii("_count ").number(cumulative).put('\n');
+	}
+
+	/**
+	 * Writes a duration in seconds, as a decimal with up to 9 fraction digits
+	 * @param nanos The duration in ns
+	 * @return this buffer
+	 */
+	public PrometheusText seconds(final long nanos) {
+		number(nanos / 1000000000L);
+		long frac = nanos % 1000000000L;
+		if(frac==0L) return this;
+		put('.');
+		int digits = 9;
+		while(frac % 10L==0L) {
+			frac /= 10L;
+			digits--;
+		}
+		for(long div = pow10(digits - 1); div > 0L; div /= 10L) put((char)('0' + (frac / div) % 10L));
+		return this;
+	}
+
+	private static long pow10(final int exp) {
+		long p = 1L;
+		for(int i = 0; i < exp; i++) p *= 10L;
+		return p;
+	}
+
+	/**
+	 * Writes a decimal number
+	 * @param value The number
+	 * @return this buffer
+	 */
+	public PrometheusText number(final long value) {
+		if(value==Long.MIN_VALUE) return ascii(String.valueOf(value));
+		long v = value;
+		if(v < 0L) {
+			put('-');
+			v = -v;
+		}
+		int digits = 1;
+		for(long t = v; t >= 10L; t /= 10L) digits++;
+		ensure(digits);
+		for(int i = size + digits - 1; i >= size; i--) {
+			buf[i] = (byte)('0' + v % 10L);
+			v /= 10L;
+		}
+		size += digits;
+		return this;
+	}
+
+	/**
+	 * Writes a string as ASCII, replacing other characters with <b><code>?</code></b>
+	 * @param s The string
+	 * @return this buffer
+	 */
+	private PrometheusText ascii(final String s) {
+		final int len = s.length();
+		ensure(len);
+		for(int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			buf[size++] = (byte)(c < 0x80 ? c : '?');
+		}
+		return this;
+	}
+
+	/**
+	 * Writes a label value, escaping backslashes, double quotes and line feeds
+	 * @param s The label value
+	 */
+	private void escaped(final String s) {
+		final int len = s.length();
+		for(int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			if(c=='\\' || c=='"') {
+				put('\\').put(c);
+			} else if(c=='\n') {
+				put('\\').put('n');
+			} else {
+				put(c < 0x80 ? c : '?');
+			}
+		}
+	}
+
+	private PrometheusText bytes(final byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, size, b.length);
+		size += b.length;
+		return this;
+	}
+
+	private PrometheusText put(final char c) {
+		ensure(1);
+		buf[size++] = (byte)c;
+		return this;
+	}
+
+	private void ensure(final int extra) {
+		if(size + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new String(buf, 0, size, SetCookieScanner.ISO_8859_1);
+	}
+}
@@ -0,0 +1,71 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import org.apache.catalina.connector.Request;
+
+/**
+ * <p>Title: RequestDescription</p>
+ * <p>Description: A log argument describing a request as <b><code>METHOD uri[?query]</code></b>.
+ * Creating one only captures the request; the description is built the first time {@link #toString()}
+ * is called, so passing it to a logger costs nothing unless the message is actually written.
+ * The description should be rendered while the request is being processed, before it is recycled.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.RequestDescription</code></p>
+ */
+
+public final class RequestDescription {
+	/** The described request */
+	private final Request request;
+	/** The rendered description */
+	private String description = null;
+
+	/**
+	 * Creates a new RequestDescription
+	 * @param request The request to describe
+	 */
+	public RequestDescription(final Request request) {
+		this.request = request;
+	}
+
+	/**
+	 * Renders the passed request
+	 * @param request The request to describe
+	 * @return the description
+	 */
+	public static String describe(final Request request) {
+		if(request==null) return "[null]";
+		final String query = request.getQueryString();
+		final StringBuilder b = new StringBuilder(64);
+		b.append(request.getMethod()).append(' ').append(request.getRequestURI());
+		if(query!=null) b.append('?').append(query);
+		return b.toString();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		if(description==null) description = describe(request);
+		return description;
+	}
+}
@@ -0,0 +1,74 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * <p>Title: ResponseInterceptor</p>
+ * <p>Description: A response level concern hosted by the valve's single {@link WrappedResponse}, so that several policies
+ * share one wrap instead of each stacking its own wrapper. Implementations are discovered with {@link java.util.ServiceLoader}
+ * through a <b><code>META-INF/services/com.heliosapm.tomcat.valve.security.ResponseInterceptor</code></b> entry, and the ones
+ * named in the valve's <b><code>interceptors</code></b> setting are called in that order. One instance serves every request,
+ * so implementations must be thread safe. Extend {@link ResponseInterceptorSupport} to implement only some callbacks.</p>
+ * <p>The callbacks are made with the wrapper engine only. Interceptors run before the valve's own cookie handling, so a cookie
+ * an interceptor lets through is still secured, signed or encrypted as configured. To add headers without calling back into
+ * the chain, use {@link WrappedResponse#getDelegate()}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ResponseInterceptor</code></p>
+ */
+
+public interface ResponseInterceptor {
+	/**
+	 * Returns the name the interceptor is selected by in the valve's <b><code>interceptors</code></b> setting
+	 * @return the interceptor name
+	 */
+	public String getName();
+
+	/**
+	 * Called when the response is wrapped, before the request goes downstream
+	 * @param response The wrapped response
+	 */
+	public void begin(WrappedResponse response);
+
+	/**
+	 * Called for each cookie added to the response, including session cookies
+	 * @param response The wrapped response
+	 * @param cookie The cookie, which may be modified
+	 * @return true to add the cookie, false to drop it
+	 */
+	public boolean cookie(WrappedResponse response, Cookie cookie);
+
+	/**
+	 * Called for each String header added or set on the response, including raw <b><code>Set-Cookie</code></b> headers.
+	 * Date and int headers are not passed.
+	 * @param response The wrapped response
+	 * @param name The header name
+	 * @param value The header value
+	 * @return the value to add or set, or null to drop the header
+	 */
+	public String header(WrappedResponse response, String name, String value);
+
+	/**
+	 * Called when the request comes back from downstream, before the response is unwrapped
+	 * @param response The wrapped response
+	 */
+	public void end(WrappedResponse response);
+}
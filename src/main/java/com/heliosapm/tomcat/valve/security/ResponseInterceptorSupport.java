@@ -0,0 +1,86 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * <p>Title: ResponseInterceptorSupport</p>
+ * <p>Description: A {@link ResponseInterceptor} whose callbacks change nothing, named after its class</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ResponseInterceptorSupport</code></p>
+ */
+
+public abstract class ResponseInterceptorSupport implements ResponseInterceptor {
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ResponseInterceptor#getName()
+	 */
+	@Override
+	public String getName() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ResponseInterceptor#begin(com.heliosapm.tomcat.valve.security.WrappedResponse)
+	 */
+	@Override
+	public void begin(final WrappedResponse response) {
+		/* No Op */
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ResponseInterceptor#cookie(com.heliosapm.tomcat.valve.security.WrappedResponse, javax.servlet.http.Cookie)
+	 */
+	@Override
+	public boolean cookie(final WrappedResponse response, final Cookie cookie) {
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ResponseInterceptor#header(com.heliosapm.tomcat.valve.security.WrappedResponse, java.lang.String, java.lang.String)
+	 */
+	@Override
+	public String header(final WrappedResponse response, final String name, final String value) {
+		return value;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ResponseInterceptor#end(com.heliosapm.tomcat.valve.security.WrappedResponse)
+	 */
+	@Override
+	public void end(final WrappedResponse response) {
+		/* No Op */
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
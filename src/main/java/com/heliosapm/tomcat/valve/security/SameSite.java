@@ -0,0 +1,93 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>Title: SameSite</p>
+ * <p>Description: Enumerates the SameSite cookie attribute values, in increasing order of strictness</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.SameSite</code></p>
+ */
+
+public enum SameSite {
+	/** Cookies are sent on all requests */
+	NONE("None"),
+	/** Cookies are sent on same site requests and top level navigations */
+	LAX("Lax"),
+	/** Cookies are only sent on same site requests */
+	STRICT("Strict");
+
+	private SameSite(final String value) {
+		this.value = value;
+		this.attribute = ("; SameSite=" + value).getBytes(Charset.forName("ISO-8859-1"));
+	}
+
+	/** The attribute value as it is rendered */
+	public final String value;
+	/** The encoded attribute, including the leading separator */
+	private final byte[] attribute;
+
+	/**
+	 * Returns the encoded attribute, including the leading separator.
+	 * The returned array is shared and must not be modified.
+	 * @return the encoded attribute
+	 */
+	public byte[] attribute() {
+		return attribute;
+	}
+
+	/**
+	 * Returns the stricter of this and the passed SameSite
+	 * @param other The other SameSite, or null
+	 * @return the stricter SameSite
+	 */
+	public SameSite stricter(final SameSite other) {
+		return (other==null || other.ordinal() < ordinal()) ? this : other;
+	}
+
+	/**
+	 * Returns the SameSite whose {@link #attribute()} is the passed array
+	 * @param attribute An array returned by {@link #attribute()}, or null
+	 * @return the SameSite or null if the array is not one of ours
+	 */
+	public static SameSite forAttribute(final byte[] attribute) {
+		if(attribute==null) return null;
+		if(attribute==LAX.attribute) return LAX;
+		if(attribute==STRICT.attribute) return STRICT;
+		if(attribute==NONE.attribute) return NONE;
+		return null;
+	}
+
+	/**
+	 * Decodes the passed value to a SameSite
+	 * @param value The value (case insensitive)
+	 * @return the decoded SameSite or null if the passed value was null or empty
+	 */
+	public static SameSite decode(final String value) {
+		if(value==null || value.trim().isEmpty()) return null;
+		final String v = value.trim();
+		for(SameSite s: values()) {
+			if(s.value.equalsIgnoreCase(v)) return s;
+		}
+		throw new IllegalArgumentException("Invalid SameSite value [" + value + "]");
+	}
+}
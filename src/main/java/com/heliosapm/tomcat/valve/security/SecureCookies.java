@@ -18,15 +18,24 @@ under the License.
  */
 package com.heliosapm.tomcat.valve.security;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.servlet.ServletException;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
 
+import org.apache.catalina.CometEvent;
+import org.apache.catalina.Context;
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
@@ -34,6 +43,7 @@ import org.apache.catalina.connector.Connector;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
+import org.apache.tomcat.util.http.Cookies;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,18 +56,43 @@ import org.slf4j.LoggerFactory;
  */
 
 public class SecureCookies extends ValveBase implements Lifecycle {
+	/** The default configuration file poll interval in ms */
+	public static final long DEFAULT_CONFIG_WATCH_INTERVAL = 5000L;
+	/** The request note a comet request's response wrapper is kept in for the events of its connection */
+	public static final String WRAPPER_NOTE = "com.heliosapm.tomcat.valve.security.WrappedResponse";
 	/** Instance logger */
 	protected final Logger log = LoggerFactory.getLogger(getClass());
 	/** Lifecycle listeners */
 	protected final Set<LifecycleListener> listeners = new CopyOnWriteArraySet<LifecycleListener>();
 	
-	/** The MBeanServer this valve is registered in */
-	protected MBeanServer server = null;
-	/** This valve's JMX ObjectName */
-	protected ObjectName objectName = null;
-	
-	/** The valce enabled flag */
-	protected final AtomicBoolean enabled = new AtomicBoolean(true);	
+	/** Where this valve and its metrics are registered in JMX */
+	protected final ValveRegistration registration = new ValveRegistration();
+	/** The configuration snapshot, its changes and the configuration file */
+	protected final ValveConfigManager configs = new ValveConfigManager(this);
+	/** The per thread pool of recyclable response wrappers */
+	protected final WrappedResponsePool wrapperPool = new WrappedResponsePool();
+	/** The open binary cookie audit log, or null */
+	protected volatile CookieAuditLog auditLog = null;
+	/** The number of requests rejected by the inbound Cookie header checks, indexed by {@link CookieHeaderScanner} result */
+	protected final AtomicLongArray cookieHeaderRejections = new AtomicLongArray(CookieHeaderScanner.reasons());
+	/** The number of signed cookies that failed verification */
+	protected final AtomicLong signatureFailures = new AtomicLong(0L);
+	/** The number of encrypted cookies that failed to decrypt */
+	protected final AtomicLong decryptionFailures = new AtomicLong(0L);
+	/** The number of Set-Cookie headers collapsed into an earlier one for the same cookie */
+	protected final AtomicLong cookiesCollapsed = new AtomicLong(0L);
+	/** The per context distributions of Set-Cookie bytes per response */
+	protected final CookieBudgetStats cookieBudgetStats = new CookieBudgetStats();
+	/** The request, cookie and latency metrics */
+	protected final ValveMetrics metrics = new ValveMetrics();
+	/** Indicates if the valve has been started */
+	protected final AtomicBoolean started = new AtomicBoolean(false);
+	/** The level the valve currently operates at, read once per request */
+	protected volatile ValveLevel level = ValveLevel.FULL;
+	/** The degradation controller, or null */
+	protected DegradationController degradationController = null;
+	/** The Prometheus text metrics endpoint, or null */
+	protected volatile MetricsEndpoint metricsEndpoint = null;
 	
 	
 	/**
@@ -67,7 +102,18 @@ public class SecureCookies extends ValveBase implements Lifecycle {
 	@Override
 	public void start() throws LifecycleException {
 		log.info(">>>>> Starting SecureCookies Valve.....");
-		
+		final String cf = configs.getConfigFile();
+		if(cf!=null) {
+			try {
+				configs.load(new File(cf));
+			} catch (Exception ex) {
+				throw new LifecycleException("Failed to load the config file [" + cf + "]", ex);
+			}
+		}
+		started.set(true);
+		openAuditLog();
+		configs.startWatching();
+		startDegradationController();
 		log.info("<<<<< Started SecureCookies Valve");
 	}
 
@@ -78,7 +124,12 @@ public class SecureCookies extends ValveBase implements Lifecycle {
 	@Override
 	public void stop() throws LifecycleException {
 		log.info(">>>>> Stopping SecureCookies Valve.....");
-		
+		started.set(false);
+		configs.stopWatching();
+		stopDegradationController();
+		closeAuditLog();
+		final ContextPolicyTable cpt = config().getContextPolicies();
+		if(cpt!=null) cpt.clear();
 		log.info("<<<<< Stopped SecureCookies Valve");		
 	}
 
@@ -97,46 +148,563 @@ public class SecureCookies extends ValveBase implements Lifecycle {
 	 */
 	@Override
 	public void invoke(final Request request, final Response response) throws IOException, ServletException {
-		final String req = request.getPathInfo() + "/" + request.getContextPath()  + "/" + request.getQueryString();
+		final long start = System.nanoTime();
+		long downstream = 0L;
+		int seen = 0, modified = 0;
+		boolean error = true;
+		final ValveConfig cfg = config();
+		final boolean bypassed = cfg.isEnabled() && cfg.getBypass().matches(request.getCoyoteRequest());
+		// the endpoint stays up at every level, so the degradation can be watched
+		final MetricsEndpoint me = metricsEndpoint;
+		if(me!=null && cfg.isEnabled() && !bypassed && me.matches(request)) {
+			me.serve(request, response);
+			return;
+		}
+		final ValveLevel lvl = level;
+		final boolean degraded = cfg.isEnabled() && !bypassed && lvl!=ValveLevel.FULL;
 		try {
-			if(enabled.get()) {
-				 log.info("Executing [{}]", req);
-				 final Response wrappedResponse = WrappedResponse.wrap(response);
-				 request.setResponse(wrappedResponse);
-				 getNext().invoke(request, wrappedResponse);
+			if(cfg.isEnabled() && !bypassed && lvl!=ValveLevel.PASSTHROUGH) {
+				 // the essential level keeps the mandatory flags and the cookie values, and sheds the rest
+				 final boolean full = lvl==ValveLevel.FULL;
+				 if(cfg.isRequestLogging() && log.isDebugEnabled()) log.debug("Executing [{}]", new RequestDescription(request));
+				 if(cfg.isCookieHeaderChecked()) {
+					 final int result = CookieHeaderScanner.check(request.getCoyoteRequest().getMimeHeaders(), cfg.getMaxCookieSize(), cfg.getMaxCookieCount(), cfg.getMaxCookieHeaderSize());
+					 if(result!=CookieHeaderScanner.OK) {
+						 cookieHeaderRejections.incrementAndGet(result);
+						 if(log.isDebugEnabled()) log.debug("Rejecting [{}]: {}", new RequestDescription(request), CookieHeaderScanner.reason(result));
+						 response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+						 error = false;
+						 return;
+					 }
+				 }
+				 if((cfg.getSigner()!=null || cfg.getEncryptor()!=null) && !unsealCookies(cfg, request)) {
+					 response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					 error = false;
+					 return;
+				 }
+				 final ContextPolicy cp = cfg.getContextPolicy(request.getContext());
+				 if(cfg.getEngine()==CookieEngine.HEADER) {
+					 final SetCookieCommitHook hook = SetCookieCommitHook.install(response.getCoyoteResponse());
+					 hook.begin(full ? cfg.getPolicies() : CookiePolicySet.EMPTY, request.getContext(), cp.requiredAttributes(ForwardedProto.isSecure(request, cfg.getTrustedProxies())), cp.getSameSiteAttribute());
+					 hook.setAuditLog(full ? auditLog : null);
+					 final long ds = System.nanoTime();
+					 try {
+						 getNext().invoke(request, response);
+					 } finally {
+						 downstream = System.nanoTime() - ds;
+						 // AJP commits on completion without calling the hook
+						 hook.rewrite();
+						 seen = hook.getCookiesSeen();
+						 modified = hook.getCookiesModified();
+					 }
+				 } else {
+					 SetCookieCommitHook.disarm(response.getCoyoteResponse());
+					 final boolean recycling = cfg.isRecycleWrappers();
+					 final Response wrapped = recycling ? wrapperPool.acquire(response) : WrappedResponse.wrap(response);
+					 // a response wrapped further up the pipeline is left to the valve that wrapped it
+					 final WrappedResponse wr = wrapped==response ? null : (WrappedResponse)wrapped;
+					 if(wr!=null) {
+						 try {
+							 wr.configure(cfg, cp, ForwardedProto.isSecure(request, cfg.getTrustedProxies()), full, auditLog);
+						 } catch (RuntimeException re) {
+							 // the wrapper never reached the request, so it goes straight back to the pool
+							 if(recycling) wrapperPool.release(wr);
+							 throw re;
+						 }
+					 }
+					 request.setResponse(wrapped);
+					 long ds = System.nanoTime();
+					 try {
+						 if(wr!=null && wr.beginInterceptors()) ds = System.nanoTime();
+						 getNext().invoke(request, wrapped);
+					 } finally {
+						 downstream = System.nanoTime() - ds;
+						 if(wr!=null) {
+							 try {
+								 wr.endInterceptors();
+							 } finally {
+								 seen = wr.getCookiesSeen();
+								 modified = wr.getCookiesModified();
+								 request.setResponse(response);
+								 if(request.isComet()) {
+									 // the wrapper lives as long as the connection and is reused by each of its events
+									 request.setNote(WRAPPER_NOTE, wr);
+								 } else {
+									 finishWrapper(cfg, request, wr);
+									 if(recycling) wrapperPool.release(wr);
+								 }
+							 }
+						 }
+					 }
+				 }
 			} else {
-				log.info("SecureCookies disabled. Skipping.");
-				getNext().invoke(request, response);
+				if(cfg.isRequestLogging() && log.isDebugEnabled()) log.debug(bypassed ? "Bypassing [{}]" : degraded ? "SecureCookies passing through. Skipping [{}]" : "SecureCookies disabled. Skipping [{}]", new RequestDescription(request));
+				SetCookieCommitHook.disarm(response.getCoyoteResponse());
+				// a bypassed request still has its cookies verified and decrypted, so the application never sees a sealed value
+				if(bypassed && (cfg.getSigner()!=null || cfg.getEncryptor()!=null) && !unsealCookies(cfg, request)) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					error = false;
+					return;
+				}
+				final long ds = System.nanoTime();
+				try {
+					getNext().invoke(request, response);
+				} finally {
+					downstream = System.nanoTime() - ds;
+				}
 			}
+			error = false;
 		} catch (IOException ioe) {
-			log.error("Valve IOException on [{}]", req, ioe);
+			log.error("Valve IOException on [{}]", new RequestDescription(request), ioe);
 			throw ioe;
 		} catch (ServletException se) {
-			log.error("Valve ServletException on [{}]", req, se);
+			log.error("Valve ServletException on [{}]", new RequestDescription(request), se);
 			throw se;
 		} catch (Exception ex) {
-			log.error("Valve Unexpected Exception on [{}]", req, ex);
+			log.error("Valve Unexpected Exception on [{}]", new RequestDescription(request), ex);
 			throw new RuntimeException(ex);
+		} finally {
+			metrics.record(System.nanoTime() - start - downstream, downstream, seen, modified, error, bypassed, degraded);
+		}
+	}
+	
+	/**
+	 * Routes a comet event through the response wrapper its connection was given in {@link #invoke(Request, Response)},
+	 * kept in the {@link #WRAPPER_NOTE} request note, so cookies set while handling events are secured too.
+	 * The wrapper is released after the connection's END or ERROR event. Events of requests that were not wrapped pass through.
+	 * Dispatch looks up the note and allocates nothing.
+	 * @param request The request
+	 * @param response The response
+	 * @param event The comet event
+	 * @throws IOException thrown on an I/O error downstream
+	 * @throws ServletException thrown on a servlet error downstream
+	 * @see org.apache.catalina.valves.ValveBase#event(org.apache.catalina.connector.Request, org.apache.catalina.connector.Response, org.apache.catalina.CometEvent)
+	 */
+	@Override
+	public void event(final Request request, final Response response, final CometEvent event) throws IOException, ServletException {
+		final WrappedResponse wr = (WrappedResponse)request.getNote(WRAPPER_NOTE);
+		if(wr==null) {
+			getNext().event(request, response, event);
+			return;
+		}
+		final CometEvent.EventType type = event.getEventType();
+		final int seen = wr.getCookiesSeen(), modified = wr.getCookiesModified();
+		request.setResponse(wr);
+		try {
+			getNext().event(request, wr, event);
+		} finally {
+			request.setResponse(response);
+			wr.recordInterceptors();
+			metrics.recordEvent(wr.getCookiesSeen() - seen, wr.getCookiesModified() - modified);
+			if(type==CometEvent.EventType.END || type==CometEvent.EventType.ERROR) {
+				request.removeNote(WRAPPER_NOTE);
+				finishWrapper(config(), request, wr);
+				wrapperPool.release(wr);
+			}
+		}
+	}
+	
+	/**
+	 * Records the per response counters of a wrapper that is done with its response
+	 * @param cfg The configuration snapshot
+	 * @param request The request
+	 * @param wr The wrapper
+	 */
+	protected void finishWrapper(final ValveConfig cfg, final Request request, final WrappedResponse wr) {
+		final int collapsed = wr.getCookiesCollapsed();
+		if(collapsed!=0) cookiesCollapsed.addAndGet(collapsed);
+		if(cfg.isCookieBudget()) recordCookieBudget(request, wr);
+	}
+	
+	/**
+	 * Records the Set-Cookie bytes of a budgeted response that set or dropped cookies
+	 * @param request The request
+	 * @param response The wrapped response
+	 */
+	protected void recordCookieBudget(final Request request, final WrappedResponse response) {
+		if(response.getCookieCount()==0 && response.getCookiesDropped()==0) return;
+		final Context ctx = request.getContext();
+		cookieBudgetStats.record(ctx==null ? null : ctx.getPath(), response.getCookieBytes(), response.isOverBudget(), response.getCookiesDropped());
+	}
+	
+	/**
+	 * Verifies the request's signed cookies and decrypts its encrypted ones in place, before catalina parses them.
+	 * Cookies that fail are removed from the request unless the configuration rejects such requests.
+	 * @param cfg The configuration
+	 * @param request The request
+	 * @return false if the request must be rejected
+	 */
+	protected boolean unsealCookies(final ValveConfig cfg, final Request request) {
+		final Cookies cookies = request.getCoyoteRequest().getCookies();
+		List<String> failed = null;
+		final CookieSigner signer = cfg.getSigner();
+		if(signer!=null) {
+			failed = signer.verify(cookies, failed);
+			if(failed!=null) {
+				signatureFailures.addAndGet(failed.size() / 2);
+				if(cfg.isSignatureReject()) {
+					if(log.isDebugEnabled()) log.debug("Rejecting [{}] with bad cookie signatures", new RequestDescription(request));
+					return false;
+				}
+			}
+		}
+		final CookieEncryptor encryptor = cfg.getEncryptor();
+		if(encryptor!=null) {
+			final int before = failed==null ? 0 : failed.size();
+			failed = encryptor.decrypt(cookies, failed);
+			final int undecrypted = (failed==null ? 0 : failed.size()) - before;
+			if(undecrypted > 0) {
+				decryptionFailures.addAndGet(undecrypted / 2);
+				if(cfg.isDecryptionReject()) {
+					if(log.isDebugEnabled()) log.debug("Rejecting [{}] with undecryptable cookies", new RequestDescription(request));
+					return false;
+				}
+			}
+		}
+		if(failed!=null) stripCookies(request, failed);
+		return true;
+	}
+	
+	/**
+	 * Removes the cookies that failed verification or decryption from the request
+	 * @param request The request
+	 * @param failed The failed cookies' names and raw values, in pairs
+	 */
+	protected static void stripCookies(final Request request, final List<String> failed) {
+		final Cookie[] cookies = request.getCookies();
+		if(cookies==null) return;
+		final List<Cookie> kept = new ArrayList<Cookie>(cookies.length);
+		outer:
+		for(Cookie c: cookies) {
+			for(int i = 0; i < failed.size(); i += 2) {
+				if(failed.get(i).equals(c.getName()) && failed.get(i + 1).equals(c.getValue())) continue outer;
+			}
+			kept.add(c);
+		}
+		request.setCookies(kept.isEmpty() ? null : kept.toArray(new Cookie[kept.size()]));
+	}
+	
+	/**
+	 * Swaps what depends on the configuration when a new snapshot is applied, without I/O or threads.
+	 * Called by the {@link ValveConfigManager} while it holds its lock.
+	 * @param current The snapshot replaced
+	 * @param next The snapshot applied
+	 */
+	void configApplied(final ValveConfig current, final ValveConfig next) {
+		metrics.setInterceptors(next.getInterceptors());
+		if(next.getPolicies()!=current.getPolicies()) log.info("Compiled Cookie Policies: {}", next.getPolicies());
+		if(current.getContextPolicies()!=null && next.getContextPolicies()!=current.getContextPolicies()) current.getContextPolicies().close();
+	}
+	
+	/**
+	 * Opens or restarts the audit log, the metrics endpoint and the degradation controller when their settings changed.
+	 * Called by the {@link ValveConfigManager} after it released its lock, one thread at a time, with the latest snapshot.
+	 * @param previous The last snapshot settled on
+	 * @param next The latest snapshot
+	 */
+	void configSettled(final ValveConfig previous, final ValveConfig next) {
+		if(started.get() && next.auditLogChanged(previous)) openAuditLog();
+		if(next.metricsEndpointChanged(previous)) {
+			metricsEndpoint = next.getMetricsPath()==null ? null : new MetricsEndpoint(this, next.getMetricsPath(), next.getMetricsInterval(), next.getMetricsAllow(), next.getMetricsPort());
+			log.info("Metrics endpoint: {}", metricsEndpoint);
+		}
+		if(next.degradeChanged(previous)) {
+			changeLevel(next.getLevel(), "configuration version " + next.getVersion());
+			if(started.get()) startDegradationController();
+		}
+	}
+	
+	/**
+	 * Applies one configuration change made through a valve attribute, which keeps overriding the configuration file
+	 * @param key The key
+	 * @param value The new value
+	 */
+	protected void apply(final String key, final Object value) {
+		configs.apply(key, value);
+	}
+	
+	/**
+	 * Starts the degradation controller if degradation is enabled, replacing a running one
+	 */
+	protected synchronized void startDegradationController() {
+		stopDegradationController();
+		final ValveConfig cfg = config();
+		if(!cfg.isDegrade() || !started.get()) return;
+		degradationController = new DegradationController(this, cfg).start();
+	}
+	
+	/**
+	 * Stops the degradation controller. The valve stays at the level the controller left it at until the next configuration change.
+	 */
+	protected synchronized void stopDegradationController() {
+		final DegradationController dc = degradationController;
+		degradationController = null;
+		if(dc!=null) dc.stop();
+	}
+	
+	/**
+	 * Moves the valve to the passed level. Lowering the level is logged as a warning, and passing through as a warning that
+	 * the mandatory cookie flags are no longer applied, so no flag is ever dropped silently. Each change is sent as a
+	 * JMX notification by the metrics MBean.
+	 * @param to The new level
+	 * @param reason Why the level changed
+	 */
+	protected synchronized void changeLevel(final ValveLevel to, final String reason) {
+		final ValveLevel from = level;
+		if(from==to) return;
+		level = to;
+		if(to==ValveLevel.PASSTHROUGH) {
+			log.warn("SecureCookies passing through, mandatory cookie flags are NOT applied: {} -> {} ({})", new Object[]{from.name().toLowerCase(), to.name().toLowerCase(), reason});
+		} else if(to.isAtOrBelow(from)) {
+			log.warn("SecureCookies degraded, per cookie policies, auditing, interceptors, budgets and deduplication are shed: {} -> {} ({})", new Object[]{from.name().toLowerCase(), to.name().toLowerCase(), reason});
+		} else {
+			log.info("SecureCookies recovered: {} -> {} ({})", new Object[]{from.name().toLowerCase(), to.name().toLowerCase(), reason});
+		}
+		metrics.levelChanged(from, to, reason);
+	}
+	
+	/**
+	 * Moves the valve to the passed level on behalf of a degradation controller, unless the controller has been replaced or stopped since
+	 * @param dc The controller
+	 * @param to The new level
+	 * @param reason Why the level changed
+	 */
+	synchronized void changeLevel(final DegradationController dc, final ValveLevel to, final String reason) {
+		if(degradationController==dc) changeLevel(to, reason);
+	}
+	
+	/**
+	 * Returns the level the valve currently operates at
+	 * @return the current level
+	 */
+	ValveLevel currentLevel() {
+		return level;
+	}
+	
+	/**
+	 * Creates a sampler of the connector thread pools in this valve's JMX domain, or of any domain if the valve is not registered
+	 * @return the sampler
+	 */
+	ConnectorSaturation connectorSaturation() {
+		return registration.connectorSaturation();
+	}
+	
+	/**
+	 * Opens the binary cookie audit log if a directory is configured
+	 */
+	protected synchronized void openAuditLog() {
+		closeAuditLog();
+		final ValveConfig cfg = config();
+		final String dir = cfg.getAuditLog();
+		if(dir==null) return;
+		try {
+			auditLog = CookieAuditLog.open(new File(dir), cfg.getAuditLogBufferSize(), cfg.getAuditLogSegmentSize(), cfg.getAuditLogSegments());
+			log.info("Opened Cookie Audit Log: {}", auditLog);
+		} catch (Exception ex) {
+			log.error("Failed to open the cookie audit log in [{}]. Cookie auditing is disabled.", dir, ex);
 		}
 	}
 	
+	/**
+	 * Closes the binary cookie audit log if it is open
+	 */
+	protected synchronized void closeAuditLog() {
+		final CookieAuditLog al = auditLog;
+		if(al==null) return;
+		auditLog = null;
+		al.close();
+		log.info("Closed Cookie Audit Log: {}, written: {}, dropped: {}", new Object[]{al, al.getWritten(), al.getDropped()});
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see org.apache.catalina.valves.ValveBase#preRegister(javax.management.MBeanServer, javax.management.ObjectName)
 	 */
 	@Override
 	public ObjectName preRegister(final MBeanServer server, final ObjectName name) throws Exception {
-		this.objectName = name;
-		this.server = server;
+		registration.preRegister(server, name);
 		return super.preRegister(server, name);
 	}
 	
+	/**
+	 * Registers the valve metrics MBean alongside this valve. See {@link ValveRegistration}.
+	 * @see org.apache.catalina.valves.ValveBase#postRegister(java.lang.Boolean)
+	 */
+	@Override
+	public void postRegister(final Boolean registrationDone) {
+		super.postRegister(registrationDone);
+		if(Boolean.TRUE.equals(registrationDone)) registration.registerMetrics(metrics);
+	}
+	
+	/**
+	 * Unregisters the valve metrics MBean
+	 * @see org.apache.catalina.valves.ValveBase#postDeregister()
+	 */
+	@Override
+	public void postDeregister() {
+		registration.unregisterMetrics();
+		super.postDeregister();
+	}
+	
+	/**
+	 * Returns the valve metrics
+	 * @return the valve metrics
+	 */
+	public ValveMetrics metrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Resets the valve metrics
+	 */
+	public void resetMetrics() {
+		metrics.reset();
+	}
+	
+	/**
+	 * Returns the current configuration snapshot
+	 * @return the configuration snapshot
+	 */
+	public ValveConfig config() {
+		return configs.config();
+	}
+	
+	/**
+	 * Returns the current configuration in properties format
+	 * @return the configuration
+	 */
+	public String getConfig() {
+		return config().toString();
+	}
+	
+	/**
+	 * Applies configuration changes in properties format. Keys not in the text keep their current values, and the
+	 * applied values override the configuration file like attributes do.
+	 * @param properties The changes in properties format
+	 * @return the version of the applied configuration
+	 */
+	public long applyConfig(final String properties) {
+		return configs.applyConfig(properties);
+	}
+	
+	/**
+	 * Drops the values set through valve attributes and JMX, which override the configuration file, and reloads the file,
+	 * or reverts to the defaults if none is set. Values from <b><code>server.xml</code></b> are dropped too, until Tomcat restarts.
+	 * @return the version of the applied configuration
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	public long clearConfigOverrides() throws IOException {
+		return configs.clearOverrides();
+	}
+	
+	/**
+	 * Returns the keys set through valve attributes or JMX, which override the configuration file
+	 * @return the overridden keys, comma separated
+	 */
+	public String getConfigOverrides() {
+		final StringBuilder b = new StringBuilder();
+		for(String key: configs.getOverrides()) {
+			if(b.length() > 0) b.append(", ");
+			b.append(key);
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * Reloads the configuration file. Keys not in the file take their defaults, unless set through a valve attribute.
+	 * @return the version of the applied configuration
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	public long reloadConfig() throws IOException {
+		return configs.reload();
+	}
+	
+	/**
+	 * Sets the configuration file, in properties format, loaded when the valve starts and watched while it runs
+	 * @param file The file path, or null/empty for none
+	 */
+	public void setConfigFile(final String file) {
+		configs.setConfigFile(file);
+	}
+	
+	/**
+	 * Returns the configuration file
+	 * @return the file path or null if none is set
+	 */
+	public String getConfigFile() {
+		return configs.getConfigFile();
+	}
+	
+	/**
+	 * Sets the configuration file poll interval
+	 * @param interval The interval in ms, or zero to not watch the file
+	 */
+	public void setConfigWatchInterval(final long interval) {
+		configs.setWatchInterval(interval);
+	}
+	
+	/**
+	 * Returns the configuration file poll interval
+	 * @return the interval in ms, zero if the file is not watched
+	 */
+	public long getConfigWatchInterval() {
+		return configs.getWatchInterval();
+	}
+	
+	/**
+	 * Returns the current configuration version, incremented by every applied change
+	 * @return the configuration version
+	 */
+	public long getConfigVersion() {
+		return config().getVersion();
+	}
+	
+	/**
+	 * Returns where the current configuration came from
+	 * @return the configuration source
+	 */
+	public String getConfigSource() {
+		return config().getSource();
+	}
+	
+	/**
+	 * Returns the time taken to read, validate and swap in the last applied configuration
+	 * @return the reload time in ns
+	 */
+	public long getConfigReloadNanos() {
+		return configs.getReloadNanos();
+	}
+	
+	/**
+	 * Returns the number of configuration changes applied
+	 * @return the applied change count
+	 */
+	public long getConfigReloads() {
+		return configs.getReloads();
+	}
+	
+	/**
+	 * Returns the number of configuration changes rejected
+	 * @return the rejected change count
+	 */
+	public long getConfigReloadFailures() {
+		return configs.getReloadFailures();
+	}
+	
+	/**
+	 * Returns the reason the last configuration change was rejected
+	 * @return the reason, or null if the last change was applied
+	 */
+	public String getConfigReloadError() {
+		return configs.getReloadError();
+	}
+	
 	/**
 	 * Sets the enabled state of the valve
 	 * @param enabled true to enable, false to disable
 	 */
 	public void setEnabled(final boolean enabled) {
-		this.enabled.set(enabled);
+		apply(ValveConfig.ENABLED, enabled);
 	}
 	
 	/**
@@ -144,7 +712,1038 @@ public class SecureCookies extends ValveBase implements Lifecycle {
 	 * @return true if the valve is enabled, false otherwise
 	 */
 	public boolean isEnabled() {
-		return enabled.get();
+		return config().isEnabled();
+	}
+	
+	/**
+	 * Sets the engine used to secure outbound cookies
+	 * @param engine The engine name: <b><code>wrapper</code></b> or <b><code>header</code></b>
+	 */
+	public void setEngine(final String engine) {
+		apply(ValveConfig.ENGINE, engine);
+	}
+	
+	/**
+	 * Returns the name of the engine used to secure outbound cookies
+	 * @return the engine name
+	 */
+	public String getEngine() {
+		return config().get(ValveConfig.ENGINE);
+	}
+	
+	/**
+	 * Sets the forced Secure attribute state. Defaults to false.
+	 * @param force true to force the Secure attribute on cookies set over secure requests
+	 */
+	public void setForceSecure(final boolean force) {
+		apply(ValveConfig.FORCE_SECURE, force);
+	}
+	
+	/**
+	 * Indicates if the Secure attribute is forced on cookies set over secure requests
+	 * @return true if Secure is forced, false otherwise
+	 */
+	public boolean isForceSecure() {
+		return config().isForceSecure();
+	}
+	
+	/**
+	 * Sets the proxies trusted to report the scheme the client used. Requests from these addresses are treated as secure
+	 * when their <b><code>X-Forwarded-Proto</code></b> or <b><code>Forwarded</code></b> header says https. See {@link CidrTrie}.
+	 * @param proxies The comma separated addresses and CIDR blocks, or null/empty to trust only the connector
+	 */
+	public void setTrustedProxies(final String proxies) {
+		apply(ValveConfig.TRUSTED_PROXIES, proxies);
+	}
+	
+	/**
+	 * Returns the proxies trusted to report the scheme the client used
+	 * @return the comma separated addresses and CIDR blocks
+	 */
+	public String getTrustedProxies() {
+		return config().getTrustedProxies().getSpec();
+	}
+	
+	/**
+	 * Sets the maximum size of one inbound cookie. Requests carrying a larger cookie are rejected with a 400.
+	 * @param size The maximum bytes in a cookie's name and value, 0 for no limit
+	 */
+	public void setMaxCookieSize(final int size) {
+		apply(ValveConfig.MAX_COOKIE_SIZE, size);
+	}
+	
+	/**
+	 * Returns the maximum size of one inbound cookie
+	 * @return the maximum bytes in a cookie's name and value, 0 for no limit
+	 */
+	public int getMaxCookieSize() {
+		return config().getMaxCookieSize();
+	}
+	
+	/**
+	 * Sets the maximum number of inbound cookies. Requests carrying more are rejected with a 400.
+	 * @param count The maximum number of cookies, 0 for no limit
+	 */
+	public void setMaxCookieCount(final int count) {
+		apply(ValveConfig.MAX_COOKIE_COUNT, count);
+	}
+	
+	/**
+	 * Returns the maximum number of inbound cookies
+	 * @return the maximum number of cookies, 0 for no limit
+	 */
+	public int getMaxCookieCount() {
+		return config().getMaxCookieCount();
+	}
+	
+	/**
+	 * Sets the maximum total size of the inbound Cookie headers. Requests with larger headers are rejected with a 400.
+	 * @param size The maximum bytes, 0 for no limit
+	 */
+	public void setMaxCookieHeaderSize(final int size) {
+		apply(ValveConfig.MAX_COOKIE_HEADER_SIZE, size);
+	}
+	
+	/**
+	 * Returns the maximum total size of the inbound Cookie headers
+	 * @return the maximum bytes, 0 for no limit
+	 */
+	public int getMaxCookieHeaderSize() {
+		return config().getMaxCookieHeaderSize();
+	}
+	
+	/**
+	 * Returns the number of requests rejected by the inbound Cookie header checks
+	 * @return the number of rejected requests
+	 */
+	public long getCookieHeaderRejections() {
+		long total = 0L;
+		for(int i = 0; i < cookieHeaderRejections.length(); i++) total += cookieHeaderRejections.get(i);
+		return total;
+	}
+	
+	/**
+	 * Returns the number of requests rejected by the inbound Cookie header checks for each reason
+	 * @return the counts by reason
+	 */
+	public String getCookieHeaderRejectionReasons() {
+		final StringBuilder b = new StringBuilder();
+		for(int i = CookieHeaderScanner.MALFORMED; i < cookieHeaderRejections.length(); i++) {
+			if(b.length() > 0) b.append(", ");
+			b.append(CookieHeaderScanner.reason(i)).append('=').append(cookieHeaderRejections.get(i));
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * Enables or disables collapsing repeated Set-Cookie headers for the same name, path and domain into the last one written.
+	 * Only cookies set through the wrapper engine are collapsed.
+	 * @param enabled true to collapse duplicates
+	 */
+	public void setDedupeCookies(final boolean enabled) {
+		apply(ValveConfig.DEDUPE_COOKIES, enabled);
+	}
+	
+	/**
+	 * Indicates if repeated Set-Cookie headers for the same cookie are collapsed
+	 * @return true if duplicates are collapsed
+	 */
+	public boolean isDedupeCookies() {
+		return config().isDedupeCookies();
+	}
+	
+	/**
+	 * Returns the number of Set-Cookie headers written over an earlier one for the same cookie
+	 * @return the number of collapsed duplicates
+	 */
+	public long getCookiesCollapsed() {
+		return cookiesCollapsed.get();
+	}
+	
+	/**
+	 * Sets the response interceptors called by the wrapper engine. Interceptors are discovered with {@link java.util.ServiceLoader};
+	 * see {@link ResponseInterceptor}. Their timings are reported by the metrics MBean.
+	 * @param names The comma separated interceptor names in call order, or null/empty for none
+	 */
+	public void setInterceptors(final String names) {
+		apply(ValveConfig.INTERCEPTORS, names);
+	}
+	
+	/**
+	 * Returns the response interceptors called by the wrapper engine
+	 * @return the comma separated interceptor names in call order
+	 */
+	public String getInterceptors() {
+		return config().get(ValveConfig.INTERCEPTORS);
+	}
+	
+	/**
+	 * Sets the maximum Set-Cookie bytes of one response, counting each header's name and line end.
+	 * Only cookies set through the wrapper engine are accounted.
+	 * @param bytes The maximum bytes, 0 for no limit
+	 */
+	public void setCookieBudgetBytes(final int bytes) {
+		apply(ValveConfig.COOKIE_BUDGET_BYTES, bytes);
+	}
+	
+	/**
+	 * Returns the maximum Set-Cookie bytes of one response
+	 * @return the maximum bytes, 0 for no limit
+	 */
+	public int getCookieBudgetBytes() {
+		return config().getCookieBudgetBytes();
+	}
+	
+	/**
+	 * Sets the maximum number of cookies set by one response.
+	 * Only cookies set through the wrapper engine are accounted.
+	 * @param count The maximum number of cookies, 0 for no limit
+	 */
+	public void setCookieBudgetCount(final int count) {
+		apply(ValveConfig.COOKIE_BUDGET_COUNT, count);
+	}
+	
+	/**
+	 * Returns the maximum number of cookies set by one response
+	 * @return the maximum number of cookies, 0 for no limit
+	 */
+	public int getCookieBudgetCount() {
+		return config().getCookieBudgetCount();
+	}
+	
+	/**
+	 * Sets what happens to a cookie that would take its response over budget
+	 * @param action <b><code>drop</code></b> to drop that cookie, <b><code>truncate</code></b> to drop it and every later one,
+	 * <b><code>log</code></b> to add it and log a warning
+	 */
+	public void setCookieBudgetAction(final String action) {
+		apply(ValveConfig.COOKIE_BUDGET_ACTION, action);
+	}
+	
+	/**
+	 * Returns what happens to a cookie that would take its response over budget
+	 * @return the budget action
+	 */
+	public String getCookieBudgetAction() {
+		return config().get(ValveConfig.COOKIE_BUDGET_ACTION);
+	}
+	
+	/**
+	 * Returns the distribution of Set-Cookie bytes per response for each context, the worst p99 first
+	 * @return one line per context
+	 */
+	public String getCookieBudgetReport() {
+		return cookieBudgetStats.report();
+	}
+	
+	/**
+	 * Clears the per context cookie budget distributions
+	 */
+	public void resetCookieBudgetStats() {
+		cookieBudgetStats.reset();
+	}
+	
+	/**
+	 * Sets the names of the cookies whose values are signed. Outgoing values are signed by the wrapper engine;
+	 * incoming values are verified with either engine. See {@link CookieSigner}.
+	 * @param names The comma separated cookie names, or null/empty to sign nothing
+	 */
+	public void setSignedCookies(final String names) {
+		apply(ValveConfig.SIGNED_COOKIES, names);
+	}
+	
+	/**
+	 * Returns the names of the cookies whose values are signed
+	 * @return the comma separated cookie names
+	 */
+	public String getSignedCookies() {
+		return config().get(ValveConfig.SIGNED_COOKIES);
+	}
+	
+	/**
+	 * Sets the cookie signing keys. New values are signed with the first key and verified against all of them,
+	 * so a key is rotated by prepending its successor, then dropping it once the cookies it signed have expired.
+	 * @param keys The comma separated <b><code>kid:secret</code></b> keys with base64 secrets of at least 16 bytes
+	 */
+	public void setSigningKeys(final String keys) {
+		apply(ValveConfig.SIGNING_KEYS, keys);
+	}
+	
+	/**
+	 * Returns the cookie signing keys with the secrets masked
+	 * @return the comma separated <b><code>kid:****</code></b> keys
+	 */
+	public String getSigningKeys() {
+		return config().get(ValveConfig.SIGNING_KEYS);
+	}
+	
+	/**
+	 * Sets the cookie signing HMAC algorithm
+	 * @param algorithm The algorithm, e.g. HmacSHA256 (the default), HmacSHA1 or HmacSHA512
+	 */
+	public void setSigningAlgorithm(final String algorithm) {
+		apply(ValveConfig.SIGNING_ALGORITHM, algorithm);
+	}
+	
+	/**
+	 * Returns the cookie signing HMAC algorithm
+	 * @return the algorithm
+	 */
+	public String getSigningAlgorithm() {
+		return config().get(ValveConfig.SIGNING_ALGORITHM);
+	}
+	
+	/**
+	 * Sets what happens to a request carrying a signed cookie that fails verification
+	 * @param failure <b><code>strip</code></b> to remove the cookie from the request, <b><code>reject</code></b> to respond 400
+	 */
+	public void setSignatureFailure(final String failure) {
+		apply(ValveConfig.SIGNATURE_FAILURE, failure);
+	}
+	
+	/**
+	 * Returns what happens to a request carrying a signed cookie that fails verification
+	 * @return strip or reject
+	 */
+	public String getSignatureFailure() {
+		return config().get(ValveConfig.SIGNATURE_FAILURE);
+	}
+	
+	/**
+	 * Returns the id of the key new cookie values are signed with
+	 * @return the key id, or null if no cookies are signed
+	 */
+	public String getSigningKeyId() {
+		final CookieSigner signer = config().getSigner();
+		return signer==null ? null : signer.getCurrentKeyId();
+	}
+	
+	/**
+	 * Returns the number of signed cookies that failed verification
+	 * @return the number of failures
+	 */
+	public long getSignatureFailures() {
+		return signatureFailures.get();
+	}
+	
+	/**
+	 * Sets the names of the cookies whose values are encrypted. Outgoing values are encrypted by the wrapper engine;
+	 * incoming values are decrypted with either engine. See {@link CookieEncryptor}.
+	 * @param names The comma separated cookie names, or null/empty to encrypt nothing
+	 */
+	public void setEncryptedCookies(final String names) {
+		apply(ValveConfig.ENCRYPTED_COOKIES, names);
+	}
+	
+	/**
+	 * Returns the names of the cookies whose values are encrypted
+	 * @return the comma separated cookie names
+	 */
+	public String getEncryptedCookies() {
+		return config().get(ValveConfig.ENCRYPTED_COOKIES);
+	}
+	
+	/**
+	 * Sets the cookie encryption keys. New values are encrypted with the first key and decrypted with the key their
+	 * version names, so a key is rotated by prepending its successor, then dropping it once its cookies have expired.
+	 * @param keys The comma separated <b><code>version:secret</code></b> keys with versions from 0 to 255 and base64 AES secrets
+	 */
+	public void setEncryptionKeys(final String keys) {
+		apply(ValveConfig.ENCRYPTION_KEYS, keys);
+	}
+	
+	/**
+	 * Returns the cookie encryption keys with the secrets masked
+	 * @return the comma separated <b><code>version:****</code></b> keys
+	 */
+	public String getEncryptionKeys() {
+		return config().get(ValveConfig.ENCRYPTION_KEYS);
+	}
+	
+	/**
+	 * Sets what happens to a request carrying an encrypted cookie that fails to decrypt
+	 * @param failure <b><code>strip</code></b> to remove the cookie from the request, <b><code>reject</code></b> to respond 400
+	 */
+	public void setDecryptionFailure(final String failure) {
+		apply(ValveConfig.DECRYPTION_FAILURE, failure);
+	}
+	
+	/**
+	 * Returns what happens to a request carrying an encrypted cookie that fails to decrypt
+	 * @return strip or reject
+	 */
+	public String getDecryptionFailure() {
+		return config().get(ValveConfig.DECRYPTION_FAILURE);
+	}
+	
+	/**
+	 * Returns the version of the key new cookie values are encrypted with
+	 * @return the key version, or -1 if no cookies are encrypted
+	 */
+	public int getEncryptionKeyVersion() {
+		final CookieEncryptor encryptor = config().getEncryptor();
+		return encryptor==null ? -1 : encryptor.getCurrentKeyVersion();
+	}
+	
+	/**
+	 * Returns the number of encrypted cookies that failed to decrypt
+	 * @return the number of failures
+	 */
+	public long getDecryptionFailures() {
+		return decryptionFailures.get();
+	}
+	
+	/**
+	 * Sets the forced HttpOnly attribute state. Defaults to false.
+	 * @param force true to force the HttpOnly attribute on all cookies
+	 */
+	public void setForceHttpOnly(final boolean force) {
+		apply(ValveConfig.FORCE_HTTP_ONLY, force);
+	}
+	
+	/**
+	 * Indicates if the HttpOnly attribute is forced on all cookies
+	 * @return true if HttpOnly is forced, false otherwise
+	 */
+	public boolean isForceHttpOnly() {
+		return config().isForceHttpOnly();
+	}
+	
+	/**
+	 * Sets the SameSite value forced on cookies that do not specify one
+	 * @param sameSite <b><code>Strict</code></b>, <b><code>Lax</code></b>, <b><code>None</code></b>, or null/empty for none
+	 */
+	public void setSameSite(final String sameSite) {
+		apply(ValveConfig.SAME_SITE, sameSite);
+	}
+	
+	/**
+	 * Returns the SameSite value forced on cookies that do not specify one
+	 * @return the SameSite value or null if none is forced
+	 */
+	public String getSameSite() {
+		final SameSite ss = config().getSameSite();
+		return ss==null ? null : ss.value;
+	}
+	
+	/**
+	 * Sets and compiles the per cookie policies. See {@link CookiePolicySet} for the syntax.
+	 * @param spec The policy spec, or null/empty for none
+	 */
+	public void setPolicies(final String spec) {
+		apply(ValveConfig.POLICIES, spec);
+	}
+	
+	/**
+	 * Returns the per cookie policy spec
+	 * @return the policy spec
+	 */
+	public String getPolicies() {
+		return config().getPolicies().getSpec();
+	}
+	
+	/**
+	 * Returns the number of compiled per cookie policy rules
+	 * @return the number of rules
+	 */
+	public int getPolicyRuleCount() {
+		return config().getPolicies().getRuleCount();
+	}
+	
+	/**
+	 * Sets the per cookie policy decision cache size and recompiles the current policies
+	 * @param size The cache size, rounded up to a power of 2
+	 */
+	public void setPolicyCacheSize(final int size) {
+		apply(ValveConfig.POLICY_CACHE_SIZE, size);
+	}
+	
+	/**
+	 * Returns the per cookie policy decision cache size
+	 * @return the cache size
+	 */
+	public int getPolicyCacheSize() {
+		return config().getPolicyCacheSize();
+	}
+	
+	/**
+	 * Returns the per cookie policy decision cache hit count
+	 * @return the cache hit count
+	 */
+	public long getPolicyCacheHits() {
+		return config().getPolicies().getCacheHits();
+	}
+	
+	/**
+	 * Returns the per cookie policy decision cache miss count
+	 * @return the cache miss count
+	 */
+	public long getPolicyCacheMisses() {
+		return config().getPolicies().getCacheMisses();
+	}
+	
+	/**
+	 * Clears the per cookie policy decision cache and its counters
+	 */
+	public void clearPolicyCache() {
+		config().getPolicies().clearCache();
+	}
+	
+	/**
+	 * Sets the per context overrides of <b><code>forceSecure</code></b>, <b><code>forceHttpOnly</code></b> and
+	 * <b><code>sameSite</code></b>. See {@link ContextPolicyTable} for the syntax.
+	 * @param spec The override spec, or null/empty for none
+	 */
+	public void setContextPolicies(final String spec) {
+		apply(ValveConfig.CONTEXT_POLICIES, spec);
+	}
+	
+	/**
+	 * Returns the per context override spec
+	 * @return the override spec
+	 */
+	public String getContextPolicies() {
+		return config().get(ValveConfig.CONTEXT_POLICIES);
+	}
+	
+	/**
+	 * Returns the settings in effect for each context resolved since the overrides were last compiled
+	 * @return one line per context, or an empty array if there are no overrides
+	 */
+	public String[] getContextPolicyReport() {
+		final ContextPolicyTable cpt = config().getContextPolicies();
+		return cpt==null ? new String[0] : cpt.report();
+	}
+	
+	/**
+	 * Returns the number of per context override entries dropped because their context stopped or reloaded
+	 * @return the invalidation count
+	 */
+	public long getContextPolicyInvalidations() {
+		final ContextPolicyTable cpt = config().getContextPolicies();
+		return cpt==null ? 0L : cpt.getInvalidations();
+	}
+
+	/**
+	 * Sets the level the valve operates at, and the highest level the degradation controller recovers to
+	 * @param level The level name: <b><code>full</code></b>, <b><code>essential</code></b> or <b><code>passthrough</code></b>,
+	 * which is rejected while cookies are signed or encrypted
+	 */
+	public void setLevel(final String level) {
+		apply(ValveConfig.LEVEL, level);
+	}
+	
+	/**
+	 * Returns the configured level
+	 * @return the level name
+	 */
+	public String getLevel() {
+		return config().get(ValveConfig.LEVEL);
+	}
+	
+	/**
+	 * Returns the level the valve currently operates at, which is below the configured level while degraded
+	 * @return the current level name
+	 */
+	public String getCurrentLevel() {
+		return level.name().toLowerCase();
+	}
+	
+	/**
+	 * Enables or disables the degradation controller
+	 * @param degrade true to shed work under latency or connector pressure
+	 */
+	public void setDegrade(final boolean degrade) {
+		apply(ValveConfig.DEGRADE, degrade);
+	}
+	
+	/**
+	 * Indicates if the degradation controller is enabled
+	 * @return true if enabled
+	 */
+	public boolean isDegrade() {
+		return config().isDegrade();
+	}
+	
+	/**
+	 * Sets the lowest level the degradation controller moves to
+	 * @param floor The level name, <b><code>essential</code></b> unless pass through is acceptable. Pass through is rejected
+	 * while cookies are signed or encrypted.
+	 */
+	public void setDegradeFloor(final String floor) {
+		apply(ValveConfig.DEGRADE_FLOOR, floor);
+	}
+	
+	/**
+	 * Returns the lowest level the degradation controller moves to
+	 * @return the level name
+	 */
+	public String getDegradeFloor() {
+		return config().get(ValveConfig.DEGRADE_FLOOR);
+	}
+	
+	/**
+	 * Sets the degradation controller's evaluation interval
+	 * @param interval The interval in ms
+	 */
+	public void setDegradeInterval(final int interval) {
+		apply(ValveConfig.DEGRADE_INTERVAL, interval);
+	}
+	
+	/**
+	 * Returns the degradation controller's evaluation interval
+	 * @return the interval in ms
+	 */
+	public int getDegradeInterval() {
+		return config().getDegradeInterval();
+	}
+	
+	/**
+	 * Sets the valve p99 latency above which an interval is under pressure
+	 * @param micros The latency in us
+	 */
+	public void setDegradeLatency(final int micros) {
+		apply(ValveConfig.DEGRADE_LATENCY, micros);
+	}
+	
+	/**
+	 * Returns the valve p99 latency above which an interval is under pressure
+	 * @return the latency in us
+	 */
+	public int getDegradeLatency() {
+		return config().getDegradeLatency();
+	}
+	
+	/**
+	 * Sets the connector thread pool saturation above which an interval is under pressure
+	 * @param percent The busy threads in percent of the maximum
+	 */
+	public void setDegradeSaturation(final int percent) {
+		apply(ValveConfig.DEGRADE_SATURATION, percent);
+	}
+	
+	/**
+	 * Returns the connector thread pool saturation above which an interval is under pressure
+	 * @return the busy threads in percent of the maximum
+	 */
+	public int getDegradeSaturation() {
+		return config().getDegradeSaturation();
+	}
+	
+	/**
+	 * Sets the number of consecutive intervals under pressure that lower the level
+	 * @param intervals The interval count
+	 */
+	public void setDegradeIntervals(final int intervals) {
+		apply(ValveConfig.DEGRADE_INTERVALS, intervals);
+	}
+	
+	/**
+	 * Returns the number of consecutive intervals under pressure that lower the level
+	 * @return the interval count
+	 */
+	public int getDegradeIntervals() {
+		return config().getDegradeIntervals();
+	}
+	
+	/**
+	 * Sets the valve p99 latency below which an interval is healthy
+	 * @param micros The latency in us
+	 */
+	public void setRecoverLatency(final int micros) {
+		apply(ValveConfig.RECOVER_LATENCY, micros);
+	}
+	
+	/**
+	 * Returns the valve p99 latency below which an interval is healthy
+	 * @return the latency in us
+	 */
+	public int getRecoverLatency() {
+		return config().getRecoverLatency();
+	}
+	
+	/**
+	 * Sets the connector thread pool saturation below which an interval is healthy
+	 * @param percent The busy threads in percent of the maximum
+	 */
+	public void setRecoverSaturation(final int percent) {
+		apply(ValveConfig.RECOVER_SATURATION, percent);
+	}
+	
+	/**
+	 * Returns the connector thread pool saturation below which an interval is healthy
+	 * @return the busy threads in percent of the maximum
+	 */
+	public int getRecoverSaturation() {
+		return config().getRecoverSaturation();
+	}
+	
+	/**
+	 * Sets the number of consecutive healthy intervals that raise the level
+	 * @param intervals The interval count
+	 */
+	public void setRecoverIntervals(final int intervals) {
+		apply(ValveConfig.RECOVER_INTERVALS, intervals);
+	}
+	
+	/**
+	 * Returns the number of consecutive healthy intervals that raise the level
+	 * @return the interval count
+	 */
+	public int getRecoverIntervals() {
+		return config().getRecoverIntervals();
+	}
+	
+	/**
+	 * Describes the degradation controller's last interval
+	 * @return the controller state, or a note that it is not running
+	 */
+	public String getDegradationState() {
+		final DegradationController dc = degradationController;
+		return dc==null ? "Not running, level " + level.name().toLowerCase() : dc.toString();
+	}
+	
+	/**
+	 * Sets the reserved URI the valve serves its metrics on in the Prometheus text format
+	 * @param path The URI, e.g. <b><code>/__icc/metrics</code></b>, or null/empty to not serve the metrics
+	 */
+	public void setMetricsPath(final String path) {
+		apply(ValveConfig.METRICS_PATH, path);
+	}
+	
+	/**
+	 * Returns the reserved URI the valve serves its metrics on
+	 * @return the URI, empty if the metrics are not served
+	 */
+	public String getMetricsPath() {
+		return config().get(ValveConfig.METRICS_PATH);
+	}
+	
+	/**
+	 * Sets the minimum interval between renderings of the served metrics
+	 * @param interval The interval in ms
+	 */
+	public void setMetricsInterval(final int interval) {
+		apply(ValveConfig.METRICS_INTERVAL, interval);
+	}
+	
+	/**
+	 * Returns the minimum interval between renderings of the served metrics
+	 * @return the interval in ms
+	 */
+	public int getMetricsInterval() {
+		return config().getMetricsInterval();
+	}
+	
+	/**
+	 * Sets the remote addresses allowed to scrape the metrics. See {@link CidrTrie}.
+	 * @param addresses The comma separated addresses and CIDR blocks, or null/empty to allow any address
+	 */
+	public void setMetricsAllow(final String addresses) {
+		apply(ValveConfig.METRICS_ALLOW, addresses);
+	}
+	
+	/**
+	 * Returns the remote addresses allowed to scrape the metrics
+	 * @return the comma separated addresses and CIDR blocks, empty if any address is allowed
+	 */
+	public String getMetricsAllow() {
+		return config().getMetricsAllow().getSpec();
+	}
+	
+	/**
+	 * Sets the connector port the metrics are served on
+	 * @param port The port, or 0 to serve them on every connector
+	 */
+	public void setMetricsPort(final int port) {
+		apply(ValveConfig.METRICS_PORT, port);
+	}
+	
+	/**
+	 * Returns the connector port the metrics are served on
+	 * @return the port, 0 if they are served on every connector
+	 */
+	public int getMetricsPort() {
+		return config().getMetricsPort();
+	}
+	
+	/**
+	 * Returns the number of scrapes of the metrics endpoint
+	 * @return the scrape count
+	 */
+	public long getMetricsScrapes() {
+		final MetricsEndpoint me = metricsEndpoint;
+		return me==null ? 0L : me.getScrapes();
+	}
+	
+	/**
+	 * Returns the number of times the served metrics were rendered
+	 * @return the rendering count
+	 */
+	public long getMetricsRenders() {
+		final MetricsEndpoint me = metricsEndpoint;
+		return me==null ? 0L : me.getRenders();
+	}
+	
+	/**
+	 * Enables or disables rendering cookie headers from cached attribute suffixes. Applies to the wrapper engine.
+	 * @param enabled true to enable the render cache
+	 */
+	public void setRenderCache(final boolean enabled) {
+		apply(ValveConfig.RENDER_CACHE, enabled);
+	}
+	
+	/**
+	 * Indicates if cookie headers are rendered from cached attribute suffixes
+	 * @return true if the render cache is enabled
+	 */
+	public boolean isRenderCache() {
+		return config().isRenderCache();
+	}
+	
+	/**
+	 * Sets the rendered Set-Cookie suffix cache size
+	 * @param size The cache size, rounded up to a power of 2
+	 */
+	public void setRenderCacheSize(final int size) {
+		apply(ValveConfig.RENDER_CACHE_SIZE, size);
+	}
+	
+	/**
+	 * Returns the rendered Set-Cookie suffix cache size
+	 * @return the cache size
+	 */
+	public int getRenderCacheSize() {
+		return config().getRenderCacheSize();
+	}
+	
+	/**
+	 * Returns the rendered Set-Cookie suffix cache hit count
+	 * @return the hit count
+	 */
+	public long getRenderCacheHits() {
+		final SetCookieSuffixCache c = config().getSuffixCache();
+		return c==null ? 0L : c.getHits();
+	}
+	
+	/**
+	 * Returns the rendered Set-Cookie suffix cache miss count
+	 * @return the miss count
+	 */
+	public long getRenderCacheMisses() {
+		final SetCookieSuffixCache c = config().getSuffixCache();
+		return c==null ? 0L : c.getMisses();
+	}
+	
+	/**
+	 * Returns the fraction of cookie renders served from the suffix cache
+	 * @return the hit ratio, from 0 to 1
+	 */
+	public double getRenderCacheHitRatio() {
+		final SetCookieSuffixCache c = config().getSuffixCache();
+		return c==null ? 0d : c.getHitRatio();
+	}
+	
+	/**
+	 * Clears the rendered Set-Cookie suffix cache and its counters
+	 */
+	public void clearRenderCache() {
+		final SetCookieSuffixCache c = config().getSuffixCache();
+		if(c!=null) c.clear();
+	}
+	
+	/**
+	 * Sets the URI path prefixes whose requests skip cookie handling. See {@link BypassRules}.
+	 * @param spec The comma separated URI path prefixes, e.g. <b><code>/static/, /health</code></b>, or null/empty for none
+	 */
+	public void setBypassPaths(final String spec) {
+		apply(ValveConfig.BYPASS_PATHS, spec);
+	}
+	
+	/**
+	 * Returns the bypassed URI path prefixes
+	 * @return the comma separated URI path prefixes
+	 */
+	public String getBypassPaths() {
+		return config().getBypass().getPaths();
+	}
+	
+	/**
+	 * Sets the URI extensions whose requests skip cookie handling. See {@link BypassRules}.
+	 * @param spec The comma separated URI extensions, e.g. <b><code>css, js, png</code></b>, or null/empty for none
+	 */
+	public void setBypassExtensions(final String spec) {
+		apply(ValveConfig.BYPASS_EXTENSIONS, spec);
+	}
+	
+	/**
+	 * Returns the bypassed URI extensions
+	 * @return the comma separated URI extensions
+	 */
+	public String getBypassExtensions() {
+		return config().getBypass().getExtensions();
+	}
+	
+	/**
+	 * Sets the URI glob patterns whose requests skip cookie handling. See {@link BypassRules}.
+	 * @param spec The comma separated URI glob patterns, e.g. <b><code>/app/*.txt</code></b> or <b><code>/app/**&#47;logo.png</code></b>, or null/empty for none
+	 */
+	public void setBypassPatterns(final String spec) {
+		apply(ValveConfig.BYPASS_PATTERNS, spec);
+	}
+	
+	/**
+	 * Returns the bypassed URI glob patterns
+	 * @return the comma separated URI glob patterns
+	 */
+	public String getBypassPatterns() {
+		return config().getBypass().getPatterns();
+	}
+	
+	/**
+	 * Sets the request methods whose requests skip cookie handling. See {@link BypassRules}.
+	 * @param spec The comma separated request methods, e.g. <b><code>OPTIONS, HEAD</code></b>, or null/empty for none
+	 */
+	public void setBypassMethods(final String spec) {
+		apply(ValveConfig.BYPASS_METHODS, spec);
+	}
+	
+	/**
+	 * Returns the bypassed request methods
+	 * @return the comma separated request methods
+	 */
+	public String getBypassMethods() {
+		return config().getBypass().getMethods();
+	}
+	
+	/**
+	 * Sets the directory the binary cookie audit log is written to. Reopens the audit log if the valve is started.
+	 * @param directory The directory, or null/empty to disable the audit log
+	 */
+	public void setAuditLog(final String directory) {
+		apply(ValveConfig.AUDIT_LOG, directory);
+	}
+	
+	/**
+	 * Returns the directory the binary cookie audit log is written to
+	 * @return the directory or null if the audit log is disabled
+	 */
+	public String getAuditLog() {
+		return config().getAuditLog();
+	}
+	
+	/**
+	 * Sets the binary cookie audit log ring capacity. Reopens the audit log if the valve is started.
+	 * @param size The capacity in records, rounded up to a power of 2
+	 */
+	public void setAuditLogBufferSize(final int size) {
+		apply(ValveConfig.AUDIT_LOG_BUFFER_SIZE, size);
+	}
+	
+	/**
+	 * Returns the binary cookie audit log ring capacity
+	 * @return the capacity in records
+	 */
+	public int getAuditLogBufferSize() {
+		return config().getAuditLogBufferSize();
+	}
+	
+	/**
+	 * Sets the binary cookie audit log segment size. Reopens the audit log if the valve is started.
+	 * @param size The segment size in bytes
+	 */
+	public void setAuditLogSegmentSize(final int size) {
+		apply(ValveConfig.AUDIT_LOG_SEGMENT_SIZE, size);
+	}
+	
+	/**
+	 * Returns the binary cookie audit log segment size
+	 * @return the segment size in bytes
+	 */
+	public int getAuditLogSegmentSize() {
+		return config().getAuditLogSegmentSize();
+	}
+	
+	/**
+	 * Sets the number of binary cookie audit log segments kept. Reopens the audit log if the valve is started.
+	 * @param segments The number of segments
+	 */
+	public void setAuditLogSegments(final int segments) {
+		apply(ValveConfig.AUDIT_LOG_SEGMENTS, segments);
+	}
+	
+	/**
+	 * Returns the number of binary cookie audit log segments kept
+	 * @return the number of segments
+	 */
+	public int getAuditLogSegments() {
+		return config().getAuditLogSegments();
+	}
+	
+	/**
+	 * Returns the number of audit records written
+	 * @return the written record count, or zero if the audit log is not open
+	 */
+	public long getAuditLogWritten() {
+		final CookieAuditLog al = auditLog;
+		return al==null ? 0L : al.getWritten();
+	}
+	
+	/**
+	 * Returns the number of audit records dropped because the ring was full
+	 * @return the dropped record count, or zero if the audit log is not open
+	 */
+	public long getAuditLogDropped() {
+		final CookieAuditLog al = auditLog;
+		return al==null ? 0L : al.getDropped();
+	}
+	
+	/**
+	 * Returns the current binary cookie audit log segment file
+	 * @return the segment file path, or null if the audit log is not open
+	 */
+	public String getAuditLogSegmentFile() {
+		final CookieAuditLog al = auditLog;
+		return al==null ? null : al.getSegmentFile().getAbsolutePath();
+	}
+	
+	/**
+	 * Sets the wrapper recycling state of the valve
+	 * @param recycle true to recycle response wrappers per connector thread, false to allocate one per request
+	 */
+	public void setRecycleWrappers(final boolean recycle) {
+		apply(ValveConfig.RECYCLE_WRAPPERS, recycle);
+	}
+	
+	/**
+	 * Indicates if response wrappers are recycled
+	 * @return true if response wrappers are recycled, false otherwise
+	 */
+	public boolean isRecycleWrappers() {
+		return config().isRecycleWrappers();
+	}
+	
+	/**
+	 * Returns the number of requests served with a recycled response wrapper
+	 * @return the wrapper pool hit count
+	 */
+	public long getWrapperPoolHits() {
+		return wrapperPool.getHits();
+	}
+	
+	/**
+	 * Returns the number of requests that allocated a new response wrapper while recycling
+	 * @return the wrapper pool miss count
+	 */
+	public long getWrapperPoolMisses() {
+		return wrapperPool.getMisses();
+	}
+	
+	/**
+	 * Resets the wrapper pool hit and miss counters
+	 */
+	public void resetWrapperPoolCounters() {
+		wrapperPool.resetCounters();
 	}
 
 	/**
@@ -0,0 +1,296 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import org.apache.catalina.Context;
+import org.apache.coyote.ActionCode;
+import org.apache.coyote.ActionHook;
+import org.apache.coyote.Response;
+import org.apache.tomcat.util.buf.ByteChunk;
+import org.apache.tomcat.util.buf.CharChunk;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
+
+/**
+ * <p>Title: SetCookieCommitHook</p>
+ * <p>Description: An {@link ActionHook} interposed in front of a coyote response's processor hook which
+ * rewrites the response's <b><code>Set-Cookie</code></b> headers just before they are committed.</p>
+ * <p>The hook is installed once per coyote {@link Response} (and therefore once per connector processor)
+ * and armed per request by {@link #begin(CookiePolicySet, Context, int, byte[])}. Rewritten values are written into a byte arena
+ * owned by the hook and the header's {@link MessageBytes} is pointed at the rewritten slice, so no
+ * String or Cookie objects are created. The arena is only reused from the start when the next request is armed,
+ * after the previous response's headers have been written.</p>
+ * <p>Note that the AJP processors commit on completion without going through the hook, so
+ * {@link #rewrite()} should also be called once the pipeline returns. A rewrite disarms the hook and drops its references
+ * to the request's context, policies and audit log, so a hook left on a recycled coyote response holds nothing of the
+ * request until it is armed again.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.SetCookieCommitHook</code></p>
+ */
+
+public class SetCookieCommitHook implements ActionHook {
+	/** The initial arena size */
+	private static final int INITIAL_ARENA = 512;
+
+	/** The processor hook we delegate to */
+	protected final ActionHook delegate;
+	/** The coyote response whose headers we rewrite */
+	protected final Response response;
+	/** The rewrite arena */
+	private byte[] arena = new byte[INITIAL_ARENA];
+	/** The next free offset in the arena */
+	private int pos = 0;
+	/** The cookie policies for the current request */
+	private CookiePolicySet policies = CookiePolicySet.EMPTY;
+	/** The context of the current request */
+	private Context context = null;
+	/** The valve wide attribute bits required for the current request */
+	private int required = 0;
+	/** The valve wide SameSite attribute bytes for the current request */
+	private byte[] sameSiteAttr = null;
+	/** The SameSite attribute bytes resolved for the value being rewritten */
+	private byte[] valueSameSiteAttr = null;
+	/** The binary audit log of modified cookies, or null */
+	private CookieAuditLog auditLog = null;
+	/** The number of Set-Cookie headers inspected since the hook was armed */
+	private int cookiesSeen = 0;
+	/** The number of Set-Cookie headers rewritten since the hook was armed */
+	private int cookiesModified = 0;
+	/** Indicates if the hook is armed for the current request */
+	private boolean armed = false;
+
+	/**
+	 * Installs a hook in front of the passed coyote response's current hook, or returns the already installed one
+	 * @param response The coyote response
+	 * @return the installed hook
+	 */
+	public static SetCookieCommitHook install(final Response response) {
+		final ActionHook current = response.getHook();
+		if(current instanceof SetCookieCommitHook) return (SetCookieCommitHook)current;
+		final SetCookieCommitHook hook = new SetCookieCommitHook(current, response);
+		response.setHook(hook);
+		return hook;
+	}
+
+	/**
+	 * Disarms the hook installed on the passed coyote response, if there is one
+	 * @param response The coyote response
+	 */
+	public static void disarm(final Response response) {
+		final ActionHook current = response.getHook();
+		if(current instanceof SetCookieCommitHook) ((SetCookieCommitHook)current).disarm();
+	}
+
+	/**
+	 * Creates a new SetCookieCommitHook
+	 * @param delegate The processor hook to delegate to
+	 * @param response The coyote response whose headers we rewrite
+	 */
+	protected SetCookieCommitHook(final ActionHook delegate, final Response response) {
+		this.delegate = delegate;
+		this.response = response;
+	}
+
+	/**
+	 * Arms the hook for a new request
+	 * @param policies The cookie policies to apply
+	 * @param context The context of the request, or null
+	 * @param required The valve wide {@link SetCookieScanner} attribute bits every Set-Cookie must carry
+	 * @param sameSiteAttr The valve wide SameSite attribute bytes to append, or null
+	 */
+	public void begin(final CookiePolicySet policies, final Context context, final int required, final byte[] sameSiteAttr) {
+		this.policies = policies;
+		this.context = context;
+		this.required = sameSiteAttr==null ? (required & ~SetCookieScanner.SAME_SITE) : required;
+		this.sameSiteAttr = sameSiteAttr;
+		this.pos = 0;
+		this.cookiesSeen = 0;
+		this.cookiesModified = 0;
+		this.armed = this.required!=0 || !policies.isEmpty();
+	}
+
+	/**
+	 * Sets the binary audit log rewritten cookies are recorded to
+	 * @param auditLog The audit log, or null for none
+	 */
+	public void setAuditLog(final CookieAuditLog auditLog) {
+		this.auditLog = auditLog;
+	}
+
+	/**
+	 * Returns the number of Set-Cookie headers inspected since the hook was armed
+	 * @return the number of headers inspected
+	 */
+	public int getCookiesSeen() {
+		return cookiesSeen;
+	}
+
+	/**
+	 * Returns the number of Set-Cookie headers rewritten since the hook was armed
+	 * @return the number of headers rewritten
+	 */
+	public int getCookiesModified() {
+		return cookiesModified;
+	}
+
+	/**
+	 * Disarms the hook so a response not handled by the valve is left untouched, and drops the request's references.
+	 * The cookie counters are kept until the hook is armed again.
+	 */
+	public void disarm() {
+		armed = false;
+		context = null;
+		policies = CookiePolicySet.EMPTY;
+		sameSiteAttr = null;
+		valueSameSiteAttr = null;
+		auditLog = null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see org.apache.coyote.ActionHook#action(org.apache.coyote.ActionCode, java.lang.Object)
+	 */
+	@Override
+	public void action(final ActionCode actionCode, final Object param) {
+		if(actionCode==ActionCode.ACTION_COMMIT && armed && !response.isCommitted()) rewrite();
+		if(delegate!=null) delegate.action(actionCode, param);
+	}
+
+	/**
+	 * Adds the missing required attributes to every Set-Cookie header in the response, then disarms the hook.
+	 * Calling this again before the hook is re-armed does nothing.
+	 * @return the number of rewritten headers
+	 */
+	public int rewrite() {
+		if(!armed) return 0;
+		int rewritten = 0;
+		try {
+			final MimeHeaders headers = response.getMimeHeaders();
+			final int size = headers.size();
+			for(int i = 0; i < size; i++) {
+				if(!headers.getName(i).equalsIgnoreCase(SetCookieScanner.SET_COOKIE)) continue;
+				cookiesSeen++;
+				if(rewrite(headers.getValue(i))) rewritten++;
+			}
+		} finally {
+			cookiesModified += rewritten;
+			disarm();
+		}
+		return rewritten;
+	}
+
+	/**
+	 * Rewrites a single Set-Cookie value if it lacks any required attribute
+	 * @param value The header value
+	 * @return true if the value was rewritten
+	 */
+	protected boolean rewrite(final MessageBytes value) {
+		switch(value.getType()) {
+			case MessageBytes.T_BYTES: {
+				final ByteChunk bc = value.getByteChunk();
+				final byte[] b = bc.getBytes();
+				final int start = bc.getStart(), end = bc.getEnd();
+				final int missing = missing(b, start, end);
+				if(missing==0) return false;
+				final int len = end - start;
+				ensure(len + SetCookieScanner.MAX_SUFFIX);
+				System.arraycopy(b, start, arena, pos, len);
+				return commit(value, pos + len, missing);
+			}
+			case MessageBytes.T_STR: {
+				final String s = value.getString();
+				ensure(s.length() + SetCookieScanner.MAX_SUFFIX);
+				return scanAndCommit(value, SetCookieScanner.copy(s, arena, pos));
+			}
+			case MessageBytes.T_CHARS: {
+				final CharChunk cc = value.getCharChunk();
+				ensure(cc.getLength() + SetCookieScanner.MAX_SUFFIX);
+				return scanAndCommit(value, SetCookieScanner.copy(cc, arena, pos));
+			}
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Resolves the policy for the passed Set-Cookie value and returns the attribute bits it is missing
+	 * @param b The buffer holding the value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 * @return the missing attribute bits
+	 */
+	private int missing(final byte[] b, final int start, final int end) {
+		int req = required;
+		valueSameSiteAttr = sameSiteAttr;
+		if(!policies.isEmpty()) {
+			final int nameStart = SetCookieScanner.nameStart(b, start, end);
+			final CookiePolicy policy = policies.resolve(context, b, nameStart, SetCookieScanner.nameEnd(b, nameStart, end));
+			req |= policy.getAttributes();
+			valueSameSiteAttr = policy.sameSiteAttribute(sameSiteAttr);
+		}
+		if(req==0) return 0;
+		int missing = req & ~SetCookieScanner.scan(b, start, end);
+		if(valueSameSiteAttr==null) missing &= ~SetCookieScanner.SAME_SITE;
+		return missing;
+	}
+
+	/**
+	 * Scans a value already copied into the arena and commits it if it lacks any required attribute
+	 * @param value The header value
+	 * @param end The arena offset one past the copied value
+	 * @return true if the value was rewritten
+	 */
+	private boolean scanAndCommit(final MessageBytes value, final int end) {
+		final int missing = missing(arena, pos, end);
+		if(missing==0) return false;
+		return commit(value, end, missing);
+	}
+
+	/**
+	 * Appends the missing attributes to the value at the arena's free offset and points the header at it
+	 * @param value The header value
+	 * @param end The arena offset one past the copied value
+	 * @param missing The missing attribute bits
+	 * @return true
+	 */
+	private boolean commit(final MessageBytes value, final int end, final int missing) {
+		final int newEnd = SetCookieScanner.appendMissing(missing, valueSameSiteAttr, arena, end);
+		value.setBytes(arena, pos, newEnd - pos);
+		CookieAudit.header(arena, pos, newEnd);
+		if(auditLog!=null) {
+			auditLog.header(CookieAuditLog.OP_COMMIT, arena, pos, newEnd, context==null ? null : context.getPath(),
+				missing, (missing & SetCookieScanner.SAME_SITE)!=0 ? SameSite.forAttribute(valueSameSiteAttr) : null);
+		}
+		pos = newEnd;
+		return true;
+	}
+
+	/**
+	 * Ensures the arena has the passed number of free bytes.
+	 * A new arena is started rather than grown, since headers rewritten earlier still reference the current one.
+	 * @param needed The number of bytes needed
+	 */
+	private void ensure(final int needed) {
+		if(arena.length - pos >= needed) return;
+		arena = new byte[Math.max(arena.length * 2, needed)];
+		pos = 0;
+	}
+
+}
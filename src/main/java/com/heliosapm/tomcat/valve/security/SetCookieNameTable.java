@@ -0,0 +1,242 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.Arrays;
+
+/**
+ * <p>Title: SetCookieNameTable</p>
+ * <p>Description: A small open addressed table of the <b><code>Set-Cookie</code></b> headers one response has set, mapping the hash
+ * of each cookie name to the index of its header, so a later cookie with the same name, path and domain can replace it in place.
+ * A name hash only finds candidates; {@link #sameCookie(String, String)} decides. The table is cleared by bumping an epoch,
+ * so a recycled wrapper reuses it across requests without clearing the arrays.
+ * Instances are not thread safe and are intended to be owned by a single response.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.SetCookieNameTable</code></p>
+ */
+
+public class SetCookieNameTable {
+	/** The initial capacity */
+	private static final int INITIAL_CAPACITY = 16;
+	/** The name hashes */
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	/** The header indexes */
+	private int[] headers = new int[INITIAL_CAPACITY];
+	/** The epoch each slot was written in, a slot is empty unless it matches the current epoch */
+	private int[] epochs = new int[INITIAL_CAPACITY];
+	/** The current epoch */
+	private int epoch = 1;
+	/** The number of entries in the current epoch */
+	private int size = 0;
+
+	/**
+	 * Returns the hash of the cookie name in the passed Set-Cookie value, equal to the String hash of the trimmed name
+	 * @param value The Set-Cookie header value
+	 * @return the name hash
+	 */
+	public static int nameHash(final String value) {
+		final int end = nameEnd(value);
+		int h = 0;
+		for(int i = nameStart(value); i < end; i++) h = 31 * h + value.charAt(i);
+		return h;
+	}
+
+	/**
+	 * Indicates if the two Set-Cookie values set the same cookie, that is the same name, path and domain.
+	 * Domains are compared ignoring case and a leading dot.
+	 * @param a The first value
+	 * @param b The second value
+	 * @return true if a browser would store the second over the first
+	 */
+	public static boolean sameCookie(final String a, final String b) {
+		final int as = nameStart(a), bs = nameStart(b);
+		final int an = nameEnd(a) - as;
+		if(an!=nameEnd(b) - bs || !a.regionMatches(as, b, bs, an)) return false;
+		return sameAttribute(a, b, "path", false) && sameAttribute(a, b, "domain", true);
+	}
+
+	private static boolean sameAttribute(final String a, final String b, final String attr, final boolean domain) {
+		final long av = attributeValue(a, attr), bv = attributeValue(b, attr);
+		if(av==-1L || bv==-1L) return av==bv;
+		int as = (int)(av >>> 32), bs = (int)(bv >>> 32);
+		final int ae = (int)av, be = (int)bv;
+		if(domain) {
+			if(as < ae && a.charAt(as)=='.') as++;
+			if(bs < be && b.charAt(bs)=='.') bs++;
+		}
+		return ae - as==be - bs && a.regionMatches(domain, as, b, bs, ae - as);
+	}
+
+	/**
+	 * Locates the value of the named attribute in the passed Set-Cookie value
+	 * @param v The Set-Cookie value
+	 * @param attr The lower case attribute name
+	 * @return the offset of the first character of the value in the high 32 bits and the offset one past its last character
+	 * in the low 32 bits, or -1 if the value has no such attribute
+	 */
+	private static long attributeValue(final String v, final String attr) {
+		final int end = v.length();
+		int i = skipValue(v, 0, end);
+		while(i < end) {
+			i++;	// the ';'
+			while(i < end && (v.charAt(i)==' ' || v.charAt(i)=='\t')) i++;
+			final int nameStart = i;
+			while(i < end && v.charAt(i)!='=' && v.charAt(i)!=';') i++;
+			int nameEnd = i;
+			while(nameEnd > nameStart && (v.charAt(nameEnd-1)==' ' || v.charAt(nameEnd-1)=='\t')) nameEnd--;
+			if(i < end && v.charAt(i)=='=') {
+				int vs = i + 1;
+				i = skipValue(v, vs, end);
+				if(nameEnd - nameStart==attr.length() && v.regionMatches(true, nameStart, attr, 0, attr.length())) {
+					int ve = i;
+					while(vs < ve && (v.charAt(vs)==' ' || v.charAt(vs)=='\t')) vs++;
+					while(ve > vs && (v.charAt(ve-1)==' ' || v.charAt(ve-1)=='\t')) ve--;
+					if(ve - vs >= 2 && v.charAt(vs)=='"' && v.charAt(ve-1)=='"') {
+						vs++;
+						ve--;
+					}
+					return ((long)vs << 32) | ve;
+				}
+			}
+		}
+		return -1L;
+	}
+
+	private static int skipValue(final String v, int i, final int end) {
+		boolean quoted = false;
+		for(; i < end; i++) {
+			final char c = v.charAt(i);
+			if(quoted) {
+				if(c=='\\') i++;
+				else if(c=='"') quoted = false;
+			} else if(c=='"') {
+				quoted = true;
+			} else if(c==';') {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int nameStart(final String v) {
+		int i = 0;
+		while(i < v.length() && (v.charAt(i)==' ' || v.charAt(i)=='\t')) i++;
+		return i;
+	}
+
+	private static int nameEnd(final String v) {
+		final int end = v.length();
+		final int start = nameStart(v);
+		int i = start;
+		while(i < end && v.charAt(i)!='=' && v.charAt(i)!=';') i++;
+		while(i > start && (v.charAt(i-1)==' ' || v.charAt(i-1)=='\t')) i--;
+		return i;
+	}
+
+	/**
+	 * Indicates if the table has no entries
+	 * @return true if empty
+	 */
+	public boolean isEmpty() {
+		return size==0;
+	}
+
+	/**
+	 * Records the header index of a cookie
+	 * @param hash The cookie name hash
+	 * @param header The index of its Set-Cookie header
+	 */
+	public void put(final int hash, final int header) {
+		if((size + 1) * 2 > hashes.length) grow();
+		final int mask = hashes.length - 1;
+		int i = spread(hash) & mask;
+		while(epochs[i]==epoch) i = (i + 1) & mask;
+		hashes[i] = hash;
+		headers[i] = header;
+		epochs[i] = epoch;
+		size++;
+	}
+
+	/**
+	 * Returns the first slot holding the passed name hash
+	 * @param hash The cookie name hash
+	 * @return the slot, or -1 if there is none
+	 */
+	public int first(final int hash) {
+		if(size==0) return -1;
+		return probe(hash, spread(hash) & (hashes.length - 1));
+	}
+
+	/**
+	 * Returns the next slot after the passed one holding the passed name hash
+	 * @param slot The slot returned by {@link #first(int)} or a previous call
+	 * @param hash The cookie name hash
+	 * @return the slot, or -1 if there is none
+	 */
+	public int next(final int slot, final int hash) {
+		return probe(hash, (slot + 1) & (hashes.length - 1));
+	}
+
+	private int probe(final int hash, int i) {
+		final int mask = hashes.length - 1;
+		while(epochs[i]==epoch) {
+			if(hashes[i]==hash) return i;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the header index recorded in the passed slot
+	 * @param slot The slot
+	 * @return the header index
+	 */
+	public int header(final int slot) {
+		return headers[slot];
+	}
+
+	/**
+	 * Empties the table, keeping its capacity
+	 */
+	public void clear() {
+		size = 0;
+		if(++epoch==0) {
+			Arrays.fill(epochs, 0);
+			epoch = 1;
+		}
+	}
+
+	private void grow() {
+		final int[] h = hashes, x = headers, e = epochs;
+		final int live = epoch;
+		hashes = new int[h.length * 2];
+		headers = new int[h.length * 2];
+		epochs = new int[h.length * 2];
+		epoch = 1;
+		size = 0;
+		for(int i = 0; i < h.length; i++) {
+			if(e[i]==live) put(h[i], x[i]);
+		}
+	}
+
+	private static int spread(final int h) {
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,136 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import org.apache.catalina.Context;
+
+/**
+ * <p>Title: SetCookieRewriter</p>
+ * <p>Description: Secures raw <b><code>Set-Cookie</code></b> header values passed as Strings.
+ * The value is streamed into a reused scratch buffer and scanned with {@link SetCookieScanner};
+ * a new String is only created when an attribute actually has to be added.
+ * Instances are not thread safe and are intended to be owned by a single response.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.SetCookieRewriter</code></p>
+ */
+
+public class SetCookieRewriter {
+	/** The initial scratch buffer size */
+	private static final int INITIAL_SCRATCH = 256;
+	/** The scratch buffer */
+	private byte[] scratch = new byte[INITIAL_SCRATCH];
+	/** The attribute bits added by the last rewrite */
+	private int lastAdded = 0;
+	/** The SameSite attribute bytes appended by the last rewrite, or null */
+	private byte[] lastSameSite = null;
+	/** The length of the value in the scratch buffer after the last rewrite */
+	private int lastLength = 0;
+
+	/**
+	 * Indicates if the passed header name is <b><code>Set-Cookie</code></b>.
+	 * Almost all other header names are rejected on the length check alone.
+	 * @param name The header name
+	 * @return true if the name is Set-Cookie (case insensitive)
+	 */
+	public static boolean isSetCookie(final String name) {
+		return name!=null && name.length()==10 && SetCookieScanner.SET_COOKIE.equalsIgnoreCase(name);
+	}
+
+	/**
+	 * Adds the missing required attributes to the passed Set-Cookie value
+	 * @param value The Set-Cookie header value
+	 * @param required The {@link SetCookieScanner} attribute bits the value must carry
+	 * @param sameSiteAttr The SameSite attribute bytes to append, or null
+	 * @return the passed value if nothing was missing, otherwise the rewritten value
+	 */
+	public String rewrite(final String value, final int required, final byte[] sameSiteAttr) {
+		return rewrite(value, CookiePolicySet.EMPTY, null, required, sameSiteAttr);
+	}
+
+	/**
+	 * Adds the attributes required by the valve wide settings and the cookie's resolved policy to the passed Set-Cookie value
+	 * @param value The Set-Cookie header value
+	 * @param policies The policy set to resolve the cookie's policy from
+	 * @param context The context the cookie is set in, or null
+	 * @param required The valve wide {@link SetCookieScanner} attribute bits the value must carry
+	 * @param sameSiteAttr The valve wide SameSite attribute bytes to append, or null
+	 * @return the passed value if nothing was missing, otherwise the rewritten value
+	 */
+	public String rewrite(final String value, final CookiePolicySet policies, final Context context, final int required, final byte[] sameSiteAttr) {
+		lastAdded = 0;
+		lastSameSite = null;
+		lastLength = 0;
+		if(value==null) return value;
+		if(required==0 && policies.isEmpty()) return value;
+		final int len = value.length();
+		final int capacity = len + SetCookieScanner.MAX_SUFFIX;
+		if(scratch.length < capacity) scratch = new byte[Math.max(scratch.length * 2, capacity)];
+		final int end = SetCookieScanner.copy(value, scratch, 0);
+		int req = required;
+		byte[] ss = sameSiteAttr;
+		if(!policies.isEmpty()) {
+			final int nameStart = SetCookieScanner.nameStart(scratch, 0, end);
+			final CookiePolicy policy = policies.resolve(context, scratch, nameStart, SetCookieScanner.nameEnd(scratch, nameStart, end));
+			req |= policy.getAttributes();
+			ss = policy.sameSiteAttribute(ss);
+		}
+		int missing = req & ~SetCookieScanner.scan(scratch, 0, end);
+		if(ss==null) missing &= ~SetCookieScanner.SAME_SITE;
+		if(missing==0) return value;
+		final int newEnd = SetCookieScanner.appendMissing(missing, ss, scratch, end);
+		lastAdded = missing;
+		lastSameSite = (missing & SetCookieScanner.SAME_SITE)!=0 ? ss : null;
+		lastLength = newEnd;
+		return new String(scratch, 0, newEnd, SetCookieScanner.ISO_8859_1);
+	}
+
+	/**
+	 * Returns the {@link SetCookieScanner} attribute bits added by the last rewrite
+	 * @return the added attribute bits, zero if the last value was returned unchanged
+	 */
+	public int getLastAdded() {
+		return lastAdded;
+	}
+
+	/**
+	 * Returns the SameSite attribute bytes appended by the last rewrite
+	 * @return the appended SameSite attribute bytes or null
+	 */
+	public byte[] getLastSameSite() {
+		return lastSameSite;
+	}
+
+	/**
+	 * Returns the scratch buffer, which holds the last rewritten value as ISO-8859-1 bytes
+	 * from offset zero to {@link #getLastLength()} until the next rewrite
+	 * @return the scratch buffer
+	 */
+	public byte[] buffer() {
+		return scratch;
+	}
+
+	/**
+	 * Returns the length of the last rewritten value in the scratch buffer
+	 * @return the length, zero if the last value was returned unchanged
+	 */
+	public int getLastLength() {
+		return lastLength;
+	}
+}
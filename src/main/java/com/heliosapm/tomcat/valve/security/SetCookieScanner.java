@@ -0,0 +1,256 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>Title: SetCookieScanner</p>
+ * <p>Description: Allocation free scanner for <b><code>Set-Cookie</code></b> header values held as ISO-8859-1 bytes.
+ * Reports which of the <b><code>Secure</code></b>, <b><code>HttpOnly</code></b> and <b><code>SameSite</code></b>
+ * attributes a value already carries and appends the missing ones.
+ * Quoted strings (version 1 cookie values and comments) are skipped so a <b><code>;</code></b> inside quotes
+ * is never mistaken for an attribute separator.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.SetCookieScanner</code></p>
+ */
+
+public final class SetCookieScanner {
+	/** The Secure attribute bit */
+	public static final int SECURE = 1;
+	/** The HttpOnly attribute bit */
+	public static final int HTTP_ONLY = 2;
+	/** The SameSite attribute bit */
+	public static final int SAME_SITE = 4;
+
+	/** The header name */
+	public static final String SET_COOKIE = "Set-Cookie";
+	/** The charset header values are encoded in */
+	public static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	/** The appended Secure attribute */
+	private static final byte[] SECURE_ATTR = "; Secure".getBytes(ISO_8859_1);
+	/** The appended HttpOnly attribute */
+	private static final byte[] HTTP_ONLY_ATTR = "; HttpOnly".getBytes(ISO_8859_1);
+
+	/** The lower case secure attribute name */
+	private static final byte[] SECURE_NAME = "secure".getBytes(ISO_8859_1);
+	/** The lower case httponly attribute name */
+	private static final byte[] HTTP_ONLY_NAME = "httponly".getBytes(ISO_8859_1);
+	/** The lower case samesite attribute name */
+	private static final byte[] SAME_SITE_NAME = "samesite".getBytes(ISO_8859_1);
+	/** The lower case path attribute name */
+	private static final byte[] PATH_NAME = "path".getBytes(ISO_8859_1);
+
+	/** The maximum number of bytes {@link #appendMissing(int, byte[], byte[], int)} can append */
+	public static final int MAX_SUFFIX = SECURE_ATTR.length + HTTP_ONLY_ATTR.length + "; SameSite=Strict".length();
+
+	/**
+	 * Builds the appended SameSite attribute for the passed policy value
+	 * @param sameSite One of <b><code>Strict</code></b>, <b><code>Lax</code></b> or <b><code>None</code></b> (case insensitive), or null for none
+	 * @return the attribute bytes or null if the passed value was null or empty
+	 */
+	public static byte[] sameSiteAttribute(final String sameSite) {
+		final SameSite s = SameSite.decode(sameSite);
+		return s==null ? null : s.attribute();
+	}
+
+	/**
+	 * Returns the offset one past the cookie name in the passed Set-Cookie value
+	 * @param b The buffer holding the value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 * @return the offset one past the trimmed name
+	 */
+	public static int nameEnd(final byte[] b, final int start, final int end) {
+		int i = start;
+		while(i < end && b[i]!='=' && b[i]!=';') i++;
+		while(i > start && (b[i-1]==' ' || b[i-1]=='\t')) i--;
+		return i;
+	}
+
+	/**
+	 * Returns the offset of the first non whitespace byte of the passed Set-Cookie value
+	 * @param b The buffer holding the value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 * @return the offset of the cookie name
+	 */
+	public static int nameStart(final byte[] b, final int start, final int end) {
+		int i = start;
+		while(i < end && (b[i]==' ' || b[i]=='\t')) i++;
+		return i;
+	}
+
+	/**
+	 * Scans the passed Set-Cookie value and returns the attribute bits it already carries
+	 * @param b The buffer holding the value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 * @return the present attribute bits
+	 */
+	public static int scan(final byte[] b, final int start, final int end) {
+		int present = 0;
+		int i = skipValue(b, start, end);
+		while(i < end) {
+			i++;	// the ';'
+			while(i < end && (b[i]==' ' || b[i]=='\t')) i++;
+			final int nameStart = i;
+			while(i < end && b[i]!='=' && b[i]!=';') i++;
+			int nameEnd = i;
+			while(nameEnd > nameStart && (b[nameEnd-1]==' ' || b[nameEnd-1]=='\t')) nameEnd--;
+			present |= attribute(b, nameStart, nameEnd);
+			if(i < end && b[i]=='=') i = skipValue(b, i+1, end);
+		}
+		return present;
+	}
+
+	/**
+	 * Locates the value of the <b><code>Path</code></b> attribute in the passed Set-Cookie value
+	 * @param b The buffer holding the value
+	 * @param start The offset of the first byte of the value
+	 * @param end The offset one past the last byte of the value
+	 * @return the offset of the first byte of the path in the high 32 bits and the offset one past its last byte in the low 32 bits,
+	 * or -1 if the value has no Path attribute
+	 */
+	public static long pathValue(final byte[] b, final int start, final int end) {
+		int i = skipValue(b, start, end);
+		while(i < end) {
+			i++;	// the ';'
+			while(i < end && (b[i]==' ' || b[i]=='\t')) i++;
+			final int nameStart = i;
+			while(i < end && b[i]!='=' && b[i]!=';') i++;
+			int nameEnd = i;
+			while(nameEnd > nameStart && (b[nameEnd-1]==' ' || b[nameEnd-1]=='\t')) nameEnd--;
+			if(i < end && b[i]=='=') {
+				final int valueStart = i + 1;
+				i = skipValue(b, valueStart, end);
+				if(nameEnd - nameStart==PATH_NAME.length && matches(PATH_NAME, b, nameStart)) {
+					int vs = valueStart, ve = i;
+					while(vs < ve && (b[vs]==' ' || b[vs]=='\t')) vs++;
+					while(ve > vs && (b[ve-1]==' ' || b[ve-1]=='\t')) ve--;
+					return ((long)vs << 32) | ve;
+				}
+			}
+		}
+		return -1L;
+	}
+
+	/**
+	 * Appends the attributes flagged in <b><code>missing</code></b> to the passed buffer.
+	 * The caller must ensure there are at least {@link #MAX_SUFFIX} bytes available.
+	 * @param missing The attribute bits to append
+	 * @param sameSiteAttr The SameSite attribute bytes, or null to never append one
+	 * @param dst The buffer to append to
+	 * @param pos The offset to append at
+	 * @return the offset one past the last appended byte
+	 */
+	public static int appendMissing(final int missing, final byte[] sameSiteAttr, final byte[] dst, int pos) {
+		if((missing & SECURE)!=0) pos = put(SECURE_ATTR, dst, pos);
+		if((missing & HTTP_ONLY)!=0) pos = put(HTTP_ONLY_ATTR, dst, pos);
+		if((missing & SAME_SITE)!=0 && sameSiteAttr!=null) pos = put(sameSiteAttr, dst, pos);
+		return pos;
+	}
+
+	/**
+	 * Copies the passed characters into the passed buffer as ISO-8859-1,
+	 * replacing characters that cannot be sent in a header with a space, as the coyote output buffers do.
+	 * @param s The characters to copy
+	 * @param dst The buffer to copy to
+	 * @param pos The offset to copy to
+	 * @return the offset one past the last copied byte
+	 */
+	public static int copy(final CharSequence s, final byte[] dst, int pos) {
+		final int len = s.length();
+		for(int i = 0; i < len; i++) {
+			final char c = s.charAt(i);
+			dst[pos++] = ((c <= 31 && c != 9) || c == 127 || c > 255) ? (byte)' ' : (byte)c;
+		}
+		return pos;
+	}
+
+	/**
+	 * Returns the index of the first <b><code>;</code></b> outside a quoted string, or <b><code>end</code></b>
+	 * @param b The buffer to scan
+	 * @param i The offset to start at
+	 * @param end The offset one past the last byte to scan
+	 * @return the index of the next separator or end
+	 */
+	private static int skipValue(final byte[] b, int i, final int end) {
+		boolean quoted = false;
+		for(; i < end; i++) {
+			final byte c = b[i];
+			if(quoted) {
+				if(c=='\\') i++;
+				else if(c=='"') quoted = false;
+			} else if(c=='"') {
+				quoted = true;
+			} else if(c==';') {
+				return i;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Returns the attribute bit for the passed attribute name
+	 * @param b The buffer holding the name
+	 * @param start The offset of the first byte of the name
+	 * @param end The offset one past the last byte of the name
+	 * @return the attribute bit, or zero if the name is not one we track
+	 */
+	private static int attribute(final byte[] b, final int start, final int end) {
+		switch(end - start) {
+			case 6: return matches(SECURE_NAME, b, start) ? SECURE : 0;
+			case 8:
+				if(matches(HTTP_ONLY_NAME, b, start)) return HTTP_ONLY;
+				return matches(SAME_SITE_NAME, b, start) ? SAME_SITE : 0;
+			default: return 0;
+		}
+	}
+
+	/**
+	 * Case insensitive comparison of an ASCII letter only lower case name
+	 * @param lower The lower case name
+	 * @param b The buffer to compare
+	 * @param start The offset in the buffer to compare from
+	 * @return true if the bytes match
+	 */
+	private static boolean matches(final byte[] lower, final byte[] b, final int start) {
+		for(int i = 0; i < lower.length; i++) {
+			if((b[start+i] | 0x20) != lower[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the passed bytes
+	 * @param src The bytes to copy
+	 * @param dst The buffer to copy to
+	 * @param pos The offset to copy to
+	 * @return the offset one past the last copied byte
+	 */
+	private static int put(final byte[] src, final byte[] dst, final int pos) {
+		System.arraycopy(src, 0, dst, pos, src.length);
+		return pos + src.length;
+	}
+
+	private SetCookieScanner() {}
+}
@@ -0,0 +1,273 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.Cookie;
+
+/**
+ * <p>Title: SetCookieSuffixCache</p>
+ * <p>Description: A bounded, direct mapped cache of pre-rendered <b><code>Set-Cookie</code></b> attribute suffixes,
+ * e.g. <b><code>; Domain=example.com; Path=/; Secure; HttpOnly; SameSite=Lax</code></b>, keyed by the cookie's
+ * attribute set. Rendering a cookie with a cached suffix only copies the name and value, where catalina's
+ * <b><code>generateCookieString</code></b> rebuilds the whole header in a growing StringBuffer every time.
+ * A colliding shape replaces the cached one, so the cache never holds more than its size.</p>
+ * <p>Only cookies whose header catalina renders verbatim are cached: version 0, no comment, and a value, domain and
+ * path that catalina would neither quote nor use to switch the cookie to version 1. {@link #isRenderable(Cookie)}
+ * checks this; other cookies take the catalina path. The time dependent <b><code>Expires</code></b> of a cookie with
+ * a max age is spliced in from {@link HttpDateCache#COOKIE} at its place after the domain.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.SetCookieSuffixCache</code></p>
+ */
+
+public class SetCookieSuffixCache {
+	/** The default cache size */
+	public static final int DEFAULT_SIZE = 256;
+	/** The characters catalina quotes in a version 0 cookie value or switches it to version 1 for */
+	private static final String VALUE_SPECIALS = "()<>@,;:\\\"/[]?={} \t";
+	/** The characters catalina quotes in a version 0 domain or path */
+	private static final String ATTRIBUTE_SPECIALS = ",; \"";
+	/** The Expires attribute name */
+	private static final char[] EXPIRES = "; Expires=".toCharArray();
+
+	/** The cached suffixes */
+	private final Entry[] cache;
+	/** The cache index mask */
+	private final int mask;
+	/** The cache hit count */
+	private final AtomicLong hits = new AtomicLong(0L);
+	/** The cache miss count */
+	private final AtomicLong misses = new AtomicLong(0L);
+
+	/**
+	 * Creates a new SetCookieSuffixCache
+	 * @param size The cache size, rounded up to a power of 2
+	 */
+	public SetCookieSuffixCache(final int size) {
+		if(size < 1) throw new IllegalArgumentException("Invalid cache size [" + size + "]");
+		int s = 1;
+		while(s < size) s <<= 1;
+		cache = new Entry[s];
+		mask = s - 1;
+	}
+
+	/**
+	 * Indicates if the passed cookie's header can be rendered from a cached suffix exactly as catalina would render it
+	 * @param cookie The cookie
+	 * @return true if the cookie can be rendered by this cache
+	 */
+	public static boolean isRenderable(final Cookie cookie) {
+		return cookie.getVersion()==0 && cookie.getComment()==null
+			&& plain(cookie.getValue(), VALUE_SPECIALS) && (cookie.getDomain()==null || plain(cookie.getDomain(), ATTRIBUTE_SPECIALS))
+			&& (cookie.getPath()==null || plain(cookie.getPath(), ATTRIBUTE_SPECIALS));
+	}
+
+	/**
+	 * Indicates if the passed value is non empty, printable ASCII and free of the passed special characters
+	 * @param value The value
+	 * @param specials The special characters
+	 * @return true if catalina appends the value as is
+	 */
+	private static boolean plain(final String value, final String specials) {
+		if(value==null) return false;
+		final int len = value.length();
+		if(len==0) return false;
+		for(int i = 0; i < len; i++) {
+			final char c = value.charAt(i);
+			if(c <= 0x20 || c >= 0x7f || specials.indexOf(c)!=-1) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the length of the Set-Cookie header value catalina renders for a cookie accepted by {@link #isRenderable(Cookie)},
+	 * without rendering it
+	 * @param cookie The cookie
+	 * @param httpOnly true to count the HttpOnly attribute
+	 * @param sameSiteAttr The SameSite attribute bytes to count, or null
+	 * @return the header value length
+	 */
+	public static int renderedLength(final Cookie cookie, final boolean httpOnly, final byte[] sameSiteAttr) {
+		int len = cookie.getName().length() + 1 + cookie.getValue().length();
+		if(cookie.getDomain()!=null) len += 9 + cookie.getDomain().length();
+		if(cookie.getMaxAge() >= 0) len += EXPIRES.length + HttpDateCache.COOKIE.expires(cookie.getMaxAge()).length;
+		if(cookie.getPath()!=null) len += 7 + cookie.getPath().length();
+		if(cookie.getSecure()) len += 8;
+		if(httpOnly) len += 10;
+		if(sameSiteAttr!=null) len += sameSiteAttr.length;
+		return len;
+	}
+
+	/**
+	 * Renders the Set-Cookie header value for a cookie accepted by {@link #isRenderable(Cookie)}
+	 * @param cookie The cookie
+	 * @param httpOnly true to render the HttpOnly attribute
+	 * @param sameSiteAttr The SameSite attribute bytes to render, or null
+	 * @param scratch A scratch buffer to assemble the value in, used if large enough
+	 * @return the header value
+	 */
+	public String render(final Cookie cookie, final boolean httpOnly, final byte[] sameSiteAttr, final char[] scratch) {
+		final int maxAge = cookie.getMaxAge();
+		final Entry e = entry(cookie.getDomain(), cookie.getPath(), cookie.getSecure(), httpOnly, sameSiteAttr);
+		final char[] suffix = e.suffix;
+		final String name = cookie.getName();
+		final String value = cookie.getValue();
+		final int n = name.length();
+		final int v = value.length();
+		final char[] expires = maxAge >= 0 ? HttpDateCache.COOKIE.expires(maxAge) : null;
+		final int len = n + 1 + v + suffix.length + (expires==null ? 0 : EXPIRES.length + expires.length);
+		final char[] buf = len <= scratch.length ? scratch : new char[len];
+		name.getChars(0, n, buf, 0);
+		buf[n] = '=';
+		value.getChars(0, v, buf, n + 1);
+		int pos = n + 1 + v;
+		if(expires==null) {
+			System.arraycopy(suffix, 0, buf, pos, suffix.length);
+		} else {
+			System.arraycopy(suffix, 0, buf, pos, e.expiresAt);
+			pos += e.expiresAt;
+			System.arraycopy(EXPIRES, 0, buf, pos, EXPIRES.length);
+			pos += EXPIRES.length;
+			System.arraycopy(expires, 0, buf, pos, expires.length);
+			pos += expires.length;
+			System.arraycopy(suffix, e.expiresAt, buf, pos, suffix.length - e.expiresAt);
+		}
+		return new String(buf, 0, len);
+	}
+
+	/**
+	 * Returns the rendered attribute suffix for the passed attribute set, rendering and caching it on a miss
+	 * @param domain The cookie domain, or null
+	 * @param path The cookie path, or null
+	 * @param secure true for the Secure attribute
+	 * @param httpOnly true for the HttpOnly attribute
+	 * @param sameSiteAttr The SameSite attribute bytes, or null
+	 * @return the cache entry
+	 */
+	private Entry entry(final String domain, final String path, final boolean secure, final boolean httpOnly, final byte[] sameSiteAttr) {
+		final int flags = (secure ? 1 : 0) | (httpOnly ? 2 : 0);
+		int h = domain==null ? 0 : domain.hashCode();
+		h = 31 * h + (path==null ? 0 : path.hashCode());
+		h = 31 * h + flags;
+		h = 31 * h + (sameSiteAttr==null ? 0 : System.identityHashCode(sameSiteAttr));
+		final int idx = (h ^ (h >>> 16)) & mask;
+		final Entry e = cache[idx];
+		if(e!=null && e.hash==h && e.flags==flags && e.sameSiteAttr==sameSiteAttr && eq(e.domain, domain) && eq(e.path, path)) {
+			hits.incrementAndGet();
+			return e;
+		}
+		misses.incrementAndGet();
+		final StringBuilder b = new StringBuilder(64);
+		// the attribute order of catalina's ServerCookie.appendCookieValue
+		if(domain!=null) b.append("; Domain=").append(domain);
+		final int expiresAt = b.length();
+		if(path!=null) b.append("; Path=").append(path);
+		if(secure) b.append("; Secure");
+		if(httpOnly) b.append("; HttpOnly");
+		if(sameSiteAttr!=null) b.append(new String(sameSiteAttr, SetCookieScanner.ISO_8859_1));
+		final Entry entry = new Entry(domain, path, flags, sameSiteAttr, h, b.toString().toCharArray(), expiresAt);
+		cache[idx] = entry;
+		return entry;
+	}
+
+	private static boolean eq(final String a, final String b) {
+		return a==b || (a!=null && a.equals(b));
+	}
+
+	/**
+	 * Returns the cache size
+	 * @return the cache size
+	 */
+	public int getSize() {
+		return cache.length;
+	}
+
+	/**
+	 * Returns the cache hit count
+	 * @return the hit count
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the cache miss count
+	 * @return the miss count
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the fraction of lookups served from the cache
+	 * @return the hit ratio, from 0 to 1
+	 */
+	public double getHitRatio() {
+		final long h = hits.get();
+		final long total = h + misses.get();
+		return total==0L ? 0d : (double)h / total;
+	}
+
+	/**
+	 * Clears the cache and its counters
+	 */
+	public void clear() {
+		Arrays.fill(cache, null);
+		hits.set(0L);
+		misses.set(0L);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "SetCookieSuffixCache [size:" + cache.length + ", hits:" + hits.get() + ", misses:" + misses.get() + "]";
+	}
+
+	/**
+	 * <p>Title: Entry</p>
+	 * <p>Description: An immutable cache entry. All fields are final so entries
+	 * are safely published through the plain cache array.</p>
+	 */
+	private static final class Entry {
+		final String domain;
+		final String path;
+		final int flags;
+		final byte[] sameSiteAttr;
+		final int hash;
+		final char[] suffix;
+		/** The offset in the suffix the Expires attribute goes at */
+		final int expiresAt;
+
+		Entry(final String domain, final String path, final int flags, final byte[] sameSiteAttr, final int hash, final char[] suffix, final int expiresAt) {
+			this.domain = domain;
+			this.path = path;
+			this.flags = flags;
+			this.sameSiteAttr = sameSiteAttr;
+			this.hash = hash;
+			this.suffix = suffix;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
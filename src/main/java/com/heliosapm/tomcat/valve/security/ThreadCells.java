@@ -0,0 +1,182 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Title: ThreadCells</p>
+ * <p>Description: A set of long slots striped per thread. Each thread gets its own cell on first use and is its only writer,
+ * so an update is a plain read and an ordered store: wait-free, with no CAS and no contention. Readers sum the slot over
+ * all cells.</p>
+ * <p>Cells are tracked by a weak reference to their thread. When a reader finds a cell whose thread has died, it folds
+ * the cell's counts into a retired total and drops the cell, so a pool that replaces its threads does not grow the set
+ * and no counts are lost. Readers and the first use on a thread take the set's lock; updates never do.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ThreadCells</code></p>
+ */
+
+public final class ThreadCells {
+	/** The number of slots per cell */
+	private final int width;
+	/** The cells of the threads not yet found dead, guarded by this */
+	private final List<Cell> cells = new ArrayList<Cell>();
+	/** The folded counts of the threads found dead, guarded by this */
+	private final long[] retired;
+	/** The calling thread's cell */
+	private final ThreadLocal<AtomicLongArray> local = new ThreadLocal<AtomicLongArray>() {
+		@Override
+		protected AtomicLongArray initialValue() {
+			final AtomicLongArray slots = new AtomicLongArray(width);
+			synchronized(ThreadCells.this) {
+				cells.add(new Cell(Thread.currentThread(), slots));
+			}
+			return slots;
+		}
+	};
+
+	/**
+	 * Creates a new ThreadCells
+	 * @param width The number of slots per cell
+	 */
+	public ThreadCells(final int width) {
+		if(width < 1) throw new IllegalArgumentException("Invalid width [" + width + "]");
+		this.width = width;
+		this.retired = new long[width];
+	}
+
+	/**
+	 * Returns the calling thread's cell. Only the calling thread may write to it, through {@link #add(AtomicLongArray, int, long)}.
+	 * @return the calling thread's cell
+	 */
+	public AtomicLongArray cell() {
+		return local.get();
+	}
+
+	/**
+	 * Adds to a slot of the calling thread's cell
+	 * @param cell The calling thread's cell
+	 * @param slot The slot
+	 * @param delta The amount to add
+	 */
+	public static void add(final AtomicLongArray cell, final int slot, final long delta) {
+		cell.lazySet(slot, cell.get(slot) + delta);
+	}
+
+	/**
+	 * Returns the sum of a slot over all cells
+	 * @param slot The slot
+	 * @return the sum
+	 */
+	public synchronized long sum(final int slot) {
+		retire();
+		long sum = retired[slot];
+		for(Cell cell: cells) sum += cell.slots.get(slot);
+		return sum;
+	}
+
+	/**
+	 * Sums every slot over all cells
+	 * @return the sums, indexed by slot
+	 */
+	public synchronized long[] sums() {
+		retire();
+		final long[] sums = retired.clone();
+		for(Cell cell: cells) {
+			for(int i = 0; i < width; i++) sums[i] += cell.slots.get(i);
+		}
+		return sums;
+	}
+
+	/**
+	 * Folds the cells of dead threads into the retired total and drops them. A thread found dead has made its last write,
+	 * and detecting its termination makes that write visible.
+	 */
+	private void retire() {
+		for(Iterator<Cell> iter = cells.iterator(); iter.hasNext();) {
+			final Cell cell = iter.next();
+			final Thread owner = cell.get();
+			if(owner!=null && owner.isAlive()) continue;
+			for(int i = 0; i < width; i++) retired[i] += cell.slots.get(i);
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Returns the number of slots per cell
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the number of cells, i.e. the number of live threads that have written
+	 * @return the number of cells
+	 */
+	public synchronized int getCellCount() {
+		retire();
+		return cells.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ThreadCells [width:" + width + ", cells:" + getCellCount() + "]";
+	}
+
+	/**
+	 * Subtracts a baseline from sums taken with {@link #sums()}
+	 * @param sums The sums
+	 * @param baseline The baseline, or null
+	 * @return the passed sums
+	 */
+	static long[] minus(final long[] sums, final long[] baseline) {
+		if(baseline==null) return sums;
+		for(int i = 0; i < sums.length; i++) sums[i] -= baseline[i];
+		return sums;
+	}
+
+	/**
+	 * <p>Title: Cell</p>
+	 * <p>Description: A thread's slots, referencing the thread weakly so the set does not keep it reachable</p>
+	 */
+	private static final class Cell extends WeakReference<Thread> {
+		/** The thread's slots */
+		final AtomicLongArray slots;
+
+		/**
+		 * Creates a new Cell
+		 * @param owner The thread writing the slots
+		 * @param slots The slots
+		 */
+		Cell(final Thread owner, final AtomicLongArray slots) {
+			super(owner);
+			this.slots = slots;
+		}
+	}
+}
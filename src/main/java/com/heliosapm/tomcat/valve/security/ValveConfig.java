@@ -0,0 +1,1011 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.catalina.Context;
+
+/**
+ * <p>Title: ValveConfig</p>
+ * <p>Description: An immutable snapshot of the whole {@link SecureCookies} configuration. The valve publishes the current
+ * snapshot through a single volatile reference and reads it once per request, so a request always sees one consistent
+ * configuration. Changes are made by deriving a new, fully parsed and validated snapshot with {@link #with(Map, String)}
+ * and swapping it in; policies are compiled during the derivation, never on the request thread.</p>
+ * <p>The keys are the valve attribute names, so the same properties can be set in <b><code>server.xml</code></b>,
+ * over JMX or in the valve's config file:</p>
+ * <pre>
+ *   enabled=true
+ *   engine=header
+ *   forceSecure=true
+ *   forceHttpOnly=true
+ *   sameSite=Lax
+ *   policies=JSESSIONID -&gt; secure,httponly; auth_* -&gt; httponly
+ *   contextPolicies=path=/admin -&gt; sameSite=Strict
+ * </pre>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ValveConfig</code></p>
+ */
+
+public final class ValveConfig {
+	/** The valve enabled switch */
+	public static final String ENABLED = "enabled";
+	/** The cookie engine */
+	public static final String ENGINE = "engine";
+	/** The wrapper recycling switch */
+	public static final String RECYCLE_WRAPPERS = "recycleWrappers";
+	/** The forced Secure switch */
+	public static final String FORCE_SECURE = "forceSecure";
+	/** The proxies trusted to report the scheme */
+	public static final String TRUSTED_PROXIES = "trustedProxies";
+	/** The forced HttpOnly switch */
+	public static final String FORCE_HTTP_ONLY = "forceHttpOnly";
+	/** The forced SameSite value */
+	public static final String SAME_SITE = "sameSite";
+	/** The per cookie policy spec */
+	public static final String POLICIES = "policies";
+	/** The per cookie policy decision cache size */
+	public static final String POLICY_CACHE_SIZE = "policyCacheSize";
+	/** The per context overrides of forceSecure, forceHttpOnly and sameSite */
+	public static final String CONTEXT_POLICIES = "contextPolicies";
+	/** The rendered Set-Cookie suffix cache switch */
+	public static final String RENDER_CACHE = "renderCache";
+	/** The rendered Set-Cookie suffix cache size */
+	public static final String RENDER_CACHE_SIZE = "renderCacheSize";
+	/** The per request DEBUG logging switch */
+	public static final String REQUEST_LOGGING = "requestLogging";
+	/** The bypassed URI path prefixes */
+	public static final String BYPASS_PATHS = "bypassPaths";
+	/** The bypassed URI extensions */
+	public static final String BYPASS_EXTENSIONS = "bypassExtensions";
+	/** The bypassed URI patterns */
+	public static final String BYPASS_PATTERNS = "bypassPatterns";
+	/** The bypassed request methods */
+	public static final String BYPASS_METHODS = "bypassMethods";
+	/** The maximum size of one inbound cookie */
+	public static final String MAX_COOKIE_SIZE = "maxCookieSize";
+	/** The maximum number of inbound cookies */
+	public static final String MAX_COOKIE_COUNT = "maxCookieCount";
+	/** The maximum size of the inbound Cookie headers */
+	public static final String MAX_COOKIE_HEADER_SIZE = "maxCookieHeaderSize";
+	/** The switch collapsing repeated Set-Cookie headers for the same cookie */
+	public static final String DEDUPE_COOKIES = "dedupeCookies";
+	/** The maximum Set-Cookie bytes of one response */
+	public static final String COOKIE_BUDGET_BYTES = "cookieBudgetBytes";
+	/** The maximum number of cookies set by one response */
+	public static final String COOKIE_BUDGET_COUNT = "cookieBudgetCount";
+	/** What happens to a cookie over the response's budget, drop, truncate or log */
+	public static final String COOKIE_BUDGET_ACTION = "cookieBudgetAction";
+	/** The names of the signed cookies */
+	public static final String SIGNED_COOKIES = "signedCookies";
+	/** The cookie signing keys, current first */
+	public static final String SIGNING_KEYS = "signingKeys";
+	/** The cookie signing HMAC algorithm */
+	public static final String SIGNING_ALGORITHM = "signingAlgorithm";
+	/** What happens to a request carrying a bad signature, strip or reject */
+	public static final String SIGNATURE_FAILURE = "signatureFailure";
+	/** The names of the encrypted cookies */
+	public static final String ENCRYPTED_COOKIES = "encryptedCookies";
+	/** The cookie encryption keys, current first */
+	public static final String ENCRYPTION_KEYS = "encryptionKeys";
+	/** What happens to a request carrying a cookie that fails to decrypt, strip or reject */
+	public static final String DECRYPTION_FAILURE = "decryptionFailure";
+	/** The response interceptors, in call order */
+	public static final String INTERCEPTORS = "interceptors";
+	/** The binary audit log directory */
+	public static final String AUDIT_LOG = "auditLog";
+	/** The binary audit log ring capacity */
+	public static final String AUDIT_LOG_BUFFER_SIZE = "auditLogBufferSize";
+	/** The binary audit log segment size */
+	public static final String AUDIT_LOG_SEGMENT_SIZE = "auditLogSegmentSize";
+	/** The number of binary audit log segments */
+	public static final String AUDIT_LOG_SEGMENTS = "auditLogSegments";
+	/** The operating level, or the highest level the degradation controller recovers to */
+	public static final String LEVEL = "level";
+	/** The degradation controller switch */
+	public static final String DEGRADE = "degrade";
+	/** The lowest level the degradation controller degrades to */
+	public static final String DEGRADE_FLOOR = "degradeFloor";
+	/** The degradation controller sampling interval in ms */
+	public static final String DEGRADE_INTERVAL = "degradeInterval";
+	/** The valve p99 in microseconds above which an interval is under pressure */
+	public static final String DEGRADE_LATENCY = "degradeLatency";
+	/** The connector thread pool saturation percentage above which an interval is under pressure */
+	public static final String DEGRADE_SATURATION = "degradeSaturation";
+	/** The number of consecutive intervals under pressure before the level is lowered */
+	public static final String DEGRADE_INTERVALS = "degradeIntervals";
+	/** The valve p99 in microseconds below which an interval is healthy */
+	public static final String RECOVER_LATENCY = "recoverLatency";
+	/** The connector thread pool saturation percentage below which an interval is healthy */
+	public static final String RECOVER_SATURATION = "recoverSaturation";
+	/** The number of consecutive healthy intervals before the level is raised */
+	public static final String RECOVER_INTERVALS = "recoverIntervals";
+	/** The reserved URI the Prometheus text metrics are served on, empty for none */
+	public static final String METRICS_PATH = "metricsPath";
+	/** The minimum interval in ms between renderings of the Prometheus text metrics */
+	public static final String METRICS_INTERVAL = "metricsInterval";
+	/** The remote addresses and CIDR blocks allowed to scrape the metrics, empty for any */
+	public static final String METRICS_ALLOW = "metricsAllow";
+	/** The connector port the metrics are served on, 0 for any */
+	public static final String METRICS_PORT = "metricsPort";
+
+	/** The default values */
+	private static final Map<String, String> DEFAULTS;
+
+	static {
+		final Map<String, String> defaults = new LinkedHashMap<String, String>();
+		defaults.put(ENABLED, "true");
+		defaults.put(ENGINE, "wrapper");
+		defaults.put(RECYCLE_WRAPPERS, "true");
+		defaults.put(FORCE_SECURE, "false");
+		defaults.put(TRUSTED_PROXIES, "");
+		defaults.put(FORCE_HTTP_ONLY, "false");
+		defaults.put(SAME_SITE, "");
+		defaults.put(POLICIES, "");
+		defaults.put(POLICY_CACHE_SIZE, String.valueOf(CookiePolicySet.DEFAULT_CACHE_SIZE));
+		defaults.put(CONTEXT_POLICIES, "");
+		defaults.put(RENDER_CACHE, "true");
+		defaults.put(RENDER_CACHE_SIZE, String.valueOf(SetCookieSuffixCache.DEFAULT_SIZE));
+		defaults.put(REQUEST_LOGGING, "true");
+		defaults.put(BYPASS_PATHS, "");
+		defaults.put(BYPASS_EXTENSIONS, "");
+		defaults.put(BYPASS_PATTERNS, "");
+		defaults.put(BYPASS_METHODS, "");
+		defaults.put(MAX_COOKIE_SIZE, "0");
+		defaults.put(MAX_COOKIE_COUNT, "0");
+		defaults.put(MAX_COOKIE_HEADER_SIZE, "0");
+		defaults.put(DEDUPE_COOKIES, "true");
+		defaults.put(COOKIE_BUDGET_BYTES, "0");
+		defaults.put(COOKIE_BUDGET_COUNT, "0");
+		defaults.put(COOKIE_BUDGET_ACTION, "log");
+		defaults.put(SIGNED_COOKIES, "");
+		defaults.put(SIGNING_KEYS, "");
+		defaults.put(SIGNING_ALGORITHM, CookieSigner.DEFAULT_ALGORITHM);
+		defaults.put(SIGNATURE_FAILURE, "strip");
+		defaults.put(ENCRYPTED_COOKIES, "");
+		defaults.put(ENCRYPTION_KEYS, "");
+		defaults.put(DECRYPTION_FAILURE, "strip");
+		defaults.put(INTERCEPTORS, "");
+		defaults.put(AUDIT_LOG, "");
+		defaults.put(AUDIT_LOG_BUFFER_SIZE, String.valueOf(CookieAuditLog.DEFAULT_BUFFER_SIZE));
+		defaults.put(AUDIT_LOG_SEGMENT_SIZE, String.valueOf(CookieAuditLog.DEFAULT_SEGMENT_SIZE));
+		defaults.put(AUDIT_LOG_SEGMENTS, String.valueOf(CookieAuditLog.DEFAULT_SEGMENTS));
+		defaults.put(LEVEL, "full");
+		defaults.put(DEGRADE, "false");
+		defaults.put(DEGRADE_FLOOR, "essential");
+		defaults.put(DEGRADE_INTERVAL, "1000");
+		defaults.put(DEGRADE_LATENCY, "1000");
+		defaults.put(DEGRADE_SATURATION, "90");
+		defaults.put(DEGRADE_INTERVALS, "2");
+		defaults.put(RECOVER_LATENCY, "250");
+		defaults.put(RECOVER_SATURATION, "70");
+		defaults.put(RECOVER_INTERVALS, "10");
+		defaults.put(METRICS_PATH, "");
+		defaults.put(METRICS_INTERVAL, "1000");
+		defaults.put(METRICS_ALLOW, "127.0.0.1, ::1");
+		defaults.put(METRICS_PORT, "0");
+		DEFAULTS = Collections.unmodifiableMap(defaults);
+	}
+
+	/**
+	 * Creates a default configuration. Each valve starts from its own, since a snapshot owns caches that are
+	 * carried over to the snapshots derived from it.
+	 * @return a new default configuration, version zero
+	 */
+	public static ValveConfig defaults() {
+		return new ValveConfig(DEFAULTS, 0L, "default", null);
+	}
+
+	/** The normalized values, keyed by name, in declaration order */
+	private final Map<String, String> values;
+	/** The normalized values with the signing secrets masked */
+	private final Map<String, String> published;
+	/** The snapshot version */
+	private final long version;
+	/** Where the snapshot came from */
+	private final String source;
+
+	private final boolean enabled;
+	private final CookieEngine engine;
+	private final boolean recycleWrappers;
+	private final boolean forceSecure;
+	private final CidrTrie trustedProxies;
+	private final boolean forceHttpOnly;
+	private final SameSite sameSite;
+	private final CookiePolicySet policies;
+	private final int policyCacheSize;
+	private final boolean renderCache;
+	private final int renderCacheSize;
+	private final SetCookieSuffixCache suffixCache;
+	private final boolean requestLogging;
+	private final BypassRules bypass;
+	private final int maxCookieSize;
+	private final int maxCookieCount;
+	private final int maxCookieHeaderSize;
+	private final boolean dedupeCookies;
+	private final int cookieBudgetBytes;
+	private final int cookieBudgetCount;
+	private final CookieBudgetAction cookieBudgetAction;
+	private final CookieSigner signer;
+	private final String signingKeys;
+	private final boolean signatureReject;
+	private final CookieEncryptor encryptor;
+	private final String encryptionKeys;
+	private final boolean decryptionReject;
+	private final InterceptorChain interceptors;
+	private final String auditLog;
+	private final int auditLogBufferSize;
+	private final int auditLogSegmentSize;
+	private final int auditLogSegments;
+	private final ValveLevel level;
+	private final boolean degrade;
+	private final ValveLevel degradeFloor;
+	private final int degradeInterval;
+	private final int degradeLatency;
+	private final int degradeSaturation;
+	private final int degradeIntervals;
+	private final int recoverLatency;
+	private final int recoverSaturation;
+	private final int recoverIntervals;
+	private final String metricsPath;
+	private final int metricsInterval;
+	private final CidrTrie metricsAllow;
+	private final int metricsPort;
+	/** The valve wide forceSecure, forceHttpOnly and sameSite */
+	private final ContextPolicy defaultPolicy;
+	/** The per context overrides, or null for none */
+	private final ContextPolicyTable contextPolicies;
+
+	/**
+	 * Creates a new ValveConfig, parsing and validating every value
+	 * @param raw The values keyed by name
+	 * @param version The snapshot version
+	 * @param source Where the snapshot came from
+	 * @param previous The snapshot this one is derived from, whose compiled policies are reused if unchanged, or null
+	 */
+	private ValveConfig(final Map<String, String> raw, final long version, final String source, final ValveConfig previous) {
+		this.version = version;
+		this.source = source;
+		enabled = bool(raw, ENABLED);
+		engine = CookieEngine.decode(raw.get(ENGINE));
+		recycleWrappers = bool(raw, RECYCLE_WRAPPERS);
+		forceSecure = bool(raw, FORCE_SECURE);
+		final String proxies = raw.get(TRUSTED_PROXIES)==null ? "" : raw.get(TRUSTED_PROXIES);
+		final CidrTrie ct = CidrTrie.compile(proxies);
+		trustedProxies = (previous!=null && previous.trustedProxies.getSpec().equals(ct.getSpec())) ? previous.trustedProxies : ct;
+		forceHttpOnly = bool(raw, FORCE_HTTP_ONLY);
+		sameSite = SameSite.decode(raw.get(SAME_SITE));
+		policyCacheSize = positive(raw, POLICY_CACHE_SIZE);
+		final String spec = raw.get(POLICIES)==null ? "" : raw.get(POLICIES).trim();
+		if(previous!=null && previous.policyCacheSize==policyCacheSize && previous.policies.getSpec().equals(spec)) {
+			policies = previous.policies;
+		} else {
+			policies = CookiePolicySet.compile(spec, policyCacheSize);
+		}
+		renderCache = bool(raw, RENDER_CACHE);
+		renderCacheSize = positive(raw, RENDER_CACHE_SIZE);
+		if(!renderCache) suffixCache = null;
+		else if(previous!=null && previous.suffixCache!=null && previous.renderCacheSize==renderCacheSize) suffixCache = previous.suffixCache;
+		else suffixCache = new SetCookieSuffixCache(renderCacheSize);
+		requestLogging = bool(raw, REQUEST_LOGGING);
+		final BypassRules br = BypassRules.compile(raw.get(BYPASS_PATHS), raw.get(BYPASS_EXTENSIONS), raw.get(BYPASS_PATTERNS), raw.get(BYPASS_METHODS));
+		bypass = (previous!=null && previous.bypass.toString().equals(br.toString())) ? previous.bypass : br;
+		maxCookieSize = nonNegative(raw, MAX_COOKIE_SIZE);
+		maxCookieCount = nonNegative(raw, MAX_COOKIE_COUNT);
+		maxCookieHeaderSize = nonNegative(raw, MAX_COOKIE_HEADER_SIZE);
+		dedupeCookies = bool(raw, DEDUPE_COOKIES);
+		cookieBudgetBytes = nonNegative(raw, COOKIE_BUDGET_BYTES);
+		cookieBudgetCount = nonNegative(raw, COOKIE_BUDGET_COUNT);
+		cookieBudgetAction = CookieBudgetAction.decode(raw.get(COOKIE_BUDGET_ACTION));
+		signatureReject = reject(raw, SIGNATURE_FAILURE);
+		signingKeys = raw.get(SIGNING_KEYS)==null ? "" : raw.get(SIGNING_KEYS).trim();
+		signer = CookieSigner.compile(raw.get(SIGNED_COOKIES), signingKeys, raw.get(SIGNING_ALGORITHM), previous==null ? null : previous.signer);
+		decryptionReject = reject(raw, DECRYPTION_FAILURE);
+		encryptionKeys = raw.get(ENCRYPTION_KEYS)==null ? "" : raw.get(ENCRYPTION_KEYS).trim();
+		encryptor = CookieEncryptor.compile(raw.get(ENCRYPTED_COOKIES), encryptionKeys, previous==null ? null : previous.encryptor);
+		if(signer!=null && encryptor!=null) {
+			// GCM already authenticates, and verifying before decrypting would need the two settings to agree on the order
+			for(String name: encryptor.getSpec().split(", ")) {
+				if(signer.isSigned(name)) throw new IllegalArgumentException("Cookie [" + name + "] cannot be both signed and encrypted");
+			}
+		}
+		interceptors = InterceptorChain.compile(raw.get(INTERCEPTORS), previous==null ? null : previous.interceptors);
+		final String dir = raw.get(AUDIT_LOG);
+		auditLog = (dir==null || dir.trim().isEmpty()) ? null : dir.trim();
+		auditLogBufferSize = positive(raw, AUDIT_LOG_BUFFER_SIZE);
+		auditLogSegmentSize = positive(raw, AUDIT_LOG_SEGMENT_SIZE);
+		if(auditLogSegmentSize < CookieAuditLog.RECORD_SIZE * 2) throw new IllegalArgumentException("Invalid " + AUDIT_LOG_SEGMENT_SIZE + " [" + auditLogSegmentSize + "]");
+		auditLogSegments = positive(raw, AUDIT_LOG_SEGMENTS);
+		level = ValveLevel.decode(raw.get(LEVEL));
+		degrade = bool(raw, DEGRADE);
+		degradeFloor = ValveLevel.decode(raw.get(DEGRADE_FLOOR));
+		if(!degradeFloor.isAtOrBelow(level)) throw new IllegalArgumentException("The " + DEGRADE_FLOOR + " [" + raw.get(DEGRADE_FLOOR) + "] is above the " + LEVEL + " [" + raw.get(LEVEL) + "]");
+		// passing through would hand the application the raw signed or encrypted values
+		if(degradeFloor==ValveLevel.PASSTHROUGH && (signer!=null || encryptor!=null)) throw new IllegalArgumentException("The " + LEVEL + " and " + DEGRADE_FLOOR + " cannot be passthrough while " + SIGNED_COOKIES + " or " + ENCRYPTED_COOKIES + " is set");
+		degradeInterval = positive(raw, DEGRADE_INTERVAL);
+		degradeLatency = positive(raw, DEGRADE_LATENCY);
+		degradeSaturation = percentage(raw, DEGRADE_SATURATION);
+		degradeIntervals = positive(raw, DEGRADE_INTERVALS);
+		recoverLatency = positive(raw, RECOVER_LATENCY);
+		if(recoverLatency > degradeLatency) throw new IllegalArgumentException("The " + RECOVER_LATENCY + " [" + recoverLatency + "] is above the " + DEGRADE_LATENCY + " [" + degradeLatency + "]");
+		recoverSaturation = percentage(raw, RECOVER_SATURATION);
+		if(recoverSaturation > degradeSaturation) throw new IllegalArgumentException("The " + RECOVER_SATURATION + " [" + recoverSaturation + "] is above the " + DEGRADE_SATURATION + " [" + degradeSaturation + "]");
+		recoverIntervals = positive(raw, RECOVER_INTERVALS);
+		final String mp = raw.get(METRICS_PATH)==null ? "" : raw.get(METRICS_PATH).trim();
+		if(!mp.isEmpty() && (mp.charAt(0)!='/' || mp.indexOf('?')!=-1 || mp.indexOf('*')!=-1 || mp.indexOf(' ')!=-1)) throw new IllegalArgumentException("Invalid " + METRICS_PATH + " [" + mp + "]");
+		metricsPath = mp.isEmpty() ? null : mp;
+		metricsInterval = positive(raw, METRICS_INTERVAL);
+		final CidrTrie ma = CidrTrie.compile(raw.get(METRICS_ALLOW)==null ? "" : raw.get(METRICS_ALLOW));
+		metricsAllow = (previous!=null && previous.metricsAllow.getSpec().equals(ma.getSpec())) ? previous.metricsAllow : ma;
+		metricsPort = nonNegative(raw, METRICS_PORT);
+		if(metricsPort > 65535) throw new IllegalArgumentException("Invalid " + METRICS_PORT + " [" + metricsPort + "]");
+		defaultPolicy = (previous!=null && previous.defaultPolicy.equals(new ContextPolicy(forceSecure, forceHttpOnly, sameSite)))
+			? previous.defaultPolicy : new ContextPolicy(forceSecure, forceHttpOnly, sameSite);
+		contextPolicies = ContextPolicyTable.compile(raw.get(CONTEXT_POLICIES), defaultPolicy, previous==null ? null : previous.contextPolicies);
+		final Map<String, String> v = new LinkedHashMap<String, String>();
+		v.put(ENABLED, String.valueOf(enabled));
+		v.put(ENGINE, engine.name().toLowerCase());
+		v.put(RECYCLE_WRAPPERS, String.valueOf(recycleWrappers));
+		v.put(FORCE_SECURE, String.valueOf(forceSecure));
+		v.put(TRUSTED_PROXIES, trustedProxies.getSpec());
+		v.put(FORCE_HTTP_ONLY, String.valueOf(forceHttpOnly));
+		v.put(SAME_SITE, sameSite==null ? "" : sameSite.value);
+		v.put(POLICIES, policies.getSpec());
+		v.put(POLICY_CACHE_SIZE, String.valueOf(policyCacheSize));
+		v.put(CONTEXT_POLICIES, contextPolicies==null ? "" : contextPolicies.getSpec());
+		v.put(RENDER_CACHE, String.valueOf(renderCache));
+		v.put(RENDER_CACHE_SIZE, String.valueOf(renderCacheSize));
+		v.put(REQUEST_LOGGING, String.valueOf(requestLogging));
+		v.put(BYPASS_PATHS, bypass.getPaths());
+		v.put(BYPASS_EXTENSIONS, bypass.getExtensions());
+		v.put(BYPASS_PATTERNS, bypass.getPatterns());
+		v.put(BYPASS_METHODS, bypass.getMethods());
+		v.put(MAX_COOKIE_SIZE, String.valueOf(maxCookieSize));
+		v.put(MAX_COOKIE_COUNT, String.valueOf(maxCookieCount));
+		v.put(MAX_COOKIE_HEADER_SIZE, String.valueOf(maxCookieHeaderSize));
+		v.put(DEDUPE_COOKIES, String.valueOf(dedupeCookies));
+		v.put(COOKIE_BUDGET_BYTES, String.valueOf(cookieBudgetBytes));
+		v.put(COOKIE_BUDGET_COUNT, String.valueOf(cookieBudgetCount));
+		v.put(COOKIE_BUDGET_ACTION, cookieBudgetAction.name().toLowerCase());
+		v.put(SIGNED_COOKIES, signer==null ? "" : signer.getSpec());
+		v.put(SIGNING_KEYS, signingKeys);
+		v.put(SIGNING_ALGORITHM, raw.get(SIGNING_ALGORITHM)==null || raw.get(SIGNING_ALGORITHM).trim().isEmpty() ? CookieSigner.DEFAULT_ALGORITHM : raw.get(SIGNING_ALGORITHM).trim());
+		v.put(SIGNATURE_FAILURE, signatureReject ? "reject" : "strip");
+		v.put(ENCRYPTED_COOKIES, encryptor==null ? "" : encryptor.getSpec());
+		v.put(ENCRYPTION_KEYS, encryptionKeys);
+		v.put(DECRYPTION_FAILURE, decryptionReject ? "reject" : "strip");
+		v.put(INTERCEPTORS, interceptors==null ? "" : interceptors.getSpec());
+		v.put(AUDIT_LOG, auditLog==null ? "" : auditLog);
+		v.put(AUDIT_LOG_BUFFER_SIZE, String.valueOf(auditLogBufferSize));
+		v.put(AUDIT_LOG_SEGMENT_SIZE, String.valueOf(auditLogSegmentSize));
+		v.put(AUDIT_LOG_SEGMENTS, String.valueOf(auditLogSegments));
+		v.put(LEVEL, level.name().toLowerCase());
+		v.put(DEGRADE, String.valueOf(degrade));
+		v.put(DEGRADE_FLOOR, degradeFloor.name().toLowerCase());
+		v.put(DEGRADE_INTERVAL, String.valueOf(degradeInterval));
+		v.put(DEGRADE_LATENCY, String.valueOf(degradeLatency));
+		v.put(DEGRADE_SATURATION, String.valueOf(degradeSaturation));
+		v.put(DEGRADE_INTERVALS, String.valueOf(degradeIntervals));
+		v.put(RECOVER_LATENCY, String.valueOf(recoverLatency));
+		v.put(RECOVER_SATURATION, String.valueOf(recoverSaturation));
+		v.put(RECOVER_INTERVALS, String.valueOf(recoverIntervals));
+		v.put(METRICS_PATH, metricsPath==null ? "" : metricsPath);
+		v.put(METRICS_INTERVAL, String.valueOf(metricsInterval));
+		v.put(METRICS_ALLOW, metricsAllow.getSpec());
+		v.put(METRICS_PORT, String.valueOf(metricsPort));
+		values = Collections.unmodifiableMap(v);
+		final Map<String, String> pv = new LinkedHashMap<String, String>(v);
+		pv.put(SIGNING_KEYS, CookieSigner.mask(signingKeys));
+		pv.put(ENCRYPTION_KEYS, CookieSigner.mask(encryptionKeys));
+		published = Collections.unmodifiableMap(pv);
+	}
+
+	private static boolean bool(final Map<String, String> raw, final String key) {
+		final String v = raw.get(key)==null ? "" : raw.get(key).trim();
+		if("true".equalsIgnoreCase(v)) return true;
+		if("false".equalsIgnoreCase(v)) return false;
+		throw new IllegalArgumentException("Invalid boolean for " + key + " [" + raw.get(key) + "]");
+	}
+
+	private static int nonNegative(final Map<String, String> raw, final String key) {
+		final int i;
+		try {
+			i = Integer.parseInt(raw.get(key).trim());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid integer for " + key + " [" + raw.get(key) + "]");
+		}
+		if(i < 0) throw new IllegalArgumentException("Invalid " + key + " [" + i + "]");
+		return i;
+	}
+
+	private static boolean reject(final Map<String, String> raw, final String key) {
+		final String v = raw.get(key)==null ? "" : raw.get(key).trim();
+		if("reject".equalsIgnoreCase(v)) return true;
+		if("strip".equalsIgnoreCase(v)) return false;
+		throw new IllegalArgumentException("Invalid " + key + ", expected strip or reject [" + raw.get(key) + "]");
+	}
+
+	private static int percentage(final Map<String, String> raw, final String key) {
+		final int i = positive(raw, key);
+		if(i > 100) throw new IllegalArgumentException("Invalid " + key + " [" + i + "]");
+		return i;
+	}
+
+	private static int positive(final Map<String, String> raw, final String key) {
+		final int i;
+		try {
+			i = Integer.parseInt(raw.get(key).trim());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid integer for " + key + " [" + raw.get(key) + "]");
+		}
+		if(i < 1) throw new IllegalArgumentException("Invalid " + key + " [" + i + "]");
+		return i;
+	}
+
+	/**
+	 * Derives a new snapshot with the passed changes applied. Keys not in the changes keep this snapshot's values.
+	 * @param changes The changed values keyed by name
+	 * @param source Where the changes came from
+	 * @return the new snapshot, with the next version
+	 * @throws IllegalArgumentException thrown if a key is unknown or a value is invalid
+	 */
+	public ValveConfig with(final Map<String, String> changes, final String source) {
+		return new ValveConfig(merge(values, changes), version + 1, source, this);
+	}
+
+	/**
+	 * Derives a new snapshot from the defaults with the passed values applied, so keys not in the values revert to their
+	 * defaults rather than keep this snapshot's values. Compiled rules and caches are still reused from this snapshot where
+	 * their settings are unchanged.
+	 * @param values The values keyed by name
+	 * @param source Where the values came from
+	 * @return the new snapshot, with the next version
+	 * @throws IllegalArgumentException thrown if a key is unknown or a value is invalid
+	 */
+	public ValveConfig rebase(final Map<String, String> values, final String source) {
+		return new ValveConfig(merge(DEFAULTS, values), version + 1, source, this);
+	}
+
+	private static Map<String, String> merge(final Map<String, String> base, final Map<String, String> changes) {
+		final Map<String, String> merged = new LinkedHashMap<String, String>(base);
+		for(Map.Entry<String, String> e: changes.entrySet()) {
+			final String key = e.getKey().trim();
+			if(!DEFAULTS.containsKey(key)) throw new IllegalArgumentException("Unknown configuration key [" + key + "]");
+			merged.put(key, e.getValue()==null ? "" : e.getValue());
+		}
+		return merged;
+	}
+
+	/**
+	 * Derives a new snapshot with one value changed
+	 * @param key The key
+	 * @param value The new value
+	 * @param source Where the change came from
+	 * @return the new snapshot, with the next version
+	 * @throws IllegalArgumentException thrown if the key is unknown or the value is invalid
+	 */
+	public ValveConfig with(final String key, final String value, final String source) {
+		return with(Collections.singletonMap(key, value), source);
+	}
+
+	/**
+	 * Reads changes in properties format
+	 * @param reader The reader to read from
+	 * @return the changes keyed by name
+	 * @throws IOException thrown if the reader fails
+	 */
+	public static Map<String, String> read(final Reader reader) throws IOException {
+		final Properties p = new Properties();
+		p.load(reader);
+		final Map<String, String> changes = new LinkedHashMap<String, String>();
+		for(String key: p.stringPropertyNames()) changes.put(key, p.getProperty(key));
+		return changes;
+	}
+
+	/**
+	 * Reads changes from text in properties format
+	 * @param text The text
+	 * @return the changes keyed by name
+	 */
+	public static Map<String, String> read(final String text) {
+		try {
+			return read(new StringReader(text==null ? "" : text));
+		} catch (IOException ex) {
+			throw new IllegalArgumentException("Failed to read configuration text", ex);
+		}
+	}
+
+	/**
+	 * Returns the forceSecure, forceHttpOnly and sameSite in effect for the passed context
+	 * @param context The context the request is mapped to, or null
+	 * @return the valve wide settings, with the context's overrides applied if it has any
+	 */
+	public ContextPolicy getContextPolicy(final Context context) {
+		return contextPolicies==null ? defaultPolicy : contextPolicies.resolve(context);
+	}
+
+	/**
+	 * Indicates if the audit log settings differ from the passed snapshot's
+	 * @param other The other snapshot
+	 * @return true if the audit log must be reopened
+	 */
+	public boolean auditLogChanged(final ValveConfig other) {
+		return !values.get(AUDIT_LOG).equals(other.values.get(AUDIT_LOG))
+			|| auditLogBufferSize!=other.auditLogBufferSize
+			|| auditLogSegmentSize!=other.auditLogSegmentSize
+			|| auditLogSegments!=other.auditLogSegments;
+	}
+
+	/**
+	 * Returns the normalized value of a key, with signing secrets masked
+	 * @param key The key
+	 * @return the value, or null if the key is unknown
+	 */
+	public String get(final String key) {
+		return published.get(key);
+	}
+
+	/**
+	 * Returns the normalized values keyed by name, with signing secrets masked
+	 * @return the values
+	 */
+	public Map<String, String> getValues() {
+		return published;
+	}
+
+	/**
+	 * Returns the snapshot version, incremented by every change
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns where the snapshot came from
+	 * @return the source
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Indicates if the valve is enabled
+	 * @return true if enabled
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the cookie engine
+	 * @return the engine
+	 */
+	public CookieEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Indicates if response wrappers are recycled
+	 * @return true if recycled
+	 */
+	public boolean isRecycleWrappers() {
+		return recycleWrappers;
+	}
+
+	/**
+	 * Indicates if Secure is forced on cookies set over secure requests
+	 * @return true if forced
+	 */
+	public boolean isForceSecure() {
+		return forceSecure;
+	}
+
+	/**
+	 * Returns the proxies trusted to report the scheme the client used
+	 * @return the trusted proxy blocks
+	 */
+	public CidrTrie getTrustedProxies() {
+		return trustedProxies;
+	}
+
+	/**
+	 * Indicates if HttpOnly is forced on all cookies
+	 * @return true if forced
+	 */
+	public boolean isForceHttpOnly() {
+		return forceHttpOnly;
+	}
+
+	/**
+	 * Returns the SameSite forced on cookies that do not specify one
+	 * @return the SameSite or null
+	 */
+	public SameSite getSameSite() {
+		return sameSite;
+	}
+
+	/**
+	 * Returns the encoded SameSite attribute forced on cookies that do not specify one
+	 * @return the attribute bytes or null
+	 */
+	public byte[] getSameSiteAttribute() {
+		return sameSite==null ? null : sameSite.attribute();
+	}
+
+	/**
+	 * Returns the compiled per cookie policies
+	 * @return the policies
+	 */
+	public CookiePolicySet getPolicies() {
+		return policies;
+	}
+
+	/**
+	 * Returns the per context overrides
+	 * @return the overrides or null if there are none
+	 */
+	public ContextPolicyTable getContextPolicies() {
+		return contextPolicies;
+	}
+
+	/**
+	 * Returns the per cookie policy decision cache size
+	 * @return the cache size
+	 */
+	public int getPolicyCacheSize() {
+		return policyCacheSize;
+	}
+
+	/**
+	 * Indicates if cookie headers are rendered from cached attribute suffixes
+	 * @return true if the render cache is enabled
+	 */
+	public boolean isRenderCache() {
+		return renderCache;
+	}
+
+	/**
+	 * Returns the rendered Set-Cookie suffix cache size
+	 * @return the cache size
+	 */
+	public int getRenderCacheSize() {
+		return renderCacheSize;
+	}
+
+	/**
+	 * Returns the rendered Set-Cookie suffix cache
+	 * @return the cache, or null if disabled
+	 */
+	public SetCookieSuffixCache getSuffixCache() {
+		return suffixCache;
+	}
+
+	/**
+	 * Indicates if each request is logged at DEBUG
+	 * @return true if requests are logged
+	 */
+	public boolean isRequestLogging() {
+		return requestLogging;
+	}
+
+	/**
+	 * Returns the compiled bypass rules
+	 * @return the bypass rules
+	 */
+	public BypassRules getBypass() {
+		return bypass;
+	}
+
+	/**
+	 * Indicates if the inbound Cookie headers are checked against any limit
+	 * @return true if checked
+	 */
+	public boolean isCookieHeaderChecked() {
+		return maxCookieSize > 0 || maxCookieCount > 0 || maxCookieHeaderSize > 0;
+	}
+
+	/**
+	 * Returns the maximum size of one inbound cookie's name and value
+	 * @return the size in bytes, 0 for no limit
+	 */
+	public int getMaxCookieSize() {
+		return maxCookieSize;
+	}
+
+	/**
+	 * Returns the maximum number of inbound cookies
+	 * @return the count, 0 for no limit
+	 */
+	public int getMaxCookieCount() {
+		return maxCookieCount;
+	}
+
+	/**
+	 * Returns the maximum size of the inbound Cookie headers
+	 * @return the size in bytes, 0 for no limit
+	 */
+	public int getMaxCookieHeaderSize() {
+		return maxCookieHeaderSize;
+	}
+
+	/**
+	 * Indicates if repeated Set-Cookie headers for the same cookie are collapsed to the last one
+	 * @return true if duplicates are collapsed
+	 */
+	public boolean isDedupeCookies() {
+		return dedupeCookies;
+	}
+
+	/**
+	 * Indicates if the cookies set by each response are accounted against a budget
+	 * @return true if either budget limit is set
+	 */
+	public boolean isCookieBudget() {
+		return cookieBudgetBytes > 0 || cookieBudgetCount > 0;
+	}
+
+	/**
+	 * Returns the maximum Set-Cookie bytes of one response, counting each header's name and line end
+	 * @return the size in bytes, 0 for no limit
+	 */
+	public int getCookieBudgetBytes() {
+		return cookieBudgetBytes;
+	}
+
+	/**
+	 * Returns the maximum number of cookies set by one response
+	 * @return the count, 0 for no limit
+	 */
+	public int getCookieBudgetCount() {
+		return cookieBudgetCount;
+	}
+
+	/**
+	 * Returns what happens to a cookie over the response's budget
+	 * @return the budget action
+	 */
+	public CookieBudgetAction getCookieBudgetAction() {
+		return cookieBudgetAction;
+	}
+
+	/**
+	 * Returns the response interceptor chain
+	 * @return the chain, or null if no interceptors are configured
+	 */
+	public InterceptorChain getInterceptors() {
+		return interceptors;
+	}
+
+	/**
+	 * Returns the cookie signer
+	 * @return the signer, or null if no cookies are signed
+	 */
+	public CookieSigner getSigner() {
+		return signer;
+	}
+
+	/**
+	 * Indicates if requests carrying a bad cookie signature are rejected rather than stripped of the cookie
+	 * @return true if rejected
+	 */
+	public boolean isSignatureReject() {
+		return signatureReject;
+	}
+
+	/**
+	 * Returns the cookie encryptor
+	 * @return the encryptor, or null if no cookies are encrypted
+	 */
+	public CookieEncryptor getEncryptor() {
+		return encryptor;
+	}
+
+	/**
+	 * Indicates if requests carrying a cookie that fails to decrypt are rejected rather than stripped of the cookie
+	 * @return true if rejected
+	 */
+	public boolean isDecryptionReject() {
+		return decryptionReject;
+	}
+
+	/**
+	 * Returns the binary audit log directory
+	 * @return the directory or null for none
+	 */
+	public String getAuditLog() {
+		return auditLog;
+	}
+
+	/**
+	 * Returns the binary audit log ring capacity
+	 * @return the capacity in records
+	 */
+	public int getAuditLogBufferSize() {
+		return auditLogBufferSize;
+	}
+
+	/**
+	 * Returns the binary audit log segment size
+	 * @return the segment size in bytes
+	 */
+	public int getAuditLogSegmentSize() {
+		return auditLogSegmentSize;
+	}
+
+	/**
+	 * Returns the number of binary audit log segments kept
+	 * @return the number of segments
+	 */
+	public int getAuditLogSegments() {
+		return auditLogSegments;
+	}
+
+	/**
+	 * Returns the operating level, or the highest level the degradation controller recovers to
+	 * @return the level
+	 */
+	public ValveLevel getLevel() {
+		return level;
+	}
+
+	/**
+	 * Indicates if the degradation controller is enabled
+	 * @return true if the controller moves the level under pressure
+	 */
+	public boolean isDegrade() {
+		return degrade;
+	}
+
+	/**
+	 * Returns the lowest level the degradation controller degrades to
+	 * @return the floor level
+	 */
+	public ValveLevel getDegradeFloor() {
+		return degradeFloor;
+	}
+
+	/**
+	 * Returns the degradation controller sampling interval
+	 * @return the interval in ms
+	 */
+	public int getDegradeInterval() {
+		return degradeInterval;
+	}
+
+	/**
+	 * Returns the valve p99 above which an interval is under pressure
+	 * @return the latency in microseconds
+	 */
+	public int getDegradeLatency() {
+		return degradeLatency;
+	}
+
+	/**
+	 * Returns the connector thread pool saturation above which an interval is under pressure
+	 * @return the saturation percentage
+	 */
+	public int getDegradeSaturation() {
+		return degradeSaturation;
+	}
+
+	/**
+	 * Returns the number of consecutive intervals under pressure before the level is lowered
+	 * @return the number of intervals
+	 */
+	public int getDegradeIntervals() {
+		return degradeIntervals;
+	}
+
+	/**
+	 * Returns the valve p99 below which an interval is healthy
+	 * @return the latency in microseconds
+	 */
+	public int getRecoverLatency() {
+		return recoverLatency;
+	}
+
+	/**
+	 * Returns the connector thread pool saturation below which an interval is healthy
+	 * @return the saturation percentage
+	 */
+	public int getRecoverSaturation() {
+		return recoverSaturation;
+	}
+
+	/**
+	 * Returns the number of consecutive healthy intervals before the level is raised
+	 * @return the number of intervals
+	 */
+	public int getRecoverIntervals() {
+		return recoverIntervals;
+	}
+
+	/**
+	 * Indicates if the level or degradation settings differ from the passed snapshot's
+	 * @param other The other snapshot
+	 * @return true if the degradation controller must be restarted
+	 */
+	public boolean degradeChanged(final ValveConfig other) {
+		for(String key: new String[]{LEVEL, DEGRADE, DEGRADE_FLOOR, DEGRADE_INTERVAL, DEGRADE_LATENCY, DEGRADE_SATURATION, DEGRADE_INTERVALS, RECOVER_LATENCY, RECOVER_SATURATION, RECOVER_INTERVALS}) {
+			if(!values.get(key).equals(other.values.get(key))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the reserved URI the Prometheus text metrics are served on
+	 * @return the URI, or null if the metrics are not served
+	 */
+	public String getMetricsPath() {
+		return metricsPath;
+	}
+
+	/**
+	 * Returns the minimum interval between renderings of the Prometheus text metrics
+	 * @return the interval in ms
+	 */
+	public int getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	/**
+	 * Returns the remote addresses allowed to scrape the metrics
+	 * @return the allowed addresses and blocks, empty for any
+	 */
+	public CidrTrie getMetricsAllow() {
+		return metricsAllow;
+	}
+
+	/**
+	 * Returns the connector port the metrics are served on
+	 * @return the port, 0 for any
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+
+	/**
+	 * Indicates if the metrics endpoint settings differ from the passed snapshot's
+	 * @param other The other snapshot
+	 * @return true if the metrics endpoint must be replaced
+	 */
+	public boolean metricsEndpointChanged(final ValveConfig other) {
+		return !values.get(METRICS_PATH).equals(other.values.get(METRICS_PATH)) || metricsInterval!=other.metricsInterval
+			|| metricsAllow!=other.metricsAllow || metricsPort!=other.metricsPort;
+	}
+
+	/**
+	 * Renders the snapshot in properties format
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder b = new StringBuilder("# version ").append(version).append(" from ").append(source).append('\n');
+		for(Map.Entry<String, String> e: published.entrySet()) b.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+		return b.toString();
+	}
+}
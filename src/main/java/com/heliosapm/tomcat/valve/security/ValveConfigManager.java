@@ -0,0 +1,396 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: ValveConfigManager</p>
+ * <p>Description: Owns the {@link ValveConfig} snapshot of a {@link SecureCookies} valve and the ways it changes: valve
+ * attributes, JMX and the configuration file, which is reloaded when a {@link ConfigFileWatcher} sees it change.
+ * Changes are serialized on the manager; each applied snapshot is passed to the valve to swap what depends on it, and once
+ * the lock is released the valve opens or restarts what needs I/O or threads for the latest snapshot.</p>
+ * <p>The configuration file is authoritative for the keys it does not set, which revert to their defaults on reload, while
+ * values set through attributes or JMX are kept and override the file until {@link #clearOverrides()}.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ValveConfigManager</code></p>
+ */
+
+public class ValveConfigManager {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The valve the configuration is applied to */
+	protected final SecureCookies valve;
+	/** The current configuration snapshot */
+	protected volatile ValveConfig config = ValveConfig.defaults();
+	/** The last snapshot the valve settled on, guarded by {@link #settleLock} */
+	protected ValveConfig settled = config;
+	/** Serializes the valve's settling on new snapshots, apart from the manager lock */
+	protected final Object settleLock = new Object();
+	/** The values set through valve attributes or {@link #applyConfig(String)}, which override the configuration file */
+	protected final Map<String, String> attributeValues = new LinkedHashMap<String, String>();
+	/** The configuration file, or null for none */
+	protected volatile String configFile = null;
+	/** The configuration file poll interval in ms, zero to not watch the file */
+	protected volatile long watchInterval = SecureCookies.DEFAULT_CONFIG_WATCH_INTERVAL;
+	/** The configuration file watcher, or null */
+	protected ConfigFileWatcher watcher = null;
+	/** Indicates if the configuration file should be watched, set while the valve is started */
+	protected boolean watching = false;
+	/** The number of configuration changes applied */
+	protected final AtomicLong reloads = new AtomicLong(0L);
+	/** The number of configuration changes rejected */
+	protected final AtomicLong reloadFailures = new AtomicLong(0L);
+	/** The time taken to read, validate and swap in the last applied configuration in ns */
+	protected volatile long reloadNanos = 0L;
+	/** The reason the last configuration change was rejected, or null */
+	protected volatile String reloadError = null;
+
+	/**
+	 * Creates a new ValveConfigManager holding the default configuration
+	 * @param valve The valve the configuration is applied to
+	 */
+	public ValveConfigManager(final SecureCookies valve) {
+		if(valve==null) throw new IllegalArgumentException("The passed valve was null");
+		this.valve = valve;
+	}
+
+	/**
+	 * Returns the current configuration snapshot
+	 * @return the configuration snapshot
+	 */
+	public ValveConfig config() {
+		return config;
+	}
+
+	/**
+	 * Applies configuration changes by deriving a new snapshot from the current one and swapping it in.
+	 * The changes are parsed and validated on the calling thread; requests see either the old or the new snapshot.
+	 * @param changes The changed values keyed by name
+	 * @param source Where the changes came from
+	 * @return the applied snapshot
+	 * @throws IllegalArgumentException thrown if a key is unknown or a value is invalid, in which case nothing is changed
+	 */
+	public ValveConfig apply(final Map<String, String> changes, final String source) {
+		return apply(changes, source, false);
+	}
+
+	/**
+	 * Swaps in a new snapshot derived from the current one, or from the defaults if the values are authoritative
+	 * @param changes The changed values keyed by name
+	 * @param source Where the changes came from
+	 * @param authoritative true if keys not in the changes revert to their defaults, false if they keep their current values
+	 * @return the applied snapshot
+	 * @throws IllegalArgumentException thrown if a key is unknown or a value is invalid, in which case nothing is changed
+	 */
+	public ValveConfig apply(final Map<String, String> changes, final String source, final boolean authoritative) {
+		final ValveConfig next = swap(changes, source, authoritative);
+		settle();
+		return next;
+	}
+
+	/**
+	 * Derives and swaps in a new snapshot, passing it to the valve while the lock is held
+	 * @param changes The changed values keyed by name
+	 * @param source Where the changes came from
+	 * @param authoritative true if keys not in the changes revert to their defaults, false if they keep their current values
+	 * @return the applied snapshot
+	 * @throws IllegalArgumentException thrown if a key is unknown or a value is invalid, in which case nothing is changed
+	 */
+	protected synchronized ValveConfig swap(final Map<String, String> changes, final String source, final boolean authoritative) {
+		final long st = System.nanoTime();
+		final ValveConfig current = config;
+		final ValveConfig next;
+		try {
+			next = authoritative ? current.rebase(changes, source) : current.with(changes, source);
+		} catch (IllegalArgumentException ex) {
+			reloadFailures.incrementAndGet();
+			reloadError = ex.getMessage();
+			log.error("Rejected configuration from [{}]: {}", source, ex.getMessage());
+			throw ex;
+		}
+		config = next;
+		reloadNanos = System.nanoTime() - st;
+		reloads.incrementAndGet();
+		reloadError = null;
+		valve.configApplied(current, next);
+		log.info("Applied configuration version {} from [{}]", next.getVersion(), source);
+		return next;
+	}
+
+	/**
+	 * Lets the valve settle on the latest snapshot, outside the manager lock. Snapshots applied while another thread
+	 * settles are settled together, against the last snapshot the valve settled on.
+	 */
+	protected void settle() {
+		synchronized(settleLock) {
+			final ValveConfig previous = settled;
+			final ValveConfig next = config;
+			if(previous==next) return;
+			settled = next;
+			valve.configSettled(previous, next);
+		}
+	}
+
+	/**
+	 * Applies one configuration change made through a valve attribute, which keeps overriding the configuration file
+	 * @param key The key
+	 * @param value The new value
+	 */
+	public void apply(final String key, final Object value) {
+		final String v = value==null ? null : value.toString();
+		synchronized(this) {
+			swap(Collections.singletonMap(key, v), "attribute:" + key, false);
+			attributeValues.put(key, v);
+		}
+		settle();
+	}
+
+	/**
+	 * Applies configuration changes in properties format. Keys not in the text keep their current values, and the
+	 * applied values override the configuration file like attributes do.
+	 * @param properties The changes in properties format
+	 * @return the version of the applied configuration
+	 */
+	public long applyConfig(final String properties) {
+		final Map<String, String> changes = ValveConfig.read(properties);
+		final long version;
+		synchronized(this) {
+			version = swap(changes, "jmx", false).getVersion();
+			attributeValues.putAll(changes);
+		}
+		settle();
+		return version;
+	}
+
+	/**
+	 * Drops the values set through valve attributes, including those from <b><code>server.xml</code></b>, and JMX, and
+	 * reloads the configuration file, or reverts to the defaults if none is set
+	 * @return the version of the applied configuration
+	 * @throws IOException thrown if the file cannot be read, in which case the overrides are kept
+	 */
+	public long clearOverrides() throws IOException {
+		final String cf = configFile;
+		final Map<String, String> changes = cf==null ? new LinkedHashMap<String, String>() : read(new File(cf));
+		final long version;
+		synchronized(this) {
+			final List<String> cleared = new ArrayList<String>(attributeValues.keySet());
+			version = swap(changes, cf==null ? "defaults" : new File(cf).getAbsolutePath(), true).getVersion();
+			attributeValues.clear();
+			log.info("Cleared the configuration overrides {}", cleared);
+		}
+		settle();
+		return version;
+	}
+
+	/**
+	 * Returns the keys set through valve attributes or JMX, which override the configuration file
+	 * @return the overridden keys
+	 */
+	public synchronized List<String> getOverrides() {
+		return new ArrayList<String>(attributeValues.keySet());
+	}
+
+	/**
+	 * Reloads the configuration file
+	 * @return the version of the applied configuration
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	public long reload() throws IOException {
+		final String cf = configFile;
+		if(cf==null) throw new IllegalStateException("No config file is set");
+		return load(new File(cf)).getVersion();
+	}
+
+	/**
+	 * Reads the passed configuration file and applies it as the whole configuration: keys not in the file take their
+	 * defaults, and the values set through valve attributes are applied over it, with a warning naming the file values they shadow
+	 * @param file The file
+	 * @return the applied snapshot
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	public ValveConfig load(final File file) throws IOException {
+		final Map<String, String> changes = read(file);
+		final ValveConfig next;
+		synchronized(this) {
+			List<String> shadowed = null;
+			for(Map.Entry<String, String> e: attributeValues.entrySet()) {
+				if(!changes.containsKey(e.getKey())) continue;
+				final String fv = changes.get(e.getKey());
+				if(fv==null ? e.getValue()==null : fv.equals(e.getValue())) continue;
+				if(shadowed==null) shadowed = new ArrayList<String>();
+				shadowed.add(e.getKey());
+			}
+			if(shadowed!=null) log.warn("The values of {} in the config file [{}] are overridden by values set through attributes or JMX. clearConfigOverrides drops the overrides.", shadowed, file);
+			changes.putAll(attributeValues);
+			next = swap(changes, file.getAbsolutePath(), true);
+		}
+		settle();
+		return next;
+	}
+
+	/**
+	 * Reads the passed configuration file
+	 * @param file The file
+	 * @return the values keyed by name
+	 * @throws IOException thrown if the file cannot be read
+	 */
+	protected Map<String, String> read(final File file) throws IOException {
+		final Map<String, String> changes;
+		final Reader reader = new InputStreamReader(new FileInputStream(file), SetCookieScanner.ISO_8859_1);
+		try {
+			changes = ValveConfig.read(reader);
+		} catch (IOException ex) {
+			reloadFailures.incrementAndGet();
+			reloadError = ex.toString();
+			throw ex;
+		} finally {
+			try { reader.close(); } catch (Exception x) {/* No Op */}
+		}
+		return changes;
+	}
+
+	/**
+	 * Starts watching the configuration file, now and whenever the file or the interval changes, until {@link #stopWatching()}
+	 */
+	public synchronized void startWatching() {
+		watching = true;
+		restartWatcher();
+	}
+
+	/**
+	 * Stops watching the configuration file
+	 */
+	public synchronized void stopWatching() {
+		watching = false;
+		restartWatcher();
+	}
+
+	/**
+	 * Replaces the configuration file watcher, with none unless watching, a file is set and the watch interval is positive
+	 */
+	protected synchronized void restartWatcher() {
+		final ConfigFileWatcher w = watcher;
+		watcher = null;
+		if(w!=null) w.stop();
+		final String cf = configFile;
+		if(!watching || cf==null || watchInterval < 1) return;
+		final File file = new File(cf);
+		watcher = new ConfigFileWatcher(file, watchInterval, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					load(file);
+				} catch (Exception ex) {
+					log.error("Failed to reload the config file [{}]. Keeping configuration version {}", new Object[]{file, config.getVersion(), ex});
+				}
+			}
+		}).start();
+	}
+
+	/**
+	 * Sets the configuration file, in properties format
+	 * @param file The file path, or null/empty for none
+	 */
+	public void setConfigFile(final String file) {
+		configFile = (file==null || file.trim().isEmpty()) ? null : file.trim();
+		restartWatcher();
+	}
+
+	/**
+	 * Returns the configuration file
+	 * @return the file path or null if none is set
+	 */
+	public String getConfigFile() {
+		return configFile;
+	}
+
+	/**
+	 * Sets the configuration file poll interval
+	 * @param interval The interval in ms, or zero to not watch the file
+	 */
+	public void setWatchInterval(final long interval) {
+		if(interval < 0) throw new IllegalArgumentException("Invalid interval [" + interval + "]");
+		watchInterval = interval;
+		restartWatcher();
+	}
+
+	/**
+	 * Returns the configuration file poll interval
+	 * @return the interval in ms, zero if the file is not watched
+	 */
+	public long getWatchInterval() {
+		return watchInterval;
+	}
+
+	/**
+	 * Returns the time taken to read, validate and swap in the last applied configuration
+	 * @return the reload time in ns
+	 */
+	public long getReloadNanos() {
+		return reloadNanos;
+	}
+
+	/**
+	 * Returns the number of configuration changes applied
+	 * @return the applied change count
+	 */
+	public long getReloads() {
+		return reloads.get();
+	}
+
+	/**
+	 * Returns the number of configuration changes rejected
+	 * @return the rejected change count
+	 */
+	public long getReloadFailures() {
+		return reloadFailures.get();
+	}
+
+	/**
+	 * Returns the reason the last configuration change was rejected
+	 * @return the reason, or null if the last change was applied
+	 */
+	public String getReloadError() {
+		return reloadError;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ValveConfigManager [version:" + config.getVersion() + ", source:" + config.getSource() + ", file:" + configFile + ", reloads:" + reloads.get() + ", failures:" + reloadFailures.get() + "]";
+	}
+}
@@ -0,0 +1,78 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: ValveLevel</p>
+ * <p>Description: Enumerates the operating levels of {@link SecureCookies}, from the most to the least work per request.
+ * Every level keeps the cookie values intact: signing, encryption and the inbound cookie limits run at all levels but
+ * {@link #PASSTHROUGH}, since dropping them would change what the application or the client sees rather than
+ * just shed work.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ValveLevel</code></p>
+ */
+
+public enum ValveLevel {
+	/** Every configured feature: per cookie policies, the audit log, interceptors, cookie budgets and duplicate collapsing */
+	FULL,
+	/** Only the mandatory flags: the valve wide and per context forceSecure, forceHttpOnly and sameSite */
+	ESSENTIAL,
+	/** Nothing: requests pass through as if the valve were disabled, and are counted as degraded */
+	PASSTHROUGH;
+
+	/**
+	 * Returns the level doing less work than this one
+	 * @return the next lower level, or this level if it is the lowest
+	 */
+	public ValveLevel lower() {
+		return this==PASSTHROUGH ? this : values()[ordinal() + 1];
+	}
+
+	/**
+	 * Returns the level doing more work than this one
+	 * @return the next higher level, or this level if it is the highest
+	 */
+	public ValveLevel higher() {
+		return this==FULL ? this : values()[ordinal() - 1];
+	}
+
+	/**
+	 * Indicates if this level does no more work than the passed one
+	 * @param other The other level
+	 * @return true if this level is the same as or lower than the other
+	 */
+	public boolean isAtOrBelow(final ValveLevel other) {
+		return ordinal() >= other.ordinal();
+	}
+
+	/**
+	 * Decodes the passed name to a ValveLevel
+	 * @param name The level name (case insensitive)
+	 * @return the decoded ValveLevel
+	 */
+	public static ValveLevel decode(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed name was null or empty");
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (Exception ex) {
+			throw new IllegalArgumentException("Invalid ValveLevel name [" + name + "]");
+		}
+	}
+}
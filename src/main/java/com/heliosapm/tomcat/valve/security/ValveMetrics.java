@@ -0,0 +1,402 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.AttributeChangeNotification;
+import javax.management.MBeanNotificationInfo;
+import javax.management.NotificationBroadcasterSupport;
+
+/**
+ * <p>Title: ValveMetrics</p>
+ * <p>Description: Request, cookie and error counters and latency histograms for the time spent in the valve itself
+ * and downstream of it. Everything lives in one {@link ThreadCells} cell per thread, so recording a request is a single
+ * thread local lookup followed by a handful of wait-free ordered stores. Reads sum the cells; a reset records the
+ * current sums as a baseline rather than touching the cells, which only their owning threads write.</p>
+ * <p>Changes of the valve's {@link ValveLevel} are emitted as {@link AttributeChangeNotification}s of the
+ * <b><code>Level</code></b> attribute.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ValveMetrics</code></p>
+ */
+
+public class ValveMetrics extends NotificationBroadcasterSupport implements ValveMetricsMBean {
+	/** The request count slot */
+	private static final int REQUESTS = 0;
+	/** The cookies seen slot */
+	private static final int COOKIES_SEEN = 1;
+	/** The cookies modified slot */
+	private static final int COOKIES_MODIFIED = 2;
+	/** The error count slot */
+	private static final int ERRORS = 3;
+	/** The bypassed request count slot */
+	private static final int BYPASSED = 4;
+	/** The comet event count slot */
+	private static final int EVENTS = 5;
+	/** The degraded request count slot */
+	private static final int DEGRADED = 6;
+	/** The offset of the valve latency histogram */
+	private static final int VALVE = 7;
+	/** The offset of the downstream latency histogram */
+	private static final int DOWNSTREAM = VALVE + LatencyHistogram.WIDTH;
+	/** The number of slots */
+	private static final int WIDTH = DOWNSTREAM + LatencyHistogram.WIDTH;
+	/** The level names used as label values */
+	private static final String[] LEVEL_NAMES;
+
+	static {
+		final ValveLevel[] levels = ValveLevel.values();
+		LEVEL_NAMES = new String[levels.length];
+		for(int i = 0; i < levels.length; i++) LEVEL_NAMES[i] = levels[i].name().toLowerCase();
+	}
+
+	/** The per thread cells */
+	private final ThreadCells cells = new ThreadCells(WIDTH);
+	/** The sums at the last reset, or null */
+	private volatile long[] baseline = null;
+	/** The current response interceptor chain, or null */
+	private volatile InterceptorChain interceptors = null;
+	/** The valve's current operating level */
+	private volatile ValveLevel level = ValveLevel.FULL;
+	/** The level change notification sequence, which is also the level change count */
+	private final AtomicLong levelChanges = new AtomicLong(0L);
+
+	/**
+	 * Records a request
+	 * @param valveNanos The time spent in the valve itself
+	 * @param downstreamNanos The time spent downstream of the valve
+	 * @param seen The number of cookies inspected
+	 * @param modified The number of cookies modified
+	 * @param error true if the request failed with an exception
+	 * @param bypassed true if the request matched a bypass rule
+	 * @param degraded true if the request was handled below the full level
+	 */
+	public void record(final long valveNanos, final long downstreamNanos, final int seen, final int modified, final boolean error, final boolean bypassed, final boolean degraded) {
+		final AtomicLongArray cell = cells.cell();
+		ThreadCells.add(cell, REQUESTS, 1L);
+		if(seen!=0) ThreadCells.add(cell, COOKIES_SEEN, seen);
+		if(modified!=0) ThreadCells.add(cell, COOKIES_MODIFIED, modified);
+		if(error) ThreadCells.add(cell, ERRORS, 1L);
+		if(bypassed) ThreadCells.add(cell, BYPASSED, 1L);
+		if(degraded) ThreadCells.add(cell, DEGRADED, 1L);
+		LatencyHistogram.record(cell, VALVE, valveNanos);
+		LatencyHistogram.record(cell, DOWNSTREAM, downstreamNanos);
+	}
+
+	/**
+	 * Sets the response interceptor chain whose timings are reported
+	 * @param interceptors The chain, or null
+	 */
+	public void setInterceptors(final InterceptorChain interceptors) {
+		this.interceptors = interceptors;
+	}
+
+	/**
+	 * Records a comet event handled through a wrapper
+	 * @param seen The number of cookies inspected during the event
+	 * @param modified The number of cookies modified during the event
+	 */
+	public void recordEvent(final int seen, final int modified) {
+		final AtomicLongArray cell = cells.cell();
+		ThreadCells.add(cell, EVENTS, 1L);
+		if(seen!=0) ThreadCells.add(cell, COOKIES_SEEN, seen);
+		if(modified!=0) ThreadCells.add(cell, COOKIES_MODIFIED, modified);
+	}
+
+	/**
+	 * Records a change of the valve's operating level and emits the notification
+	 * @param from The previous level
+	 * @param to The new level
+	 * @param reason Why the level changed
+	 */
+	public void levelChanged(final ValveLevel from, final ValveLevel to, final String reason) {
+		level = to;
+		final String name = to.name().toLowerCase();
+		sendNotification(new AttributeChangeNotification(this, levelChanges.incrementAndGet(), System.currentTimeMillis(),
+			"Level changed from " + from.name().toLowerCase() + " to " + name + ": " + reason, "Level", String.class.getName(), from.name().toLowerCase(), name));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see javax.management.NotificationBroadcasterSupport#getNotificationInfo()
+	 */
+	@Override
+	public MBeanNotificationInfo[] getNotificationInfo() {
+		return new MBeanNotificationInfo[] {
+			new MBeanNotificationInfo(new String[]{AttributeChangeNotification.ATTRIBUTE_CHANGE}, AttributeChangeNotification.class.getName(), "The valve's operating level changed")
+		};
+	}
+
+	/**
+	 * Returns the valve latency histogram slots summed over all cells, ignoring resets, for windowed percentiles
+	 * @return the histogram slots
+	 */
+	public long[] valveLatency() {
+		return Arrays.copyOfRange(cells.sums(), VALVE, VALVE + LatencyHistogram.WIDTH);
+	}
+
+	/**
+	 * Renders the counters and histograms in the Prometheus text format. The values ignore resets, since Prometheus
+	 * expects counters to only go up.
+	 * @param out The buffer to render into
+	 */
+	public void render(final PrometheusText out) {
+		final long[] s = cells.sums();
+		out.counter("securecookies_requests_total", "Requests handled by the valve", s[REQUESTS]);
+		out.counter("securecookies_cookies_seen_total", "Outbound cookies inspected", s[COOKIES_SEEN]);
+		out.counter("securecookies_cookies_modified_total", "Outbound cookies modified", s[COOKIES_MODIFIED]);
+		out.counter("securecookies_errors_total", "Requests that failed with an exception", s[ERRORS]);
+		out.counter("securecookies_bypassed_total", "Requests that matched a bypass rule", s[BYPASSED]);
+		out.counter("securecookies_comet_events_total", "Comet events handled through a response wrapper", s[EVENTS]);
+		out.counter("securecookies_degraded_total", "Requests handled below the full level", s[DEGRADED]);
+		out.counter("securecookies_level_changes_total", "Changes of the operating level", levelChanges.get());
+		out.family("securecookies_level", "The operating level, 1 for the current one", "gauge");
+		final int current = level.ordinal();
+		for(int i = 0; i < LEVEL_NAMES.length; i++) out.sample("securecookies_level", "level", LEVEL_NAMES[i], i==current ? 1L : 0L);
+		out.histogram("securecookies_valve_latency_seconds", "Time spent in the valve itself", s, VALVE);
+		out.histogram("securecookies_downstream_latency_seconds", "Time spent downstream of the valve", s, DOWNSTREAM);
+	}
+
+	/**
+	 * Returns the current sums less the baseline
+	 * @return the sums
+	 */
+	private long[] sums() {
+		return ThreadCells.minus(cells.sums(), baseline);
+	}
+
+	private long sum(final int slot) {
+		final long[] b = baseline;
+		return cells.sum(slot) - (b==null ? 0L : b[slot]);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getRequests()
+	 */
+	@Override
+	public long getRequests() {
+		return sum(REQUESTS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getCookiesSeen()
+	 */
+	@Override
+	public long getCookiesSeen() {
+		return sum(COOKIES_SEEN);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getCookiesModified()
+	 */
+	@Override
+	public long getCookiesModified() {
+		return sum(COOKIES_MODIFIED);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getErrors()
+	 */
+	@Override
+	public long getErrors() {
+		return sum(ERRORS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getBypassed()
+	 */
+	@Override
+	public long getBypassed() {
+		return sum(BYPASSED);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getCometEvents()
+	 */
+	@Override
+	public long getCometEvents() {
+		return sum(EVENTS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getDegraded()
+	 */
+	@Override
+	public long getDegraded() {
+		return sum(DEGRADED);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getLevel()
+	 */
+	@Override
+	public String getLevel() {
+		return level.name().toLowerCase();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getLevelChanges()
+	 */
+	@Override
+	public long getLevelChanges() {
+		return levelChanges.get();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getBypassRatio()
+	 */
+	@Override
+	public double getBypassRatio() {
+		final long[] s = sums();
+		return s[REQUESTS]==0L ? 0d : (double)s[BYPASSED] / s[REQUESTS];
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getValveP50()
+	 */
+	@Override
+	public long getValveP50() {
+		return LatencyHistogram.percentile(sums(), VALVE, 50d);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getValveP99()
+	 */
+	@Override
+	public long getValveP99() {
+		return LatencyHistogram.percentile(sums(), VALVE, 99d);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getValveP999()
+	 */
+	@Override
+	public long getValveP999() {
+		return LatencyHistogram.percentile(sums(), VALVE, 99.9d);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getValveMax()
+	 */
+	@Override
+	public long getValveMax() {
+		return LatencyHistogram.max(sums(), VALVE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getValveMean()
+	 */
+	@Override
+	public long getValveMean() {
+		return LatencyHistogram.mean(sums(), VALVE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getDownstreamP50()
+	 */
+	@Override
+	public long getDownstreamP50() {
+		return LatencyHistogram.percentile(sums(), DOWNSTREAM, 50d);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getDownstreamP99()
+	 */
+	@Override
+	public long getDownstreamP99() {
+		return LatencyHistogram.percentile(sums(), DOWNSTREAM, 99d);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getDownstreamP999()
+	 */
+	@Override
+	public long getDownstreamP999() {
+		return LatencyHistogram.percentile(sums(), DOWNSTREAM, 99.9d);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getDownstreamMax()
+	 */
+	@Override
+	public long getDownstreamMax() {
+		return LatencyHistogram.max(sums(), DOWNSTREAM);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getDownstreamMean()
+	 */
+	@Override
+	public long getDownstreamMean() {
+		return LatencyHistogram.mean(sums(), DOWNSTREAM);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#reset()
+	 */
+	@Override
+	public void reset() {
+		baseline = cells.sums();
+		final InterceptorChain ic = interceptors;
+		if(ic!=null) ic.reset();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.tomcat.valve.security.ValveMetricsMBean#getInterceptorTimes()
+	 */
+	@Override
+	public String getInterceptorTimes() {
+		final InterceptorChain ic = interceptors;
+		return ic==null ? "" : ic.report();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ValveMetrics [requests:" + getRequests() + ", cookiesSeen:" + getCookiesSeen() + ", cookiesModified:" + getCookiesModified() + ", errors:" + getErrors() + ", bypassed:" + getBypassed() + "]";
+	}
+}
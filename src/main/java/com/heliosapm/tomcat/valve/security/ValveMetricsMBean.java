@@ -0,0 +1,160 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+/**
+ * <p>Title: ValveMetricsMBean</p>
+ * <p>Description: JMX interface for {@link ValveMetrics}. Latencies are in nanoseconds.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ValveMetricsMBean</code></p>
+ */
+
+public interface ValveMetricsMBean {
+	/**
+	 * Returns the number of requests through the valve
+	 * @return the request count
+	 */
+	public long getRequests();
+
+	/**
+	 * Returns the number of cookies the valve inspected
+	 * @return the cookie count
+	 */
+	public long getCookiesSeen();
+
+	/**
+	 * Returns the number of cookies the valve added attributes to
+	 * @return the modified cookie count
+	 */
+	public long getCookiesModified();
+
+	/**
+	 * Returns the number of requests that failed with an exception
+	 * @return the error count
+	 */
+	public long getErrors();
+
+	/**
+	 * Returns the number of requests that matched a bypass rule and skipped cookie handling
+	 * @return the bypassed request count
+	 */
+	public long getBypassed();
+
+	/**
+	 * Returns the number of comet events routed through a response wrapper
+	 * @return the comet event count
+	 */
+	public long getCometEvents();
+
+	/**
+	 * Returns the number of requests handled below the full level, with features shed
+	 * @return the degraded request count
+	 */
+	public long getDegraded();
+
+	/**
+	 * Returns the valve's current operating level
+	 * @return the level name
+	 */
+	public String getLevel();
+
+	/**
+	 * Returns the number of operating level changes
+	 * @return the level change count
+	 */
+	public long getLevelChanges();
+
+	/**
+	 * Returns the fraction of requests that matched a bypass rule
+	 * @return the bypass ratio, from 0 to 1
+	 */
+	public double getBypassRatio();
+
+	/**
+	 * Returns the median time spent in the valve itself
+	 * @return the p50 in ns
+	 */
+	public long getValveP50();
+
+	/**
+	 * Returns the 99th percentile time spent in the valve itself
+	 * @return the p99 in ns
+	 */
+	public long getValveP99();
+
+	/**
+	 * Returns the 99.9th percentile time spent in the valve itself
+	 * @return the p999 in ns
+	 */
+	public long getValveP999();
+
+	/**
+	 * Returns the maximum time spent in the valve itself
+	 * @return the max in ns
+	 */
+	public long getValveMax();
+
+	/**
+	 * Returns the mean time spent in the valve itself
+	 * @return the mean in ns
+	 */
+	public long getValveMean();
+
+	/**
+	 * Returns the median time spent downstream of the valve
+	 * @return the p50 in ns
+	 */
+	public long getDownstreamP50();
+
+	/**
+	 * Returns the 99th percentile time spent downstream of the valve
+	 * @return the p99 in ns
+	 */
+	public long getDownstreamP99();
+
+	/**
+	 * Returns the 99.9th percentile time spent downstream of the valve
+	 * @return the p999 in ns
+	 */
+	public long getDownstreamP999();
+
+	/**
+	 * Returns the maximum time spent downstream of the valve
+	 * @return the max in ns
+	 */
+	public long getDownstreamMax();
+
+	/**
+	 * Returns the mean time spent downstream of the valve
+	 * @return the mean in ns
+	 */
+	public long getDownstreamMean();
+
+	/**
+	 * Resets all counters and histograms
+	 */
+	public void reset();
+
+	/**
+	 * Returns the calls and time per request of each response interceptor, one line per interceptor in call order
+	 * @return the interceptor timings
+	 */
+	public String getInterceptorTimes();
+}
@@ -0,0 +1,129 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: ValveRegistration</p>
+ * <p>Description: Tracks where catalina registered a {@link SecureCookies} valve in JMX and registers the valve's
+ * {@link ValveMetrics} alongside it, under the valve's ObjectName with the type set to <b><code>ValveMetrics</code></b>.
+ * The connector thread pools sampled for degradation are looked up in the same domain.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ValveRegistration</code></p>
+ */
+
+public class ValveRegistration {
+	/** Instance logger */
+	protected final Logger log = LoggerFactory.getLogger(getClass());
+	/** The MBeanServer the valve is registered in */
+	protected volatile MBeanServer server = null;
+	/** The valve's JMX ObjectName */
+	protected volatile ObjectName objectName = null;
+	/** The ObjectName the metrics are registered under, or null */
+	protected ObjectName metricsObjectName = null;
+
+	/**
+	 * Records where the valve is being registered
+	 * @param server The MBeanServer
+	 * @param name The valve's ObjectName
+	 */
+	public void preRegister(final MBeanServer server, final ObjectName name) {
+		this.server = server;
+		this.objectName = name;
+	}
+
+	/**
+	 * Registers the passed metrics alongside the valve
+	 * @param metrics The valve metrics
+	 */
+	public synchronized void registerMetrics(final ValveMetrics metrics) {
+		final MBeanServer mbs = server;
+		final ObjectName valveName = objectName;
+		if(mbs==null || valveName==null) return;
+		try {
+			final Hashtable<String, String> keys = new Hashtable<String, String>(valveName.getKeyPropertyList());
+			keys.put("type", "ValveMetrics");
+			final ObjectName on = new ObjectName(valveName.getDomain(), keys);
+			mbs.registerMBean(metrics, on);
+			metricsObjectName = on;
+			log.info("Registered Valve Metrics: {}", on);
+		} catch (Exception ex) {
+			log.warn("Failed to register the valve metrics MBean for [{}]", valveName, ex);
+		}
+	}
+
+	/**
+	 * Unregisters the valve metrics
+	 */
+	public synchronized void unregisterMetrics() {
+		final ObjectName on = metricsObjectName;
+		final MBeanServer mbs = server;
+		metricsObjectName = null;
+		if(on==null || mbs==null) return;
+		try {
+			if(mbs.isRegistered(on)) mbs.unregisterMBean(on);
+		} catch (Exception ex) {
+			log.warn("Failed to unregister the valve metrics MBean [{}]", on, ex);
+		}
+	}
+
+	/**
+	 * Creates a sampler of the connector thread pools in the valve's JMX domain, or of any domain if the valve is not registered
+	 * @return the sampler
+	 */
+	public ConnectorSaturation connectorSaturation() {
+		final MBeanServer mbs = server;
+		final ObjectName on = objectName;
+		return mbs==null || on==null ? new ConnectorSaturation(ManagementFactory.getPlatformMBeanServer(), "*") : new ConnectorSaturation(mbs, on.getDomain());
+	}
+
+	/**
+	 * Returns the valve's JMX ObjectName
+	 * @return the ObjectName, or null if the valve is not registered
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	/**
+	 * Returns the ObjectName the valve metrics are registered under
+	 * @return the ObjectName, or null if the metrics are not registered
+	 */
+	public synchronized ObjectName getMetricsObjectName() {
+		return metricsObjectName;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ValveRegistration [valve:" + objectName + ", metrics:" + getMetricsObjectName() + "]";
+	}
+}
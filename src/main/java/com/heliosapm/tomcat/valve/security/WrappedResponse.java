@@ -21,6 +21,9 @@ package com.heliosapm.tomcat.valve.security;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 
 import javax.servlet.ServletOutputStream;
@@ -28,9 +31,14 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
 import org.apache.catalina.connector.Connector;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.connector.ResponseFacade;
+import org.apache.catalina.security.SecurityUtil;
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.apache.tomcat.util.http.MimeHeaders;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,10 +52,80 @@ import org.slf4j.LoggerFactory;
 
 public class WrappedResponse extends Response {
 	/** The response to delegate to */
-	protected final Response delegate;
+	protected Response delegate;
+	/** Indicates if this wrapper is owned by a {@link WrappedResponsePool} and may be rebound */
+	protected final boolean recyclable;
+	/** The per cookie policies */
+	protected CookiePolicySet policies = CookiePolicySet.EMPTY;
+	/** The {@link SetCookieScanner} attribute bits every cookie must carry */
+	protected int required = 0;
+	/** The SameSite attribute bytes to append to cookies that have none, or null */
+	protected byte[] sameSiteAttr = null;
+	/** The raw Set-Cookie header rewriter, created on first use */
+	protected SetCookieRewriter rewriter = null;
+	/** The binary audit log of modified cookies, or null */
+	protected CookieAuditLog auditLog = null;
+	/** The number of cookies inspected since this wrapper was bound */
+	protected int cookiesSeen = 0;
+	/** The number of cookies modified since this wrapper was bound */
+	protected int cookiesModified = 0;
+	/** The cache of rendered Set-Cookie attribute suffixes, or null to render through the delegate */
+	protected SetCookieSuffixCache suffixes = null;
+	/** The scratch buffer cookie headers are assembled in */
+	protected char[] renderBuffer = null;
+	/** The signer of selected cookie values, or null */
+	protected CookieSigner signer = null;
+	/** The encryptor of selected cookie values, or null */
+	protected CookieEncryptor encryptor = null;
+	/** The maximum Set-Cookie bytes of the response, 0 for no limit */
+	protected int budgetBytes = 0;
+	/** The maximum number of cookies set by the response, 0 for no limit */
+	protected int budgetCount = 0;
+	/** What happens to a cookie over the budget */
+	protected CookieBudgetAction budgetAction = CookieBudgetAction.LOG;
+	/** The number of cookies set by the response, accounted while a budget is set */
+	protected int cookieCount = 0;
+	/** The Set-Cookie bytes of the response, accounted while a budget is set */
+	protected int cookieBytes = 0;
+	/** The number of cookies dropped to keep the response within its budget */
+	protected int cookiesDropped = 0;
+	/** Indicates if the response went over its budget */
+	protected boolean overBudget = false;
+	/** Indicates if a truncated response takes no more cookies */
+	protected boolean budgetClosed = false;
+	/** Indicates if repeated Set-Cookie headers for the same cookie are collapsed */
+	protected boolean dedupe = false;
+	/** The Set-Cookie headers of the response by cookie name, created on first use and kept across bindings */
+	protected SetCookieNameTable names = null;
+	/** The number of Set-Cookie headers written over an earlier one for the same cookie */
+	protected int cookiesCollapsed = 0;
+	/** The response interceptor chain, or null */
+	protected InterceptorChain chain = null;
+	/** The chain's interceptors in call order, or null */
+	protected ResponseInterceptor[] interceptors = null;
+	/** The calls made to each interceptor for the current request */
+	protected int[] interceptorCalls = null;
+	/** The time spent in each interceptor for the current request */
+	protected long[] interceptorNanos = null;
+	
+	/** The bytes each Set-Cookie header adds besides its value, the name, colon and space and the line end */
+	public static final int SET_COOKIE_OVERHEAD = SetCookieScanner.SET_COOKIE.length() + 4;
 	
 	/** Instance logger */
 	protected static final Logger log = LoggerFactory.getLogger(WrappedResponse.class);
+	/** The delegate's list of added cookies, which only catalina's own cookie methods can reach, or null if inaccessible */
+	private static final Field COOKIES = cookiesField();
+	
+	private static Field cookiesField() {
+		try {
+			final Field f = Response.class.getDeclaredField("cookies");
+			f.setAccessible(true);
+			return f;
+		} catch (Exception ex) {
+			log.warn("Cannot access Response.cookies. Cookies will always be rendered by catalina: {}", ex.toString());
+			return null;
+		}
+	}
 	
 	/**
 	 * Wraps the passed response 
@@ -59,7 +137,12 @@ public class WrappedResponse extends Response {
 		return new WrappedResponse(delegate);
 	}
 	
-	
+	/**
+	 * Renders the passed cookie as a human readable multi-line string.
+	 * Not used on the request path; see {@link CookieAudit} for the per cookie events.
+	 * @param cookie The cookie to render
+	 * @return the rendered cookie
+	 */
 	protected String render(final Cookie cookie) {
 		if(cookie==null) return "Cookie: [null]";
 		final StringBuilder b = new StringBuilder("Cookie: [");
@@ -79,6 +162,667 @@ public class WrappedResponse extends Response {
 	 */
 	public WrappedResponse(final Response delegate) {
 		this.delegate = delegate;
+		this.recyclable = false;
+	}
+	
+	/**
+	 * Creates a new unbound, recyclable WrappedResponse for use by a {@link WrappedResponsePool}
+	 */
+	protected WrappedResponse() {
+		this.delegate = null;
+		this.recyclable = true;
+	}
+	
+	/**
+	 * Binds this recyclable wrapper to the passed delegate
+	 * @param delegate The response to delegate to
+	 * @return this wrapper
+	 */
+	WrappedResponse bind(final Response delegate) {
+		this.delegate = delegate;
+		return this;
+	}
+	
+	/**
+	 * Clears the delegate binding and cookie policy of this recyclable wrapper, and drops its facade when
+	 * the security manager is enabled or the connector recycles facades
+	 */
+	void clear() {
+		this.delegate = null;
+		this.policies = CookiePolicySet.EMPTY;
+		this.required = 0;
+		this.sameSiteAttr = null;
+		this.auditLog = null;
+		this.cookiesSeen = 0;
+		this.cookiesModified = 0;
+		this.suffixes = null;
+		this.signer = null;
+		this.encryptor = null;
+		this.budgetBytes = 0;
+		this.budgetCount = 0;
+		this.budgetAction = CookieBudgetAction.LOG;
+		this.cookieCount = 0;
+		this.cookieBytes = 0;
+		this.cookiesDropped = 0;
+		this.overBudget = false;
+		this.budgetClosed = false;
+		this.dedupe = false;
+		if(names!=null) names.clear();
+		this.cookiesCollapsed = 0;
+		this.chain = null;
+		this.interceptors = null;
+		// as Response.recycle does, so a facade the application kept hold of cannot reach the next request
+		if(Globals.IS_SECURITY_ENABLED || Connector.RECYCLE_FACADES) {
+			if(facade!=null) {
+				facade.clear();
+				facade = null;
+			}
+		}
+	}
+	
+	/**
+	 * Configures this wrapper for one request from a configuration snapshot. Below the full level the wrapper keeps the
+	 * mandatory flags and the cookie values, and sheds the per cookie policies, auditing, interceptors, budgets and deduplication.
+	 * @param cfg The configuration snapshot
+	 * @param cp The policy of the request's context
+	 * @param secure true if the request is secure
+	 * @param full true at the full level, false at the essential level
+	 * @param auditLog The binary audit log, or null for none
+	 * @return this wrapper
+	 */
+	public WrappedResponse configure(final ValveConfig cfg, final ContextPolicy cp, final boolean secure, final boolean full, final CookieAuditLog auditLog) {
+		setPolicy(full ? cfg.getPolicies() : CookiePolicySet.EMPTY, cp.requiredAttributes(secure), cp.getSameSiteAttribute());
+		setAuditLog(full ? auditLog : null);
+		setSuffixCache(cfg.getSuffixCache());
+		setSigner(cfg.getSigner());
+		setEncryptor(cfg.getEncryptor());
+		setBudget(full ? cfg.getCookieBudgetBytes() : 0, full ? cfg.getCookieBudgetCount() : 0, cfg.getCookieBudgetAction());
+		setDedupe(full && cfg.isDedupeCookies());
+		return setInterceptors(full ? cfg.getInterceptors() : null);
+	}
+
+	/**
+	 * Sets the cookie policy applied by this wrapper
+	 * @param policies The per cookie policies
+	 * @param required The valve wide {@link SetCookieScanner} attribute bits every cookie must carry
+	 * @param sameSiteAttr The valve wide SameSite attribute bytes to append to cookies that have none, or null
+	 * @return this wrapper
+	 */
+	public WrappedResponse setPolicy(final CookiePolicySet policies, final int required, final byte[] sameSiteAttr) {
+		this.policies = policies;
+		this.required = required;
+		this.sameSiteAttr = sameSiteAttr;
+		return this;
+	}
+	
+	/**
+	 * Sets the binary audit log modified cookies are recorded to
+	 * @param auditLog The audit log, or null for none
+	 * @return this wrapper
+	 */
+	public WrappedResponse setAuditLog(final CookieAuditLog auditLog) {
+		this.auditLog = auditLog;
+		return this;
+	}
+	
+	/**
+	 * Sets the cache of rendered Set-Cookie attribute suffixes
+	 * @param suffixes The cache, or null to render every cookie through the delegate
+	 * @return this wrapper
+	 */
+	public WrappedResponse setSuffixCache(final SetCookieSuffixCache suffixes) {
+		this.suffixes = (suffixes==null || COOKIES==null) ? null : suffixes;
+		return this;
+	}
+	
+	/**
+	 * Sets the signer of selected cookie values
+	 * @param signer The signer, or null to sign nothing
+	 * @return this wrapper
+	 */
+	public WrappedResponse setSigner(final CookieSigner signer) {
+		this.signer = signer;
+		return this;
+	}
+	
+	/**
+	 * Sets the encryptor of selected cookie values
+	 * @param encryptor The encryptor, or null to encrypt nothing
+	 * @return this wrapper
+	 */
+	public WrappedResponse setEncryptor(final CookieEncryptor encryptor) {
+		this.encryptor = encryptor;
+		return this;
+	}
+	
+	/**
+	 * Sets the budget the cookies set by the response are accounted against
+	 * @param bytes The maximum Set-Cookie bytes, counting each header's name and line end, 0 for no limit
+	 * @param count The maximum number of cookies, 0 for no limit
+	 * @param action What happens to a cookie over the budget
+	 * @return this wrapper
+	 */
+	public WrappedResponse setBudget(final int bytes, final int count, final CookieBudgetAction action) {
+		this.budgetBytes = bytes;
+		this.budgetCount = count;
+		this.budgetAction = action;
+		return this;
+	}
+	
+	/**
+	 * Sets the response interceptors called back by this wrapper and clears their per request timings
+	 * @param chain The interceptor chain, or null for none
+	 * @return this wrapper
+	 */
+	public WrappedResponse setInterceptors(final InterceptorChain chain) {
+		this.chain = chain;
+		if(chain==null) {
+			interceptors = null;
+			return this;
+		}
+		interceptors = chain.interceptors();
+		final int n = interceptors.length;
+		if(interceptorCalls==null || interceptorCalls.length < n) {
+			interceptorCalls = new int[n];
+			interceptorNanos = new long[n];
+		} else {
+			Arrays.fill(interceptorCalls, 0, n, 0);
+			Arrays.fill(interceptorNanos, 0, n, 0L);
+		}
+		return this;
+	}
+	
+	/**
+	 * Calls {@link ResponseInterceptor#begin(WrappedResponse)} on each interceptor
+	 * @return true if any interceptor was called
+	 */
+	public boolean beginInterceptors() {
+		final ResponseInterceptor[] ic = interceptors;
+		if(ic==null) return false;
+		long t = System.nanoTime();
+		for(int i = 0; i < ic.length; i++) {
+			try {
+				ic[i].begin(this);
+			} finally {
+				t = timed(i, t);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Charges the time since the passed timestamp to an interceptor. Each call's end is the next call's start,
+	 * so a chain of n interceptors reads the clock n + 1 times.
+	 * @param i The interceptor index
+	 * @param start The timestamp the call started at
+	 * @return the timestamp the call ended at
+	 */
+	private long timed(final int i, final long start) {
+		final long end = System.nanoTime();
+		interceptorNanos[i] += end - start;
+		interceptorCalls[i]++;
+		return end;
+	}
+	
+	/**
+	 * Calls {@link ResponseInterceptor#end(WrappedResponse)} on each interceptor, then records the request's timings in the chain
+	 */
+	public void endInterceptors() {
+		final ResponseInterceptor[] ic = interceptors;
+		if(ic==null) return;
+		try {
+			long t = System.nanoTime();
+			for(int i = 0; i < ic.length; i++) {
+				try {
+					ic[i].end(this);
+				} finally {
+					t = timed(i, t);
+				}
+			}
+		} finally {
+			recordInterceptors();
+		}
+	}
+	
+	/**
+	 * Records the interceptor calls and time since the last recording in the chain, as for one request
+	 */
+	public void recordInterceptors() {
+		final ResponseInterceptor[] ic = interceptors;
+		if(ic==null) return;
+		chain.record(interceptorCalls, interceptorNanos);
+		Arrays.fill(interceptorCalls, 0, ic.length, 0);
+		Arrays.fill(interceptorNanos, 0, ic.length, 0L);
+	}
+	
+	/**
+	 * Passes a cookie through the interceptors
+	 * @param cookie The cookie
+	 * @return true if every interceptor kept the cookie
+	 */
+	protected boolean interceptCookie(final Cookie cookie) {
+		final ResponseInterceptor[] ic = interceptors;
+		long t = System.nanoTime();
+		for(int i = 0; i < ic.length; i++) {
+			final boolean keep;
+			try {
+				keep = ic[i].cookie(this, cookie);
+			} finally {
+				t = timed(i, t);
+			}
+			if(!keep) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Passes a header through the interceptors
+	 * @param name The header name
+	 * @param value The header value
+	 * @return the header value to add or set, or null if an interceptor dropped it
+	 */
+	protected String interceptHeader(final String name, final String value) {
+		final ResponseInterceptor[] ic = interceptors;
+		String v = value;
+		long t = System.nanoTime();
+		for(int i = 0; i < ic.length && v!=null; i++) {
+			try {
+				v = ic[i].header(this, name, v);
+			} finally {
+				t = timed(i, t);
+			}
+		}
+		return v;
+	}
+	
+	/**
+	 * Returns the wrapped response, on which interceptors can set headers and cookies without calling back into the chain
+	 * @return the delegate response
+	 */
+	public Response getDelegate() {
+		return delegate;
+	}
+	
+	/**
+	 * Sets whether repeated Set-Cookie headers for the same name, path and domain are collapsed to the last one written
+	 * @param dedupe true to collapse duplicates
+	 * @return this wrapper
+	 */
+	public WrappedResponse setDedupe(final boolean dedupe) {
+		this.dedupe = dedupe;
+		if(!dedupe && names!=null) names.clear();
+		return this;
+	}
+	
+	/**
+	 * Returns the number of Set-Cookie headers written over an earlier one for the same cookie
+	 * @return the number of collapsed duplicates
+	 */
+	public int getCookiesCollapsed() {
+		return cookiesCollapsed;
+	}
+	
+	/**
+	 * Indicates if the cookies set by the response are accounted against a budget
+	 * @return true if a budget is set
+	 */
+	public boolean isBudgeted() {
+		return budgetBytes > 0 || budgetCount > 0;
+	}
+	
+	/**
+	 * Accounts one Set-Cookie header against the budget and decides if it may be added.
+	 * The first cookie over the budget logs a warning when the action is {@link CookieBudgetAction#LOG}.
+	 * @param length The length of the header value
+	 * @param force true if the header is added whatever the action, as session cookies are
+	 * @param replaced The length of the header value the header replaces, or -1 if it is added
+	 * @return true if the header may be added, false if it is dropped
+	 */
+	protected boolean admit(final int length, final boolean force, final int replaced) {
+		if(budgetBytes==0 && budgetCount==0) return true;
+		if(budgetClosed && !force) {
+			cookiesDropped++;
+			return false;
+		}
+		int count = cookieCount, bytes = cookieBytes + length + SET_COOKIE_OVERHEAD;
+		if(replaced!=-1) {
+			count--;
+			bytes -= replaced + SET_COOKIE_OVERHEAD;
+		}
+		if((budgetCount > 0 && count >= budgetCount) || (budgetBytes > 0 && bytes > budgetBytes)) {
+			if(!overBudget) {
+				overBudget = true;
+				if(budgetAction==CookieBudgetAction.LOG) {
+					log.warn("Response in [{}] went over its cookie budget: {} cookies, {} bytes", contextPath(), count + 1, bytes);
+				}
+			}
+			if(budgetAction!=CookieBudgetAction.LOG && !force) {
+				if(budgetAction==CookieBudgetAction.TRUNCATE) budgetClosed = true;
+				cookiesDropped++;
+				return false;
+			}
+		}
+		cookieCount = count + 1;
+		cookieBytes = bytes;
+		return true;
+	}
+	
+	/**
+	 * Returns the index of the Set-Cookie header this response set earlier for the same cookie as the passed value
+	 * @param hash The cookie name hash
+	 * @param value The Set-Cookie header value
+	 * @return the header index, or -1 if there is none or duplicates are kept
+	 */
+	protected int duplicateOf(final int hash, final String value) {
+		if(names==null || names.isEmpty()) return -1;
+		final MimeHeaders headers = delegate.getCoyoteResponse().getMimeHeaders();
+		for(int slot = names.first(hash); slot!=-1; slot = names.next(slot, hash)) {
+			final int i = names.header(slot);
+			// removing another header moves the ones after it, so the recorded index is only a hint
+			if(i < headers.size() && headers.getName(i).equalsIgnoreCase(SetCookieScanner.SET_COOKIE)
+				&& SetCookieNameTable.sameCookie(headers.getValue(i).toString(), value)) return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Returns the length of the header value at the passed index
+	 * @param index The header index, or -1
+	 * @return the value length, or -1 if the index is -1
+	 */
+	protected int replacedLength(final int index) {
+		return index==-1 ? -1 : delegate.getCoyoteResponse().getMimeHeaders().getValue(index).toString().length();
+	}
+	
+	/**
+	 * Records the last header of the response as the named cookie's Set-Cookie header
+	 * @param hash The cookie name hash
+	 */
+	protected void recordHeader(final int hash) {
+		if(!dedupe) return;
+		if(names==null) names = new SetCookieNameTable();
+		names.put(hash, delegate.getCoyoteResponse().getMimeHeaders().size() - 1);
+	}
+	
+	/**
+	 * Writes the passed Set-Cookie value over an earlier header for the same cookie, as catalina does for session cookies,
+	 * and replaces the earlier cookie in the delegate's list of added cookies
+	 * @param index The index of the earlier header
+	 * @param value The Set-Cookie header value
+	 * @param cookie The cookie, or null for a raw header
+	 */
+	protected void replaceHeader(final int index, final String value, final Cookie cookie) {
+		delegate.getCoyoteResponse().getMimeHeaders().getValue(index).setString(value);
+		cookiesCollapsed++;
+		if(cookie==null || COOKIES==null) return;
+		final List<Cookie> added = addedCookies();
+		for(int i = added.size()-1; i >= 0; i--) {
+			final Cookie c = added.get(i);
+			if(c.getName().equals(cookie.getName()) && eq(c.getPath(), cookie.getPath())
+				&& (c.getDomain()==null ? cookie.getDomain()==null : c.getDomain().equalsIgnoreCase(cookie.getDomain()))) {
+				added.set(i, cookie);
+				return;
+			}
+		}
+		added.add(cookie);
+	}
+	
+	private static boolean eq(final String a, final String b) {
+		return a==b || (a!=null && a.equals(b));
+	}
+	
+	/**
+	 * Forgets the Set-Cookie headers of the response after they were removed
+	 */
+	protected void forgetCookies() {
+		if(names!=null) names.clear();
+		cookieCount = 0;
+		cookieBytes = 0;
+		budgetClosed = false;
+	}
+	
+	/**
+	 * Returns the length of the Set-Cookie header value catalina renders for the passed cookie
+	 * @param cookie The cookie
+	 * @param http true if the cookie is http only
+	 * @param ss The SameSite attribute bytes appended to it, or null
+	 * @return the header value length
+	 */
+	protected int renderedLength(final Cookie cookie, final boolean http, final byte[] ss) {
+		if(SetCookieSuffixCache.isRenderable(cookie)) return SetCookieSuffixCache.renderedLength(cookie, http, ss);
+		return delegate.generateCookieString(cookie, http).length() + (ss==null ? 0 : ss.length);
+	}
+	
+	/**
+	 * Returns the number of cookies set by the response, accounted while a budget is set
+	 * @return the number of cookies
+	 */
+	public int getCookieCount() {
+		return cookieCount;
+	}
+	
+	/**
+	 * Returns the Set-Cookie bytes of the response, accounted while a budget is set
+	 * @return the number of bytes
+	 */
+	public int getCookieBytes() {
+		return cookieBytes;
+	}
+	
+	/**
+	 * Returns the number of cookies dropped to keep the response within its budget
+	 * @return the number of dropped cookies
+	 */
+	public int getCookiesDropped() {
+		return cookiesDropped;
+	}
+	
+	/**
+	 * Indicates if the response went over its budget
+	 * @return true if over budget
+	 */
+	public boolean isOverBudget() {
+		return overBudget;
+	}
+	
+	/**
+	 * Returns the path of the delegate's context
+	 * @return the context path or null if there is no context
+	 */
+	protected String contextPath() {
+		final Context ctx = delegate.getContext();
+		return ctx==null ? null : ctx.getPath();
+	}
+	
+	/**
+	 * Returns the raw Set-Cookie header rewriter, creating it if necessary
+	 * @return the rewriter
+	 */
+	protected SetCookieRewriter rewriter() {
+		if(rewriter==null) rewriter = new SetCookieRewriter();
+		return rewriter;
+	}
+	
+	/**
+	 * Adds the missing required attributes to a raw Set-Cookie header value
+	 * @param value The header value
+	 * @return the secured header value
+	 */
+	protected String secureSetCookie(final String value) {
+		if(value==null || (required==0 && policies.isEmpty())) return value;
+		final SetCookieRewriter rw = rewriter();
+		final String secured = rw.rewrite(value, policies, delegate.getContext(), required, sameSiteAttr);
+		CookieAudit.header(value, secured);
+		cookiesSeen++;
+		if(secured!=value) cookiesModified++;
+		if(auditLog!=null && rw.getLastAdded()!=0) {
+			auditLog.header(CookieAuditLog.OP_HEADER, rw.buffer(), 0, rw.getLastLength(), contextPath(), rw.getLastAdded(), SameSite.forAttribute(rw.getLastSameSite()));
+		}
+		return secured;
+	}
+	
+	/**
+	 * Applies the valve wide settings and the cookie's resolved policy, then adds the cookie to the delegate.
+	 * Secure and HttpOnly are applied through the cookie API; SameSite, which the cookie API cannot express,
+	 * is appended to the Set-Cookie header the delegate generated. Signed and encrypted cookies are added as a sealed copy,
+	 * see {@link #seal(Cookie)}; session cookies never are, since catalina reads the session id before any valve runs.
+	 * A cookie over the response's budget may be dropped; session cookies are accounted but never dropped.
+	 * The response interceptors see the cookie first and may drop it.
+	 * @param original The cookie to add
+	 * @param httpOnly true if the caller requested an http only cookie
+	 * @param session true if this is a session cookie replacing any previous one
+	 */
+	protected void addSecuredCookie(final Cookie original, final boolean httpOnly, final boolean session) {
+		if(interceptors!=null && !interceptCookie(original)) return;
+		final Cookie cookie = session ? original : seal(original);
+		int req = required;
+		byte[] ss = sameSiteAttr;
+		if(!policies.isEmpty()) {
+			final CookiePolicy policy = policies.resolve(delegate.getContext(), cookie.getName());
+			req |= policy.getAttributes();
+			ss = policy.sameSiteAttribute(ss);
+		}
+		int added = 0;
+		if((req & SetCookieScanner.SECURE)!=0 && !cookie.getSecure()) {
+			cookie.setSecure(true);
+			added |= SetCookieScanner.SECURE;
+		}
+		final boolean http = httpOnly || (req & SetCookieScanner.HTTP_ONLY)!=0;
+		if(http && !httpOnly) added |= SetCookieScanner.HTTP_ONLY;
+		final boolean sameSite = (req & SetCookieScanner.SAME_SITE)!=0 && ss!=null;
+		if(!session && suffixes!=null && !SecurityUtil.isPackageProtectionEnabled() && SetCookieSuffixCache.isRenderable(cookie)) {
+			// catalina's addCookieInternal, with the SameSite attribute rendered in place
+			if(!delegate.isCommitted()) {
+				if(renderBuffer==null) renderBuffer = new char[256];
+				final String header = suffixes.render(cookie, http, sameSite ? ss : null, renderBuffer);
+				final int hash = cookie.getName().hashCode();
+				final int dup = duplicateOf(hash, header);
+				if(!admit(header.length(), false, replacedLength(dup))) {
+					cookiesSeen++;
+					return;
+				}
+				if(dup!=-1) {
+					replaceHeader(dup, header, cookie);
+				} else {
+					delegate.addHeader(SetCookieScanner.SET_COOKIE, header);
+					addedCookies().add(cookie);
+					recordHeader(hash);
+				}
+				if(sameSite) added |= SetCookieScanner.SAME_SITE;
+			}
+		} else {
+			final int hash = cookie.getName().hashCode();
+			String header = null;
+			int dup = -1;
+			if(!session && names!=null && names.first(hash)!=-1 && COOKIES!=null && !delegate.isCommitted()) {
+				// a likely duplicate, render it as catalina would to find and replace the earlier header
+				final String rendered = delegate.generateCookieString(cookie, http).toString();
+				header = sameSite ? rewriter().rewrite(rendered, SetCookieScanner.SAME_SITE, ss) : rendered;
+				dup = duplicateOf(hash, header);
+				if(dup!=-1 && header!=rendered) added |= SetCookieScanner.SAME_SITE;
+			}
+			if(dup!=-1) {
+				if(!admit(header.length(), false, replacedLength(dup))) {
+					cookiesSeen++;
+					return;
+				}
+				replaceHeader(dup, header, cookie);
+			} else {
+				if(isBudgeted() && !delegate.isCommitted() && !admit(header!=null ? header.length() : renderedLength(cookie, http, sameSite ? ss : null), session, -1)) {
+					cookiesSeen++;
+					return;
+				}
+				final int before = delegate.getCoyoteResponse().getMimeHeaders().size();
+				if(session) delegate.addSessionCookieInternal(cookie, http);
+				else delegate.addCookieInternal(cookie, http);
+				if(sameSite && appendSameSite(cookie.getName(), ss)) added |= SetCookieScanner.SAME_SITE;
+				// a session cookie catalina wrote over an earlier one adds no header
+				if(delegate.getCoyoteResponse().getMimeHeaders().size() > before) recordHeader(hash);
+			}
+		}
+		CookieAudit.cookie(session ? CookieAudit.OP_SESSION : CookieAudit.OP_ADD, cookie, http);
+		cookiesSeen++;
+		if(added!=0) cookiesModified++;
+		if(auditLog!=null && added!=0) {
+			auditLog.cookie(session ? CookieAuditLog.OP_SESSION : CookieAuditLog.OP_COOKIE, cookie.getName(), contextPath(), cookie.getPath(),
+				added, (added & SetCookieScanner.SAME_SITE)!=0 ? SameSite.forAttribute(ss) : null);
+		}
+	}
+	
+	/**
+	 * Returns the cookie to add in place of the passed one: a copy carrying the signed or encrypted value if the cookie
+	 * is signed or encrypted, or the cookie itself. The caller's cookie keeps its plain value, since the application may
+	 * read or add it again.
+	 * @param cookie The cookie being added
+	 * @return the cookie to add
+	 */
+	protected Cookie seal(final Cookie cookie) {
+		final String sealedValue;
+		if(signer!=null && signer.isSigned(cookie.getName())) sealedValue = signer.sign(cookie.getName(), cookie.getValue());
+		else if(encryptor!=null && encryptor.isEncrypted(cookie.getName())) sealedValue = encryptor.encrypt(cookie.getName(), cookie.getValue());
+		else return cookie;
+		final Cookie sealed = (Cookie)cookie.clone();
+		sealed.setValue(sealedValue);
+		return sealed;
+	}
+	
+	/**
+	 * Returns the delegate's list of added cookies
+	 * @return the list of cookies
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Cookie> addedCookies() {
+		try {
+			return (List<Cookie>)COOKIES.get(delegate);
+		} catch (IllegalAccessException iae) {
+			throw new IllegalStateException("Response.cookies is not accessible", iae);
+		}
+	}
+	
+	/**
+	 * Appends the SameSite attribute to the most recent Set-Cookie header for the named cookie if it has none
+	 * @param name The cookie name
+	 * @param ss The SameSite attribute bytes
+	 * @return true if the attribute was appended
+	 */
+	protected boolean appendSameSite(final String name, final byte[] ss) {
+		final MimeHeaders headers = delegate.getCoyoteResponse().getMimeHeaders();
+		final int nlen = name.length();
+		for(int i = headers.size()-1; i >= 0; i--) {
+			if(!headers.getName(i).equalsIgnoreCase(SetCookieScanner.SET_COOKIE)) continue;
+			final MessageBytes mb = headers.getValue(i);
+			if(mb.getType()!=MessageBytes.T_STR) continue;
+			final String v = mb.getString();
+			if(v.length() <= nlen || v.charAt(nlen)!='=' || !v.startsWith(name)) continue;
+			final String secured = rewriter().rewrite(v, SetCookieScanner.SAME_SITE, ss);
+			mb.setString(secured);
+			return secured!=v;
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns the number of cookies inspected since this wrapper was bound
+	 * @return the number of cookies inspected
+	 */
+	public int getCookiesSeen() {
+		return cookiesSeen;
+	}
+	
+	/**
+	 * Returns the number of cookies modified since this wrapper was bound
+	 * @return the number of cookies modified
+	 */
+	public int getCookiesModified() {
+		return cookiesModified;
+	}
+	
+	/**
+	 * Indicates if this wrapper is owned by a pool
+	 * @return true if this wrapper is recyclable, false otherwise
+	 */
+	public boolean isRecyclable() {
+		return recyclable;
 	}
 
 	/**
@@ -88,8 +832,8 @@ public class WrappedResponse extends Response {
 	 */
 	@Override
 	public void addCookie(final Cookie cookie) {
-		log.info("Adding: {}", render(cookie));
-		delegate.addCookie(cookie);
+		if(delegate.getIncluded()) return;
+		addSecuredCookie(cookie, false, false);
 	}
 
 	/**
@@ -100,8 +844,7 @@ public class WrappedResponse extends Response {
 	 */
 	@Override
 	public void addCookieInternal(final Cookie cookie, final boolean httpOnly) {
-		log.info("Adding Internal: httpOnly [{}], {}", httpOnly, render(cookie));
-		delegate.addCookieInternal(cookie, httpOnly);
+		addSecuredCookie(cookie, httpOnly, false);
 	}
 
 	/**
@@ -111,9 +854,7 @@ public class WrappedResponse extends Response {
 	 */
 	@Override
 	public void addCookieInternal(final Cookie cookie) {
-		log.info("Adding Internal: {}", render(cookie));
-		delegate.addCookieInternal(cookie, true);
-		delegate.getCookies();
+		addSecuredCookie(cookie, true, false);
 	}
 
 	/**
@@ -124,8 +865,7 @@ public class WrappedResponse extends Response {
 	 */
 	@Override
 	public void addSessionCookieInternal(final Cookie cookie, final boolean httpOnly) {
-		log.info("Adding Session Internal: httpOnly [{}], {}", true, render(cookie));
-		delegate.addSessionCookieInternal(cookie, httpOnly);
+		addSecuredCookie(cookie, httpOnly, true);
 	}
 
 	
@@ -150,7 +890,29 @@ public class WrappedResponse extends Response {
 	 */
 	@Override
 	public void addHeader(String name, String value) {
-		delegate.addHeader(name, value);
+		if(delegate.getIncluded()) return;
+		if(interceptors!=null) {
+			value = interceptHeader(name, value);
+			if(value==null) return;
+		}
+		if(!SetCookieRewriter.isSetCookie(name)) {
+			delegate.addHeader(name, value);
+			return;
+		}
+		final String secured = secureSetCookie(value);
+		if(secured==null || delegate.isCommitted()) {
+			delegate.addHeader(name, secured);
+			return;
+		}
+		final int hash = dedupe ? SetCookieNameTable.nameHash(secured) : 0;
+		final int dup = duplicateOf(hash, secured);
+		if(!admit(secured.length(), false, replacedLength(dup))) return;
+		if(dup!=-1) {
+			replaceHeader(dup, secured, null);
+		} else {
+			delegate.addHeader(name, secured);
+			recordHeader(hash);
+		}
 	}
 
 	/**
@@ -459,12 +1221,16 @@ public class WrappedResponse extends Response {
 	}
 
 	/**
-	 * @return
+	 * Returns a facade over this wrapper rather than the delegate's facade, so calls made by the application
+	 * are routed through the wrapper. A recycled wrapper keeps its facade across requests unless the security manager
+	 * is enabled or the connector recycles facades.
+	 * @return the facade for this wrapper
 	 * @see org.apache.catalina.connector.Response#getResponse()
 	 */
 	@Override
 	public HttpServletResponse getResponse() {
-		return delegate.getResponse();
+		if(facade==null) facade = new ResponseFacade(this);
+		return facade;
 	}
 
 	/**
@@ -550,12 +1316,14 @@ public class WrappedResponse extends Response {
 	}
 
 	/**
-	 * 
+	 * Recycles the delegate and, if this wrapper is recyclable, clears the delegate binding
 	 * @see org.apache.catalina.connector.Response#recycle()
 	 */
 	@Override
 	public void recycle() {
-		delegate.recycle();
+		final Response d = delegate;
+		if(recyclable) clear();
+		if(d!=null) d.recycle();
 	}
 
 	/**
@@ -565,6 +1333,7 @@ public class WrappedResponse extends Response {
 	@Override
 	public void reset() {
 		delegate.reset();
+		forgetCookies();
 	}
 
 	/**
@@ -575,6 +1344,7 @@ public class WrappedResponse extends Response {
 	@Override
 	public void reset(int status, String message) {
 		delegate.reset(status, message);
+		forgetCookies();
 	}
 
 	/**
@@ -733,7 +1503,33 @@ public class WrappedResponse extends Response {
 	 */
 	@Override
 	public void setHeader(String name, String value) {
-		delegate.setHeader(name, value);
+		if(delegate.getIncluded()) return;
+		if(interceptors!=null) {
+			value = interceptHeader(name, value);
+			if(value==null) return;
+		}
+		if(!SetCookieRewriter.isSetCookie(name)) {
+			delegate.setHeader(name, value);
+			return;
+		}
+		final String secured = secureSetCookie(value);
+		if(secured!=null && isBudgeted() && !delegate.isCommitted()) {
+			// the header replaces every Set-Cookie header set so far, so the budget starts over
+			final int count = cookieCount, bytes = cookieBytes;
+			final boolean closed = budgetClosed;
+			cookieCount = 0;
+			cookieBytes = 0;
+			budgetClosed = false;
+			if(!admit(secured.length(), false, -1)) {
+				cookieCount = count;
+				cookieBytes = bytes;
+				budgetClosed = closed;
+				return;
+			}
+		}
+		// the header indexes recorded so far no longer hold
+		if(names!=null && !delegate.isCommitted()) names.clear();
+		delegate.setHeader(name, secured);
 	}
 
 	/**
@@ -0,0 +1,100 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.catalina.connector.Response;
+
+/**
+ * <p>Title: WrappedResponsePool</p>
+ * <p>Description: Keeps one recyclable {@link WrappedResponse} per connector thread.
+ * A wrapper is taken out of the thread's slot when acquired and put back when released,
+ * so a nested or still-live use (e.g. a comet request) simply results in a pool miss
+ * and a freshly allocated wrapper rather than a shared one.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.WrappedResponsePool</code></p>
+ */
+
+public class WrappedResponsePool {
+	/** The per thread wrapper slot */
+	private final ThreadLocal<WrappedResponse> slot = new ThreadLocal<WrappedResponse>();
+	/** The number of acquisitions served from the thread's slot */
+	private final AtomicLong hits = new AtomicLong(0L);
+	/** The number of acquisitions that had to allocate a new wrapper */
+	private final AtomicLong misses = new AtomicLong(0L);
+
+	/**
+	 * Acquires a wrapper bound to the passed response.
+	 * If the response is already wrapped, it is returned as is.
+	 * @param delegate The response to wrap
+	 * @return the wrapped response
+	 */
+	public Response acquire(final Response delegate) {
+		if(delegate instanceof WrappedResponse) return delegate;
+		WrappedResponse wr = slot.get();
+		if(wr!=null) {
+			slot.set(null);
+			hits.incrementAndGet();
+		} else {
+			wr = new WrappedResponse();
+			misses.incrementAndGet();
+		}
+		return wr.bind(delegate);
+	}
+
+	/**
+	 * Clears the passed wrapper and returns it to the calling thread's slot.
+	 * Wrappers not owned by a pool are ignored.
+	 * @param response The wrapper to release
+	 */
+	public void release(final Response response) {
+		if(!(response instanceof WrappedResponse)) return;
+		final WrappedResponse wr = (WrappedResponse)response;
+		if(!wr.isRecyclable()) return;
+		wr.clear();
+		slot.set(wr);
+	}
+
+	/**
+	 * Returns the number of acquisitions served from a recycled wrapper
+	 * @return the pool hit count
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of acquisitions that allocated a new wrapper
+	 * @return the pool miss count
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Resets the hit and miss counters
+	 */
+	public void resetCounters() {
+		hits.set(0L);
+		misses.set(0L);
+	}
+
+}
@@ -0,0 +1,181 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.junit.Test;
+
+/**
+ * <p>Title: BypassRulesTest</p>
+ * <p>Description: Tests the {@link BypassRules} boundary cases: path prefixes match whole segments, <b><code>*</code></b>
+ * and <b><code>?</code></b> stay within a segment, <b><code>**</code></b> spans segments, and URIs held as bytes, chars
+ * and Strings all match alike.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.BypassRulesTest</code></p>
+ */
+
+public class BypassRulesTest {
+
+	/**
+	 * Matches a GET of the passed URI held as bytes, then checks chars and a String give the same answer
+	 * @param rules The rules
+	 * @param uri The URI
+	 * @return true if the URI matched
+	 */
+	private static boolean matches(final BypassRules rules, final String uri) {
+		final MessageBytes method = MessageBytes.newInstance();
+		method.setString("GET");
+		final MessageBytes mb = MessageBytes.newInstance();
+		// offset within a larger buffer, as the connector's URI is
+		final byte[] b = ("GET " + uri + " HTTP/1.1").getBytes(SetCookieScanner.ISO_8859_1);
+		mb.setBytes(b, 4, uri.length());
+		final boolean matched = rules.matches(method, mb);
+		final char[] c = ("GET " + uri + " HTTP/1.1").toCharArray();
+		mb.setChars(c, 4, uri.length());
+		assertEquals(uri + " as chars", matched, rules.matches(method, mb));
+		mb.setString(uri);
+		assertEquals(uri + " as a String", matched, rules.matches(method, mb));
+		return matched;
+	}
+
+	/**
+	 * A prefix without a trailing slash only matches itself or what follows after a slash
+	 */
+	@Test
+	public void testPrefixSegmentBoundary() {
+		final BypassRules rules = BypassRules.compile("/health", null, null, null);
+		assertTrue(matches(rules, "/health"));
+		assertTrue(matches(rules, "/health/"));
+		assertTrue(matches(rules, "/health/live"));
+		assertFalse(matches(rules, "/healthcare"));
+		assertFalse(matches(rules, "/healthcare/login"));
+		assertFalse(matches(rules, "/healt"));
+		assertFalse(matches(rules, "/api/health"));
+		assertFalse(matches(rules, "/Health"));
+	}
+
+	/**
+	 * A prefix with a trailing slash matches everything below it, but not the directory without the slash
+	 */
+	@Test
+	public void testPrefixWithSlash() {
+		final BypassRules rules = BypassRules.compile("/static/, /", null, null, null);
+		assertTrue(matches(rules, "/anything"));
+		final BypassRules statics = BypassRules.compile("/static/", null, null, null);
+		assertTrue(matches(statics, "/static/"));
+		assertTrue(matches(statics, "/static/css/site.css"));
+		assertFalse(matches(statics, "/static"));
+		assertFalse(matches(statics, "/staticfiles/a.css"));
+	}
+
+	/**
+	 * Nested prefixes each match on their own boundary
+	 */
+	@Test
+	public void testNestedPrefixes() {
+		final BypassRules rules = BypassRules.compile("/a, /a/bc", null, null, null);
+		assertTrue(matches(rules, "/a/b"));
+		assertTrue(matches(rules, "/a/bcd"));
+		assertFalse(matches(rules, "/ab"));
+		final BypassRules deep = BypassRules.compile("/a/bc", null, null, null);
+		assertTrue(matches(deep, "/a/bc/d"));
+		assertFalse(matches(deep, "/a/bcd"));
+		assertFalse(matches(deep, "/a/b"));
+	}
+
+	/**
+	 * A single star and a question mark never cross a slash, a double star does
+	 */
+	@Test
+	public void testGlobSegments() {
+		final BypassRules single = BypassRules.compile(null, null, "/*/assets/*", null);
+		assertTrue(matches(single, "/app/assets/logo.png"));
+		assertFalse(matches(single, "/app/v2/assets/logo.png"));
+		assertFalse(matches(single, "/app/assets/img/logo.png"));
+		assertTrue(matches(single, "/app/assets/"));
+		final BypassRules dbl = BypassRules.compile(null, null, "/**/assets/**", null);
+		assertTrue(matches(dbl, "/app/v2/assets/img/logo.png"));
+		assertTrue(matches(dbl, "/app/assets/logo.png"));
+		assertFalse(matches(dbl, "/app/assetsx/logo.png"));
+		final BypassRules q = BypassRules.compile(null, null, "/v?/ping", null);
+		assertTrue(matches(q, "/v1/ping"));
+		assertFalse(matches(q, "/v/ping"));
+		assertFalse(matches(q, "/v//ping"));
+		assertFalse(matches(q, "/v12/ping"));
+	}
+
+	/**
+	 * Extensions match the last segment only, case insensitively, with or without a leading dot or star
+	 */
+	@Test
+	public void testExtensions() {
+		final BypassRules rules = BypassRules.compile(null, "css, .JS, *.png", null, null);
+		assertTrue(matches(rules, "/site.css"));
+		assertTrue(matches(rules, "/a/b/app.min.JS"));
+		assertTrue(matches(rules, "/img/LOGO.PNG"));
+		assertFalse(matches(rules, "/site.css/edit"));
+		assertFalse(matches(rules, "/sitecss"));
+		assertFalse(matches(rules, "/site.scss"));
+		assertFalse(matches(rules, "/.css.d/x"));
+	}
+
+	/**
+	 * Methods match case sensitively on the method as sent
+	 */
+	@Test
+	public void testMethods() {
+		final BypassRules rules = BypassRules.compile(null, null, null, "options, HEAD");
+		final MessageBytes method = MessageBytes.newInstance();
+		final MessageBytes uri = MessageBytes.newInstance();
+		uri.setString("/app");
+		method.setString("OPTIONS");
+		assertTrue(rules.matches(method, uri));
+		method.setString("HEAD");
+		assertTrue(rules.matches(method, uri));
+		method.setString("GET");
+		assertFalse(rules.matches(method, uri));
+	}
+
+	/**
+	 * Empty rules compile to the shared empty instance, and invalid rules are rejected
+	 */
+	@Test
+	public void testCompile() {
+		assertSame(BypassRules.EMPTY, BypassRules.compile("", " , ", null, ""));
+		assertFalse(matches(BypassRules.EMPTY, "/"));
+		final String[][] invalid = {{"health", null, null, null}, {null, "a.b", null, null}, {null, "*", null, null},
+				{null, null, "assets/*", null}, {null, null, null, "GET /"}};
+		for(String[] r: invalid) {
+			try {
+				BypassRules.compile(r[0], r[1], r[2], r[3]);
+				throw new AssertionError("Accepted " + Arrays.toString(r));
+			} catch (IllegalArgumentException expected) {
+				/* No Op */
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * <p>Title: CidrTrieTest</p>
+ * <p>Description: Tests for {@link CidrTrie} lookups of IPv4, IPv6 and IPv4 mapped IPv6 addresses.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CidrTrieTest</code></p>
+ */
+
+public class CidrTrieTest {
+	/** The trie under test */
+	private final CidrTrie trie = CidrTrie.compile("10.0.0.0/8, 192.168.1.0/24, 172.16.5.4, 2001:db8::/32, ::1, fe80::/10");
+
+	/**
+	 * IPv4 addresses match on their prefix bits only
+	 */
+	@Test
+	public void testIpv4() {
+		assertTrue(trie.contains("10.0.0.0"));
+		assertTrue(trie.contains("10.255.255.255"));
+		assertFalse(trie.contains("11.0.0.0"));
+		assertTrue(trie.contains("192.168.1.77"));
+		assertFalse(trie.contains("192.168.2.1"));
+		assertTrue(trie.contains("172.16.5.4"));
+		assertFalse(trie.contains("172.16.5.5"));
+		assertFalse(trie.contains("9.255.255.255"));
+	}
+
+	/**
+	 * IPv6 addresses match in full, compressed and bracketed forms, with or without a zone
+	 */
+	@Test
+	public void testIpv6() {
+		assertTrue(trie.contains("2001:db8::1"));
+		assertTrue(trie.contains("2001:0DB8:ffff:0:0:0:0:1"));
+		assertFalse(trie.contains("2001:db9::1"));
+		assertTrue(trie.contains("::1"));
+		assertTrue(trie.contains("0:0:0:0:0:0:0:1"));
+		assertTrue(trie.contains("[::1]"));
+		assertFalse(trie.contains("::2"));
+		assertTrue(trie.contains("fe80::1%eth0"));
+		assertTrue(trie.contains("febf::1"));
+		assertFalse(trie.contains("fec0::1"));
+	}
+
+	/**
+	 * IPv4 mapped IPv6 addresses match the IPv4 blocks, in dotted and hex forms
+	 */
+	@Test
+	public void testIpv4Mapped() {
+		assertTrue(trie.contains("::ffff:10.1.2.3"));
+		assertTrue(trie.contains("::ffff:0a01:0203"));
+		assertTrue(trie.contains("0:0:0:0:0:ffff:192.168.1.9"));
+		assertFalse(trie.contains("::ffff:11.1.2.3"));
+		// only the ::ffff:0:0/96 prefix maps, the deprecated IPv4 compatible form does not
+		assertFalse(trie.contains("::10.1.2.3"));
+		assertFalse(trie.contains("::fffe:10.1.2.3"));
+	}
+
+	/**
+	 * Malformed addresses never match
+	 */
+	@Test
+	public void testMalformed() {
+		for(String a: new String[]{null, "", "10", "10.0.0", "10.0.0.256", "10.0.0.1.2", "10..0.1", "2001:db8:::1", "2001:db8::1::2",
+				"1:2:3:4:5:6:7:8:9", "2001:db8:1", "2001:db8:12345::", "10.0.0.1:8080", "host.example.com"}) {
+			assertFalse(String.valueOf(a), trie.contains(a));
+		}
+	}
+
+	/**
+	 * An empty spec compiles to the shared empty trie, and invalid blocks are rejected
+	 */
+	@Test
+	public void testCompile() {
+		assertSame(CidrTrie.EMPTY, CidrTrie.compile(" , "));
+		assertFalse(CidrTrie.EMPTY.contains("127.0.0.1"));
+		assertTrue(CidrTrie.compile("0.0.0.0/0").contains("203.0.113.9"));
+		assertFalse(CidrTrie.compile("0.0.0.0/0").contains("2001:db8::1"));
+		for(String spec: new String[]{"10.0.0.0/33", "2001:db8::/129", "10.0.0.0/x", "localhost", "/8"}) {
+			try {
+				CidrTrie.compile(spec);
+				throw new AssertionError("Accepted [" + spec + "]");
+			} catch (IllegalArgumentException expected) {
+				/* No Op */
+			}
+		}
+	}
+}
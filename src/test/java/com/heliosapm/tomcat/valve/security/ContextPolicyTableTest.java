@@ -0,0 +1,88 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static com.heliosapm.tomcat.valve.security.CookiePolicySetTest.context;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.catalina.Context;
+import org.junit.Test;
+
+/**
+ * <p>Title: ContextPolicyTableTest</p>
+ * <p>Description: Tests the order in which {@link ContextPolicyTable} applies its overrides to the valve wide settings:
+ * entries apply in order, a later entry overriding an earlier one only for the settings it names.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.ContextPolicyTableTest</code></p>
+ */
+
+public class ContextPolicyTableTest {
+	/** The valve wide settings */
+	private static final ContextPolicy DEFAULTS = new ContextPolicy(true, true, SameSite.LAX);
+
+	/**
+	 * A later entry overrides an earlier one for the settings it names and keeps the others
+	 */
+	@Test
+	public void testLaterEntryOverrides() {
+		final ContextPolicyTable table = ContextPolicyTable.compile(
+				"path=/admin -> sameSite=Strict, forceHttpOnly=false; domain=example.com -> sameSite=None", DEFAULTS, null);
+		final ContextPolicy p = table.resolve(context("www.example.com", "/admin"));
+		assertSame(SameSite.NONE, p.getSameSite());
+		assertFalse(p.isForceHttpOnly());
+		assertTrue(p.isForceSecure());
+		final ContextPolicyTable reversed = ContextPolicyTable.compile(
+				"domain=example.com -> sameSite=None; path=/admin -> sameSite=Strict, forceHttpOnly=false", DEFAULTS, null);
+		assertSame(SameSite.STRICT, reversed.resolve(context("www.example.com", "/admin")).getSameSite());
+	}
+
+	/**
+	 * An empty sameSite forces none, and overrides only apply to the contexts they select
+	 */
+	@Test
+	public void testSelection() {
+		final ContextPolicyTable table = ContextPolicyTable.compile("path=/shop -> sameSite=; path=/api -> forceSecure=false", DEFAULTS, null);
+		final ContextPolicy shop = table.resolve(context("localhost", "/shop"));
+		assertNull(shop.getSameSite());
+		assertEquals(SetCookieScanner.HTTP_ONLY, shop.requiredAttributes(false));
+		assertEquals(SetCookieScanner.HTTP_ONLY | SetCookieScanner.SAME_SITE, table.resolve(context("localhost", "/api")).requiredAttributes(true));
+		assertSame(DEFAULTS, table.resolve(context("localhost", "/shopping")));
+		assertSame(DEFAULTS, table.resolve(null));
+	}
+
+	/**
+	 * An override that changes nothing resolves to the valve wide settings, and each context is resolved once
+	 */
+	@Test
+	public void testResolvedOnce() {
+		final ContextPolicyTable table = ContextPolicyTable.compile("path=/a -> sameSite=Lax", DEFAULTS, null);
+		final Context a = context("localhost", "/a");
+		assertSame(DEFAULTS, table.resolve(a));
+		assertSame(DEFAULTS, table.resolve(a));
+		assertEquals(1L, table.getResolutions());
+		assertSame(table, ContextPolicyTable.compile("path=/a -> sameSite=Lax", DEFAULTS, table));
+		assertFalse(table==ContextPolicyTable.compile("path=/a -> sameSite=Lax", new ContextPolicy(false, true, SameSite.LAX), table));
+		assertNull(ContextPolicyTable.compile(" ", DEFAULTS, null));
+	}
+}
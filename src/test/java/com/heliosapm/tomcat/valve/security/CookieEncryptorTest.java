@@ -0,0 +1,122 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static com.heliosapm.tomcat.valve.security.CookieSignerTest.key;
+import static com.heliosapm.tomcat.valve.security.CookieSignerTest.mb;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.junit.Test;
+
+/**
+ * <p>Title: CookieEncryptorTest</p>
+ * <p>Description: Tests for {@link CookieEncryptor}: encrypted values decrypt back to the value the application set,
+ * while a changed ciphertext, a value moved to another cookie name or an unknown key version are rejected.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieEncryptorTest</code></p>
+ */
+
+public class CookieEncryptorTest {
+	/** The version 1 test key */
+	private static final String K1 = key("1", 1);
+	/** The version 2 test key */
+	private static final String K2 = key("2", 2);
+
+	/**
+	 * An encrypted value decrypts to the original, and each encryption uses a fresh nonce
+	 */
+	@Test
+	public void testRoundTrip() {
+		final CookieEncryptor enc = CookieEncryptor.compile("sid", K1, null);
+		final String sealed = enc.encrypt("sid", "account=42");
+		assertFalse(sealed, sealed.contains("account"));
+		assertFalse(sealed.equals(enc.encrypt("sid", "account=42")));
+		final MessageBytes value = mb(sealed);
+		assertTrue(enc.decrypt(mb("sid"), value));
+		assertEquals("account=42", value.toString());
+		final MessageBytes empty = mb(enc.encrypt("sid", ""));
+		assertTrue(enc.decrypt(mb("sid"), empty));
+		assertEquals("", empty.toString());
+	}
+
+	/**
+	 * Changing any part of the ciphertext is rejected and leaves the value untouched
+	 */
+	@Test
+	public void testTamperRejected() {
+		final CookieEncryptor enc = CookieEncryptor.compile("sid", K1, null);
+		final String sealed = enc.encrypt("sid", "account=42");
+		for(int i: new int[]{2, sealed.length() / 2, sealed.length() - 2}) {
+			final char c = sealed.charAt(i);
+			final String tampered = sealed.substring(0, i) + (c=='A' ? 'B' : 'A') + sealed.substring(i + 1);
+			final MessageBytes value = mb(tampered);
+			assertFalse(tampered, enc.decrypt(mb("sid"), value));
+			assertEquals(tampered, value.toString());
+		}
+		assertFalse(enc.decrypt(mb("sid"), mb(sealed.substring(0, sealed.length() - 4))));
+		assertFalse(enc.decrypt(mb("sid"), mb("account=42")));
+	}
+
+	/**
+	 * A value encrypted for one cookie does not decrypt under another name
+	 */
+	@Test
+	public void testRenamedCookieRejected() {
+		final CookieEncryptor enc = CookieEncryptor.compile("sid, admin", K1, null);
+		final String sealed = enc.encrypt("sid", "account=42");
+		assertFalse(enc.decrypt(mb("admin"), mb(sealed)));
+		assertTrue(enc.decrypt(mb("sid"), mb(sealed)));
+	}
+
+	/**
+	 * Values encrypted with a retired key decrypt while it is still configured, and not after it is dropped
+	 */
+	@Test
+	public void testKeyRotation() {
+		final CookieEncryptor old = CookieEncryptor.compile("sid", K1, null);
+		final String sealed = old.encrypt("sid", "account=42");
+		final CookieEncryptor rotated = CookieEncryptor.compile("sid", K2 + ", " + K1, old);
+		assertEquals(2, rotated.getCurrentKeyVersion());
+		assertTrue(rotated.decrypt(mb("sid"), mb(sealed)));
+		assertFalse(CookieEncryptor.compile("sid", K2, rotated).decrypt(mb("sid"), mb(sealed)));
+		assertFalse(CookieEncryptor.compile("sid", key("1", 3), null).decrypt(mb("sid"), mb(sealed)));
+	}
+
+	/**
+	 * No names compiles to no encryptor, and invalid keys are rejected
+	 */
+	@Test
+	public void testCompile() {
+		assertNull(CookieEncryptor.compile("", K1, null));
+		assertNull(CookieEncryptor.compile(null, null, null));
+		for(String keys: new String[]{"", "x:" + K1.substring(2), "256:" + K1.substring(2), "1:c2hvcnQ", K1 + ", " + K1}) {
+			try {
+				CookieEncryptor.compile("sid", keys, null);
+				throw new AssertionError("Accepted keys [" + keys + "]");
+			} catch (IllegalArgumentException expected) {
+				/* No Op */
+			}
+		}
+	}
+}
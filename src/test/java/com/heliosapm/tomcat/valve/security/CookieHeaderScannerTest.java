@@ -0,0 +1,125 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static com.heliosapm.tomcat.valve.security.CookieHeaderScanner.COOKIE_TOO_LARGE;
+import static com.heliosapm.tomcat.valve.security.CookieHeaderScanner.HEADER_TOO_LARGE;
+import static com.heliosapm.tomcat.valve.security.CookieHeaderScanner.MALFORMED;
+import static com.heliosapm.tomcat.valve.security.CookieHeaderScanner.OK;
+import static com.heliosapm.tomcat.valve.security.CookieHeaderScanner.TOO_MANY_COOKIES;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.tomcat.util.http.MimeHeaders;
+import org.junit.Test;
+
+/**
+ * <p>Title: CookieHeaderScannerTest</p>
+ * <p>Description: Tests for the {@link CookieHeaderScanner} size, count and header size limits, each checked just under,
+ * at and just over the limit.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieHeaderScannerTest</code></p>
+ */
+
+public class CookieHeaderScannerTest {
+
+	/**
+	 * Builds request headers with the passed Cookie header values, plus an unrelated header
+	 * @param values The Cookie header values
+	 * @return the headers
+	 */
+	private static MimeHeaders headers(final String... values) {
+		final MimeHeaders h = new MimeHeaders();
+		h.addValue("Host").setString("localhost");
+		for(String v: values) h.addValue(CookieHeaderScanner.COOKIE).setString(v);
+		return h;
+	}
+
+	/**
+	 * Scans one header value with no prior cookies
+	 * @param value The header value
+	 * @param maxSize The maximum cookie size
+	 * @param maxCount The maximum cookie count
+	 * @return the count or the negated violation
+	 */
+	private static int scan(final String value, final int maxSize, final int maxCount) {
+		final byte[] b = value.getBytes(SetCookieScanner.ISO_8859_1);
+		return CookieHeaderScanner.scan(b, 0, b.length, 0, maxSize, maxCount);
+	}
+
+	/**
+	 * The size limit covers the name and value, excluding separators and trailing whitespace
+	 */
+	@Test
+	public void testCookieSize() {
+		// a=12345 is 7 bytes
+		assertEquals(2, scan("a=12345; b=1", 7, 0));
+		assertEquals(2, scan("a=12345  ;b=1", 7, 0));
+		assertEquals(-COOKIE_TOO_LARGE, scan("a=123456; b=1", 7, 0));
+		assertEquals(-COOKIE_TOO_LARGE, scan("b=1; a=123456", 7, 0));
+		assertEquals(2, scan("a=\"1;2;3\"; b=1", 9, 0));
+		assertEquals(2, scan("a=123456789; b=1", 0, 0));
+	}
+
+	/**
+	 * The count limit is exact, and version 1 <b><code>$</code></b> attributes are not counted
+	 */
+	@Test
+	public void testCookieCount() {
+		assertEquals(3, scan("a=1; b=2; c=3", 0, 3));
+		assertEquals(-TOO_MANY_COOKIES, scan("a=1; b=2; c=3; d=4", 0, 3));
+		assertEquals(3, scan("$Version=1; a=1; $Path=/; b=2; $Domain=x; c=3", 0, 3));
+		assertEquals(2, scan(";; a=1 ;; b ;", 0, 0));
+		assertEquals(0, scan("", 0, 1));
+	}
+
+	/**
+	 * The count limit spans all the Cookie headers of a request
+	 */
+	@Test
+	public void testCountAcrossHeaders() {
+		assertEquals(OK, CookieHeaderScanner.check(headers("a=1; b=2", "c=3"), 0, 3, 0));
+		assertEquals(TOO_MANY_COOKIES, CookieHeaderScanner.check(headers("a=1; b=2", "c=3", "d=4"), 0, 3, 0));
+	}
+
+	/**
+	 * The header size limit is the total of all the Cookie header values
+	 */
+	@Test
+	public void testHeaderSize() {
+		// 8 + 3 bytes
+		assertEquals(OK, CookieHeaderScanner.check(headers("a=1; b=2", "c=3"), 0, 0, 11));
+		assertEquals(HEADER_TOO_LARGE, CookieHeaderScanner.check(headers("a=1; b=2", "c=3"), 0, 0, 10));
+		assertEquals(OK, CookieHeaderScanner.check(headers(), 1, 1, 1));
+	}
+
+	/**
+	 * Control characters and unterminated quotes are malformed, tabs and escaped quotes are not
+	 */
+	@Test
+	public void testMalformed() {
+		assertEquals(-MALFORMED, scan("a=1\r\nX-Injected: 1", 0, 0));
+		assertEquals(-MALFORMED, scan("a\u0000b=1", 0, 0));
+		assertEquals(-MALFORMED, scan("a=1\u007F", 0, 0));
+		assertEquals(-MALFORMED, scan("a=\"unterminated; b=2", 0, 0));
+		assertEquals(2, scan("a=\"x\\\"y\";\tb=2", 0, 0));
+		assertEquals(MALFORMED, CookieHeaderScanner.check(headers("a=1", "b=\u0001"), 0, 0, 0));
+		assertEquals("malformed", CookieHeaderScanner.reason(MALFORMED));
+	}
+}
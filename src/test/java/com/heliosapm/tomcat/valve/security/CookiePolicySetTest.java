@@ -0,0 +1,143 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static com.heliosapm.tomcat.valve.security.SetCookieScanner.HTTP_ONLY;
+import static com.heliosapm.tomcat.valve.security.SetCookieScanner.SECURE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardHost;
+import org.junit.Test;
+
+/**
+ * <p>Title: CookiePolicySetTest</p>
+ * <p>Description: Tests how {@link CookiePolicySet} merges the exact, prefix and wildcard rules matching a cookie:
+ * the attributes of every matching rule apply and the strictest SameSite wins, whatever order the rules are written in.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookiePolicySetTest</code></p>
+ */
+
+public class CookiePolicySetTest {
+
+	/**
+	 * Creates an unstarted context
+	 * @param host The host name
+	 * @param path The context path
+	 * @return the context
+	 */
+	static Context context(final String host, final String path) {
+		final StandardHost h = new StandardHost();
+		h.setName(host);
+		final StandardContext c = new StandardContext();
+		c.setPath(path);
+		c.setParent(h);
+		return c;
+	}
+
+	/**
+	 * Resolves a cookie's policy both from its name as a String and as bytes, checking they agree
+	 * @param set The policy set
+	 * @param context The context or null
+	 * @param name The cookie name
+	 * @return the policy
+	 */
+	private static CookiePolicy resolve(final CookiePolicySet set, final Context context, final String name) {
+		final byte[] b = ("x" + name + "x").getBytes(SetCookieScanner.ISO_8859_1);
+		final CookiePolicy fromBytes = set.resolve(context, b, 1, b.length - 1);
+		set.clearCache();
+		assertSame(fromBytes, set.resolve(context, name));
+		return fromBytes;
+	}
+
+	/**
+	 * The attributes of all matching exact, prefix and wildcard rules are combined
+	 */
+	@Test
+	public void testAttributesCombine() {
+		final CookiePolicySet set = CookiePolicySet.compile("auth_token -> secure; auth_* -> httponly; * -> samesite=Lax", 16);
+		assertSame(CookiePolicy.of(SECURE | HTTP_ONLY, SameSite.LAX), resolve(set, null, "auth_token"));
+		assertSame(CookiePolicy.of(HTTP_ONLY, SameSite.LAX), resolve(set, null, "auth_other"));
+		assertSame(CookiePolicy.of(0, SameSite.LAX), resolve(set, null, "prefs"));
+		assertSame(CookiePolicy.of(0, SameSite.LAX), resolve(set, null, "auth"));
+	}
+
+	/**
+	 * The strictest SameSite of the matching rules wins, in either rule order
+	 */
+	@Test
+	public void testStrictestSameSiteWins() {
+		for(String spec: new String[]{"* -> samesite=None; sid -> samesite=Strict; s* -> samesite=Lax",
+				"s* -> samesite=Lax; sid -> samesite=Strict; * -> samesite=None"}) {
+			final CookiePolicySet set = CookiePolicySet.compile(spec, 16);
+			assertSame(spec, SameSite.STRICT, resolve(set, null, "sid").getSameSite());
+			assertSame(spec, SameSite.LAX, resolve(set, null, "session").getSameSite());
+			assertSame(spec, SameSite.NONE, resolve(set, null, "prefs").getSameSite());
+		}
+	}
+
+	/**
+	 * Rules qualified by path or domain only merge in for the contexts they select
+	 */
+	@Test
+	public void testQualifiedRules() {
+		final CookiePolicySet set = CookiePolicySet.compile("* -> httponly; * path=/admin -> samesite=Strict; sid domain=example.com -> secure", 16);
+		final Context admin = context("www.example.com", "/admin");
+		final Context shop = context("shop.example.org", "/shop");
+		final Context adminUi = context("example.com", "/admin/ui");
+		final Context administrator = context("notexample.com", "/administrator");
+		assertSame(CookiePolicy.of(SECURE | HTTP_ONLY, SameSite.STRICT), resolve(set, admin, "sid"));
+		assertSame(CookiePolicy.of(HTTP_ONLY, null), resolve(set, shop, "sid"));
+		assertSame(CookiePolicy.of(SECURE | HTTP_ONLY, SameSite.STRICT), resolve(set, adminUi, "sid"));
+		assertSame(CookiePolicy.of(HTTP_ONLY, null), resolve(set, administrator, "sid"));
+		assertSame(CookiePolicy.of(HTTP_ONLY, null), resolve(set, null, "sid"));
+	}
+
+	/**
+	 * The cache keeps the decisions of different contexts apart
+	 */
+	@Test
+	public void testCacheKeyedByContext() {
+		final CookiePolicySet set = CookiePolicySet.compile("* path=/admin -> samesite=Strict", 1);
+		final Context admin = context("localhost", "/admin");
+		final Context shop = context("localhost", "/shop");
+		for(int i = 0; i < 3; i++) {
+			assertSame(SameSite.STRICT, set.resolve(admin, "sid").getSameSite());
+			assertSame(CookiePolicy.NONE, set.resolve(shop, "sid"));
+		}
+		assertEquals(6L, set.getCacheHits() + set.getCacheMisses());
+	}
+
+	/**
+	 * A lookup without a context has its own cache entry and never takes a context's
+	 */
+	@Test
+	public void testCacheWithoutContext() {
+		final CookiePolicySet set = CookiePolicySet.compile("* path=/admin -> samesite=Strict", 1);
+		final Context admin = context("localhost", "/admin");
+		assertSame(SameSite.STRICT, set.resolve(admin, "sid").getSameSite());
+		assertSame(CookiePolicy.NONE, set.resolve(null, "sid"));
+		assertSame(CookiePolicy.NONE, set.resolve(null, "sid"));
+		assertEquals(1L, set.getCacheHits());
+		assertEquals(2L, set.getCacheMisses());
+	}
+}
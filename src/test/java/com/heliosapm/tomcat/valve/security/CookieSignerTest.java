@@ -0,0 +1,169 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.tomcat.util.buf.MessageBytes;
+import org.junit.Test;
+
+/**
+ * <p>Title: CookieSignerTest</p>
+ * <p>Description: Tests for {@link CookieSigner}: signed values verify and are stripped back to the value the application set,
+ * while a changed value, a changed signature, a value moved to another cookie name or an unknown key are rejected.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.CookieSignerTest</code></p>
+ */
+
+public class CookieSignerTest {
+	/** The first test key */
+	private static final String K1 = key("k1", 1);
+	/** The second test key */
+	private static final String K2 = key("k2", 2);
+
+	/**
+	 * Builds a <b><code>kid:secret</code></b> key with a 32 byte secret
+	 * @param id The key id
+	 * @param fill The byte the secret is filled with
+	 * @return the key
+	 */
+	static String key(final String id, final int fill) {
+		final byte[] secret = new byte[32];
+		Arrays.fill(secret, (byte)fill);
+		final char[] c = new char[Base64Url.encodedLength(secret.length)];
+		return id + ":" + new String(c, 0, Base64Url.encode(secret, 0, secret.length, c, 0));
+	}
+
+	/**
+	 * Creates a MessageBytes holding the passed String
+	 * @param s The String
+	 * @return the MessageBytes
+	 */
+	static MessageBytes mb(final String s) {
+		final MessageBytes m = MessageBytes.newInstance();
+		m.setString(s);
+		return m;
+	}
+
+	/**
+	 * A signed value verifies and the signature is stripped
+	 */
+	@Test
+	public void testRoundTrip() {
+		final CookieSigner signer = CookieSigner.compile("auth, prefs", K1, null, null);
+		final String signed = signer.sign("auth", "hello");
+		assertTrue(signed, signed.startsWith("hello.k1."));
+		final MessageBytes value = mb(signed);
+		assertTrue(signer.verify(mb("auth"), value));
+		assertEquals("hello", value.toString());
+		assertTrue(signer.isSigned("prefs"));
+		assertFalse(signer.isSigned("other"));
+	}
+
+	/**
+	 * An empty value, and a value that itself contains dots, round trip
+	 */
+	@Test
+	public void testDottedAndEmptyValues() {
+		final CookieSigner signer = CookieSigner.compile("auth", K1, null, null);
+		for(String v: new String[]{"", "a.b.c", "x.k1.y"}) {
+			final MessageBytes value = mb(signer.sign("auth", v));
+			assertTrue(v, signer.verify(mb("auth"), value));
+			assertEquals(v, value.toString());
+		}
+	}
+
+	/**
+	 * Changing the value or the signature is rejected and leaves the value untouched
+	 */
+	@Test
+	public void testTamperRejected() {
+		final CookieSigner signer = CookieSigner.compile("auth", K1, null, null);
+		final String signed = signer.sign("auth", "user=alice");
+		final String value = "user=mallory" + signed.substring("user=alice".length());
+		final MessageBytes tampered = mb(value);
+		assertFalse(signer.verify(mb("auth"), tampered));
+		assertEquals(value, tampered.toString());
+		final char last = signed.charAt(signed.length() - 1);
+		final String sig = signed.substring(0, signed.length() - 1) + (last=='A' ? 'B' : 'A');
+		assertFalse(signer.verify(mb("auth"), mb(sig)));
+		assertFalse(signer.verify(mb("auth"), mb(signed.substring(0, signed.length() - 1))));
+		assertFalse(signer.verify(mb("auth"), mb("user=alice")));
+	}
+
+	/**
+	 * A value signed for one cookie does not verify under another name
+	 */
+	@Test
+	public void testRenamedCookieRejected() {
+		final CookieSigner signer = CookieSigner.compile("auth, admin", K1, null, null);
+		final String signed = signer.sign("auth", "alice");
+		assertFalse(signer.verify(mb("admin"), mb(signed)));
+		assertTrue(signer.verify(mb("auth"), mb(signed)));
+	}
+
+	/**
+	 * Values signed with a retired key verify while it is still configured, and not after it is dropped
+	 */
+	@Test
+	public void testKeyRotation() {
+		final CookieSigner old = CookieSigner.compile("auth", K1, null, null);
+		final String signed = old.sign("auth", "alice");
+		final CookieSigner rotated = CookieSigner.compile("auth", K2 + ", " + K1, null, old);
+		assertEquals("k2", rotated.getCurrentKeyId());
+		assertTrue(rotated.sign("auth", "alice").startsWith("alice.k2."));
+		assertTrue(rotated.verify(mb("auth"), mb(signed)));
+		final CookieSigner dropped = CookieSigner.compile("auth", K2, null, rotated);
+		assertFalse(dropped.verify(mb("auth"), mb(signed)));
+	}
+
+	/**
+	 * A key of the same id but a different secret does not verify
+	 */
+	@Test
+	public void testWrongSecretRejected() {
+		final String signed = CookieSigner.compile("auth", K1, null, null).sign("auth", "alice");
+		final CookieSigner other = CookieSigner.compile("auth", key("k1", 3), null, null);
+		assertFalse(other.verify(mb("auth"), mb(signed)));
+	}
+
+	/**
+	 * No names compiles to no signer, and invalid keys are rejected
+	 */
+	@Test
+	public void testCompile() {
+		assertNull(CookieSigner.compile("", K1, null, null));
+		assertNull(CookieSigner.compile(null, null, null, null));
+		for(String keys: new String[]{"", "nokid", "k1:c2hvcnQ", K1 + ", " + K1, "bad id:" + K1.substring(3)}) {
+			try {
+				CookieSigner.compile("auth", keys, null, null);
+				throw new AssertionError("Accepted keys [" + keys + "]");
+			} catch (IllegalArgumentException expected) {
+				/* No Op */
+			}
+		}
+		assertEquals("k1:****, k2:****", CookieSigner.mask(K1 + "," + K2));
+	}
+}
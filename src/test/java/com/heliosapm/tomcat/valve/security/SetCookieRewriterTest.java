@@ -0,0 +1,116 @@
+/**
+Licensed to the Apache Software Foundation (ASF) under one
+or more contributor license agreements.  See the NOTICE file
+distributed with this work for additional information
+regarding copyright ownership.  The ASF licenses this file
+to you under the Apache License, Version 2.0 (the
+"License"); you may not use this file except in compliance
+with the License.  You may obtain a copy of the License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License.
+ */
+package com.heliosapm.tomcat.valve.security;
+
+import static com.heliosapm.tomcat.valve.security.SetCookieScanner.HTTP_ONLY;
+import static com.heliosapm.tomcat.valve.security.SetCookieScanner.SAME_SITE;
+import static com.heliosapm.tomcat.valve.security.SetCookieScanner.SECURE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * <p>Title: SetCookieRewriterTest</p>
+ * <p>Description: Tests that {@link SetCookieRewriter} only appends the attributes a <b><code>Set-Cookie</code></b> value
+ * is missing, returns the passed value itself when none are, and is not fooled by attribute names in values.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.tomcat.valve.security.SetCookieRewriterTest</code></p>
+ */
+
+public class SetCookieRewriterTest {
+	/** All the attribute bits */
+	private static final int ALL = SECURE | HTTP_ONLY | SAME_SITE;
+	/** The rewriter under test */
+	private final SetCookieRewriter rewriter = new SetCookieRewriter();
+
+	/**
+	 * A value carrying every required attribute, in any case and spacing, is returned as is
+	 */
+	@Test
+	public void testSkipIfPresent() {
+		for(String v: new String[]{
+				"a=1; Secure; HttpOnly; SameSite=Lax",
+				"a=1;secure;httponly;samesite=none",
+				"a=1; SECURE ; HTTPONLY ; SAMESITE = Strict; Path=/",
+				"a=\"x;y\"; Path=/; HttpOnly; Max-Age=10; Secure; SameSite=Lax"}) {
+			assertSame(v, rewriter.rewrite(v, ALL, SameSite.STRICT.attribute()));
+			assertEquals(0, rewriter.getLastAdded());
+			assertNull(rewriter.getLastSameSite());
+		}
+	}
+
+	/**
+	 * An existing SameSite is kept even when it differs from the one that would be appended
+	 */
+	@Test
+	public void testExistingSameSiteKept() {
+		assertEquals("a=1; SameSite=None; Secure", rewriter.rewrite("a=1; SameSite=None", SECURE | SAME_SITE, SameSite.STRICT.attribute()));
+		assertEquals(SECURE, rewriter.getLastAdded());
+	}
+
+	/**
+	 * Only the missing attributes are appended, in a fixed order
+	 */
+	@Test
+	public void testAppendsMissing() {
+		assertEquals("a=1; Secure; HttpOnly; SameSite=Lax", rewriter.rewrite("a=1", ALL, SameSite.LAX.attribute()));
+		assertEquals(ALL, rewriter.getLastAdded());
+		assertSame(SameSite.LAX.attribute(), rewriter.getLastSameSite());
+		assertEquals("a=1; HttpOnly; Secure", rewriter.rewrite("a=1; HttpOnly", ALL, null));
+		assertEquals(SECURE, rewriter.getLastAdded());
+		assertEquals("a=1; Secure; HttpOnly", rewriter.rewrite("a=1; Secure", HTTP_ONLY, null));
+	}
+
+	/**
+	 * Attribute names inside the cookie value or another attribute's value do not count as present
+	 */
+	@Test
+	public void testNamesInValuesIgnored() {
+		assertEquals("Secure=HttpOnly; Secure; HttpOnly", rewriter.rewrite("Secure=HttpOnly", SECURE | HTTP_ONLY, null));
+		assertEquals("a=1; Path=/secure; Secure", rewriter.rewrite("a=1; Path=/secure", SECURE, null));
+		assertEquals("a=\"; Secure\"; Secure", rewriter.rewrite("a=\"; Secure\"", SECURE, null));
+		assertEquals("a=1; Secured; Secure", rewriter.rewrite("a=1; Secured", SECURE, null));
+	}
+
+	/**
+	 * Nothing required, or a null value, returns the passed value
+	 */
+	@Test
+	public void testNothingRequired() {
+		final String v = "a=1";
+		assertSame(v, rewriter.rewrite(v, 0, SameSite.LAX.attribute()));
+		assertNull(rewriter.rewrite(null, ALL, SameSite.LAX.attribute()));
+		assertSame(v, rewriter.rewrite(v, SAME_SITE, null));
+	}
+
+	/**
+	 * A matching policy adds its attributes to the valve wide ones, and its SameSite replaces the valve wide one
+	 */
+	@Test
+	public void testPolicyMergedWithValveSettings() {
+		final CookiePolicySet policies = CookiePolicySet.compile("auth -> httponly, samesite=Strict", 16);
+		assertEquals("auth=1; Secure; HttpOnly; SameSite=Strict", rewriter.rewrite("auth=1", policies, null, SECURE | SAME_SITE, SameSite.LAX.attribute()));
+		assertEquals("other=1; Secure; SameSite=Lax", rewriter.rewrite("other=1", policies, null, SECURE | SAME_SITE, SameSite.LAX.attribute()));
+		final String v = "auth=1; HttpOnly; SameSite=Lax";
+		assertSame(v, rewriter.rewrite(v, policies, null, 0, null));
+	}
+}